@@ -0,0 +1,282 @@
+/*
+Copyright (c) 2012, Adam Retter
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of Adam Retter Consulting nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL Adam Retter BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.extensions.exquery.restxq.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.exquery.http.AcceptHeader;
+import org.exquery.http.HttpHeader;
+import org.exquery.http.HttpMethod;
+import org.exquery.http.HttpRequest;
+import org.exquery.restxq.RestXqService;
+import org.exquery.restxq.RestXqServiceRegistry;
+import org.exquery.restxq.RestXqServiceRegistryListener;
+import org.exquery.restxq.annotation.PathAnnotation;
+import org.exquery.xquery.Literal;
+
+/**
+ * Dispatch index of the Resource Functions in a registry.
+ *
+ * The registry itself tests every Resource Function registered for the
+ * request method against the request. Instead, the path templates of the
+ * Resource Functions are compiled into a trie per HTTP method, whose levels
+ * are the segments of the path. A segment is either a literal or, if it
+ * contains a template like {$id}, a wildcard for any single segment. Looking
+ * up a request only visits the branches matching its path, which leaves a
+ * handful of candidates. The candidates are then checked in order of path
+ * specificity with {@link RestXqService#canService(HttpRequest)}, which
+ * checks the path templates and the consumed media types, and the one
+ * producing the media type most preferred by the Accept header is chosen.
+ *
+ * The trie is an immutable snapshot, so lookups need no locking. It is
+ * marked stale whenever a Resource Function is registered or deregistered
+ * and rebuilt from the registry by the next lookup, so registering the
+ * functions of a large module rebuilds it once.
+ */
+public class RestXqDispatchIndex implements RestXqServiceRegistryListener {
+
+    private final RestXqServiceRegistry registry;
+
+    private final AtomicLong modifications = new AtomicLong();
+    private volatile Snapshot index = null;
+
+    public RestXqDispatchIndex(final RestXqServiceRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void registered(final RestXqService service) {
+        modifications.incrementAndGet();
+    }
+
+    @Override
+    public void deregistered(final RestXqService service) {
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * Find the Resource Function to service a request.
+     *
+     * @param request the HTTP request
+     * @return the Resource Function or null if no Resource Function can service the request
+     */
+    public RestXqService findService(final HttpRequest request) {
+        final Node root = getIndex().get(request.getMethod());
+        if(root == null) {
+            return null;
+        }
+
+        final List<Candidate> candidates = new ArrayList<Candidate>();
+        collect(root, split(request.getPath()), 0, candidates);
+        if(candidates.isEmpty()) {
+            return null;
+        }
+        if(candidates.size() > 1) {
+            Collections.sort(candidates);
+        }
+
+        final String accept = request.getHeader(HttpHeader.ACCEPT.getHeaderName());
+        final AcceptHeader acceptHeader = accept != null ? new AcceptHeader(accept) : null;
+
+        RestXqService found = null;
+        float foundQuality = 0;
+        for(final Candidate candidate : candidates) {
+            final RestXqService service = candidate.service;
+            if(!service.canService(request)) {
+                continue;
+            }
+            if(acceptHeader == null) {
+                //the most specific path wins
+                return service;
+            }
+            final float quality = service.maxProducesQualityFactor(acceptHeader);
+            if(found == null || quality > foundQuality) {
+                found = service;
+                foundQuality = quality;
+            }
+        }
+        return found;
+    }
+
+    private Map<HttpMethod, Node> getIndex() {
+        Snapshot current = index;
+        if(current == null || current.modification != modifications.get()) {
+            synchronized(this) {
+                current = index;
+                final long modification = modifications.get();
+                if(current == null || current.modification != modification) {
+                    //a registration while building leaves the snapshot stale for the next lookup
+                    current = new Snapshot(modification, build(registry));
+                    index = current;
+                }
+            }
+        }
+        return current.roots;
+    }
+
+    private static Map<HttpMethod, Node> build(final Iterable<RestXqService> services) {
+        //rank the services like the registry does: by descending path specificity
+        final List<RestXqService> ordered = new ArrayList<RestXqService>();
+        for(final RestXqService service : services) {
+            ordered.add(service);
+        }
+        Collections.sort(ordered);
+
+        final Map<HttpMethod, Node> roots = new EnumMap<HttpMethod, Node>(HttpMethod.class);
+        for(int rank = 0; rank < ordered.size(); rank++) {
+            final RestXqService service = ordered.get(rank);
+            final Candidate candidate = new Candidate(rank, service);
+            final String[] segments = getPathSegments(service);
+            for(final HttpMethod method : service.getServicedMethods()) {
+                Node root = roots.get(method);
+                if(root == null) {
+                    root = new Node();
+                    roots.put(method, root);
+                }
+                if(segments == null) {
+                    root.unconstrained.add(candidate);
+                } else {
+                    root.add(segments, candidate);
+                }
+            }
+        }
+        return roots;
+    }
+
+    /**
+     * @return the segments of the path template of the service,
+     *     or null if the service does not constrain the path
+     */
+    private static String[] getPathSegments(final RestXqService service) {
+        final PathAnnotation pathAnnotation = service.getResourceFunction().getPathAnnotation();
+        if(pathAnnotation == null) {
+            return null;
+        }
+        final Literal[] literals = pathAnnotation.getLiterals();
+        if(literals == null || literals.length != 1) {
+            return null;
+        }
+        return split(literals[0].getValue());
+    }
+
+    /**
+     * Collect the services whose path template may match the remaining segments.
+     */
+    private static void collect(final Node node, final String[] segments, final int pos, final List<Candidate> candidates) {
+        candidates.addAll(node.unconstrained);
+        if(pos == segments.length) {
+            candidates.addAll(node.services);
+            return;
+        }
+
+        final String segment = segments[pos];
+        if(segment.isEmpty()) {
+            //empty segments are never matched by a path template
+            return;
+        }
+
+        final Node literal = node.literals.get(segment);
+        if(literal != null) {
+            collect(literal, segments, pos + 1, candidates);
+        }
+        if(node.template != null) {
+            collect(node.template, segments, pos + 1, candidates);
+        }
+    }
+
+    private static String[] split(final String path) {
+        if(path == null) {
+            return new String[0];
+        }
+        final String relative = path.startsWith("/") ? path.substring(1) : path;
+        if(relative.isEmpty()) {
+            return new String[0];
+        }
+        return relative.split("/", -1);
+    }
+
+    private static boolean isTemplate(final String segment) {
+        return segment.indexOf('{') > -1;
+    }
+
+    private static class Snapshot {
+        final long modification;
+        final Map<HttpMethod, Node> roots;
+
+        Snapshot(final long modification, final Map<HttpMethod, Node> roots) {
+            this.modification = modification;
+            this.roots = roots;
+        }
+    }
+
+    private static class Node {
+        final Map<String, Node> literals = new HashMap<String, Node>();
+        Node template = null;
+        final List<Candidate> services = new ArrayList<Candidate>(1);
+        final List<Candidate> unconstrained = new ArrayList<Candidate>(0);
+
+        void add(final String[] segments, final Candidate candidate) {
+            Node node = this;
+            for(final String segment : segments) {
+                if(isTemplate(segment)) {
+                    if(node.template == null) {
+                        node.template = new Node();
+                    }
+                    node = node.template;
+                } else {
+                    Node child = node.literals.get(segment);
+                    if(child == null) {
+                        child = new Node();
+                        node.literals.put(segment, child);
+                    }
+                    node = child;
+                }
+            }
+            node.services.add(candidate);
+        }
+    }
+
+    private static class Candidate implements Comparable<Candidate> {
+        final int rank;
+        final RestXqService service;
+
+        Candidate(final int rank, final RestXqService service) {
+            this.rank = rank;
+            this.service = service;
+        }
+
+        @Override
+        public int compareTo(final Candidate other) {
+            return rank < other.rank ? -1 : (rank == other.rank ? 0 : 1);
+        }
+    }
+}
@@ -27,11 +27,10 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package org.exist.extensions.exquery.restxq.impl;
 
 import java.net.URI;
-import java.util.ArrayDeque;
 import java.util.Deque;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
 import org.exist.extensions.exquery.restxq.RestXqServiceCompiledXQueryCache;
 import org.exist.storage.DBBroker;
 import org.exist.xquery.CompiledXQuery;
@@ -47,8 +46,12 @@ public class RestXqServiceCompiledXQueryCacheImpl implements RestXqServiceCompil
     private final static RestXqServiceCompiledXQueryCacheImpl instance = new RestXqServiceCompiledXQueryCacheImpl();
     
     //TODO could introduce a MAX stack size, i.e. you can only have N compiled main.xqy's in the cache
-    private final Map<URI, Deque<CompiledXQuery>> cache = new HashMap<URI, Deque<CompiledXQuery>>();
-    private final ReentrantReadWriteLock cacheLock = new ReentrantReadWriteLock();
+    /*
+     * Queries are taken and returned by concurrent requests for the same
+     * module, so the queries of a module are kept in a lock-free stack
+     * rather than behind a lock shared by all modules.
+     */
+    private final ConcurrentMap<URI, Deque<CompiledXQuery>> cache = new ConcurrentHashMap<URI, Deque<CompiledXQuery>>();
     
     public static RestXqServiceCompiledXQueryCacheImpl getInstance() {
         return instance;
@@ -58,15 +61,9 @@ public class RestXqServiceCompiledXQueryCacheImpl implements RestXqServiceCompil
     public CompiledXQuery getCompiledQuery(final DBBroker broker, final URI xqueryLocation) throws RestXqServiceException {
         
         CompiledXQuery xquery = null;
-        cacheLock.writeLock().lock();
-        try {
-            final Deque<CompiledXQuery> queries = cache.get(xqueryLocation);
-            
-            if(queries != null && !queries.isEmpty()) {
-                xquery = queries.pop();
-            }
-        } finally {
-            cacheLock.writeLock().unlock();
+        final Deque<CompiledXQuery> queries = cache.get(xqueryLocation);
+        if(queries != null) {
+            xquery = queries.pollFirst();
         }
         
         if(xquery == null) {
@@ -83,45 +80,30 @@ public class RestXqServiceCompiledXQueryCacheImpl implements RestXqServiceCompil
     
     @Override
     public void returnCompiledQuery(final URI xqueryLocation, final CompiledXQuery xquery) {
-        cacheLock.writeLock().lock();
-        try {
-            Deque<CompiledXQuery> queries = cache.get(xqueryLocation);
+        //reset the query and context
+        xquery.reset();
+        xquery.getContext().reset();
+        
+        Deque<CompiledXQuery> queries = cache.get(xqueryLocation);
+        if(queries == null) {
+            final Deque<CompiledXQuery> created = new ConcurrentLinkedDeque<CompiledXQuery>();
+            queries = cache.putIfAbsent(xqueryLocation, created);
             if(queries == null) {
-                queries = new ArrayDeque<CompiledXQuery>();
+                queries = created;
             }
-            
-            //reset the query and context
-            xquery.reset();
-            xquery.getContext().reset();
-            
-            queries.push(xquery);
-            
-            cache.put(xqueryLocation, queries);
-            
-        } finally {
-            cacheLock.writeLock().unlock();
         }
+        queries.push(xquery);
     }
     
     @Override
     public void removeService(final RestXqService service) {
-        cacheLock.writeLock().lock();
-        try {        
-            cache.remove(service.getResourceFunction().getXQueryLocation());
-        } finally {
-            cacheLock.writeLock().unlock();
-        }
+        cache.remove(service.getResourceFunction().getXQueryLocation());
     }
     
     @Override
     public void removeServices(final Iterable<RestXqService> services) {
-        cacheLock.writeLock().lock();
-        try {
-            for(final RestXqService service : services) {
-                cache.remove(service.getResourceFunction().getXQueryLocation());
-            }
-        } finally {
-            cacheLock.writeLock().unlock();
+        for(final RestXqService service : services) {
+            cache.remove(service.getResourceFunction().getXQueryLocation());
         }
     }
 }
\ No newline at end of file
@@ -42,6 +42,7 @@ public final class RestXqServiceRegistryManager {
     
     private static RestXqServiceRegistryImpl registry = null;
     private static RestXqServiceRegistryPersistence persistence = null;
+    private static volatile RestXqDispatchIndex dispatchIndex = null;
     
     
     public static synchronized RestXqServiceRegistry getRegistry(final BrokerPool pool) {
@@ -56,6 +57,10 @@ public final class RestXqServiceRegistryManager {
             //add compiled cache cleanup listener
             registry.addListener(new RestXqServiceCompiledXQueryCacheCleanupListener());
             
+            //add dispatch index listener
+            dispatchIndex = new RestXqDispatchIndex(registry);
+            registry.addListener(dispatchIndex);
+            
             //add persistence listener
             persistence = new RestXqServiceRegistryPersistence(pool, registry);
             
@@ -70,4 +75,13 @@ public final class RestXqServiceRegistryManager {
         
         return registry;
     }
+    
+    public static RestXqDispatchIndex getDispatchIndex(final BrokerPool pool) {
+        final RestXqDispatchIndex index = dispatchIndex;
+        if(index != null) {
+            return index;
+        }
+        getRegistry(pool);
+        return dispatchIndex;
+    }
 }
\ No newline at end of file
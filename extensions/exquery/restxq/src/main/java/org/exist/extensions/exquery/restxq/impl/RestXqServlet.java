@@ -46,7 +46,6 @@ import org.exist.util.io.FilterInputStreamCacheFactory.FilterInputStreamCacheCon
 import org.exquery.http.HttpRequest;
 import org.exquery.restxq.RestXqService;
 import org.exquery.restxq.RestXqServiceException;
-import org.exquery.restxq.RestXqServiceRegistry;
 
 /**
  *
@@ -56,8 +55,8 @@ public class RestXqServlet extends AbstractExistHttpServlet {
 
     final Logger log = LogManager.getLogger(getClass());
 
-    private RestXqServiceRegistry getRegistry() {
-        return RestXqServiceRegistryManager.getRegistry(getPool());
+    private RestXqDispatchIndex getDispatchIndex() {
+        return RestXqServiceRegistryManager.getDispatchIndex(getPool());
     }
 
     @Override
@@ -93,7 +92,7 @@ public class RestXqServlet extends AbstractExistHttpServlet {
                 });
           
             
-            final RestXqService service = getRegistry().findService(requestAdapter);
+            final RestXqService service = getDispatchIndex().findService(requestAdapter);
             if(service != null) {
                 
                 if(log.isTraceEnabled()) {
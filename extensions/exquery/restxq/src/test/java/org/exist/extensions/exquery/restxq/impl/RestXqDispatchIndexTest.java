@@ -0,0 +1,256 @@
+/*
+Copyright (c) 2012, Adam Retter
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above copyright
+      notice, this list of conditions and the following disclaimer in the
+      documentation and/or other materials provided with the distribution.
+    * Neither the name of Adam Retter Consulting nor the
+      names of its contributors may be used to endorse or promote products
+      derived from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL Adam Retter BE LIABLE FOR ANY
+DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.exist.extensions.exquery.restxq.impl;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.easymock.EasyMock;
+import org.exquery.http.AcceptHeader;
+import org.exquery.http.HttpHeader;
+import org.exquery.http.HttpMethod;
+import org.exquery.http.HttpRequest;
+import org.exquery.http.HttpResponse;
+import org.exquery.restxq.ResourceFunction;
+import org.exquery.restxq.ResourceFunctionExecuter;
+import org.exquery.restxq.RestXqService;
+import org.exquery.restxq.RestXqServiceRegistry;
+import org.exquery.restxq.RestXqServiceSerializer;
+import org.exquery.restxq.annotation.PathAnnotation;
+import org.exquery.xquery.Literal;
+import org.junit.Before;
+import org.junit.Test;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for RestXqDispatchIndex
+ */
+public class RestXqDispatchIndexTest {
+
+    private List<RestXqService> services;
+    private TestRegistry registry;
+    private RestXqDispatchIndex index;
+
+    @Before
+    public void setUp() {
+        services = new ArrayList<RestXqService>();
+        registry = new TestRegistry(services);
+        index = new RestXqDispatchIndex(registry);
+    }
+
+    @Test
+    public void literalsBeforeTemplates() {
+        final TestService user = register("/users/{$id}", 2, HttpMethod.GET);
+        final TestService me = register("/users/me", 3, HttpMethod.GET);
+        final TestService update = register("/users/{$id}", 2, HttpMethod.POST);
+
+        assertSame(me, index.findService(request(HttpMethod.GET, "/users/me", null)));
+        assertSame(user, index.findService(request(HttpMethod.GET, "/users/42", null)));
+        assertSame(update, index.findService(request(HttpMethod.POST, "/users/me", null)));
+        assertNull(index.findService(request(HttpMethod.DELETE, "/users/42", null)));
+        assertNull(index.findService(request(HttpMethod.GET, "/users", null)));
+        assertNull(index.findService(request(HttpMethod.GET, "/users/", null)));
+        assertNull(index.findService(request(HttpMethod.GET, "/users/42/items", null)));
+    }
+
+    @Test
+    public void onlyMatchingBranchesAreChecked() {
+        final List<TestService> others = new ArrayList<TestService>();
+        for(int i = 0; i < 100; i++) {
+            others.add(register("/app/resource" + i + "/{$id}", 2, HttpMethod.GET));
+        }
+        final TestService item = register("/app/items/{$id}", 2, HttpMethod.GET);
+
+        assertSame(item, index.findService(request(HttpMethod.GET, "/app/items/1", null)));
+        assertEquals(1, item.checks);
+        for(final TestService other : others) {
+            assertEquals(0, other.checks);
+        }
+    }
+
+    @Test
+    public void acceptHeaderNegotiation() {
+        final TestService xml = register("/data/{$id}", 2, HttpMethod.GET);
+        xml.quality = 0.5f;
+        final TestService json = register("/data/{$id}", 2, HttpMethod.GET);
+        json.quality = 1.0f;
+
+        assertSame(json, index.findService(request(HttpMethod.GET, "/data/1", "application/json, application/xml;q=0.5")));
+
+        //the most specific path wins unless another one produces a more preferred media type
+        final TestService literal = register("/data/latest", 3, HttpMethod.GET);
+        literal.quality = 1.0f;
+        assertSame(literal, index.findService(request(HttpMethod.GET, "/data/latest", "application/json")));
+        literal.quality = 0.1f;
+        assertSame(json, index.findService(request(HttpMethod.GET, "/data/latest", "application/json")));
+    }
+
+    @Test
+    public void rebuiltWhenRegistrationChanges() {
+        assertNull(index.findService(request(HttpMethod.GET, "/a/b", null)));
+
+        final TestService ab = register("/a/b", 2, HttpMethod.GET, HttpMethod.HEAD);
+        assertSame(ab, index.findService(request(HttpMethod.GET, "/a/b", null)));
+        assertSame(ab, index.findService(request(HttpMethod.HEAD, "/a/b", null)));
+
+        services.remove(ab);
+        index.deregistered(ab);
+        assertNull(index.findService(request(HttpMethod.GET, "/a/b", null)));
+    }
+
+    @Test
+    public void servicesWithoutPath() {
+        final TestService any = register(null, 0, HttpMethod.PUT);
+        final TestService doc = register("/doc", 1, HttpMethod.PUT);
+
+        assertSame(doc, index.findService(request(HttpMethod.PUT, "/doc", null)));
+        assertSame(any, index.findService(request(HttpMethod.PUT, "/x/y/z", null)));
+    }
+
+    private TestService register(final String path, final long specificity, final HttpMethod... methods) {
+        final TestService service = new TestService(path, specificity, EnumSet.of(methods[0], methods));
+        services.add(service);
+        index.registered(service);
+        return service;
+    }
+
+    private static HttpRequest request(final HttpMethod method, final String path, final String accept) {
+        final HttpRequest request = EasyMock.createNiceMock(HttpRequest.class);
+        expect(request.getMethod()).andReturn(method).anyTimes();
+        expect(request.getPath()).andReturn(path).anyTimes();
+        expect(request.getHeader(HttpHeader.ACCEPT.getHeaderName())).andReturn(accept).anyTimes();
+        replay(request);
+        return request;
+    }
+
+    /**
+     * Matches paths like the path annotation and produces
+     * media types of a fixed quality
+     */
+    private static class TestService implements RestXqService {
+        private final EnumSet<HttpMethod> methods;
+        private final Pattern pattern;
+        private final ResourceFunction resourceFunction;
+        private final long specificity;
+        float quality = 1.0f;
+        int checks = 0;
+
+        TestService(final String path, final long specificity, final EnumSet<HttpMethod> methods) {
+            this.methods = methods;
+            this.specificity = specificity;
+            this.pattern = path == null ? null : Pattern.compile("/?" + path.replaceFirst("^/", "").replaceAll("\\{\\$[^}]+\\}", "[^/]+"));
+
+            final ResourceFunction function = EasyMock.createNiceMock(ResourceFunction.class);
+            if(path != null) {
+                final Literal literal = EasyMock.createNiceMock(Literal.class);
+                expect(literal.getValue()).andReturn(path).anyTimes();
+                final PathAnnotation pathAnnotation = EasyMock.createNiceMock(PathAnnotation.class);
+                expect(pathAnnotation.getLiterals()).andReturn(new Literal[] { literal }).anyTimes();
+                expect(function.getPathAnnotation()).andReturn(pathAnnotation).anyTimes();
+                replay(literal, pathAnnotation);
+            }
+            replay(function);
+            this.resourceFunction = function;
+        }
+
+        @Override
+        public ResourceFunction getResourceFunction() {
+            return resourceFunction;
+        }
+
+        @Override
+        public EnumSet<HttpMethod> getServicedMethods() {
+            return methods;
+        }
+
+        @Override
+        public boolean canService(final HttpRequest request) {
+            checks++;
+            return methods.contains(request.getMethod()) && (pattern == null || pattern.matcher(request.getPath()).matches());
+        }
+
+        @Override
+        public float maxProducesQualityFactor(final AcceptHeader acceptHeader) {
+            return quality;
+        }
+
+        @Override
+        public void service(final HttpRequest request, final HttpResponse response, final ResourceFunctionExecuter resourceFunctionExecuter, final RestXqServiceSerializer restXqServiceSerializer) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int compareTo(final RestXqService other) {
+            final long otherSpecificity = ((TestService)other).specificity;
+            return specificity > otherSpecificity ? -1 : (specificity == otherSpecificity ? 0 : 1);
+        }
+    }
+
+    private static class TestRegistry implements RestXqServiceRegistry {
+        private final List<RestXqService> services;
+
+        TestRegistry(final List<RestXqService> services) {
+            this.services = services;
+        }
+
+        @Override
+        public Iterator<RestXqService> iterator() {
+            return services.iterator();
+        }
+
+        @Override
+        public void register(final RestXqService service) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void register(final Iterable<RestXqService> services) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void deregister(final java.net.URI xqueryLocation) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void deregister(final RestXqService service) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public RestXqService findService(final HttpRequest request) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -365,6 +365,22 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
 
     public NodeSet search(int contextId, DocumentSet docs, List<QName> qnames, String query, String ngram, XQueryContext context, NodeSet contextSet, int axis)
  throws XPathException {
+        return search(contextId, docs, qnames, query, ngram, context, contextSet, axis, null);
+    }
+
+    /**
+     * Search the index for the given ngram.
+     *
+     * If a filter is given, only nodes contained in the filter are returned. The occurrences
+     * of all other documents are skipped without decoding them, using the length stored in
+     * front of the data of every document. This is used to intersect the occurrences of
+     * several ngrams, starting with the least frequent one.
+     *
+     * @param filter the nodes to restrict the result to, or null. Ignored if axis is
+     *               {@link NodeSet#ANCESTOR}, as the result then contains the context nodes.
+     */
+    public NodeSet search(int contextId, DocumentSet docs, List<QName> qnames, String query, String ngram, XQueryContext context,
+            NodeSet contextSet, int axis, NodeSet filter) throws XPathException {
         if (qnames == null || qnames.isEmpty())
             qnames = getDefinedIndexes(context.getBroker(), docs);
         final NodeSet result = new ExtArrayNodeSet(docs.getDocumentCount(), 250);
@@ -376,7 +392,8 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                 final Lock lock = index.db.getLock();
                 try {
                     lock.acquire(Lock.READ_LOCK);
-                    SearchCallback cb = new SearchCallback(contextId, query, ngram, docs, contextSet, context, result, axis == NodeSet.ANCESTOR);
+                    SearchCallback cb = new SearchCallback(contextId, query, ngram, docs, contextSet, context, result,
+                            axis == NodeSet.ANCESTOR, axis == NodeSet.ANCESTOR ? null : filter);
                     int op = query.codePointCount(0, query.length()) < getN() ? IndexQuery.TRUNC_RIGHT : IndexQuery.EQ;
                     index.db.query(new IndexQuery(op, key), cb);
                 } catch (LockException e) {
@@ -396,6 +413,38 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         return result;
     }
 
+    /**
+     * Count the nodes containing the given ngram in the given documents. Only the header
+     * stored in front of the data of every document is read, so this is much cheaper than
+     * {@link #search(int, DocumentSet, List, String, String, XQueryContext, NodeSet, int)}.
+     *
+     * @return the number of nodes
+     */
+    public long getOccurrenceCount(DocumentSet docs, List<QName> qnames, String ngram, XQueryContext context) {
+        if (qnames == null || qnames.isEmpty())
+            qnames = getDefinedIndexes(context.getBroker(), docs);
+        final OccurrenceCountCallback cb = new OccurrenceCountCallback(docs);
+        final int op = ngram.codePointCount(0, ngram.length()) < getN() ? IndexQuery.TRUNC_RIGHT : IndexQuery.EQ;
+        for (Iterator<Collection> iter = docs.getCollectionIterator(); iter.hasNext();) {
+            final int collectionId = iter.next().getId();
+            for (QName qname : qnames) {
+                NGramQNameKey key = new NGramQNameKey(collectionId, qname, index.getBrokerPool().getSymbols(), ngram);
+                final Lock lock = index.db.getLock();
+                try {
+                    lock.acquire(Lock.READ_LOCK);
+                    index.db.query(new IndexQuery(op, key), cb);
+                } catch (LockException e) {
+                    LOG.warn("Failed to acquire lock for '" + index.db.getFile().getName() + "'", e);
+                } catch (IOException | BTreeException | TerminatedException e) {
+                    LOG.error(e.getMessage() + " in '" + index.db.getFile().getName() + "'", e);
+                } finally {
+                    lock.release(Lock.READ_LOCK);
+                }
+            }
+        }
+        return cb.count;
+    }
+
     /**
      * Check index configurations for all collection in the given DocumentSet and return
      * a list of QNames, which have indexes defined on them.
@@ -942,9 +991,11 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         private final XQueryContext context;
         private final NodeSet resultSet;
         private final boolean returnAncestor;
+        private final NodeSet filter;
+        private final DocumentSet filterDocs;
 
         public SearchCallback(int contextId, String query, String ngram, DocumentSet docs, NodeSet contextSet,
-                  XQueryContext context, NodeSet result, boolean returnAncestor) {
+                  XQueryContext context, NodeSet result, boolean returnAncestor, NodeSet filter) {
             this.contextId = contextId;
             this.query = query;
             this.ngram = ngram;
@@ -953,6 +1004,8 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
             this.contextSet = contextSet;
             this.resultSet = result;
             this.returnAncestor = returnAncestor;
+            this.filter = filter;
+            this.filterDocs = filter == null ? null : filter.getDocumentSet();
         }
 
         @Override
@@ -973,7 +1026,7 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                     int length = is.readFixedInt();
                     DocumentImpl storedDocument = docs.getDoc(storedDocId);
                     //Exit if the document is not concerned
-                    if (storedDocument == null) {
+                    if (storedDocument == null || (filterDocs != null && !filterDocs.contains(storedDocId))) {
                         is.skipBytes(length);
                         continue;
                     }
@@ -982,6 +1035,10 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
                         NodeId nodeId = index.getBrokerPool().getNodeFactory().createFromStream(previous, is);
                         previous = nodeId;
                         int freq = is.readInt();
+                        if (filter != null && filter.get(storedDocument, nodeId) == null) {
+                            is.skip(freq);
+                            continue;
+                        }
                         NodeProxy nodeProxy = new NodeProxy(storedDocument, nodeId, nameTypeToNodeType(nameType));
                         // if a context set is specified, we can directly check if the
                         // matching node is a descendant of one of the nodes
@@ -1043,6 +1100,37 @@ public class NGramIndexWorker implements OrderedValuesIndex, QNamedKeysIndex {
         }
     }
 
+    private final class OccurrenceCountCallback implements BTreeCallback {
+
+        private final DocumentSet docs;
+        private long count = 0;
+
+        OccurrenceCountCallback(DocumentSet docs) {
+            this.docs = docs;
+        }
+
+        @Override
+        public boolean indexInfo(Value key, long pointer) throws TerminatedException {
+            try {
+                final VariableByteInput is = index.db.getAsStream(pointer);
+                if (is == null)
+                    return true;
+                while (is.available() > 0) {
+                    int storedDocId = is.readInt();
+                    is.readByte();
+                    int occurrences = is.readInt();
+                    int length = is.readFixedInt();
+                    if (docs.contains(storedDocId))
+                        count += occurrences;
+                    is.skipBytes(length);
+                }
+            } catch (IOException e) {
+                LOG.error(e.getMessage() + " in '" + index.db.getFile().getName() + "'", e);
+            }
+            return true;
+        }
+    }
+
     private final class IndexScanCallback implements BTreeCallback {
 
         private final DocumentSet docs;
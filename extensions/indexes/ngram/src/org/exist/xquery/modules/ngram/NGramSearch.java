@@ -483,10 +483,8 @@ public class NGramSearch extends Function implements Optimizable {
         if (ngrams.length == 0)
             return new EmptyNodeSet();
 
-        String firstNgramm = ngrams[0];
-        LOG.trace("First NGRAM: " + firstNgramm);
-        NodeSet result = index.search(getExpressionId(), docs, qnames, firstNgramm, firstNgramm, context, nodeSet, axis);
-
+        String[] filledNgrams = new String[ngrams.length];
+        filledNgrams[0] = ngrams[0];
         for (int i = 1; i < ngrams.length; i++) {
             String ngram = ngrams[i];
             int len = ngram.codePointCount(0, ngram.length());
@@ -509,15 +507,56 @@ public class NGramSearch extends Function implements Optimizable {
                 filledNgram = buf.toString();
                 LOG.debug("Filled: " + filledNgram);
             }
+            filledNgrams[i] = filledNgram;
+        }
+
+        // Look up the least frequent ngram first. The other ngrams are then only
+        // searched in the nodes found so far: the occurrences in all other documents
+        // are skipped without being decoded.
+        int rarest = -1;
+        NodeSet rarestNodes = null;
+        if (ngrams.length > 1) {
+            long minCount = Long.MAX_VALUE;
+            for (int i = 0; i < ngrams.length; i++) {
+                long count = index.getOccurrenceCount(docs, qnames, filledNgrams[i], context);
+                if (count < minCount) {
+                    minCount = count;
+                    rarest = i;
+                }
+            }
+            if (minCount == 0)
+                return new EmptyNodeSet();
+            LOG.trace("Least frequent NGRAM: " + filledNgrams[rarest] + " (" + minCount + ")");
+            rarestNodes = index.search(getExpressionId(), docs, qnames, filledNgrams[rarest], ngrams[rarest], context, nodeSet, axis);
+            if (rarestNodes.isEmpty())
+                return rarestNodes;
+        }
 
-            NodeSet nodes = index.search(getExpressionId(), docs, qnames, filledNgram, ngram, context, nodeSet, axis);
+        NodeSet result = null;
+        for (int i = 0; i < ngrams.length; i++) {
+            final NodeSet filter = result == null ? rarestNodes : result;
+            final NodeSet nodes;
+            if (i == rarest) {
+                nodes = rarestNodes;
+            } else if (filter == null) {
+                nodes = index.search(getExpressionId(), docs, qnames, filledNgrams[i], ngrams[i], context, nodeSet, axis);
+            } else {
+                nodes = index.search(getExpressionId(), filter.getDocumentSet(), qnames, filledNgrams[i], ngrams[i], context,
+                        nodeSet, axis, filter);
+            }
 
-            final NodeSet nodesContainingFirstINgrams = result;
+            if (result == null) {
+                result = nodes;
+            } else {
+                final NodeSet nodesContainingFirstINgrams = result;
 
-            result = NodeSets.transformNodes(nodes, proxy ->
-                    Optional.ofNullable(nodesContainingFirstINgrams.get(proxy))
-                            .map(before -> getContinuousMatches(before, proxy))
-                            .orElse(null));
+                result = NodeSets.transformNodes(nodes, proxy ->
+                        Optional.ofNullable(nodesContainingFirstINgrams.get(proxy))
+                                .map(before -> getContinuousMatches(before, proxy))
+                                .orElse(null));
+            }
+            if (result.isEmpty())
+                return result;
         }
         return result;
 	}
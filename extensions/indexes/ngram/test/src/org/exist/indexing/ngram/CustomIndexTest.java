@@ -531,6 +531,38 @@ public class CustomIndexTest {
         }
     }
 
+    @Test
+    public void multiGramQuery() throws PermissionDeniedException, XPathException, EXistException {
+        try(final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            NGramIndexWorker index = (NGramIndexWorker) broker.getIndexController().getWorkerByIndexId(NGramIndex.ID);
+            XQueryContext context = new XQueryContext(broker.getBrokerPool(), AccessContext.TEST);
+            assertEquals(1, index.getOccurrenceCount(docs, null, "cab", context));
+            assertEquals(2, index.getOccurrenceCount(docs, null, "ab", context));
+            assertEquals(0, index.getOccurrenceCount(docs, null, "xyz", context));
+
+            XQuery xquery = pool.getXQueryService();
+            assertNotNull(xquery);
+            Sequence seq = xquery.execute(broker, "//item[ngram:contains(., 'cabinet')]", null, AccessContext.TEST);
+            assertEquals(1, seq.getItemCount());
+
+            // the rare ngram "152" is looked up first, the others only in its nodes
+            seq = xquery.execute(broker, "//item[ngram:contains(., 'cabinet1525')]", null, AccessContext.TEST);
+            assertEquals(1, seq.getItemCount());
+
+            // all ngrams occur, but not in sequence
+            seq = xquery.execute(broker, "//item[ngram:contains(., 'tablecabinet')]", null, AccessContext.TEST);
+            assertEquals(0, seq.getItemCount());
+
+            seq = xquery.execute(broker, "//section[ngram:contains(para, '0123456')]", null, AccessContext.TEST);
+            assertEquals(0, seq.getItemCount());
+
+            // the match spans the text of description and price
+            seq = xquery.execute(broker, "count(util:expand(//item[ngram:contains(., 'ble892')])//exist:match)",
+                    null, AccessContext.TEST);
+            assertEquals("2", seq.getStringValue());
+        }
+    }
+
     @Test
     public void indexKeys() throws SAXException, PermissionDeniedException, XPathException, EXistException {
         try(final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
@@ -25,6 +25,16 @@ import java.io.OutputStream;
  * The creation and maintenance of the index is handled by the user. XQuery functions
  * are provided to create, delete and query an index.
  *
+ * Alternatively, a sort index can be configured on a QName in collection.xconf:
+ *
+ * <pre>
+ * &lt;sort qname="title"/&gt;
+ * </pre>
+ *
+ * The string values of the matching nodes are then stored as sort keys when documents are
+ * stored, updated or removed. "order by" clauses sorting on these nodes compare the keys
+ * instead of the node values (see {@link org.exist.indexing.SortKeyIndex}).
+ *
  * Every sort index has an id by which it is identified and distinguished from other indexes
  * on the same node set.
  *
@@ -87,7 +97,7 @@ public class SortIndex extends AbstractIndex implements RawBackupSupport {
 
     @Override
     public IndexWorker getWorker(DBBroker broker) {
-        return new SortIndexWorker(this);
+        return new SortIndexWorker(this, broker);
     }
 
     @Override
@@ -0,0 +1,65 @@
+package org.exist.indexing.sort;
+
+import org.exist.dom.QName;
+import org.exist.storage.ElementValue;
+import org.exist.util.DatabaseConfigurationException;
+
+import java.util.Map;
+
+/**
+ * Configuration of a sort index maintained by the database: the string values of all
+ * elements or attributes with the given QName are stored as sort keys. The keys are
+ * kept in an index named "qname:" followed by the QName in Clark notation, which may
+ * also be used with the sort:index function.
+ */
+public class SortIndexConfig {
+
+    public static final String NAME_PREFIX = "qname:";
+
+    private QName qname;
+
+    public SortIndexConfig(Map<String, String> namespaces, String name) throws DatabaseConfigurationException {
+        boolean isAttribute = false;
+        if (name.startsWith("@")) {
+            isAttribute = true;
+            name = name.substring(1);
+        }
+        try {
+            String prefix = QName.extractPrefix(name);
+            String localName = QName.extractLocalName(name);
+            String namespaceURI = "";
+            if (prefix != null) {
+                namespaceURI = namespaces.get(prefix);
+                if(namespaceURI == null) {
+                    throw new DatabaseConfigurationException("Sort index config: no namespace defined for prefix: " + prefix +
+                        " in index definition");
+                }
+            }
+
+            if (isAttribute) {
+                qname = new QName(localName, namespaceURI, prefix, ElementValue.ATTRIBUTE);
+            } else {
+                qname = new QName(localName, namespaceURI, prefix);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new DatabaseConfigurationException("Sort index configuration: " + e.getMessage(), e);
+        }
+    }
+
+    public QName getQName() {
+        return qname;
+    }
+
+    /**
+     * @return the name under which the sort keys are stored
+     */
+    public String getIndexName() {
+        StringBuilder name = new StringBuilder(NAME_PREFIX);
+        if (qname.getNameType() == ElementValue.ATTRIBUTE)
+            name.append('@');
+        if (qname.getNamespaceURI() != null && qname.getNamespaceURI().length() > 0)
+            name.append('{').append(qname.getNamespaceURI()).append('}');
+        name.append(qname.getLocalPart());
+        return name.toString();
+    }
+}
@@ -1,5 +1,9 @@
 package org.exist.indexing.sort;
 
+import org.exist.dom.QName;
+import org.exist.dom.persistent.AbstractCharacterData;
+import org.exist.dom.persistent.AttrImpl;
+import org.exist.dom.persistent.ElementImpl;
 import org.exist.dom.persistent.NodeProxy;
 import org.exist.dom.persistent.NodeSet;
 import org.exist.dom.persistent.IStoredNode;
@@ -7,41 +11,74 @@ import org.exist.dom.persistent.DocumentImpl;
 import org.exist.dom.persistent.DocumentSet;
 import org.exist.EXistException;
 import org.exist.collections.Collection;
+import org.exist.indexing.AbstractStreamListener;
 import org.exist.indexing.IndexController;
 import org.exist.indexing.IndexWorker;
 import org.exist.indexing.MatchListener;
+import org.exist.indexing.SortKeyIndex;
 import org.exist.indexing.StreamListener;
+import org.exist.numbering.NodeId;
+import org.exist.security.PermissionDeniedException;
 import org.exist.storage.DBBroker;
+import org.exist.storage.IndexSpec;
 import org.exist.storage.NodePath;
+import org.exist.storage.btree.BTree;
 import org.exist.storage.btree.BTreeCallback;
 import org.exist.storage.btree.BTreeException;
 import org.exist.storage.btree.IndexQuery;
 import org.exist.storage.btree.Value;
 import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.Txn;
 import org.exist.util.*;
 import org.exist.xquery.QueryRewriter;
 import org.exist.xquery.TerminatedException;
 import org.exist.xquery.XQueryContext;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Stack;
+import java.util.TreeMap;
 
-public class SortIndexWorker implements IndexWorker {
+public class SortIndexWorker implements SortKeyIndex {
+
+    public static final String INDEX_ELEMENT = "sort";
+    public static final String QNAME_ATTR = "qname";
 
     private int mode = 0;
     private DocumentImpl document = null;
     private SortIndex index;
+    private DBBroker broker;
+
+    // configured sort indexes of the current document
+    private Map<QName, SortIndexConfig> config = null;
+    private Stack<XMLString> contentStack = null;
+    private List<PendingKey> pending = new ArrayList<PendingKey>();
+    private SortStreamListener listener = new SortStreamListener();
 
-    public SortIndexWorker(SortIndex index) {
+    // ids of the configured sort indexes of the collection last looked up by getSortKey
+    private Collection sortKeyCollection = null;
+    private short[] sortKeyIds = null;
+
+    public SortIndexWorker(SortIndex index, DBBroker broker) {
         this.index = index;
+        this.broker = broker;
     }
 
+    @SuppressWarnings("unchecked")
     public void setDocument(DocumentImpl doc, int mode) {
         this.document = doc;
         this.mode = mode;
+        config = null;
+        contentStack = null;
+        IndexSpec indexConf = doc.getCollection().getIndexConfiguration(broker);
+        if (indexConf != null)
+            config = (Map<QName, SortIndexConfig>) indexConf.getCustomIndexSpec(SortIndex.ID);
     }
 
     public void setMode(int mode) {
@@ -63,10 +100,187 @@ public class SortIndexWorker implements IndexWorker {
 
     public void flush() {
         switch (mode) {
+            case StreamListener.STORE:
+                saveSortKeys();
+                break;
             case StreamListener.REMOVE_ALL_NODES:
                 remove(document);
                 break;
+            case StreamListener.REMOVE_SOME_NODES:
+                removeSortKeys();
+                break;
+        }
+        pending.clear();
+    }
+
+    /**
+     * Store the sort keys collected by the listener for the configured indexes.
+     */
+    private void saveSortKeys() {
+        if (pending.isEmpty())
+            return;
+        final Lock lock = index.btree.getLock();
+        try {
+            Map<QName, Short> ids = getOrRegisterIds();
+            lock.acquire(Lock.WRITE_LOCK);
+            for (PendingKey next : pending) {
+                byte[] key = computeKey(ids.get(next.qname), document.getDocId(), next.nodeId);
+                index.btree.addValue(new Value(key), next.key);
+            }
+        } catch (LockException e) {
+            SortIndex.LOG.warn("Failed to acquire lock for '" + index.btree.getFile().getName() + "'", e);
+        } catch (BTreeException e) {
+            SortIndex.LOG.error("Exception caught while writing sort index: " + e.getMessage(), e);
+        } catch (IOException e) {
+            SortIndex.LOG.error("Exception caught while writing sort index: " + e.getMessage(), e);
+        } catch (EXistException e) {
+            SortIndex.LOG.error("Exception caught while writing sort index: " + e.getMessage(), e);
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+        }
+    }
+
+    /**
+     * Remove the sort keys of the nodes collected by the listener.
+     */
+    private void removeSortKeys() {
+        if (pending.isEmpty())
+            return;
+        final Lock lock = index.btree.getLock();
+        try {
+            Map<QName, Short> ids = getOrRegisterIds();
+            lock.acquire(Lock.WRITE_LOCK);
+            for (PendingKey next : pending) {
+                byte[] key = computeKey(ids.get(next.qname), document.getDocId(), next.nodeId);
+                index.btree.removeValue(new Value(key));
+            }
+        } catch (LockException e) {
+            SortIndex.LOG.warn("Failed to acquire lock for '" + index.btree.getFile().getName() + "'", e);
+        } catch (BTreeException e) {
+            SortIndex.LOG.error("Exception caught while deleting sort index: " + e.getMessage(), e);
+        } catch (IOException e) {
+            SortIndex.LOG.error("Exception caught while deleting sort index: " + e.getMessage(), e);
+        } catch (EXistException e) {
+            SortIndex.LOG.error("Exception caught while deleting sort index: " + e.getMessage(), e);
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+        }
+    }
+
+    private Map<QName, Short> getOrRegisterIds() throws EXistException, LockException {
+        Map<QName, Short> ids = new TreeMap<QName, Short>();
+        for (SortIndexConfig next : config.values()) {
+            ids.put(next.getQName(), getOrRegisterId(next.getIndexName()));
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the sort key stored for the node by one of the sort indexes configured
+     * for the collection of the node.
+     */
+    @Override
+    public long getSortKey(NodeProxy node) {
+        short[] ids = getSortKeyIds(node.getOwnerDocument().getCollection());
+        if (ids.length == 0)
+            return NO_KEY;
+        final Lock lock = index.btree.getLock();
+        try {
+            lock.acquire(Lock.READ_LOCK);
+            for (short id : ids) {
+                long key = index.btree.findValue(new Value(computeKey(id, node)));
+                if (key != BTree.KEY_NOT_FOUND)
+                    return key;
+            }
+        } catch (LockException e) {
+            SortIndex.LOG.warn("Failed to acquire lock for '" + index.btree.getFile().getName() + "'", e);
+        } catch (BTreeException e) {
+            SortIndex.LOG.error("Exception caught while reading sort index: " + e.getMessage(), e);
+        } catch (IOException e) {
+            SortIndex.LOG.error("Exception caught while reading sort index: " + e.getMessage(), e);
+        } finally {
+            lock.release(Lock.READ_LOCK);
+        }
+        return NO_KEY;
+    }
+
+    @Override
+    public boolean isExact(long key) {
+        return (key & 0x7F) == 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private short[] getSortKeyIds(Collection collection) {
+        if (collection == sortKeyCollection)
+            return sortKeyIds;
+        IndexSpec indexConf = collection.getIndexConfiguration(broker);
+        Map<QName, SortIndexConfig> collectionConfig = indexConf == null ? null :
+            (Map<QName, SortIndexConfig>) indexConf.getCustomIndexSpec(SortIndex.ID);
+        if (collectionConfig == null) {
+            sortKeyCollection = collection;
+            sortKeyIds = new short[0];
+            return sortKeyIds;
+        }
+        short[] ids = new short[collectionConfig.size()];
+        int count = 0;
+        boolean registered = true;
+        for (SortIndexConfig next : collectionConfig.values()) {
+            try {
+                short id = getId(next.getIndexName());
+                if (id > 0)
+                    ids[count++] = id;
+                else
+                    registered = false;
+            } catch (EXistException e) {
+                SortIndex.LOG.error("Exception caught while reading sort index: " + e.getMessage(), e);
+            } catch (LockException e) {
+                SortIndex.LOG.warn("Failed to acquire lock for '" + index.btree.getFile().getName() + "'", e);
+            }
+        }
+        if (count < ids.length) {
+            short[] found = new short[count];
+            System.arraycopy(ids, 0, found, 0, count);
+            ids = found;
+        }
+        // indexes are registered when the first document is stored, so keep looking
+        // them up until they all exist
+        if (registered) {
+            sortKeyCollection = collection;
+            sortKeyIds = ids;
         }
+        return ids;
+    }
+
+    /**
+     * Compute the sort key of a string value. The leading UTF-16 code units of the value
+     * are encoded into 7 bytes, units below 0x80 as a single byte and all others as 3 bytes
+     * starting with 0x80 to 0x8F. This preserves the order of {@link String#compareTo(String)}.
+     * The bytes are stored in bits 62 to 7 of the key, so keys are positive. The lowest 7 bits
+     * are 1 if the whole value has been encoded and 2 if the value has been truncated.
+     *
+     * @param value the string value of a node
+     * @return the sort key
+     */
+    static long computeSortKey(String value) {
+        long key = 0;
+        int bytes = 0;
+        boolean truncated = false;
+        encode:
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            int length = c > 0 && c < 0x80 ? 1 : 3;
+            long code = length == 1 ? c : ((0x80L | (c >> 12)) << 16) | (((c >> 6) & 0x3F) << 8) | (c & 0x3F);
+            for (int b = length - 1; b >= 0; b--) {
+                if (bytes == 7) {
+                    truncated = true;
+                    break encode;
+                }
+                key = (key << 8) | ((code >> (b * 8)) & 0xFF);
+                bytes++;
+            }
+        }
+        key = key << (8 * (7 - bytes));
+        return (key << 7) | (truncated ? 2 : 1);
     }
 
     /**
@@ -327,11 +541,15 @@ public class SortIndexWorker implements IndexWorker {
     }
 
     private byte[] computeKey(short id, NodeProxy proxy) {
-        byte[] data = new byte[7 + proxy.getNodeId().size()];
+        return computeKey(id, proxy.getOwnerDocument().getDocId(), proxy.getNodeId());
+    }
+
+    private byte[] computeKey(short id, int docId, NodeId nodeId) {
+        byte[] data = new byte[7 + nodeId.size()];
         data[0] = 0;
         ByteConversion.shortToByteH(id, data, 1);
-        ByteConversion.intToByteH(proxy.getOwnerDocument().getDocId(), data, 3);
-        proxy.getNodeId().serialize(data, 7);
+        ByteConversion.intToByteH(docId, data, 3);
+        nodeId.serialize(data, 7);
         return data;
     }
 
@@ -351,11 +569,25 @@ public class SortIndexWorker implements IndexWorker {
     }
 
     public Object configure(IndexController controller, NodeList configNodes, Map<String, String> namespaces) throws DatabaseConfigurationException {
-        return null;
+        Map<QName, SortIndexConfig> map = null;
+        for (int i = 0; i < configNodes.getLength(); i++) {
+            Node node = configNodes.item(i);
+            if (node.getNodeType() == Node.ELEMENT_NODE && INDEX_ELEMENT.equals(node.getLocalName())) {
+                String qname = ((Element) node).getAttribute(QNAME_ATTR);
+                if (qname == null || qname.length() == 0)
+                    throw new DatabaseConfigurationException("Configuration error: element " + node.getNodeName() +
+                        " must have an attribute " + QNAME_ATTR);
+                SortIndexConfig config = new SortIndexConfig(namespaces, qname);
+                if (map == null)
+                    map = new TreeMap<QName, SortIndexConfig>();
+                map.put(config.getQName(), config);
+            }
+        }
+        return map;
     }
 
     public void setDocument(DocumentImpl doc) {
-        this.document = doc;
+        setDocument(doc, StreamListener.UNKNOWN);
     }
 
     public DocumentImpl getDocument() {
@@ -366,12 +598,42 @@ public class SortIndexWorker implements IndexWorker {
         return mode;
     }
 
-    public IStoredNode getReindexRoot(IStoredNode node, NodePath path, boolean insert, boolean includeSelf) {
-        return insert ? null : node;
+    @SuppressWarnings("unchecked")
+    public <T extends IStoredNode> IStoredNode getReindexRoot(IStoredNode<T> node, NodePath path, boolean insert, boolean includeSelf) {
+        IndexSpec indexConf = node.getOwnerDocument().getCollection().getIndexConfiguration(broker);
+        Map<QName, SortIndexConfig> nodeConfig = indexConf == null ? null :
+            (Map<QName, SortIndexConfig>) indexConf.getCustomIndexSpec(SortIndex.ID);
+        if (nodeConfig == null)
+            return insert ? null : node;
+        // the string value of the topmost indexed ancestor changes
+        if (node.getNodeType() == Node.ATTRIBUTE_NODE)
+            return nodeConfig.get(node.getQName()) != null ? node : null;
+        boolean reindexRequired = false;
+        int len = node.getNodeType() == Node.ELEMENT_NODE && !includeSelf ? path.length() - 1 : path.length();
+        for (int i = 0; i < len; i++) {
+            if (nodeConfig.get(path.getComponent(i)) != null) {
+                reindexRequired = true;
+                break;
+            }
+        }
+        if (!reindexRequired)
+            return null;
+        IStoredNode topMost = null;
+        IStoredNode<T> currentNode = node;
+        while (currentNode != null) {
+            if (nodeConfig.get(currentNode.getQName()) != null)
+                topMost = currentNode;
+            if (currentNode.getOwnerDocument().getCollection().isTempCollection() && currentNode.getNodeId().getTreeLevel() == 2)
+                break;
+            currentNode = currentNode.getParentStoredNode();
+        }
+        return topMost;
     }
 
     public StreamListener getListener() {
-        return null;
+        if (config == null || (mode != StreamListener.STORE && mode != StreamListener.REMOVE_SOME_NODES))
+            return null;
+        return listener;
     }
 
     public MatchListener getMatchListener(DBBroker broker, NodeProxy proxy) {
@@ -379,6 +641,13 @@ public class SortIndexWorker implements IndexWorker {
     }
 
     public void removeCollection(Collection collection, DBBroker broker, boolean reindex) {
+        try {
+            for (Iterator<DocumentImpl> i = collection.iterator(broker); i.hasNext(); ) {
+                remove(i.next());
+            }
+        } catch (PermissionDeniedException e) {
+            SortIndex.LOG.warn("Exception caught while deleting sort index: " + e.getMessage(), e);
+        }
     }
 
     public boolean checkIndex(DBBroker broker) {
@@ -388,4 +657,60 @@ public class SortIndexWorker implements IndexWorker {
     public Occurrences[] scanIndex(XQueryContext context, DocumentSet docs, NodeSet contextSet, Map hints) {
         return new Occurrences[0];
     }
+
+    private final static class PendingKey {
+        final QName qname;
+        final NodeId nodeId;
+        final long key;
+
+        private PendingKey(QName qname, NodeId nodeId, long key) {
+            this.qname = qname;
+            this.nodeId = nodeId;
+            this.key = key;
+        }
+    }
+
+    private class SortStreamListener extends AbstractStreamListener {
+
+        @Override
+        public void startElement(Txn transaction, ElementImpl element, NodePath path) {
+            if (config.get(element.getQName()) != null) {
+                if (contentStack == null)
+                    contentStack = new Stack<XMLString>();
+                contentStack.push(new XMLString());
+            }
+            super.startElement(transaction, element, path);
+        }
+
+        @Override
+        public void attribute(Txn transaction, AttrImpl attrib, NodePath path) {
+            if (config.get(attrib.getQName()) != null)
+                pending.add(new PendingKey(attrib.getQName(), attrib.getNodeId(), computeSortKey(attrib.getValue())));
+            super.attribute(transaction, attrib, path);
+        }
+
+        @Override
+        public void endElement(Txn transaction, ElementImpl element, NodePath path) {
+            if (config.get(element.getQName()) != null) {
+                XMLString content = contentStack.pop();
+                pending.add(new PendingKey(element.getQName(), element.getNodeId(), computeSortKey(content.toString())));
+            }
+            super.endElement(transaction, element, path);
+        }
+
+        @Override
+        public void characters(Txn transaction, AbstractCharacterData text, NodePath path) {
+            if (contentStack != null && !contentStack.isEmpty()) {
+                for (XMLString next : contentStack) {
+                    next.append(text.getXMLString());
+                }
+            }
+            super.characters(transaction, text, path);
+        }
+
+        @Override
+        public IndexWorker getWorker() {
+            return SortIndexWorker.this;
+        }
+    }
 }
@@ -0,0 +1,75 @@
+package org.exist.indexing.sort;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SortKeyTest {
+
+    private final SortIndexWorker worker = new SortIndexWorker(null, null);
+
+    @Test
+    public void keysFollowCodepointOrder() {
+        final List<String> values = new ArrayList<String>();
+        values.add("");
+        values.add("a");
+        values.add("ab");
+        values.add("abcdefg");
+        values.add("abcdefgh");
+        values.add("abcdefghi");
+        values.add("Zebra");
+        values.add("\u00c4rger");
+        values.add("a\u00c4");
+        values.add("a\uffff");
+        values.add("\ud83d\ude00");
+        values.add("\ue000");
+        final Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            values.add(randomString(random));
+        }
+        for (final String a : values) {
+            final long keyA = SortIndexWorker.computeSortKey(a);
+            assertTrue(keyA > 0);
+            for (final String b : values) {
+                final long keyB = SortIndexWorker.computeSortKey(b);
+                final int expected = Integer.signum(a.compareTo(b));
+                if (keyA != keyB) {
+                    assertEquals(a + " <> " + b, expected, Long.signum(keyA - keyB));
+                } else if (worker.isExact(keyA)) {
+                    assertEquals(a + " = " + b, 0, expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void shortValuesAreExact() {
+        assertTrue(worker.isExact(SortIndexWorker.computeSortKey("abcdefg")));
+        assertTrue(worker.isExact(SortIndexWorker.computeSortKey("\u00c4rger")));
+        assertTrue(!worker.isExact(SortIndexWorker.computeSortKey("abcdefgh")));
+        assertTrue(!worker.isExact(SortIndexWorker.computeSortKey("\u00c4rgerlich")));
+    }
+
+    private String randomString(final Random random) {
+        final int length = random.nextInt(10);
+        final StringBuilder buf = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    buf.append((char) ('a' + random.nextInt(3)));
+                    break;
+                case 1:
+                    buf.append((char) (1 + random.nextInt(0x7f)));
+                    break;
+                default:
+                    buf.append((char) (1 + random.nextInt(0xfffe)));
+            }
+        }
+        return buf.toString();
+    }
+}
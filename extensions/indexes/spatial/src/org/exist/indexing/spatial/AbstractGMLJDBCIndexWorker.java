@@ -267,8 +267,10 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
         } catch (SQLException e) {
             LOG.error("Document: " + currentDoc + " NodeID: " + currentNodeId, e);
             try {
-                if (conn != null)
+                if (conn != null) {
                     conn.rollback();
+                    afterRollback();
+                }
             } catch (SQLException ee) {
                 LOG.error(ee);
             }
@@ -549,6 +551,14 @@ public abstract class AbstractGMLJDBCIndexWorker implements IndexWorker {
 
     protected abstract boolean checkIndex(DBBroker broker, Connection conn) throws SQLException, SpatialIndexException;
 
+    /**
+     * Called after the changes made by {@link #flush()} have been rolled back.
+     * Implementations keeping data derived from the database should discard it here.
+     */
+    protected void afterRollback() {
+        //Nothing to do
+    }
+
     protected abstract Connection acquireConnection() throws SQLException;
 
     protected abstract void releaseConnection(Connection conn) throws SQLException;
@@ -34,12 +34,19 @@ import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.backup.RawDataBackup;
 import org.exist.indexing.IndexWorker;
 import org.exist.indexing.RawBackupSupport;
+import org.exist.numbering.DLN;
+import org.exist.numbering.NodeId;
 import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
 import org.exist.storage.btree.DBException;
@@ -57,6 +64,14 @@ public class GMLHSQLIndex extends AbstractGMLJDBCIndex implements RawBackupSuppo
     public static String TABLE_NAME = "SPATIAL_INDEX_V1";
     private DBBroker connectionOwner = null;
     private long connectionTimeout = 100000L;
+
+    /**
+     * The EPSG:4326 bounding boxes of all indexed geometries. Loaded from the table
+     * by a single scan when the index is first searched, and maintained by the workers
+     * afterwards. Null if not loaded yet.
+     */
+    private volatile RTree<IndexedNode> envelopes = null;
+    private final Object envelopesLock = new Object();
     
     public GMLHSQLIndex() {
         //Nothing to do ;-)
@@ -119,6 +134,7 @@ public class GMLHSQLIndex extends AbstractGMLJDBCIndex implements RawBackupSuppo
             throw new DBException(e.getMessage());
         } finally {
             conn = null;
+            envelopes = null;
         }
     }
     
@@ -148,6 +164,7 @@ public class GMLHSQLIndex extends AbstractGMLJDBCIndex implements RawBackupSuppo
                 Statement stmt = conn.createStatement(); 
                 int nodeCount = stmt.executeUpdate("DELETE FROM " + GMLHSQLIndex.TABLE_NAME + ";");
                 stmt.close();
+                envelopes = null;
                 if (LOG.isDebugEnabled())
                     LOG.debug("GML index: " + getDataDir() + "/" + db_file_name_prefix + ". " + nodeCount + " nodes removed");
             }
@@ -199,6 +216,70 @@ public class GMLHSQLIndex extends AbstractGMLJDBCIndex implements RawBackupSuppo
         connectionOwner = null;
     }
 
+    /**
+     * Returns the R-tree of the bounding boxes of all indexed geometries, loading it
+     * if necessary. Must be called while holding the connection.
+     */
+    protected RTree<IndexedNode> getEnvelopeIndex(Connection conn) throws SQLException {
+        RTree<IndexedNode> tree = envelopes;
+        if (tree == null) {
+            synchronized (envelopesLock) {
+                tree = envelopes;
+                if (tree == null) {
+                    tree = loadEnvelopeIndex(conn);
+                    envelopes = tree;
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * @return the R-tree of the bounding boxes if it has been loaded, null otherwise
+     */
+    protected RTree<IndexedNode> getLoadedEnvelopeIndex() {
+        return envelopes;
+    }
+
+    /**
+     * Discard the R-tree, e.g. after a transaction has been rolled back.
+     * It will be loaded again on the next search.
+     */
+    protected void invalidateEnvelopeIndex() {
+        envelopes = null;
+    }
+
+    private RTree<IndexedNode> loadEnvelopeIndex(Connection conn) throws SQLException {
+        List<RTree.Entry<IndexedNode>> entries = new ArrayList<RTree.Entry<IndexedNode>>();
+        //Share the URI string among all the nodes of a document
+        Map<String, String> documentURIs = new HashMap<String, String>();
+        Statement stmt = conn.createStatement();
+        ResultSet rs = null;
+        try {
+            rs = stmt.executeQuery("SELECT DOCUMENT_URI, NODE_ID_UNITS, NODE_ID, " +
+                "EPSG4326_MINX, EPSG4326_MAXX, EPSG4326_MINY, EPSG4326_MAXY FROM " + TABLE_NAME + ";");
+            while (rs.next()) {
+                String documentURI = rs.getString(1);
+                String sharedURI = documentURIs.get(documentURI);
+                if (sharedURI == null) {
+                    sharedURI = documentURI;
+                    documentURIs.put(documentURI, documentURI);
+                }
+                IndexedNode node = new IndexedNode(sharedURI, rs.getInt(2), rs.getBytes(3));
+                entries.add(new RTree.Entry<IndexedNode>(rs.getDouble(4), rs.getDouble(6), rs.getDouble(5), rs.getDouble(7), node));
+            }
+        } finally {
+            if (rs != null)
+                rs.close();
+            stmt.close();
+        }
+        RTree<IndexedNode> tree = new RTree<IndexedNode>(IndexedNode::getDocumentURI);
+        tree.load(entries);
+        if (LOG.isDebugEnabled())
+            LOG.debug("Loaded " + entries.size() + " bounding boxes from GML index: " + getDataDir() + "/" + db_file_name_prefix);
+        return tree;
+    }
+
     private void initializeConnection() throws SQLException {
         System.setProperty("hsqldb.cache_scale", "11");
         System.setProperty("hsqldb.cache_size_scale", "12");
@@ -298,5 +379,48 @@ public class GMLHSQLIndex extends AbstractGMLJDBCIndex implements RawBackupSuppo
 	        backup.closeEntry();
         }
 	}
-	
+
+    /**
+     * The key of a row of the index table: the document and the node id.
+     */
+    protected final static class IndexedNode {
+
+        private final String documentURI;
+        private final int units;
+        private final byte[] nodeId;
+
+        public IndexedNode(String documentURI, int units, byte[] nodeId) {
+            this.documentURI = documentURI;
+            this.units = units;
+            this.nodeId = nodeId;
+        }
+
+        public IndexedNode(String documentURI, NodeId nodeId) {
+            this.documentURI = documentURI;
+            this.units = nodeId.units();
+            this.nodeId = new byte[nodeId.size()];
+            nodeId.serialize(this.nodeId, 0);
+        }
+
+        public String getDocumentURI() {
+            return documentURI;
+        }
+
+        public NodeId getNodeId() {
+            return new DLN(units, nodeId, 0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof IndexedNode))
+                return false;
+            IndexedNode other = (IndexedNode) obj;
+            return units == other.units && documentURI.equals(other.documentURI) && Arrays.equals(nodeId, other.nodeId);
+        }
+
+        @Override
+        public int hashCode() {
+            return documentURI.hashCode() * 31 + Arrays.hashCode(nodeId);
+        }
+    }
 }
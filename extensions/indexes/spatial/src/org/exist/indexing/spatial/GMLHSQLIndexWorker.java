@@ -27,7 +27,10 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -52,6 +55,7 @@ import org.exist.xquery.value.DoubleValue;
 import org.exist.xquery.value.StringValue;
 import org.exist.xquery.value.ValueSequence;
 
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.io.ParseException;
 import java.io.ByteArrayInputStream;
@@ -126,7 +130,14 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
             /*IS_SIMPLE*/ ps.setBoolean(25, geometry.isSimple());
             //Should always be true (the GML SAX parser makes a too severe check)
             /*IS_VALID*/ ps.setBoolean(26, geometry.isValid());
-            return (ps.executeUpdate() == 1);
+            boolean saved = (ps.executeUpdate() == 1);
+            RTree<GMLHSQLIndex.IndexedNode> envelopes = getHSQLIndex().getLoadedEnvelopeIndex();
+            if (saved && envelopes != null) {
+                Envelope envelope = EPSG4326_geometry.getEnvelopeInternal();
+                envelopes.insert(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(),
+                    new GMLHSQLIndex.IndexedNode(envelopes.getGroupKey(doc.getURI().toString()), nodeId));
+            }
+            return saved;
         } finally {
             //Let's help the garbage collector...
             geometry = null;
@@ -146,7 +157,11 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
         nodeId.serialize(bytes, 0);
         ps.setBytes(3, bytes);
         try {
-            return (ps.executeUpdate() == 1);
+            boolean removed = (ps.executeUpdate() == 1);
+            RTree<GMLHSQLIndex.IndexedNode> envelopes = getHSQLIndex().getLoadedEnvelopeIndex();
+            if (removed && envelopes != null)
+                envelopes.remove(new GMLHSQLIndex.IndexedNode(doc.getURI().toString(), nodeId));
+            return removed;
         } finally {
             ps.close();
         }
@@ -159,7 +174,11 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
         ); 
         ps.setString(1, doc.getURI().toString());
         try {
-            return ps.executeUpdate();
+            int count = ps.executeUpdate();
+            RTree<GMLHSQLIndex.IndexedNode> envelopes = getHSQLIndex().getLoadedEnvelopeIndex();
+            if (count > 0 && envelopes != null)
+                envelopes.removeGroup(doc.getURI().toString());
+            return count;
         } finally {
             ps.close();
         }
@@ -173,7 +192,13 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
         ps.setInt(1, collection.getURI().toString().length());
         ps.setString(2, collection.getURI().toString());
         try {
-            return ps.executeUpdate();
+            int count = ps.executeUpdate();
+            RTree<GMLHSQLIndex.IndexedNode> envelopes = getHSQLIndex().getLoadedEnvelopeIndex();
+            if (count > 0 && envelopes != null) {
+                final String collectionURI = collection.getURI().toString();
+                envelopes.removeGroups(documentURI -> ((String) documentURI).startsWith(collectionURI));
+            }
+            return count;
         } finally {
             ps.close();
         }
@@ -192,8 +217,21 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
         index.releaseConnection(this.broker);
     }
 
+    @Override
+    protected void afterRollback() {
+        //The bounding boxes may contain geometries which have not been saved
+        getHSQLIndex().invalidateEnvelopeIndex();
+    }
+
+    private GMLHSQLIndex getHSQLIndex() {
+        return (GMLHSQLIndex) index;
+    }
+
     @Override
     protected NodeSet search(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, int spatialOp, Connection conn) throws SQLException {
+        //Disjoint geometries can not be found by their bounding box
+        if (spatialOp != SpatialOperator.DISJOINT)
+            return searchEnvelopes(broker, contextSet, EPSG4326_geometry, spatialOp, conn);
         String extraSelection = null;
         String bboxConstraint = null;
 
@@ -304,32 +342,7 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
                         if (!geometryMatches) {	
                             try {
                                 Geometry geometry = wkbReader.read(rs.getBytes("EPSG4326_WKB"));
-                                switch (spatialOp) {
-                                case SpatialOperator.EQUALS:
-                                    geometryMatches = geometry.equals(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.DISJOINT:
-                                    geometryMatches = geometry.disjoint(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.INTERSECTS:
-                                    geometryMatches = geometry.intersects(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.TOUCHES:
-                                    geometryMatches = geometry.touches(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.CROSSES:
-                                    geometryMatches = geometry.crosses(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.WITHIN:
-                                    geometryMatches = geometry.within(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.CONTAINS:
-                                    geometryMatches = geometry.contains(EPSG4326_geometry);
-                                    break;
-                                case SpatialOperator.OVERLAPS:
-                                    geometryMatches = geometry.overlaps(EPSG4326_geometry);
-                                    break;
-                                }
+                                geometryMatches = geometryMatches(geometry, EPSG4326_geometry, spatialOp);
                             } catch (ParseException e) {
                                 //Transforms the exception into an SQLException.
                                 //Very unlikely to happen though...
@@ -356,6 +369,155 @@ public class GMLHSQLIndexWorker extends AbstractGMLJDBCIndexWorker {
         }
     }
 
+    /**
+     * Search using the R-tree of the bounding boxes. Only the geometries of the nodes whose
+     * bounding box satisfies the spatial operator are read from the table. If the search
+     * geometry is a rectangle, nodes whose bounding box lies within it intersect it and are
+     * returned without reading their geometry at all, which is the common case for map tiles.
+     */
+    private NodeSet searchEnvelopes(DBBroker broker, NodeSet contextSet, Geometry EPSG4326_geometry, int spatialOp, Connection conn) throws SQLException {
+        final Envelope envelope = EPSG4326_geometry.getEnvelopeInternal();
+        final List<RTree.Entry<GMLHSQLIndex.IndexedNode>> candidates = new ArrayList<RTree.Entry<GMLHSQLIndex.IndexedNode>>();
+        getHSQLIndex().getEnvelopeIndex(conn).search(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(),
+            entry -> {
+                if (envelopeMatches(entry, envelope, spatialOp))
+                    candidates.add(entry);
+            });
+        final boolean isRectangle = EPSG4326_geometry.isRectangle();
+
+        NodeSet result = new ExtArrayNodeSet();
+        Map<String, DocumentImpl> documents = new HashMap<String, DocumentImpl>();
+        PreparedStatement ps = null;
+        int geometriesRead = 0;
+        try {
+            for (RTree.Entry<GMLHSQLIndex.IndexedNode> candidate : candidates) {
+                GMLHSQLIndex.IndexedNode node = candidate.getValue();
+                DocumentImpl doc;
+                if (documents.containsKey(node.getDocumentURI())) {
+                    doc = documents.get(node.getDocumentURI());
+                } else {
+                    try {
+                        doc = (DocumentImpl)broker.getXMLResource(XmldbURI.create(node.getDocumentURI()));
+                    } catch (PermissionDeniedException e) {
+                        LOG.debug(e);
+                        //Ignore since the broker has no right on the document
+                        doc = null;
+                    }
+                    documents.put(node.getDocumentURI(), doc);
+                }
+                if (doc == null)
+                    continue;
+                //contextSet == null should be used to scan the whole index
+                if (contextSet != null && !contextSet.getDocumentSet().contains(doc.getDocId()))
+                    continue;
+                NodeProxy p = new NodeProxy(doc, node.getNodeId());
+                //contextSet.contains(p) does not work with VirtualNodeSet on the DESCENDANT_OR_SELF axis
+                if (contextSet != null && contextSet.get(p) == null)
+                    continue;
+                boolean geometryMatches;
+                if (spatialOp == SpatialOperator.INTERSECTS && isRectangle &&
+                        candidate.getMinX() >= envelope.getMinX() && candidate.getMaxX() <= envelope.getMaxX() &&
+                        candidate.getMinY() >= envelope.getMinY() && candidate.getMaxY() <= envelope.getMaxY()) {
+                    geometryMatches = true;
+                } else {
+                    if (ps == null) {
+                        ps = conn.prepareStatement(
+                            "SELECT EPSG4326_WKB FROM " + GMLHSQLIndex.TABLE_NAME +
+                            " WHERE DOCUMENT_URI = ? AND NODE_ID_UNITS = ? AND NODE_ID = ?;"
+                        );
+                    }
+                    Geometry geometry = readGeometry(ps, doc, p.getNodeId());
+                    geometriesRead++;
+                    geometryMatches = geometry != null && geometryMatches(geometry, EPSG4326_geometry, spatialOp);
+                }
+                if (geometryMatches)
+                    result.add(p);
+            }
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(candidates.size() + " eligible geometries, " + geometriesRead + " read, " +
+                    result.getItemCount() + " selected");
+            }
+            return result;
+        } finally {
+            if (ps != null)
+                ps.close();
+        }
+    }
+
+    private Geometry readGeometry(PreparedStatement ps, DocumentImpl doc, NodeId nodeId) throws SQLException {
+        ps.setString(1, doc.getURI().toString());
+        ps.setInt(2, nodeId.units());
+        byte[] bytes = new byte[nodeId.size()];
+        nodeId.serialize(bytes, 0);
+        ps.setBytes(3, bytes);
+        ResultSet rs = ps.executeQuery();
+        try {
+            if (!rs.next())
+                return null;
+            return wkbReader.read(rs.getBytes(1));
+        } catch (ParseException e) {
+            //Transforms the exception into an SQLException.
+            //Very unlikely to happen though...
+            SQLException ee = new SQLException(e.getMessage());
+            ee.initCause(e);
+            throw ee;
+        } finally {
+            rs.close();
+        }
+    }
+
+    /**
+     * Checks the bounding box of an indexed geometry like the SQL constraints in
+     * {@link #search(DBBroker, NodeSet, Geometry, int, Connection)}.
+     */
+    private static boolean envelopeMatches(RTree.Entry<?> entry, Envelope envelope, int spatialOp) {
+        switch (spatialOp) {
+        //BBoxes are equal
+        case SpatialOperator.EQUALS:
+            return entry.getMinX() == envelope.getMinX() && entry.getMaxX() == envelope.getMaxX() &&
+                entry.getMinY() == envelope.getMinY() && entry.getMaxY() == envelope.getMaxY();
+        //BBoxes intersect themselves, which is guaranteed by the R-tree
+        case SpatialOperator.INTERSECTS:
+        case SpatialOperator.TOUCHES:
+        case SpatialOperator.CROSSES:
+        case SpatialOperator.OVERLAPS:
+            return true;
+        //BBox is fully within
+        case SpatialOperator.WITHIN:
+            return entry.getMinX() >= envelope.getMinX() && entry.getMaxX() <= envelope.getMaxX() &&
+                entry.getMinY() >= envelope.getMinY() && entry.getMaxY() <= envelope.getMaxY();
+        //BBox fully contains
+        case SpatialOperator.CONTAINS:
+            return entry.getMinX() <= envelope.getMinX() && entry.getMaxX() >= envelope.getMaxX() &&
+                entry.getMinY() <= envelope.getMinY() && entry.getMaxY() >= envelope.getMaxY();
+        default:
+            throw new IllegalArgumentException("Unsupported spatial operator:" + spatialOp);
+        }
+    }
+
+    private static boolean geometryMatches(Geometry geometry, Geometry EPSG4326_geometry, int spatialOp) {
+        switch (spatialOp) {
+        case SpatialOperator.EQUALS:
+            return geometry.equals(EPSG4326_geometry);
+        case SpatialOperator.DISJOINT:
+            return geometry.disjoint(EPSG4326_geometry);
+        case SpatialOperator.INTERSECTS:
+            return geometry.intersects(EPSG4326_geometry);
+        case SpatialOperator.TOUCHES:
+            return geometry.touches(EPSG4326_geometry);
+        case SpatialOperator.CROSSES:
+            return geometry.crosses(EPSG4326_geometry);
+        case SpatialOperator.WITHIN:
+            return geometry.within(EPSG4326_geometry);
+        case SpatialOperator.CONTAINS:
+            return geometry.contains(EPSG4326_geometry);
+        case SpatialOperator.OVERLAPS:
+            return geometry.overlaps(EPSG4326_geometry);
+        default:
+            return false;
+        }
+    }
+
     @Override
     protected Map<Geometry, String> getGeometriesForDocument(DocumentImpl doc, Connection conn) throws SQLException {       	
         PreparedStatement ps = conn.prepareStatement(
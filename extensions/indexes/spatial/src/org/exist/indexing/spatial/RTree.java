@@ -0,0 +1,538 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.indexing.spatial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * An in-memory R-tree mapping bounding boxes to values.
+ *
+ * The tree is usually bulk loaded with the Sort-Tile-Recursive algorithm
+ * ({@link #load(List)}) and then maintained by single insertions and removals.
+ * Every value is stored at most once; values must implement equals and hashCode.
+ *
+ * Values may be assigned to groups, e.g. the document they belong to, so that
+ * all values of a group can be removed without scanning the whole tree.
+ *
+ * Any number of threads may search the tree concurrently. Modifications
+ * exclude readers.
+ */
+public class RTree<T> {
+
+    /** Maximum number of children of a node */
+    private final static int MAX_CHILDREN = 32;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<T, Entry<T>> entries = new HashMap<>();
+    private final Function<? super T, ?> grouping;
+    private final Map<Object, Set<T>> groups = new HashMap<>();
+    private Node root = new Node(true);
+
+    public RTree() {
+        this(null);
+    }
+
+    /**
+     * @param grouping returns the key of the group of a value, or null if
+     *                 values are not grouped
+     */
+    public RTree(final Function<? super T, ?> grouping) {
+        this.grouping = grouping;
+    }
+
+    /**
+     * Replace the content of the tree with the given entries, building
+     * the tree bottom up.
+     */
+    public void load(final List<Entry<T>> newEntries) {
+        lock.writeLock().lock();
+        try {
+            entries.clear();
+            groups.clear();
+            for (final Entry<T> entry : newEntries) {
+                if (entries.put(entry.value, entry) == null) {
+                    addToGroup(entry.value);
+                }
+            }
+            root = pack(new ArrayList<Object>(entries.values()), true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add a value, replacing any previous entry for the same value.
+     */
+    public void insert(final double minX, final double minY, final double maxX, final double maxY, final T value) {
+        final Entry<T> entry = new Entry<>(minX, minY, maxX, maxY, value);
+        lock.writeLock().lock();
+        try {
+            final Entry<T> previous = entries.put(value, entry);
+            if (previous != null) {
+                delete(previous);
+            } else {
+                addToGroup(value);
+            }
+            insert(entry);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return true if the value was contained in the tree
+     */
+    public boolean remove(final T value) {
+        lock.writeLock().lock();
+        try {
+            final Entry<T> entry = entries.remove(value);
+            if (entry == null) {
+                return false;
+            }
+            delete(entry);
+            removeFromGroup(value);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all values of the given group.
+     *
+     * @return the number of removed values
+     */
+    public int removeGroup(final Object key) {
+        lock.writeLock().lock();
+        try {
+            final Set<T> group = groups.remove(key);
+            return group == null ? 0 : delete(group);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove all values of the groups whose key matches the given predicate.
+     * Only the group keys are scanned, not the values.
+     *
+     * @return the number of removed values
+     */
+    public int removeGroups(final Predicate<Object> predicate) {
+        lock.writeLock().lock();
+        try {
+            int removed = 0;
+            for (final Iterator<Map.Entry<Object, Set<T>>> i = groups.entrySet().iterator(); i.hasNext(); ) {
+                final Map.Entry<Object, Set<T>> group = i.next();
+                if (predicate.test(group.getKey())) {
+                    i.remove();
+                    removed += delete(group.getValue());
+                }
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the key instance of the group equal to the given key, so that
+     * values of the same group can share it. If there is no such group, the
+     * given key is returned.
+     */
+    @SuppressWarnings("unchecked")
+    public <K> K getGroupKey(final K key) {
+        lock.readLock().lock();
+        try {
+            final Set<T> group = groups.get(key);
+            if (group != null) {
+                for (final T value : group) {
+                    return (K) grouping.apply(value);
+                }
+            }
+            return key;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            entries.clear();
+            groups.clear();
+            root = new Node(true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Pass every entry whose bounding box intersects the given box
+     * (boundaries included) to the visitor.
+     */
+    public void search(final double minX, final double minY, final double maxX, final double maxY,
+            final Consumer<Entry<T>> visitor) {
+        lock.readLock().lock();
+        try {
+            if (root.count > 0) {
+                search(root, minX, minY, maxX, maxY, visitor);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void search(final Node node, final double minX, final double minY, final double maxX, final double maxY,
+            final Consumer<Entry<T>> visitor) {
+        for (int i = 0; i < node.count; i++) {
+            final Box child = node.children[i];
+            if (child.intersects(minX, minY, maxX, maxY)) {
+                if (node.leaf) {
+                    visitor.accept((Entry<T>) child);
+                } else {
+                    search((Node) child, minX, minY, maxX, maxY, visitor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Build a tree from the given boxes, which are all entries (leaf == true)
+     * or all nodes, using the Sort-Tile-Recursive algorithm.
+     */
+    private Node pack(final List<Object> boxes, final boolean leaf) {
+        if (boxes.size() <= MAX_CHILDREN) {
+            final Node node = new Node(leaf);
+            for (final Object box : boxes) {
+                node.add((Box) box);
+            }
+            return node;
+        }
+        final int nodeCount = (boxes.size() + MAX_CHILDREN - 1) / MAX_CHILDREN;
+        final int sliceCount = (int) Math.ceil(Math.sqrt(nodeCount));
+        final int sliceSize = sliceCount * MAX_CHILDREN;
+
+        Collections.sort(boxes, CENTER_X);
+        final List<Object> parents = new ArrayList<>(nodeCount);
+        for (int start = 0; start < boxes.size(); start += sliceSize) {
+            final List<Object> slice = boxes.subList(start, Math.min(start + sliceSize, boxes.size()));
+            Collections.sort(slice, CENTER_Y);
+            for (int i = 0; i < slice.size(); i += MAX_CHILDREN) {
+                final Node node = new Node(leaf);
+                for (final Object box : slice.subList(i, Math.min(i + MAX_CHILDREN, slice.size()))) {
+                    node.add((Box) box);
+                }
+                parents.add(node);
+            }
+        }
+        return pack(parents, false);
+    }
+
+    private void insert(final Entry<T> entry) {
+        final List<Node> path = new ArrayList<>();
+        Node node = root;
+        path.add(node);
+        while (!node.leaf) {
+            node = chooseChild(node, entry);
+            path.add(node);
+        }
+        node.add(entry);
+
+        // split overflowing nodes and adjust the boxes up to the root
+        for (int level = path.size() - 1; level >= 0; level--) {
+            final Node current = path.get(level);
+            if (current.count > MAX_CHILDREN) {
+                final Node sibling = current.split();
+                if (level == 0) {
+                    final Node newRoot = new Node(false);
+                    newRoot.add(current);
+                    newRoot.add(sibling);
+                    root = newRoot;
+                } else {
+                    path.get(level - 1).add(sibling);
+                }
+            } else {
+                current.include(entry);
+            }
+        }
+    }
+
+    private Node chooseChild(final Node node, final Box box) {
+        Node best = null;
+        double bestEnlargement = Double.MAX_VALUE;
+        double bestArea = Double.MAX_VALUE;
+        for (int i = 0; i < node.count; i++) {
+            final Node child = (Node) node.children[i];
+            final double area = child.area();
+            final double enlargement = child.enlargedArea(box) - area;
+            if (enlargement < bestEnlargement || (enlargement == bestEnlargement && area < bestArea)) {
+                best = child;
+                bestEnlargement = enlargement;
+                bestArea = area;
+            }
+        }
+        return best;
+    }
+
+    private void addToGroup(final T value) {
+        if (grouping != null) {
+            groups.computeIfAbsent(grouping.apply(value), key -> new HashSet<>()).add(value);
+        }
+    }
+
+    private void removeFromGroup(final T value) {
+        if (grouping != null) {
+            final Object key = grouping.apply(value);
+            final Set<T> group = groups.get(key);
+            if (group != null && group.remove(value) && group.isEmpty()) {
+                groups.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Delete the values of a group, which has already been removed from the groups.
+     */
+    private int delete(final Set<T> group) {
+        for (final T value : group) {
+            delete(entries.remove(value));
+        }
+        return group.size();
+    }
+
+    private void delete(final Entry<T> entry) {
+        final List<Node> path = new ArrayList<>();
+        if (findLeaf(root, entry, path)) {
+            final Node leaf = path.get(path.size() - 1);
+            leaf.remove(entry);
+            // drop empty nodes and shrink the boxes up to the root
+            for (int level = path.size() - 1; level > 0; level--) {
+                final Node current = path.get(level);
+                if (current.count == 0) {
+                    path.get(level - 1).remove(current);
+                } else {
+                    current.recalculate();
+                }
+            }
+            root.recalculate();
+            while (!root.leaf && root.count == 1) {
+                root = (Node) root.children[0];
+            }
+            if (!root.leaf && root.count == 0) {
+                root = new Node(true);
+            }
+        }
+    }
+
+    private boolean findLeaf(final Node node, final Entry<T> entry, final List<Node> path) {
+        path.add(node);
+        for (int i = 0; i < node.count; i++) {
+            final Box child = node.children[i];
+            if (node.leaf) {
+                if (child == entry) {
+                    return true;
+                }
+            } else if (child.contains(entry) && findLeaf((Node) child, entry, path)) {
+                return true;
+            }
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    private final static Comparator<Object> CENTER_X = new Comparator<Object>() {
+        @Override
+        public int compare(final Object o1, final Object o2) {
+            final Box b1 = (Box) o1;
+            final Box b2 = (Box) o2;
+            return Double.compare(b1.minX + b1.maxX, b2.minX + b2.maxX);
+        }
+    };
+
+    private final static Comparator<Object> CENTER_Y = new Comparator<Object>() {
+        @Override
+        public int compare(final Object o1, final Object o2) {
+            final Box b1 = (Box) o1;
+            final Box b2 = (Box) o2;
+            return Double.compare(b1.minY + b1.maxY, b2.minY + b2.maxY);
+        }
+    };
+
+    private static class Box {
+
+        double minX;
+        double minY;
+        double maxX;
+        double maxY;
+
+        Box(final double minX, final double minY, final double maxX, final double maxY) {
+            this.minX = minX;
+            this.minY = minY;
+            this.maxX = maxX;
+            this.maxY = maxY;
+        }
+
+        boolean intersects(final double minX, final double minY, final double maxX, final double maxY) {
+            return this.maxX >= minX && this.minX <= maxX && this.maxY >= minY && this.minY <= maxY;
+        }
+
+        boolean contains(final Box other) {
+            return minX <= other.minX && maxX >= other.maxX && minY <= other.minY && maxY >= other.maxY;
+        }
+
+        double area() {
+            return (maxX - minX) * (maxY - minY);
+        }
+
+        double enlargedArea(final Box other) {
+            return (Math.max(maxX, other.maxX) - Math.min(minX, other.minX)) *
+                (Math.max(maxY, other.maxY) - Math.min(minY, other.minY));
+        }
+    }
+
+    /**
+     * A value together with its bounding box.
+     */
+    public final static class Entry<T> extends Box {
+
+        private final T value;
+
+        public Entry(final double minX, final double minY, final double maxX, final double maxY, final T value) {
+            super(minX, minY, maxX, maxY);
+            this.value = value;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public double getMinX() {
+            return minX;
+        }
+
+        public double getMinY() {
+            return minY;
+        }
+
+        public double getMaxX() {
+            return maxX;
+        }
+
+        public double getMaxY() {
+            return maxY;
+        }
+    }
+
+    private final static class Node extends Box {
+
+        private final boolean leaf;
+        private Box[] children = new Box[MAX_CHILDREN + 1];
+        private int count = 0;
+
+        Node(final boolean leaf) {
+            super(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+            this.leaf = leaf;
+        }
+
+        void add(final Box child) {
+            if (count == children.length) {
+                final Box[] newChildren = new Box[children.length * 2];
+                System.arraycopy(children, 0, newChildren, 0, count);
+                children = newChildren;
+            }
+            children[count++] = child;
+            include(child);
+        }
+
+        void remove(final Box child) {
+            for (int i = 0; i < count; i++) {
+                if (children[i] == child) {
+                    System.arraycopy(children, i + 1, children, i, count - i - 1);
+                    children[--count] = null;
+                    return;
+                }
+            }
+        }
+
+        void include(final Box box) {
+            minX = Math.min(minX, box.minX);
+            minY = Math.min(minY, box.minY);
+            maxX = Math.max(maxX, box.maxX);
+            maxY = Math.max(maxY, box.maxY);
+        }
+
+        void recalculate() {
+            minX = minY = Double.MAX_VALUE;
+            maxX = maxY = -Double.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                include(children[i]);
+            }
+        }
+
+        /**
+         * Move half of the children, sorted along the longer side of the
+         * node, to a new sibling.
+         */
+        Node split() {
+            final Box[] sorted = new Box[count];
+            System.arraycopy(children, 0, sorted, 0, count);
+            Arrays.sort(sorted, maxX - minX >= maxY - minY ? CENTER_X : CENTER_Y);
+            final Node sibling = new Node(leaf);
+            final int half = count / 2;
+            count = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                children[i] = null;
+            }
+            for (int i = 0; i < half; i++) {
+                children[count++] = sorted[i];
+            }
+            recalculate();
+            for (int i = half; i < sorted.length; i++) {
+                sibling.add(sorted[i]);
+            }
+            return sibling;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.indexing.spatial;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RTreeTest {
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void bulkLoadedSearch() {
+        final List<RTree.Entry<Integer>> entries = randomEntries(0, 5000);
+        final RTree<Integer> tree = new RTree<>();
+        tree.load(entries);
+        assertEquals(5000, tree.size());
+        checkQueries(tree, entries);
+    }
+
+    @Test
+    public void insertAndRemove() {
+        final List<RTree.Entry<Integer>> entries = randomEntries(0, 2000);
+        final RTree<Integer> tree = new RTree<>();
+        for (final RTree.Entry<Integer> entry : entries) {
+            tree.insert(entry.getMinX(), entry.getMinY(), entry.getMaxX(), entry.getMaxY(), entry.getValue());
+        }
+        assertEquals(2000, tree.size());
+        checkQueries(tree, entries);
+
+        // remove every third value
+        final List<RTree.Entry<Integer>> remaining = new ArrayList<>();
+        for (final RTree.Entry<Integer> entry : entries) {
+            if (entry.getValue() % 3 == 0) {
+                assertTrue(tree.remove(entry.getValue()));
+            } else {
+                remaining.add(entry);
+            }
+        }
+        assertFalse(tree.remove(0));
+        assertEquals(remaining.size(), tree.size());
+        checkQueries(tree, remaining);
+
+        // replace the box of a value
+        tree.insert(1000, 1000, 1001, 1001, 1);
+        final Set<Integer> found = search(tree, 999, 999, 1002, 1002);
+        assertEquals(1, found.size());
+        assertTrue(found.contains(1));
+        assertEquals(remaining.size(), tree.size());
+    }
+
+    @Test
+    public void removeGroupsAndInsertAfterLoad() {
+        final List<RTree.Entry<Integer>> entries = randomEntries(0, 3000);
+        final RTree<Integer> tree = new RTree<>(value -> value % 10);
+        tree.load(entries);
+        assertEquals(300, tree.removeGroup(0));
+        assertEquals(0, tree.removeGroup(0));
+        assertEquals(1200, tree.removeGroups(key -> (Integer) key % 2 == 0));
+        assertTrue(tree.remove(1));
+        assertEquals(299, tree.removeGroup(1));
+
+        final List<RTree.Entry<Integer>> remaining = new ArrayList<>();
+        for (final RTree.Entry<Integer> entry : entries) {
+            if (entry.getValue() % 2 != 0 && entry.getValue() % 10 != 1) {
+                remaining.add(entry);
+            }
+        }
+        assertEquals(remaining.size(), tree.size());
+        checkQueries(tree, remaining);
+
+        final List<RTree.Entry<Integer>> added = randomEntries(3000, 500);
+        for (final RTree.Entry<Integer> entry : added) {
+            tree.insert(entry.getMinX(), entry.getMinY(), entry.getMaxX(), entry.getMaxY(), entry.getValue());
+        }
+        remaining.addAll(added);
+        checkQueries(tree, remaining);
+
+        tree.clear();
+        assertEquals(0, tree.size());
+        assertTrue(search(tree, -1000, -1000, 1000, 1000).isEmpty());
+    }
+
+    private void checkQueries(final RTree<Integer> tree, final List<RTree.Entry<Integer>> entries) {
+        for (int i = 0; i < 100; i++) {
+            final double minX = random.nextDouble() * 360 - 180;
+            final double minY = random.nextDouble() * 180 - 90;
+            final double maxX = minX + random.nextDouble() * 40;
+            final double maxY = minY + random.nextDouble() * 20;
+            final Set<Integer> expected = new HashSet<>();
+            for (final RTree.Entry<Integer> entry : entries) {
+                if (entry.getMaxX() >= minX && entry.getMinX() <= maxX &&
+                        entry.getMaxY() >= minY && entry.getMinY() <= maxY) {
+                    expected.add(entry.getValue());
+                }
+            }
+            assertEquals(expected, search(tree, minX, minY, maxX, maxY));
+        }
+    }
+
+    private Set<Integer> search(final RTree<Integer> tree, final double minX, final double minY,
+            final double maxX, final double maxY) {
+        final Set<Integer> found = new HashSet<>();
+        tree.search(minX, minY, maxX, maxY, entry -> assertTrue(found.add(entry.getValue())));
+        return found;
+    }
+
+    private List<RTree.Entry<Integer>> randomEntries(final int first, final int count) {
+        final List<RTree.Entry<Integer>> entries = new ArrayList<>(count);
+        for (int i = first; i < first + count; i++) {
+            final double minX = random.nextDouble() * 360 - 180;
+            final double minY = random.nextDouble() * 180 - 90;
+            // mostly small features, some points
+            final double width = i % 10 == 0 ? 0 : random.nextDouble() * 2;
+            final double height = i % 10 == 0 ? 0 : random.nextDouble() * 2;
+            entries.add(new RTree.Entry<>(minX, minY, minX + width, minY + height, i));
+        }
+        return entries;
+    }
+}
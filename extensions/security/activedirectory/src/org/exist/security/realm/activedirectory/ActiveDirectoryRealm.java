@@ -42,6 +42,7 @@ import org.exist.security.AbstractAccount;
 import org.exist.security.internal.SecurityManagerImpl;
 import org.exist.security.internal.SubjectAccreditedImpl;
 import org.exist.security.internal.aider.UserAider;
+import org.exist.security.realm.ldap.AuthenticationCache;
 import org.exist.security.realm.ldap.LDAPRealm;
 import org.exist.security.realm.ldap.LdapContextFactory;
 import org.exist.storage.DBBroker;
@@ -99,6 +100,22 @@ public class ActiveDirectoryRealm extends LDAPRealm {
     @Override
 	public Subject authenticate(final String username, Object credentials) throws AuthenticationException {
 
+		// Use a previous verification of the credentials if there is one
+		AuthenticationCache cache = ensureAuthenticationCache();
+		AuthenticationCache.Verification verification = cache.getVerification(username, String.valueOf(credentials));
+		if (verification != null) {
+			if (!verification.isVerified()) {
+				throw new AuthenticationException(
+						AuthenticationException.UNNOWN_EXCEPTION,
+						"Account '" + username + "' could not be authenticated.");
+			}
+			AbstractAccount account = (AbstractAccount) getAccount(username);
+			if (account != null) {
+				return new SubjectAccreditedImpl(account, verification);
+			}
+			cache.invalidate(username);
+		}
+
 		String returnedAtts[] = { "sn", "givenName", "mail" };
 		String searchFilter = "(&(objectClass=user)(sAMAccountName=" + username + "))";
 
@@ -135,6 +152,9 @@ public class ActiveDirectoryRealm extends LDAPRealm {
 			}
 		} catch (NamingException e) {
 			e.printStackTrace();
+			if (e instanceof javax.naming.AuthenticationException) {
+				cache.put(username, String.valueOf(credentials), false);
+			}
 			throw new AuthenticationException(
 					AuthenticationException.UNNOWN_EXCEPTION, 
 					e.getMessage());
@@ -165,6 +185,7 @@ public class ActiveDirectoryRealm extends LDAPRealm {
 				}
 			}
 
+			cache.put(username, String.valueOf(credentials), true);
 			return new SubjectAccreditedImpl(account, ctxGC);
 		}
 		
@@ -0,0 +1,251 @@
+package org.exist.security.realm.ldap;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.config.Configurable;
+import org.exist.config.Configuration;
+import org.exist.config.Configurator;
+import org.exist.config.annotation.ConfigurationClass;
+import org.exist.config.annotation.ConfigurationFieldAsAttribute;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Caches the outcome of verifying credentials against the directory, so that
+ * repeated authentications of the same account, e.g. by stateless REST requests,
+ * do not each need an LDAP bind.
+ *
+ * Only a salted SHA-256 hash of the account name and credentials is kept. The salt
+ * is generated when the cache is created and never stored. At most one verification
+ * is cached per account; successful ones expire after {@link #getTimeToLive()},
+ * failed ones after the usually shorter {@link #getNegativeTimeToLive()}. The least
+ * recently used entries are evicted once the cache is full. A size of 0 disables
+ * the cache.
+ *
+ * The cache is only used if it is configured in the realm; without the element
+ * every authentication binds to the directory server.
+ *
+ * <pre>
+ * &lt;authentication-cache size="1000" ttl="300000" negative-ttl="30000"/&gt;
+ * </pre>
+ */
+@ConfigurationClass("authentication-cache")
+public class AuthenticationCache implements Configurable, AuthenticationCacheMBean {
+
+    private final static Logger LOG = LogManager.getLogger(AuthenticationCache.class);
+
+    public final static int DEFAULT_SIZE = 1000;
+    public final static long DEFAULT_TTL = 5 * 60 * 1000;
+    public final static long DEFAULT_NEGATIVE_TTL = 30 * 1000;
+
+    @ConfigurationFieldAsAttribute("size")
+    private int maxSize = DEFAULT_SIZE;
+
+    @ConfigurationFieldAsAttribute("ttl")
+    private long ttl = DEFAULT_TTL;
+
+    @ConfigurationFieldAsAttribute("negative-ttl")
+    private long negativeTtl = DEFAULT_NEGATIVE_TTL;
+
+    private final Configuration configuration;
+
+    private final byte[] salt = new byte[16];
+    private final Map<String, Verification> verifications = new LinkedHashMap<String, Verification>(16, 0.75f, true);
+
+    private long hits = 0;
+    private long negativeHits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public AuthenticationCache(final Configuration config) {
+        this.configuration = Configurator.configure(this, config);
+        new SecureRandom().nextBytes(salt);
+    }
+
+    AuthenticationCache(final int maxSize, final long ttl, final long negativeTtl) {
+        this(null);
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    /**
+     * Look up the outcome of a previous verification of the credentials.
+     *
+     * @return true if the credentials have been verified, false if they have been
+     * rejected or null if they have to be verified
+     */
+    public Boolean isVerified(final String accountName, final String credentials) {
+        final Verification verification = getVerification(accountName, credentials);
+        return verification == null ? null : verification.isVerified();
+    }
+
+    /**
+     * Look up a previous verification of the credentials.
+     *
+     * @return the verification, which may have accepted or rejected the credentials,
+     * or null if they have to be verified
+     */
+    public synchronized Verification getVerification(final String accountName, final String credentials) {
+        if (maxSize <= 0) {
+            return null;
+        }
+        final Verification verification = verifications.get(accountName);
+        if (verification == null) {
+            misses++;
+            return null;
+        }
+        if (verification.expires < System.currentTimeMillis()) {
+            verifications.remove(accountName);
+            misses++;
+            return null;
+        }
+        if (!MessageDigest.isEqual(verification.hash, hash(accountName, credentials))) {
+            misses++;
+            return null;
+        }
+        if (verification.verified) {
+            hits++;
+        } else {
+            negativeHits++;
+        }
+        return verification;
+    }
+
+    /**
+     * Record the outcome of verifying the credentials against the directory.
+     */
+    public synchronized void put(final String accountName, final String credentials, final boolean verified) {
+        if (maxSize <= 0) {
+            return;
+        }
+        final long expires = System.currentTimeMillis() + (verified ? ttl : negativeTtl);
+        verifications.put(accountName, new Verification(hash(accountName, credentials), verified, expires));
+        for (final Iterator<Verification> i = verifications.values().iterator(); verifications.size() > maxSize; ) {
+            i.next();
+            i.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Remove the cached verification of an account, e.g. after its password or
+     * group membership changed.
+     */
+    public synchronized void invalidate(final String accountName) {
+        verifications.remove(accountName);
+    }
+
+    @Override
+    public synchronized void clear() {
+        verifications.clear();
+    }
+
+    private byte[] hash(final String accountName, final String credentials) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(accountName.getBytes(UTF_8));
+            digest.update((byte) 0);
+            digest.update(credentials.getBytes(UTF_8));
+            return digest.digest();
+        } catch (final NoSuchAlgorithmException e) {
+            // every Java platform is required to support SHA-256
+            LOG.error(e.getMessage(), e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public synchronized int getSize() {
+        return verifications.size();
+    }
+
+    @Override
+    public long getTimeToLive() {
+        return ttl;
+    }
+
+    @Override
+    public long getNegativeTimeToLive() {
+        return negativeTtl;
+    }
+
+    @Override
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    @Override
+    public synchronized long getNegativeHits() {
+        return negativeHits;
+    }
+
+    @Override
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized double getHitRate() {
+        final long total = hits + negativeHits + misses;
+        return total == 0 ? 0 : (double) (hits + negativeHits) / total;
+    }
+
+    // configurable methods
+    @Override
+    public boolean isConfigured() {
+        return (configuration != null);
+    }
+
+    @Override
+    public Configuration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * The outcome of verifying credentials against the directory.
+     */
+    public final static class Verification {
+        private final byte[] hash;
+        private final boolean verified;
+        private final long expires;
+
+        private Verification(final byte[] hash, final boolean verified, final long expires) {
+            this.hash = hash;
+            this.verified = verified;
+            this.expires = expires;
+        }
+
+        /**
+         * @return true if the credentials have been accepted, false if they have been rejected
+         */
+        public boolean isVerified() {
+            return verified;
+        }
+
+        /**
+         * @return the time in milliseconds at which the verification expires
+         */
+        public long getExpires() {
+            return expires;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package org.exist.security.realm.ldap;
+
+/**
+ * Provides access to the statistics of the {@link AuthenticationCache} of a realm.
+ */
+public interface AuthenticationCacheMBean {
+
+    /** @return the maximum number of cached verifications */
+    int getMaxSize();
+
+    /** @return the number of cached verifications */
+    int getSize();
+
+    /** @return the time in milliseconds a successful verification is cached */
+    long getTimeToLive();
+
+    /** @return the time in milliseconds a failed verification is cached */
+    long getNegativeTimeToLive();
+
+    /** @return the number of authentications answered by a cached successful verification */
+    long getHits();
+
+    /** @return the number of authentications rejected by a cached failed verification */
+    long getNegativeHits();
+
+    /** @return the number of authentications which had to be verified by the directory */
+    long getMisses();
+
+    long getEvictions();
+
+    /** @return the ratio of authentications answered from the cache */
+    double getHitRate();
+
+    /** Remove all cached verifications */
+    void clear();
+}
@@ -41,6 +41,7 @@ import org.apache.logging.log4j.Logger;
 import org.exist.EXistException;
 import org.exist.config.Configuration;
 import org.exist.config.annotation.*;
+import org.exist.management.AgentFactory;
 import org.exist.security.AXSchemaType;
 import org.exist.security.AbstractAccount;
 import org.exist.security.AbstractRealm;
@@ -56,6 +57,7 @@ import org.exist.security.internal.aider.GroupAider;
 import org.exist.security.internal.aider.UserAider;
 import org.exist.security.realm.ldap.AbstractLDAPSearchPrincipal.LDAPSearchAttributeKey;
 import org.exist.storage.DBBroker;
+import org.exist.util.DatabaseConfigurationException;
 
 /**
  * @author <a href="mailto:shabanovd@gmail.com">Dmitriy Shabanov</a>
@@ -78,6 +80,9 @@ public class LDAPRealm extends AbstractRealm {
     @ConfigurationFieldAsElement("context")
     protected LdapContextFactory ldapContextFactory;
 
+    @ConfigurationFieldAsElement("authentication-cache")
+    protected AuthenticationCache authenticationCache;
+
     public LDAPRealm(SecurityManagerImpl sm, Configuration config) {
         super(sm, config);
     }
@@ -96,6 +101,15 @@ public class LDAPRealm extends AbstractRealm {
         return this.ldapContextFactory;
     }
 
+    protected synchronized AuthenticationCache ensureAuthenticationCache() {
+        if (this.authenticationCache == null) {
+            // credentials are only cached if configured
+            this.authenticationCache = new AuthenticationCache(0, AuthenticationCache.DEFAULT_TTL,
+                    AuthenticationCache.DEFAULT_NEGATIVE_TTL);
+        }
+        return this.authenticationCache;
+    }
+
     @Override
     public String getId() {
         return ID;
@@ -104,6 +118,14 @@ public class LDAPRealm extends AbstractRealm {
     @Override
     public void start(DBBroker broker) throws EXistException {
         super.start(broker);
+
+        final String instanceName = broker.getBrokerPool().getId();
+        try {
+            AgentFactory.getInstance().addMBean(instanceName, "org.exist.management." + instanceName +
+                ".security:type=AuthenticationCache,realm=" + getId(), ensureAuthenticationCache());
+        } catch (final DatabaseConfigurationException e) {
+            LOG.warn("Exception while registering authentication cache mbean.", e);
+        }
     }
 
     private String ensureCase(final String username) {
@@ -122,11 +144,27 @@ public class LDAPRealm extends AbstractRealm {
     public Subject authenticate(final String username, final Object credentials) throws AuthenticationException {
         
         final String name = ensureCase(username);
-        
+        final String password = String.valueOf(credentials);
+
+        // Use a previous verification of the credentials if there is one
+        final AuthenticationCache cache = ensureAuthenticationCache();
+        final AuthenticationCache.Verification verification = cache.getVerification(name, password);
+        if (verification != null) {
+            if (!verification.isVerified()) {
+                throw new AuthenticationException(AuthenticationException.ACCOUNT_NOT_FOUND,
+                        "Account '" + name + "' could not be authenticated.");
+            }
+            final AbstractAccount account = (AbstractAccount) getAccount(name);
+            if (account != null) {
+                return new AuthenticatedLdapSubjectAccreditedImpl(account, verification, password);
+            }
+            cache.invalidate(name);
+        }
+
         // Binds using the username and password provided by the user.
         LdapContext ctx = null;
         try {
-            ctx = ensureContextFactory().getLdapContext(name, String.valueOf(credentials));
+            ctx = ensureContextFactory().getLdapContext(name, password);
 
             final AbstractAccount account = (AbstractAccount) getAccount(ctx, name);
             if (account == null) {
@@ -138,11 +176,13 @@ public class LDAPRealm extends AbstractRealm {
     					"Account '"+name+"' can not be found.");
             }
 
-            return new AuthenticatedLdapSubjectAccreditedImpl(account, ctx, String.valueOf(credentials));
+            cache.put(name, password, true);
+            return new AuthenticatedLdapSubjectAccreditedImpl(account, ctx, password);
 
         } catch(final NamingException e) {
         	LOG.debug(e.getMessage(), e);
             if(e instanceof javax.naming.AuthenticationException) {
+                cache.put(name, password, false);
                 throw new AuthenticationException(AuthenticationException.ACCOUNT_NOT_FOUND, e.getMessage());
             } else {
                 throw new AuthenticationException(AuthenticationException.UNNOWN_EXCEPTION, e.getMessage());
@@ -214,6 +254,8 @@ public class LDAPRealm extends AbstractRealm {
         if(!invokingUser.hasDbaRole() && invokingUser.getId() != account.getId()) {
             throw new PermissionDeniedException("You do not have permission to modify the account");
         }
+
+        ensureAuthenticationCache().invalidate(ensureCase(account.getName()));
         
         try {
             final LdapContext ctx = getContext(invokingUser);
@@ -822,6 +864,7 @@ public class LDAPRealm extends AbstractRealm {
 
     @Override
     public boolean updateAccount(final Account account) throws PermissionDeniedException, EXistException {
+        ensureAuthenticationCache().invalidate(ensureCase(account.getName()));
         return super.updateAccount(account);
     }
 
@@ -829,17 +872,21 @@ public class LDAPRealm extends AbstractRealm {
     public boolean deleteAccount(final Account account) throws PermissionDeniedException, EXistException {
         // TODO we dont support writting to LDAP
     	//XXX: delete local cache?
+        ensureAuthenticationCache().invalidate(ensureCase(account.getName()));
         return false;
     }
 
     @Override
     public boolean updateGroup(final Group group) throws PermissionDeniedException, EXistException {
+        // the group memberships of the cached accounts may change
+        ensureAuthenticationCache().clear();
         return super.updateGroup(group);
     }
 
     @Override
     public boolean deleteGroup(final Group group) throws PermissionDeniedException, EXistException {
     	//XXX: delete local cache?
+        ensureAuthenticationCache().clear();
         return false;
     }
 
@@ -1268,8 +1315,8 @@ public class LDAPRealm extends AbstractRealm {
 
         private final String authenticatedCredentials;
 
-        private AuthenticatedLdapSubjectAccreditedImpl(final AbstractAccount account, final LdapContext ctx, final String authenticatedCredentials) {
-            super(account, ctx);
+        private AuthenticatedLdapSubjectAccreditedImpl(final AbstractAccount account, final Object letterOfCredit, final String authenticatedCredentials) {
+            super(account, letterOfCredit);
             this.authenticatedCredentials = authenticatedCredentials;
         }
 
@@ -0,0 +1,77 @@
+package org.exist.security.realm.ldap;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AuthenticationCacheTest {
+
+    @Test
+    public void verificationsAreCached() {
+        final AuthenticationCache cache = new AuthenticationCache(10, 60000, 60000);
+        assertNull(cache.isVerified("user", "secret"));
+
+        cache.put("user", "secret", true);
+        assertTrue(cache.isVerified("user", "secret"));
+        // other credentials have to be verified by the directory
+        assertNull(cache.isVerified("user", "other"));
+        assertNull(cache.isVerified("other", "secret"));
+
+        cache.put("user", "wrong", false);
+        assertFalse(cache.isVerified("user", "wrong"));
+        // only the last verification of an account is kept
+        assertNull(cache.isVerified("user", "secret"));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getNegativeHits());
+        assertEquals(4, cache.getMisses());
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void verificationsExpire() throws InterruptedException {
+        final AuthenticationCache cache = new AuthenticationCache(10, 60000, 1);
+        cache.put("user", "secret", true);
+        cache.put("other", "wrong", false);
+        Thread.sleep(10);
+        assertTrue(cache.isVerified("user", "secret"));
+        assertNull(cache.isVerified("other", "wrong"));
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void leastRecentlyUsedAreEvicted() {
+        final AuthenticationCache cache = new AuthenticationCache(2, 60000, 60000);
+        cache.put("a", "secret", true);
+        cache.put("b", "secret", true);
+        assertTrue(cache.isVerified("a", "secret"));
+        cache.put("c", "secret", true);
+        assertEquals(2, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+        assertTrue(cache.isVerified("a", "secret"));
+        assertNull(cache.isVerified("b", "secret"));
+    }
+
+    @Test
+    public void invalidate() {
+        final AuthenticationCache cache = new AuthenticationCache(10, 60000, 60000);
+        cache.put("a", "secret", true);
+        cache.put("b", "secret", true);
+        cache.invalidate("a");
+        assertNull(cache.isVerified("a", "secret"));
+        assertTrue(cache.isVerified("b", "secret"));
+        cache.clear();
+        assertNull(cache.isVerified("b", "secret"));
+    }
+
+    @Test
+    public void disabled() {
+        final AuthenticationCache cache = new AuthenticationCache(0, 60000, 60000);
+        cache.put("a", "secret", true);
+        assertNull(cache.isVerified("a", "secret"));
+        assertEquals(0, cache.getSize());
+    }
+}
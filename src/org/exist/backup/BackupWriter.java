@@ -58,4 +58,12 @@ public interface BackupWriter
     void setProperties( Properties properties ) throws IOException;
 
     public void addToRoot(String name, File file) throws IOException;
+
+    /**
+     * Create a writer which adds collections to the same backup as this writer,
+     * but keeps its own state. Writers created by this method may be used by
+     * different threads concurrently, as long as each thread writes to different
+     * collections. This writer must not be used while they are active.
+     */
+    BackupWriter newConcurrentWriter() throws IOException;
 }
@@ -0,0 +1,103 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.backup;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which an export writes data. The limit is shared by
+ * all threads taking part in the export: every thread has to acquire the
+ * bytes it wants to write and is delayed until they fit into the configured
+ * number of bytes per second.
+ */
+public class ExportThrottle {
+
+    private final long bytesPerSecond;
+
+    /** Time in nanoseconds at which the next bytes may be written */
+    private long next = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond the maximum number of bytes written per second
+     */
+    public ExportThrottle(final long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " + bytesPerSecond);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Wait until the given number of bytes may be written.
+     */
+    public void acquire(final long bytes) throws InterruptedIOException {
+        final long delay;
+        synchronized (this) {
+            final long now = System.nanoTime();
+            if (next < now) {
+                // do not accumulate credit while idle
+                next = now;
+            }
+            delay = next - now;
+            next += TimeUnit.SECONDS.toNanos(bytes) / bytesPerSecond;
+        }
+        if (delay > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling export");
+            }
+        }
+    }
+
+    /**
+     * Wrap the given stream so every write is throttled.
+     * Closing the returned stream does not close the wrapped stream.
+     */
+    public OutputStream wrap(final OutputStream os) {
+        return new FilterOutputStream(os) {
+            @Override
+            public void write(final int b) throws IOException {
+                acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                acquire(len);
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+}
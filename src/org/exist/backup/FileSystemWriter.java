@@ -66,6 +66,13 @@ public class FileSystemWriter implements BackupWriter
         rootDir = file;
     }
 
+    private FileSystemWriter( FileSystemWriter parent )
+    {
+        rootDir     = parent.rootDir;
+        currentDir  = parent.currentDir;
+        dataWritten = true;
+    }
+
     public void newCollection( String name )
     {
     	File file;
@@ -139,4 +146,11 @@ public class FileSystemWriter implements BackupWriter
     public void addToRoot(String name, File file) throws IOException {
         FileUtils.copyFile(file, new File(rootDir, name));
     }
+
+    @Override
+    public BackupWriter newConcurrentWriter()
+    {
+        // every collection is written to its own directory
+        return( new FileSystemWriter( this ) );
+    }
 }
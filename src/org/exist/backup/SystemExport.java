@@ -47,6 +47,7 @@ import org.exist.storage.btree.BTreeCallback;
 import org.exist.storage.btree.Value;
 import org.exist.storage.index.CollectionStore;
 import org.exist.storage.io.VariableByteInput;
+import org.exist.storage.lock.Lock;
 import org.exist.storage.serializers.EXistOutputKeys;
 import org.exist.util.UTF8;
 import org.exist.util.serializer.AttrList;
@@ -73,6 +74,11 @@ import javax.xml.transform.OutputKeys;
 import java.io.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -88,6 +94,15 @@ import java.util.*;
  *
  * <p>The class should be used in combination with {@link ConsistencyCheck}. The error lists returned by ConsistencyCheck can be passed to {@link
  * #export(BackupHandler, org.exist.collections.Collection, BackupWriter, java.util.Date, BackupDescriptor, java.util.List, org.exist.dom.persistent.MutableDocumentSet)}.</p>
+ *
+ * <p>If more than one thread is configured via {@link #setThreads(int)}, the collections found while scanning the collection store are exported
+ * by a pool of worker threads, each using its own broker. A worker exports the collection as currently known to the database: the list of
+ * documents and sub-collections is taken while holding a short read lock on the collection, and every document is serialized while holding
+ * its read lock. Each collection is thus exported in a consistent state without blocking writers for the duration of the export. Use a single
+ * thread to export a damaged database.</p>
+ *
+ * <p>The amount of data written per second can be limited via {@link #setMaxRate(long)} to reduce the impact of the export on a running
+ * database.</p>
  */
 public class SystemExport
 {
@@ -112,6 +127,9 @@ public class SystemExport
     private boolean                 directAccess            = false;
     private ProcessMonitor.Monitor  monitor                 = null;
     private BackupHandler bh = null;
+    private int                     threads                 = 1;
+    private ExportThrottle          throttle                = null;
+    private boolean                 lockDocuments           = false;
 
     {
         defaultOutputProperties.setProperty( OutputKeys.INDENT, "no" );
@@ -135,6 +153,41 @@ public class SystemExport
     	bh = broker.getDatabase().getPluginsManager().getBackupHandler(LOG);
     }
 
+    /**
+     * Create an exporter for a worker thread, which uses the given broker and the settings of the parent.
+     */
+    private SystemExport( SystemExport parent, DBBroker broker )
+    {
+        this.broker                  = broker;
+        this.callback                = parent.callback;
+        this.monitor                 = parent.monitor;
+        this.directAccess            = parent.directAccess;
+        this.bh                      = parent.bh;
+        this.throttle                = parent.throttle;
+        this.defaultOutputProperties = parent.defaultOutputProperties;
+        this.contentsOutputProps     = parent.contentsOutputProps;
+        this.lockDocuments           = true;
+    }
+
+    /**
+     * Set the number of threads used to export collections. If less than 2, all collections are exported by the calling thread (the
+     * default). Every thread uses its own broker, so the number should be lower than the maximum number of brokers.
+     */
+    public void setThreads( int threads )
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * Limit the number of bytes written per second by all threads together.
+     *
+     * @param  bytesPerSecond  the maximum rate or a value &lt;= 0 to write as fast as possible (the default)
+     */
+    public void setMaxRate( long bytesPerSecond )
+    {
+        this.throttle = ( bytesPerSecond > 0 ) ? new ExportThrottle( bytesPerSecond ) : null;
+    }
+
     public File export( String targetDir, boolean incremental, boolean zip, List<ErrorReport> errorList )
     {
         return( export( targetDir, incremental, -1, zip, errorList ) );
@@ -223,7 +276,20 @@ public class SystemExport
 
             final Date date = ( prevBackup == null ) ? null : prevBackup.getDate();
             final CollectionCallback cb   = new CollectionCallback( output, date, prevBackup, errorList, true );
-            broker.getCollectionsFailsafe( cb );
+
+            if( threads > 1 ) {
+                cb.startWorkers( threads );
+            }
+
+            try {
+                broker.getCollectionsFailsafe( cb );
+                // the collections are only exported by the workers after the scan released its lock
+                cb.exportQueued();
+                cb.awaitWorkers();
+            }
+            finally {
+                cb.stopWorkers();
+            }
 
             exportOrphans( output, cb.getDocs(), errorList );
 
@@ -383,11 +449,43 @@ public class SystemExport
         try {
             final Writer        contents   = output.newContents();
 
+            // take a snapshot of the collection contents. the collection is only locked if it is
+            // the instance known to the database, not a copy read from the collection store
+            final Permission         perm;
+            final List<DocumentImpl> documents = new ArrayList<DocumentImpl>();
+            final List<XmldbURI>     children  = new ArrayList<XmldbURI>();
+            final Lock               lock      = lockDocuments ? current.getLock() : null;
+
+            if( lock != null ) {
+                try {
+                    lock.acquire( Lock.READ_LOCK );
+                }
+                catch( final org.exist.util.LockException e ) {
+                    throw( new IOException( "Failed to acquire lock on collection " + current.getURI(), e ) );
+                }
+            }
+
+            try {
+                perm = current.getPermissionsNoLock();
+
+                for( final Iterator<DocumentImpl> i = current.iteratorNoLock( broker ); i.hasNext(); ) {
+                    documents.add( i.next() );
+                }
+
+                for( final Iterator<XmldbURI> i = current.collectionIteratorNoLock( broker ); i.hasNext(); ) {
+                    children.add( i.next() );
+                }
+            }
+            finally {
+                if( lock != null ) {
+                    lock.release( Lock.READ_LOCK );
+                }
+            }
+
             // serializer writes to __contents__.xml
             final SAXSerializer serializer = (SAXSerializer)SerializerPool.getInstance().borrowObject( SAXSerializer.class );
             serializer.setOutput( contents, contentsOutputProps );
 
-            final Permission perm = current.getPermissionsNoLock();
             
             serializer.startDocument();
             serializer.startPrefixMapping( "", Namespaces.EXIST_NS );
@@ -413,10 +511,10 @@ public class SystemExport
             
             bh.backup(current, serializer);
 
-            final int docsCount = current.getDocumentCountNoLock(broker);
+            final int docsCount = documents.size();
             int count     = 0;
 
-            for( final Iterator<DocumentImpl> i = current.iteratorNoLock( broker ); i.hasNext(); count++ ) {
+            for( final Iterator<DocumentImpl> i = documents.iterator(); i.hasNext(); count++ ) {
                 final DocumentImpl doc = i.next();
 
                 if( isDamaged( doc, errorList ) ) {
@@ -428,11 +526,13 @@ public class SystemExport
                     continue; // skip __contents__.xml documents
                 }
                 exportDocument( bh, output, date, prevBackup, serializer, docsCount, count, doc );
-                docs.add( doc, false );
+
+                synchronized( docs ) {
+                    docs.add( doc, false );
+                }
             }
 
-            for( final Iterator<XmldbURI> i = current.collectionIteratorNoLock(broker); i.hasNext(); ) {
-                final XmldbURI childUri = i.next();
+            for( final XmldbURI childUri : children ) {
 
                 if( childUri.equalsInternal( TEMP_COLLECTION ) ) {
                     continue;
@@ -454,7 +554,7 @@ public class SystemExport
                 // Check which collections and resources have been deleted since
                 // the
                 // last backup
-                final CheckDeletedHandler check = new CheckDeletedHandler( current, serializer );
+                final CheckDeletedHandler check = new CheckDeletedHandler( documents, children, serializer );
 
                 try {
                     prevBackup.parse( check );
@@ -491,9 +591,20 @@ public class SystemExport
         final boolean needsBackup = ( prevBackup == null ) || ( date.getTime() < doc.getMetadata().getLastModified() );
 
         if( needsBackup ) {
-            final OutputStream os = output.newEntry( Backup.encode( URIUtils.urlDecodeUtf8( doc.getFileURI() ) ) );
+            OutputStream os = output.newEntry( Backup.encode( URIUtils.urlDecodeUtf8( doc.getFileURI() ) ) );
+
+            if( throttle != null ) {
+                os = throttle.wrap( os );
+            }
+
+            final Lock updateLock = lockDocuments ? doc.getUpdateLock() : null;
+            boolean    locked     = false;
 
             try {
+                if( updateLock != null ) {
+                    updateLock.acquire( Lock.READ_LOCK );
+                    locked = true;
+                }
 
                 if( doc.getResourceType() == DocumentImpl.BINARY_FILE ) {
                     broker.readBinaryResource( (BinaryDocument)doc, os );
@@ -513,6 +624,9 @@ public class SystemExport
                 return;
             }
             finally {
+                if( locked ) {
+                    updateLock.release( Lock.READ_LOCK );
+                }
                 output.closeEntry();
             }
         }
@@ -745,6 +859,10 @@ public class SystemExport
         private boolean            exportCollection;
         private int                lastPercentage   = -1;
         private Agent              jmxAgent         = AgentFactory.getInstance();
+        private ThreadPoolExecutor executor         = null;
+        private List<String>       queued           = new ArrayList<String>();
+        private int                pending          = 0;
+        private TerminatedException terminated      = null;
 
         private CollectionCallback( BackupWriter writer, Date date, BackupDescriptor prevBackup, List<ErrorReport> errorList, boolean exportCollection )
         {
@@ -770,6 +888,12 @@ public class SystemExport
                         return( true );
                     }
 
+                    if( executor != null ) {
+                        // the scan holds the lock on the collection store: only record the collection for now
+                        queued.add( uri );
+                        return( true );
+                    }
+
                     if( callback != null ) {
                         callback.startCollection( uri );
                     }
@@ -781,12 +905,7 @@ public class SystemExport
                     if( prevBackup != null ) {
                         bd = prevBackup.getBackupDescriptor( uri );
                     }
-                    int percentage = 100 * ( collectionCount + 1 ) / ( getCollectionCount() + 1 );
-
-                    if( ( jmxAgent != null ) && ( percentage != lastPercentage ) ) {
-                        lastPercentage = percentage;
-                        jmxAgent.updateStatus( broker.getBrokerPool(), percentage );
-                    }
+                    updateStatus( collectionCount );
                     export( bh, collection, writer, date, bd, errors, docs );
                 }
             }
@@ -807,6 +926,178 @@ public class SystemExport
         {
             return( docs );
         }
+
+
+        private void updateStatus( int current ) throws TerminatedException
+        {
+            final int percentage = 100 * ( current + 1 ) / ( getCollectionCount() + 1 );
+
+            if( ( jmxAgent != null ) && ( percentage != lastPercentage ) ) {
+                lastPercentage = percentage;
+                jmxAgent.updateStatus( broker.getBrokerPool(), percentage );
+            }
+        }
+
+
+        private void startWorkers( int threads )
+        {
+            // tasks only hold the uri of a collection, which is read by the worker
+            executor = new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ExportThreadFactory( broker.getBrokerPool().getId() ) );
+        }
+
+
+        private void stopWorkers()
+        {
+            if( executor != null ) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+
+
+        /**
+         * Hand the collections recorded during the scan over to the worker threads. Must be called after the scan completed, so the
+         * workers can read the collections without waiting for the lock held by the scan.
+         */
+        private void exportQueued() throws IOException, TerminatedException
+        {
+            if( executor == null ) {
+                return;
+            }
+
+            int current = 0;
+            for( final String uri : queued ) {
+                synchronized( this ) {
+                    if( terminated != null ) {
+                        break;
+                    }
+                    pending++;
+                }
+
+                if( callback != null ) {
+                    callback.startCollection( uri );
+                }
+                final BackupDescriptor bd = ( prevBackup == null ) ? null : prevBackup.getBackupDescriptor( uri );
+                updateStatus( ++current );
+
+                final BackupWriter collectionWriter = writer.newConcurrentWriter();
+                executor.execute( new Runnable() {
+                    @Override
+                    public void run()
+                    {
+                        try( final DBBroker workerBroker = broker.getBrokerPool().get( broker.getSubject() ) ) {
+                            final SystemExport worker     = new SystemExport( SystemExport.this, workerBroker );
+                            final Collection   collection = readCollection( workerBroker, uri );
+
+                            if( collection != null ) {
+                                worker.export( bh, collection, collectionWriter, date, bd, errors, docs );
+                            }
+                        }
+                        catch( final TerminatedException e ) {
+                            synchronized( CollectionCallback.this ) {
+                                terminated = e;
+                            }
+                        }
+                        catch( final Exception e ) {
+                            reportError( "Caught exception while exporting collection: " + uri, e );
+                        }
+                        finally {
+                            synchronized( CollectionCallback.this ) {
+                                pending--;
+                                CollectionCallback.this.notifyAll();
+                            }
+                        }
+                    }
+                } );
+            }
+            queued.clear();
+        }
+
+
+        /**
+         * Read a collection recorded during the scan. Uses the collection instance known to the database if it is available, otherwise
+         * reads the collection directly from the collection store, e.g. if its ancestor collection is damaged.
+         *
+         * @return  the collection or null if it was removed in the meantime
+         */
+        private Collection readCollection( DBBroker workerBroker, String uri ) throws Exception
+        {
+            final XmldbURI collectionUri = XmldbURI.createInternal( uri );
+
+            try {
+                final Collection current = workerBroker.getCollection( collectionUri );
+
+                if( current != null ) {
+                    return( current );
+                }
+            }
+            catch( final Exception e ) {
+                LOG.debug( "Failed to open collection " + uri + ", reading it from the collection store: " + e.getMessage() );
+            }
+
+            final CollectionStore store = (CollectionStore)( (NativeBroker)workerBroker ).getStorage( NativeBroker.COLLECTIONS_DBX_ID );
+            final Lock            lock  = store.getLock();
+            lock.acquire( Lock.READ_LOCK );
+
+            try {
+                final VariableByteInput istream = store.getAsStream( new CollectionStore.CollectionKey( uri ) );
+
+                if( istream == null ) {
+                    return( null );
+                }
+                final Collection collection = new Collection( workerBroker, collectionUri );
+                collection.read( workerBroker, istream );
+                return( collection );
+            }
+            finally {
+                lock.release( Lock.READ_LOCK );
+            }
+        }
+
+
+        /**
+         * Wait until the worker threads exported all collections.
+         *
+         * @throws  TerminatedException  if the export was terminated while exporting a collection
+         */
+        private synchronized void awaitWorkers() throws TerminatedException
+        {
+            while( pending > 0 ) {
+                try {
+                    wait();
+                }
+                catch( final InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw( new TerminatedException( "system export interrupted" ) );
+                }
+            }
+
+            if( terminated != null ) {
+                reportError( "Terminating system export upon request", terminated );
+                throw( terminated );
+            }
+        }
+    }
+
+
+    private static class ExportThreadFactory implements ThreadFactory
+    {
+        private final String        instanceId;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private ExportThreadFactory( String instanceId )
+        {
+            this.instanceId = instanceId;
+        }
+
+        @Override
+        public Thread newThread( Runnable runnable )
+        {
+            final Thread thread = new Thread( runnable, "db." + instanceId + ".export-" + count.incrementAndGet() );
+            thread.setDaemon( true );
+            return( thread );
+        }
     }
 
 
@@ -876,12 +1167,16 @@ public class SystemExport
 
     private class CheckDeletedHandler extends DefaultHandler
     {
-        private Collection    collection;
+        private Set<String>   documents = new HashSet<String>();
+        private Set<XmldbURI> children;
         private SAXSerializer serializer;
 
-        private CheckDeletedHandler( Collection collection, SAXSerializer serializer )
+        private CheckDeletedHandler( List<DocumentImpl> documents, List<XmldbURI> children, SAXSerializer serializer )
         {
-            this.collection = collection;
+            for( final DocumentImpl doc : documents ) {
+                this.documents.add( doc.getFileURI().getRawCollectionPath() );
+            }
+            this.children   = new HashSet<XmldbURI>( children );
             this.serializer = serializer;
         }
 
@@ -890,34 +1185,30 @@ public class SystemExport
         {
             if( uri.equals( Namespaces.EXIST_NS ) ) {
 
-                try {
-                    if( "subcollection".equals(localName) ) {
-                        String name = attributes.getValue( "filename" );
+                if( "subcollection".equals(localName) ) {
+                    String name = attributes.getValue( "filename" );
 
-                        if( name == null ) {
-                            name = attributes.getValue( "name" );
-                        }
+                    if( name == null ) {
+                        name = attributes.getValue( "name" );
+                    }
 
-                        if( !collection.hasChildCollection(broker, XmldbURI.create( name ) ) ) {
-                            final AttributesImpl attr = new AttributesImpl();
-                            attr.addAttribute( Namespaces.EXIST_NS, "name", "name", "CDATA", name );
-                            attr.addAttribute( Namespaces.EXIST_NS, "type", "type", "CDATA", "collection" );
-                            serializer.startElement( Namespaces.EXIST_NS, "deleted", "deleted", attr );
-                            serializer.endElement( Namespaces.EXIST_NS, "deleted", "deleted" );
-                        }
-                    } else if( "resource".equals(localName) ) {
-                        final String name = attributes.getValue( "name" );
-
-                        if( !collection.hasDocument(broker, XmldbURI.create( name ) ) ) {
-                            final AttributesImpl attr = new AttributesImpl();
-                            attr.addAttribute( Namespaces.EXIST_NS, "name", "name", "CDATA", name );
-                            attr.addAttribute( Namespaces.EXIST_NS, "type", "type", "CDATA", "resource" );
-                            serializer.startElement( Namespaces.EXIST_NS, "deleted", "deleted", attr );
-                            serializer.endElement( Namespaces.EXIST_NS, "deleted", "deleted" );
-                        }
+                    if( !children.contains( XmldbURI.create( name ) ) ) {
+                        final AttributesImpl attr = new AttributesImpl();
+                        attr.addAttribute( Namespaces.EXIST_NS, "name", "name", "CDATA", name );
+                        attr.addAttribute( Namespaces.EXIST_NS, "type", "type", "CDATA", "collection" );
+                        serializer.startElement( Namespaces.EXIST_NS, "deleted", "deleted", attr );
+                        serializer.endElement( Namespaces.EXIST_NS, "deleted", "deleted" );
+                    }
+                } else if( "resource".equals(localName) ) {
+                    final String name = attributes.getValue( "name" );
+
+                    if( !documents.contains( XmldbURI.create( name ).getRawCollectionPath() ) ) {
+                        final AttributesImpl attr = new AttributesImpl();
+                        attr.addAttribute( Namespaces.EXIST_NS, "name", "name", "CDATA", name );
+                        attr.addAttribute( Namespaces.EXIST_NS, "type", "type", "CDATA", "resource" );
+                        serializer.startElement( Namespaces.EXIST_NS, "deleted", "deleted", attr );
+                        serializer.endElement( Namespaces.EXIST_NS, "deleted", "deleted" );
                     }
-                } catch(final PermissionDeniedException pde) {
-                    throw new SAXException("Unable to process :" + qName + ": " + pde.getMessage(), pde);
                 }
             }
         }
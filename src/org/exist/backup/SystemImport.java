@@ -28,23 +28,20 @@ import java.net.URISyntaxException;
 import java.util.Properties;
 import java.util.Stack;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.Database;
-import org.exist.backup.restore.SystemImportHandler;
+import org.exist.backup.restore.ImportExecutor;
 import org.exist.backup.restore.listener.RestoreListener;
+import org.exist.backup.restore.listener.SynchronizedRestoreListener;
 import org.exist.config.ConfigurationException;
 import org.exist.security.AuthenticationException;
 import org.exist.security.PermissionDeniedException;
 import org.exist.security.Subject;
 import org.exist.storage.DBBroker;
-import org.exist.util.EXistInputSource;
 import org.exist.xmldb.XmldbURI;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
 import org.xmldb.api.base.ErrorCodes;
 import org.xmldb.api.base.XMLDBException;
 
@@ -58,11 +55,32 @@ public class SystemImport {
     public final static Logger LOG = LogManager.getLogger( SystemImport.class );
 
     private Database db;
+
+    private int threads = 1;
+    private boolean deferIndexing = false;
     
     public SystemImport(Database db) {
     	this.db = db;
 	}
 
+    /**
+     * Set the number of threads used to restore collections in parallel. Every
+     * thread uses its own broker, so the number should be well below the maximum
+     * number of brokers configured for the database. Default: 1.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * If set, indexes configured for the restored collections are not updated
+     * while storing resources, but built by a reindex after the restore completed.
+     * Collection triggers will not fire for the restored resources. Default: false.
+     */
+    public void setDeferIndexing(boolean deferIndexing) {
+        this.deferIndexing = deferIndexing;
+    }
+
     public void restore(RestoreListener listener, String username, Object credentials, String newCredentials, File f, String uri) throws XMLDBException, FileNotFoundException, IOException, SAXException, ParserConfigurationException, URISyntaxException, AuthenticationException, ConfigurationException, PermissionDeniedException {
         
         //login
@@ -74,27 +92,29 @@ public class SystemImport {
 	        //get the backup descriptors, can be more than one if it was an incremental backup
 	        final Stack<BackupDescriptor> descriptors = getBackupDescriptors(f);
 	        
-	        final SAXParserFactory saxFactory = SAXParserFactory.newInstance();
-	        saxFactory.setNamespaceAware(true);
-	        saxFactory.setValidating(false);
-	        final SAXParser sax = saxFactory.newSAXParser();
-	        final XMLReader reader = sax.getXMLReader();
+	        final ImportExecutor executor = new ImportExecutor(db, broker.getSubject(), threads, deferIndexing);
+	        final RestoreListener restoreListener = executor.isParallel() ? new SynchronizedRestoreListener(listener) : listener;
 	        
 	        try {
-	            listener.restoreStarting();
+	            restoreListener.restoreStarting();
 	
 	            while(!descriptors.isEmpty()) {
 	                final BackupDescriptor descriptor = descriptors.pop();
-	                final EXistInputSource is = descriptor.getInputSource();
-	                is.setEncoding( "UTF-8" );
-	
-	                final SystemImportHandler handler = new SystemImportHandler(broker, listener, uri, descriptor);
-	                
-	                reader.setContentHandler(handler);
-	                reader.parse(is);
+	                executor.restore(broker, restoreListener, uri, descriptor);
+	                //complete each part of an incremental backup before the next one is restored
+	                executor.await();
 	            }
 	        } finally {
-	            listener.restoreFinished();
+	            try {
+	                //also required after a failure, as it enables the collection configurations again
+	                final int reindexed = executor.reindexDeferred(broker);
+	                if(reindexed > 0) {
+	                    restoreListener.info("Built deferred indexes for " + reindexed + " collections");
+	                }
+	            } finally {
+	                executor.shutdown();
+	                restoreListener.restoreFinished();
+	            }
 	        }
         } finally {
         	db.release(broker);
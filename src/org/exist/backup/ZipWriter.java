@@ -30,13 +30,22 @@ import java.util.zip.ZipOutputStream;
 
 /**
  * Implementation of BackupWriter that writes to a zip file.
+ *
+ * Writers created by {@link #newConcurrentWriter()} buffer every entry and
+ * append it to the zip file in one step once it is closed. Small entries are
+ * buffered in memory, larger ones are spilled to a temporary file.
  */
 public class ZipWriter implements BackupWriter
 {
+    private final static int MAX_MEMORY_BUFFER = 4 * 1024 * 1024;
+
     private String          currentPath;
     private ZipOutputStream out;
     private StringWriter    contents;
     private boolean         dataWritten = false;
+    private final boolean   buffered;
+    private EntryBuffer     currentEntry = null;
+    private String          currentEntryName = null;
 
     public ZipWriter( String zipFile, String collection ) throws IOException
     {
@@ -48,6 +57,15 @@ public class ZipWriter implements BackupWriter
     {
         out         = new ZipOutputStream( new FileOutputStream( zipFile ) );
         currentPath = collection;
+        buffered    = false;
+    }
+
+    private ZipWriter( ZipWriter parent )
+    {
+        out         = parent.out;
+        currentPath = parent.currentPath;
+        dataWritten = true;
+        buffered    = true;
     }
 
     public Writer newContents() throws IOException
@@ -60,25 +78,47 @@ public class ZipWriter implements BackupWriter
     public void closeContents() throws IOException
     {
         final ZipEntry entry = new ZipEntry( mkRelative( currentPath ) + "/__contents__.xml" );
-        out.putNextEntry( entry );
-        out.write( contents.toString().getBytes( "UTF-8" ) );
-        out.closeEntry();
+        final byte[]   data  = contents.toString().getBytes( "UTF-8" );
+        synchronized( out ) {
+            out.putNextEntry( entry );
+            out.write( data );
+            out.closeEntry();
+        }
         dataWritten = true;
     }
 
 
     public OutputStream newEntry( String name ) throws IOException
     {
-        final ZipEntry entry = new ZipEntry( mkRelative( currentPath ) + '/' + name );
-        out.putNextEntry( entry );
+        final String entryName = mkRelative( currentPath ) + '/' + name;
         dataWritten = true;
+        if( buffered ) {
+            currentEntryName = entryName;
+            currentEntry     = new EntryBuffer();
+            return( currentEntry );
+        }
+        out.putNextEntry( new ZipEntry( entryName ) );
         return( out );
     }
 
 
     public void closeEntry() throws IOException
     {
-        out.closeEntry();
+        if( !buffered ) {
+            out.closeEntry();
+            return;
+        }
+        try {
+            synchronized( out ) {
+                out.putNextEntry( new ZipEntry( currentEntryName ) );
+                currentEntry.writeTo( out );
+                out.closeEntry();
+            }
+        } finally {
+            currentEntry.discard();
+            currentEntry     = null;
+            currentEntryName = null;
+        }
     }
 
 
@@ -139,6 +179,12 @@ public class ZipWriter implements BackupWriter
         out.closeEntry();
     }
 
+    @Override
+    public BackupWriter newConcurrentWriter()
+    {
+        return( new ZipWriter( this ) );
+    }
+
     private String mkRelative( String path )
     {
         if( ( path.length() > 0 ) && ( path.charAt( 0 ) == '/' ) ) {
@@ -146,4 +192,83 @@ public class ZipWriter implements BackupWriter
         }
         return( path );
     }
+
+
+    /**
+     * Buffers the data of an entry in memory and switches to a temporary
+     * file once {@link #MAX_MEMORY_BUFFER} bytes have been written.
+     */
+    private static class EntryBuffer extends OutputStream
+    {
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private File                  file   = null;
+        private OutputStream          fileOut = null;
+
+        @Override
+        public void write( int b ) throws IOException
+        {
+            target( 1 ).write( b );
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) throws IOException
+        {
+            target( len ).write( b, off, len );
+        }
+
+        private OutputStream target( int len ) throws IOException
+        {
+            if( fileOut != null ) {
+                return( fileOut );
+            }
+            if( memory.size() + len <= MAX_MEMORY_BUFFER ) {
+                return( memory );
+            }
+            file    = File.createTempFile( "exist-backup", ".tmp" );
+            fileOut = new BufferedOutputStream( new FileOutputStream( file ) );
+            memory.writeTo( fileOut );
+            memory  = null;
+            return( fileOut );
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+            if( fileOut != null ) {
+                fileOut.flush();
+            }
+        }
+
+        private void writeTo( OutputStream os ) throws IOException
+        {
+            if( fileOut == null ) {
+                memory.writeTo( os );
+                return;
+            }
+            fileOut.close();
+            final byte[] buf = new byte[4096];
+            int len;
+            final InputStream is = new FileInputStream( file );
+            try {
+                while( ( len = is.read( buf ) ) > 0 ) {
+                    os.write( buf, 0, len );
+                }
+            } finally {
+                is.close();
+            }
+        }
+
+        private void discard()
+        {
+            if( fileOut != null ) {
+                try {
+                    fileOut.close();
+                } catch( final IOException e ) {
+                    // ignore
+                }
+                file.delete();
+            }
+            memory = null;
+        }
+    }
 }
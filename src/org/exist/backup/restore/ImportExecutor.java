@@ -0,0 +1,305 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.backup.restore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.Database;
+import org.exist.backup.BackupDescriptor;
+import org.exist.backup.restore.listener.RestoreListener;
+import org.exist.collections.Collection;
+import org.exist.collections.CollectionConfigurationManager;
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
+import org.exist.storage.DBBroker;
+import org.exist.util.EXistInputSource;
+import org.exist.xmldb.XmldbURI;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+
+/**
+ * Restores the collections of a backup with a pool of worker threads. Every
+ * sub-collection found by a {@link SystemImportHandler} is submitted as a
+ * separate task, which uses its own broker. Collections are thus restored in
+ * parallel, while the resources of a single collection are still restored
+ * in the order of the backup descriptor.
+ *
+ * If indexing is deferred, the collection configuration of every restored
+ * collection is disabled while its resources are stored, so only the default
+ * indexes are updated. {@link #reindexDeferred(DBBroker)} enables the configuration
+ * again and reindexes the collections which have a configuration in one pass.
+ * Collections below /db/system are always indexed immediately.
+ *
+ * Note that restore handlers registered by plugins will see the events of
+ * several collections interleaved if more than one thread is used.
+ */
+public class ImportExecutor {
+
+    private final static Logger LOG = LogManager.getLogger(ImportExecutor.class);
+
+    private final static SAXParserFactory saxFactory = SAXParserFactory.newInstance();
+    static {
+        saxFactory.setNamespaceAware(true);
+        saxFactory.setValidating(false);
+    }
+
+    private final Database db;
+    private final Subject subject;
+    private final ExecutorService executor;
+    private final boolean deferIndexing;
+
+    private final Set<XmldbURI> deferredCollections = new TreeSet<>();
+
+    private int pending = 0;
+    private Throwable failure = null;
+
+    /**
+     * @param db the database
+     * @param subject the user account used by the worker threads
+     * @param threads the number of worker threads. If less than 2, all
+     *                collections are restored by the calling thread.
+     * @param deferIndexing true to defer building of configured indexes
+     */
+    public ImportExecutor(final Database db, final Subject subject, final int threads, final boolean deferIndexing) {
+        this.db = db;
+        this.subject = subject;
+        this.deferIndexing = deferIndexing;
+        if (threads > 1) {
+            final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ImportThreadFactory(db.getId()));
+            pool.allowCoreThreadTimeOut(true);
+            this.executor = pool;
+        } else {
+            this.executor = null;
+        }
+    }
+
+    public boolean isParallel() {
+        return executor != null;
+    }
+
+    public boolean isDeferIndexing() {
+        return deferIndexing;
+    }
+
+    /**
+     * Restore the collection described by the given descriptor. In parallel mode,
+     * the collection is restored asynchronously, otherwise it is restored by the
+     * calling thread, using the given broker.
+     */
+    public void restore(final DBBroker broker, final RestoreListener listener, final String dbBaseUri, final BackupDescriptor descriptor) throws SAXException {
+        if (executor == null) {
+            parse(broker, listener, dbBaseUri, descriptor);
+            return;
+        }
+        synchronized (this) {
+            pending++;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try (final DBBroker taskBroker = db.get(subject)) {
+                    if (!hasFailed()) {
+                        parse(taskBroker, listener, dbBaseUri, descriptor);
+                    }
+                } catch (final Throwable t) {
+                    LOG.error("Failed to restore " + descriptor.getSymbolicPath() + ": " + t.getMessage(), t);
+                    fail(t);
+                } finally {
+                    completed();
+                }
+            }
+        });
+    }
+
+    private void parse(final DBBroker broker, final RestoreListener listener, final String dbBaseUri, final BackupDescriptor descriptor) throws SAXException {
+        try {
+            final XMLReader reader = saxFactory.newSAXParser().getXMLReader();
+            final EXistInputSource is = descriptor.getInputSource();
+            is.setEncoding("UTF-8");
+            try {
+                reader.setContentHandler(new SystemImportHandler(broker, listener, dbBaseUri, descriptor, this));
+                reader.parse(is);
+            } finally {
+                is.close();
+            }
+        } catch (final SAXParseException e) {
+            throw new SAXException("Could not process collection: " + descriptor.getSymbolicPath(), e);
+        } catch (final ParserConfigurationException pce) {
+            throw new SAXException("Could not initalise SAXParser for processing collection: " + descriptor.getSymbolicPath(), pce);
+        } catch (final IOException ioe) {
+            throw new SAXException("Could not read collection for processing: " + ioe.getMessage(), ioe);
+        }
+    }
+
+    private synchronized boolean hasFailed() {
+        return failure != null;
+    }
+
+    private synchronized void fail(final Throwable t) {
+        if (failure == null) {
+            failure = t;
+        }
+    }
+
+    private synchronized void completed() {
+        pending--;
+        notifyAll();
+    }
+
+    /**
+     * Wait until all submitted collections have been restored.
+     *
+     * @throws SAXException if restoring one of the collections failed
+     */
+    public void await() throws SAXException {
+        if (executor == null) {
+            return;
+        }
+        synchronized (this) {
+            while (pending > 0) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SAXException("Interrupted while waiting for restore to complete", e);
+                }
+            }
+            if (failure != null) {
+                final Throwable t = failure;
+                failure = null;
+                if (t instanceof SAXException) {
+                    throw (SAXException) t;
+                }
+                throw new SAXException(t.getMessage(), t instanceof Exception ? (Exception) t : null);
+            }
+        }
+    }
+
+    /**
+     * Disable the collection configuration of the given collection until
+     * {@link #reindexDeferred(DBBroker)} is called.
+     */
+    void deferIndexing(final Collection collection) {
+        if (!deferIndexing || isDescendant(collection.getURI(), XmldbURI.SYSTEM_COLLECTION_URI)) {
+            return;
+        }
+        collection.setCollectionConfigEnabled(false);
+        synchronized (deferredCollections) {
+            deferredCollections.add(collection.getURI());
+        }
+    }
+
+    /**
+     * Enable the collection configuration of all collections restored with deferred
+     * indexing and reindex the topmost collections which have a configuration.
+     *
+     * @return the number of collections reindexed
+     */
+    public int reindexDeferred(final DBBroker broker) throws PermissionDeniedException {
+        final List<XmldbURI> reindex = new ArrayList<>();
+        synchronized (deferredCollections) {
+            for (final XmldbURI uri : deferredCollections) {
+                final Collection collection = broker.getCollection(uri);
+                if (collection == null) {
+                    continue;
+                }
+                collection.setCollectionConfigEnabled(true);
+                if (!isDescendant(uri, reindex) && hasConfiguration(broker, uri)) {
+                    reindex.add(uri);
+                }
+            }
+            deferredCollections.clear();
+        }
+        for (final XmldbURI uri : reindex) {
+            LOG.info("Building deferred indexes for collection " + uri);
+            broker.reindexCollection(uri);
+        }
+        return reindex.size();
+    }
+
+    /**
+     * Check if a configuration document exists for the collection or one of its ancestors.
+     */
+    private static boolean hasConfiguration(final DBBroker broker, XmldbURI uri) throws PermissionDeniedException {
+        while (uri != null && uri.numSegments() > 0) {
+            final XmldbURI configUri = CollectionConfigurationManager.CONFIG_COLLECTION_URI.append(uri)
+                .append(CollectionConfigurationManager.COLLECTION_CONFIG_FILENAME);
+            if (broker.getXMLResource(configUri) != null) {
+                return true;
+            }
+            uri = uri.removeLastSegment();
+        }
+        return false;
+    }
+
+    private static boolean isDescendant(final XmldbURI uri, final List<XmldbURI> ancestors) {
+        // collections are processed in sorted order, so ancestors come first
+        for (final XmldbURI ancestor : ancestors) {
+            if (isDescendant(uri, ancestor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isDescendant(final XmldbURI uri, final XmldbURI ancestor) {
+        return uri.equals(ancestor) || uri.toString().startsWith(ancestor.toString() + '/');
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class ImportThreadFactory implements ThreadFactory {
+
+        private final String instanceId;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private ImportThreadFactory(final String instanceId) {
+            this.instanceId = instanceId;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "db." + instanceId + ".import-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
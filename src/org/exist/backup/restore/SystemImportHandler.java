@@ -26,7 +26,6 @@ import java.io.IOException;
 import org.w3c.dom.DocumentType;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
-import org.xml.sax.SAXParseException;
 import org.xml.sax.helpers.DefaultHandler;
 import org.exist.Namespaces;
 import org.exist.collections.Collection;
@@ -50,10 +49,6 @@ import java.util.Date;
 import java.util.Observable;
 import java.util.Stack;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.backup.BackupDescriptor;
@@ -65,7 +60,6 @@ import org.exist.storage.DBBroker;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.txn.TransactionManager;
 import org.exist.storage.txn.Txn;
-import org.xml.sax.XMLReader;
 
 /**
  * Handler for parsing __contents.xml__ files during
@@ -77,11 +71,6 @@ import org.xml.sax.XMLReader;
 public class SystemImportHandler extends DefaultHandler {
     
     private final static Logger LOG = LogManager.getLogger(SystemImportHandler.class);
-    private final static SAXParserFactory saxFactory = SAXParserFactory.newInstance();
-    static {
-        saxFactory.setNamespaceAware(true);
-        saxFactory.setValidating(false);
-    }
     private static final int STRICT_URI_VERSION = 1;
     
     private DBBroker broker;
@@ -91,6 +80,7 @@ public class SystemImportHandler extends DefaultHandler {
     private final RestoreListener listener;
     private final String dbBaseUri;
     private final BackupDescriptor descriptor;
+    private final ImportExecutor executor;
     
     //handler state
     private int version = 0;
@@ -98,10 +88,15 @@ public class SystemImportHandler extends DefaultHandler {
     private Stack<DeferredPermission> deferredPermissions = new Stack<DeferredPermission>();
     
     public SystemImportHandler(DBBroker broker, RestoreListener listener, String dbBaseUri, BackupDescriptor descriptor) {
+        this(broker, listener, dbBaseUri, descriptor, new ImportExecutor(broker.getDatabase(), broker.getSubject(), 1, false));
+    }
+
+    public SystemImportHandler(DBBroker broker, RestoreListener listener, String dbBaseUri, BackupDescriptor descriptor, ImportExecutor executor) {
         this.broker = broker;
         this.listener = listener;
         this.dbBaseUri = dbBaseUri;
         this.descriptor = descriptor;
+        this.executor = executor;
         
         rh = broker.getDatabase().getPluginsManager().getRestoreHandler();
     }
@@ -219,6 +214,8 @@ public class SystemImportHandler extends DefaultHandler {
             if(currentCollection == null) {
                 throw new SAXException("Collection not found: " + collUri);
             }
+
+            executor.deferIndexing(currentCollection);
             
             final DeferredPermission deferredPermission;
             if(name.startsWith(XmldbURI.SYSTEM_COLLECTION)) {
@@ -256,27 +253,7 @@ public class SystemImportHandler extends DefaultHandler {
         //parse the sub-collection descriptor and restore
         final BackupDescriptor subDescriptor = descriptor.getChildBackupDescriptor(name);
         if(subDescriptor != null) {
-            
-            final SAXParser sax;
-            try { 
-                sax = saxFactory.newSAXParser();
-            
-                final XMLReader reader = sax.getXMLReader();
-
-                final EXistInputSource is = subDescriptor.getInputSource();
-                is.setEncoding( "UTF-8" );
-
-                final SystemImportHandler handler = new SystemImportHandler(broker, listener, dbBaseUri, subDescriptor);
-
-                reader.setContentHandler(handler);
-                reader.parse(is);
-            } catch(final SAXParseException e) {
-                throw new SAXException("Could not process collection: " + descriptor.getSymbolicPath(name, false), e);
-            } catch(final ParserConfigurationException pce) {
-                throw new SAXException("Could not initalise SAXParser for processing sub-collection: " + descriptor.getSymbolicPath(name, false), pce);
-            } catch(final IOException ioe) {
-                throw new SAXException("Could not read sub-collection for processing: " + ioe.getMessage(), ioe);
-            }
+            executor.restore(broker, listener, dbBaseUri, subDescriptor);
         } else {
             listener.error("Collection " + descriptor.getSymbolicPath(name, false) + " does not exist or is not readable.");
         }
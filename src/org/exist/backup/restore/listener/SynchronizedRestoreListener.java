@@ -0,0 +1,100 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.backup.restore.listener;
+
+import java.util.Observable;
+
+/**
+ * Serializes all calls to the wrapped listener, so it can be
+ * used by several restore threads.
+ */
+public class SynchronizedRestoreListener implements RestoreListener {
+
+    private final RestoreListener listener;
+
+    public SynchronizedRestoreListener(final RestoreListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public synchronized void createCollection(final String collection) {
+        listener.createCollection(collection);
+    }
+
+    @Override
+    public synchronized void restored(final String resource) {
+        listener.restored(resource);
+    }
+
+    @Override
+    public synchronized void info(final String message) {
+        listener.info(message);
+    }
+
+    @Override
+    public synchronized void warn(final String message) {
+        listener.warn(message);
+    }
+
+    @Override
+    public synchronized void error(final String message) {
+        listener.error(message);
+    }
+
+    @Override
+    public synchronized String warningsAndErrorsAsString() {
+        return listener.warningsAndErrorsAsString();
+    }
+
+    @Override
+    public synchronized boolean hasProblems() {
+        return listener.hasProblems();
+    }
+
+    @Override
+    public synchronized void setCurrentCollection(final String currentCollectionName) {
+        listener.setCurrentCollection(currentCollectionName);
+    }
+
+    @Override
+    public synchronized void setCurrentResource(final String currentResourceName) {
+        listener.setCurrentResource(currentResourceName);
+    }
+
+    @Override
+    public synchronized void restoreStarting() {
+        listener.restoreStarting();
+    }
+
+    @Override
+    public synchronized void restoreFinished() {
+        listener.restoreFinished();
+    }
+
+    @Override
+    public synchronized void observe(final Observable observable) {
+        listener.observe(observable);
+    }
+
+    @Override
+    public synchronized void setCurrentBackup(final String currentBackup) {
+        listener.setCurrentBackup(currentBackup);
+    }
+}
@@ -31,10 +31,9 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.io.input.CloseShieldInputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -88,8 +87,8 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
 
     private final static int SHALLOW_SIZE = 550;
 
-    private final static int DOCUMENT_SIZE = 450;
-    
+    private final static int SUB_COLLECTION_SIZE = 64;
+
     private final static Logger LOG = LogManager.getLogger(Collection.class);
     
     public final static int UNKNOWN_COLLECTION_ID = -1;
@@ -98,7 +97,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
     private int collectionId = UNKNOWN_COLLECTION_ID;
     
     // the documents contained in this collection
-    private Map<String, DocumentImpl> documents = new TreeMap<String, DocumentImpl>();
+    private final DocumentIndex documents = new DocumentIndex(this);
     
     // the path of this collection
     private XmldbURI path;
@@ -131,6 +130,12 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
 
     private Permission permissions;
 
+    // source of the version stamps of all collection instances
+    private final static AtomicLong versionCounter = new AtomicLong();
+
+    // changes whenever documents, sub-collections or permissions are modified
+    private volatile long version = versionCounter.incrementAndGet();
+
     public Collection(final DBBroker broker, final XmldbURI path) {
         //The permissions assigned to this collection
         permissions = PermissionFactory.getDefaultCollectionPermission();
@@ -166,6 +171,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
         final XmldbURI childName = child.getURI().lastSegment();
         if(!subCollections.contains(childName)) {
             subCollections.add(childName);
+            modified();
         }
         if(isNew) {
             child.setCreationTime(System.currentTimeMillis());
@@ -270,7 +276,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
             entry.readMetadata(broker);
             list.add(entry);
         }
-        for(final DocumentImpl document : documents.values()) {
+        for(final DocumentImpl document : documents.getAll(broker)) {
             final CollectionEntry entry = new DocumentEntry(document);
             entry.readMetadata(broker);
             list.add(entry);
@@ -292,7 +298,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
         if(!getPermissionsNoLock().validate(broker.getSubject(), Permission.READ)) {
             throw new PermissionDeniedException("Permission denied to read collection: " + path);
         }
-        final CollectionEntry entry = new DocumentEntry(documents.get(name));
+        final CollectionEntry entry = new DocumentEntry(documents.get(broker, name));
         entry.readMetadata(broker);
         return entry;
     }
@@ -324,6 +330,25 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
         final XmldbURI childName = child.getURI().lastSegment();
         subCollections.remove(childName);
         subCollections.add(childName);
+        modified();
+    }
+
+    /**
+     * Returns a version stamp of this collection. The stamp changes whenever
+     * documents or sub-collections are added or removed, or the permissions of
+     * the collection or one of its documents are stored. Stamps are unique
+     * across collection instances, so a collection reloaded from storage never
+     * has the version of a previous instance.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Mark this collection as modified, see {@link #getVersion()}.
+     */
+    public void modified() {
+        version = versionCounter.incrementAndGet();
     }
 
     /**
@@ -363,7 +388,8 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
                 return;
             }
         }
-        documents.put(doc.getFileURI().getRawCollectionPath(), doc);
+        documents.put(doc);
+        modified();
     }
 
     /**
@@ -377,6 +403,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
             throw new PermissionDeniedException("Permission denied to remove document from collection: " + path);
         }
         documents.remove(doc.getFileURI().getRawCollectionPath());
+        modified();
     }
 
     /**
@@ -591,7 +618,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
     }
 
     private void addDocumentsToSet(final DBBroker broker, final MutableDocumentSet docs, final LockedDocumentMap lockMap, final int lockType) throws LockException {
-    	for(final DocumentImpl doc : documents.values()) {
+    	for(final DocumentImpl doc : documents.getAll(broker)) {
             if(doc.getPermissions().validate(broker.getSubject(), Permission.WRITE)) {
                 doc.getUpdateLock().acquire(Lock.WRITE_LOCK);
 
@@ -602,7 +629,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
     }
     
     private void addDocumentsToSet(final DBBroker broker, final MutableDocumentSet docs) {
-    	for(final DocumentImpl doc : documents.values()) {
+    	for(final DocumentImpl doc : documents.getAll(broker)) {
             if(doc.getPermissions().validate(broker.getSubject(), Permission.READ)) {
                 docs.add(doc);
             }
@@ -632,12 +659,8 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
         if (getURI().startsWith(CollectionConfigurationManager.ROOT_COLLECTION_CONFIG_URI)) {
             return false;
         }
-        for(final DocumentImpl doc : documents.values()) {
-            if(doc.isLockedForWrite()) {
-                return false;
-            }
-        }
-        return true;
+        // documents which are not loaded can not be locked
+        return !documents.hasDocumentLockedForWrite();
         //try {
             //lock.acquire(Lock.WRITE_LOCK);
             //for (Iterator i = documents.values().iterator(); i.hasNext(); ) {
@@ -683,7 +706,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
      * @return estimated amount of memory in bytes
      */
     public int getMemorySize() {
-        return SHALLOW_SIZE + documents.size() * DOCUMENT_SIZE;
+        return SHALLOW_SIZE + subCollections.size() * SUB_COLLECTION_SIZE + documents.getMemorySize();
     }
 
     /**
@@ -741,7 +764,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
     public DocumentImpl getDocument(final DBBroker broker, final XmldbURI path) throws PermissionDeniedException {
         try {
             getLock().acquire(Lock.READ_LOCK);
-            final DocumentImpl doc = documents.get(path.getRawCollectionPath());
+            final DocumentImpl doc = documents.get(broker, path.getRawCollectionPath());
             if(doc != null){
                 if(!doc.getPermissions().validate(broker.getSubject(), Permission.READ)) {
                     throw new PermissionDeniedException("Permission denied to read document: " + path.toString());
@@ -787,7 +810,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
     public DocumentImpl getDocumentWithLock(final DBBroker broker, final XmldbURI uri, final int lockMode) throws LockException, PermissionDeniedException {
         try {
             getLock().acquire(Lock.READ_LOCK);
-            final DocumentImpl doc = documents.get(uri.getRawCollectionPath());
+            final DocumentImpl doc = documents.get(broker, uri.getRawCollectionPath());
             
             if(doc != null) {
                 if(!doc.getPermissions().validate(broker.getSubject(), Permission.READ)) {
@@ -802,7 +825,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
     }
 
     public DocumentImpl getDocumentNoLock(final DBBroker broker, final String rawPath) throws PermissionDeniedException {
-        final DocumentImpl doc = documents.get(rawPath);
+        final DocumentImpl doc = documents.get(broker, rawPath);
         if(doc != null) {
             if(!doc.getPermissions().validate(broker.getSubject(), Permission.READ)) {
                 throw new PermissionDeniedException("Permission denied to read document: " + rawPath);
@@ -925,7 +948,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
             throw new PermissionDeniedException("Permission denied to read collection: " + path);
         }
         
-        return documents.containsKey(uri.getRawCollectionPath());
+        return documents.contains(uri.getRawCollectionPath());
     }
 
     /**
@@ -1000,6 +1023,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
     
     public interface InternalAccess {
         public void addDocument(DocumentImpl doc) throws EXistException;
+        public void addDocumentEntry(String name, int docId, byte resourceType) throws EXistException;
         public int getId();
     }
     
@@ -1028,18 +1052,23 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
             throw new PermissionDeniedException("Permission denied to open the Collection " + path);
         }
         
+        // only the names are read, the documents are loaded on demand
         final Collection col = this;
-        broker.getCollectionResources(new InternalAccess() {
+        documents.clear();
+        broker.getCollectionResourceEntries(new InternalAccess() {
             @Override
             public void addDocument(final DocumentImpl doc) throws EXistException {
-                doc.setCollection(col);
-                
-                if(doc.getDocId() == DocumentImpl.UNKNOWN_DOCUMENT_ID) {
-                    LOG.error("Document must have ID. ["+doc+"]");
+                addDocumentEntry(doc.getFileURI().getRawCollectionPath(), doc.getDocId(), doc.getResourceType());
+            }
+
+            @Override
+            public void addDocumentEntry(final String name, final int docId, final byte resourceType) throws EXistException {
+                if(docId == DocumentImpl.UNKNOWN_DOCUMENT_ID) {
+                    LOG.error("Document must have ID. [" + name + "]");
                     throw new EXistException("Document must have ID.");
                 }
-                
-                documents.put(doc.getFileURI().getRawCollectionPath(), doc);
+
+                documents.append(name, docId, resourceType);
             }
 
             @Override
@@ -1047,6 +1076,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
                 return col.getId();
             }
         });
+        documents.sort();
     }
 
     /**
@@ -1062,6 +1092,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
         try {
             getLock().acquire(Lock.WRITE_LOCK);
             subCollections.remove(name);
+            modified();
         } finally {
             getLock().release(Lock.WRITE_LOCK);
         }
@@ -1088,7 +1119,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
 
             getLock().acquire(Lock.WRITE_LOCK);
             
-            doc = documents.get(docUri.getRawCollectionPath());
+            doc = documents.get(broker, docUri.getRawCollectionPath());
             
             if (doc == null) {
                 return; //TODO should throw an exception!!! Otherwise we dont know if the document was removed
@@ -1113,6 +1144,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
             
             broker.removeXMLResource(transaction, doc);
             documents.remove(docUri.getRawCollectionPath());
+            modified();
             
             trigger.afterDeleteDocument(broker, transaction, getURI().append(docUri));
             
@@ -1179,6 +1211,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
             }
             
             documents.remove(doc.getFileURI().getRawCollectionPath());
+            modified();
             
             trigger.afterDeleteDocument(broker, transaction, doc.getURI());
 
@@ -1601,7 +1634,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
             getLock().acquire(Lock.WRITE_LOCK);   
             
             DocumentImpl document = new DocumentImpl((BrokerPool) db, this, docUri);
-            oldDoc = documents.get(docUri.getRawCollectionPath());
+            oldDoc = documents.get(broker, docUri.getRawCollectionPath());
             checkPermissionsForAddDocument(broker, oldDoc);
             checkCollectionConflict(docUri);
             manageDocumentInformation(oldDoc, document);
@@ -1648,6 +1681,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
                     //TODO : use a more elaborated method ? No triggers...
                     broker.removeBinaryResource(transaction, (BinaryDocument) oldDoc);
                     documents.remove(oldDoc.getFileURI().getRawCollectionPath());
+                    modified();
                     //This lock is released in storeXMLInternal()
                     //TODO : check that we go until there to ensure the lock is released
 //                    if (transaction != null)
@@ -1941,6 +1975,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
         try {
             getLock().acquire(Lock.WRITE_LOCK);
             permissions.setMode(mode);
+            modified();
         } finally {
             getLock().release(Lock.WRITE_LOCK);
         }
@@ -1951,6 +1986,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
         try {
             getLock().acquire(Lock.WRITE_LOCK);
             permissions.setMode(mode);
+            modified();
         } finally {
             getLock().release(Lock.WRITE_LOCK);
         }
@@ -1969,6 +2005,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
         try {
             getLock().acquire(Lock.WRITE_LOCK);
             this.permissions = permissions;
+            modified();
         } finally {
             getLock().release(Lock.WRITE_LOCK);
         }
@@ -2221,11 +2258,12 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
         final StringBuilder buf = new StringBuilder();
         buf.append( getURI() );
         buf.append("[");
-        for(final Iterator<String> i = documents.keySet().iterator(); i.hasNext(); ) {
-            buf.append(i.next());
-            if(i.hasNext()) {
+        final String[] names = documents.getNames();
+        for(int i = 0; i < names.length; i++) {
+            if(i > 0) {
                 buf.append(", ");
             }
+            buf.append(names[i]);
         }
         buf.append("]");
         return buf.toString();
@@ -19,7 +19,11 @@
  */
 package org.exist.collections;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 
 import org.exist.storage.BrokerPool;
 import org.exist.storage.CacheManager;
@@ -35,6 +39,13 @@ import org.exist.xmldb.XmldbURI;
  * cache is owned by {@link org.exist.storage.index.CollectionStore}. It is not
  * synchronized. Thus a lock should be obtained on the collection store before
  * accessing the cache.
+ *
+ * Besides the number of collections, the cache limits the estimated memory
+ * used by the cached collections (see {@link Collection#getMemorySize()}).
+ * The size of a collection is estimated when it is loaded into the cache and
+ * again whenever it is modified (see {@link #update(Collection)}). Adding a
+ * collection which is already cached only marks it as recently used.
+ * Pinned collections are never removed.
  * 
  * @author wolf
  */
@@ -43,6 +54,19 @@ public class CollectionCache extends LRUCache {
     private Object2LongHashMap names;
     private BrokerPool pool;
 
+    /** maximum estimated memory of all collections in bytes, 0 if unlimited */
+    private long maxSize = 0;
+    private long currentSize = 0;
+    private final Map<Long, Integer> sizes = new HashMap<>();
+
+    private Set<String> pinned = new HashSet<>();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long loads = 0;
+    private long loadTime = 0;
+
     public CollectionCache(BrokerPool pool, int blockBuffers, double growthThreshold) {
         super(blockBuffers, 2.0, 0.000001, CacheManager.DATA_CACHE);
         this.names = new Object2LongHashMap(blockBuffers);
@@ -50,38 +74,145 @@ public class CollectionCache extends LRUCache {
         setFileName("collection cache");
     }
 
+    /**
+     * Set the maximum estimated memory used by all collections.
+     *
+     * @param maxSize size in bytes, 0 for no limit
+     */
+    public void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Pin the given collections: once cached, they are never removed.
+     */
+    public void setPinned(Iterable<XmldbURI> collections) {
+        final Set<String> newPinned = new HashSet<>();
+        for (final XmldbURI uri : collections) {
+            newPinned.add(uri.toCollectionPathURI().getRawCollectionPath());
+        }
+        this.pinned = newPinned;
+    }
+
+    public boolean isPinned(Collection collection) {
+        return pinned.contains(collection.getURI().getRawCollectionPath());
+    }
+
+    public String[] getPinned() {
+        return pinned.toArray(new String[pinned.size()]);
+    }
+
     public void add(Collection collection) {
         add(collection, 1);
     }
 
     public void add(Collection collection, int initialRefCount) {
-        super.add(collection, initialRefCount);
         final String name = collection.getURI().getRawCollectionPath();
+        if (map.get(collection.getKey()) != null) {
+            // already cached: mark as most recently used
+            map.put(collection.getKey(), collection);
+            names.put(name, collection.getKey());
+            return;
+        }
+        super.add(collection, initialRefCount);
         names.put(name, collection.getKey());
+        updateSize(collection);
+        evictOversized(collection);
+    }
+
+    /**
+     * Add a collection which has been modified or, if it is cached already,
+     * estimate its memory size again.
+     */
+    public void update(Collection collection) {
+        if (map.get(collection.getKey()) == null) {
+            add(collection);
+            return;
+        }
+        map.put(collection.getKey(), collection);
+        names.put(collection.getURI().getRawCollectionPath(), collection.getKey());
+        updateSize(collection);
+        evictOversized(collection);
+    }
+
+    private void evictOversized(Collection collection) {
+        if (maxSize > 0) {
+            while (currentSize > maxSize && map.size() > 1) {
+                if (!evictOne(collection)) {
+                    break;
+                }
+            }
+        }
     }
 
     public Collection get(Collection collection) {
         return (Collection) get(collection.getKey());
     }
 
+    /**
+     * Get a cached collection without recording a hit or miss
+     * and without marking it as recently used.
+     *
+     * @return the collection or null if it is not cached
+     */
+    public Collection peek(XmldbURI name) {
+        final long key = names.get(name.getRawCollectionPath());
+        if (key < 0) {
+            return null;
+        }
+        return (Collection) map.get(key);
+    }
+
     public Collection get(XmldbURI name) {
         final long key = names.get(name.getRawCollectionPath());
         if (key < 0) {
+            misses++;
             return null;
         }
-        return (Collection) get(key);
+        final Collection collection = (Collection) get(key);
+        if (collection == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return collection;
+    }
+
+    /**
+     * Record the time spent reading a collection which was not cached.
+     *
+     * @param nanos the time in nanoseconds
+     */
+    public void recordLoad(long nanos) {
+        loads++;
+        loadTime += nanos;
     }
 
     /**
      * Overwritten to lock collections before they are removed.
      */
     protected void removeOne(Cacheable item) {
-        boolean removed = false;
+        if (!evictOne(item)) {
+            LOG.info("Unable to remove entry");
+        }
+        cacheManager.requestMem(this);
+    }
+
+    /**
+     * Remove the least recently used collection which is neither pinned,
+     * nor locked, nor the given item.
+     *
+     * @return false if no collection could be removed
+     */
+    private boolean evictOne(Cacheable item) {
         SequencedLongHashMap.Entry<Cacheable> next = map.getFirstEntry();
-        int tries = 0;
-        do {
+        while (next != null) {
             final Cacheable cached = next.getValue();
-            if(cached.getKey() != item.getKey()) {
+            if(cached.getKey() != item.getKey() && !isPinned((Collection) cached)) {
                 final Collection old = (Collection) cached;
                 final Lock lock = old.getLock();
                 if (lock.attempt(Lock.READ_LOCK)) {
@@ -93,35 +224,75 @@ public class CollectionCache extends LRUCache {
                             names.remove(old.getURI().getRawCollectionPath());
                             cached.sync(true);
                             map.remove(cached.getKey());
-                            removed = true;
+                            removeSize(cached.getKey());
+                            evictions++;
+                            return true;
                         }
                     } finally {
                         lock.release(Lock.READ_LOCK);
                     }
                 }
             }
-            if (!removed) {
-                next = next.getNext();
-                if (next == null && tries < 2) {
-                    next = map.getFirstEntry();
-                    tries++;
-                } else {
-                    LOG.info("Unable to remove entry");
-                    removed = true;
-                }
-            }
-        } while(!removed);
-        cacheManager.requestMem(this);
+            next = next.getNext();
+        }
+        return false;
     }
 
     public void remove(Cacheable item) {
         final Collection col = (Collection) item;
         super.remove(item);
         names.remove(col.getURI().getRawCollectionPath());
+        removeSize(item.getKey());
         if(pool.getConfigurationManager() != null) // might be null during db initialization
            {pool.getConfigurationManager().invalidate(col.getURI(), null);}
     }
 
+    private void updateSize(Collection collection) {
+        final int size = collection.getMemorySize();
+        final Integer old = sizes.put(collection.getKey(), size);
+        currentSize += size - (old == null ? 0 : old);
+    }
+
+    private void removeSize(long key) {
+        final Integer old = sizes.remove(key);
+        if (old != null) {
+            currentSize -= old;
+        }
+    }
+
+    /**
+     * Return the estimated in-memory size of all collections as recorded
+     * when they were loaded or last modified.
+     *
+     * @return in-memory size in bytes.
+     */
+    public long getCurrentSize() {
+        return currentSize;
+    }
+
+    public long getHitCount() {
+        return hits;
+    }
+
+    public long getMissCount() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getLoads() {
+        return loads;
+    }
+
+    /**
+     * @return total time spent reading collections which were not cached, in nanoseconds
+     */
+    public long getLoadTime() {
+        return loadTime;
+    }
+
     /**
      * Compute and return the in-memory size of all collections
      * currently contained in this cache.
@@ -139,7 +310,6 @@ public class CollectionCache extends LRUCache {
         }
         return size;
     }
-
     public void resize(int newSize) {
         if (newSize < max) {
             shrink(newSize);
@@ -167,5 +337,7 @@ public class CollectionCache extends LRUCache {
     protected void shrink(int newSize) {
         super.shrink(newSize);
         names = new Object2LongHashMap(newSize);
+        sizes.clear();
+        currentSize = 0;
     }
 }
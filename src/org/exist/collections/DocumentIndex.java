@@ -0,0 +1,328 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.collections;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.exist.EXistException;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.storage.DBBroker;
+
+/**
+ * The documents contained in a {@link Collection}, sorted by name.
+ *
+ * When a collection is read, only the name, id and resource type of each
+ * document is kept in a set of parallel arrays. The {@link DocumentImpl}
+ * objects are loaded from collections.dbx when they are first accessed and
+ * are afterwards only softly referenced, so the garbage collector may
+ * reclaim them for large collections. Documents added to the collection
+ * after it was read are strongly referenced, as they may not have been
+ * written to disk yet.
+ *
+ * A document is only loaded again after the previous instance has been
+ * reclaimed, i.e. while nobody holds a reference or lock on it.
+ *
+ * All methods are thread safe; documents are loaded without holding the
+ * monitor of the index.
+ */
+final class DocumentIndex {
+
+    /** Estimated memory used by an entry which is not loaded */
+    private final static int ENTRY_SIZE = 64;
+
+    /** Estimated memory used by a loaded document */
+    private final static int DOCUMENT_SIZE = 450;
+
+    /** Missing documents above which all documents are loaded by a single scan */
+    private final static int SCAN_THRESHOLD = 16;
+
+    private final Collection collection;
+
+    private String[] names = new String[8];
+    private int[] docIds = new int[8];
+    private byte[] types = new byte[8];
+    /** the DocumentImpl, a SoftReference to it or null */
+    private Object[] docs = new Object[8];
+    private int size = 0;
+    /** number of entries referencing a document, whether or not it has been reclaimed since */
+    private int loaded = 0;
+
+    DocumentIndex(final Collection collection) {
+        this.collection = collection;
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    synchronized boolean contains(final String name) {
+        return indexOf(name) >= 0;
+    }
+
+    /**
+     * @return the names of all documents in sorted order
+     */
+    synchronized String[] getNames() {
+        return Arrays.copyOf(names, size);
+    }
+
+    /**
+     * Add or replace a document. The document is strongly referenced.
+     */
+    synchronized void put(final DocumentImpl doc) {
+        final String name = doc.getFileURI().getRawCollectionPath();
+        int idx = indexOf(name);
+        if (idx < 0) {
+            idx = -(idx + 1);
+            ensureCapacity(size + 1);
+            System.arraycopy(names, idx, names, idx + 1, size - idx);
+            System.arraycopy(docIds, idx, docIds, idx + 1, size - idx);
+            System.arraycopy(types, idx, types, idx + 1, size - idx);
+            System.arraycopy(docs, idx, docs, idx + 1, size - idx);
+            size++;
+        }
+        if (docs[idx] == null) {
+            loaded++;
+        }
+        names[idx] = name;
+        docIds[idx] = doc.getDocId();
+        types[idx] = doc.getResourceType();
+        docs[idx] = doc;
+    }
+
+    synchronized void remove(final String name) {
+        final int idx = indexOf(name);
+        if (idx < 0) {
+            return;
+        }
+        if (docs[idx] != null) {
+            loaded--;
+        }
+        final int moved = size - idx - 1;
+        System.arraycopy(names, idx + 1, names, idx, moved);
+        System.arraycopy(docIds, idx + 1, docIds, idx, moved);
+        System.arraycopy(types, idx + 1, types, idx, moved);
+        System.arraycopy(docs, idx + 1, docs, idx, moved);
+        size--;
+        names[size] = null;
+        docs[size] = null;
+    }
+
+    synchronized void clear() {
+        names = new String[8];
+        docIds = new int[8];
+        types = new byte[8];
+        docs = new Object[8];
+        size = 0;
+        loaded = 0;
+    }
+
+    /**
+     * Append an entry read from disk without loading the document.
+     * {@link #sort()} has to be called after all entries have been appended.
+     */
+    synchronized void append(final String name, final int docId, final byte type) {
+        ensureCapacity(size + 1);
+        names[size] = name;
+        docIds[size] = docId;
+        types[size] = type;
+        docs[size] = null;
+        size++;
+    }
+
+    /**
+     * Sort the entries appended by {@link #append(String, int, byte)}.
+     */
+    synchronized void sort() {
+        final Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        final String[] unsorted = names;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer o1, final Integer o2) {
+                return unsorted[o1].compareTo(unsorted[o2]);
+            }
+        });
+        final String[] sortedNames = new String[names.length];
+        final int[] sortedDocIds = new int[names.length];
+        final byte[] sortedTypes = new byte[names.length];
+        final Object[] sortedDocs = new Object[names.length];
+        for (int i = 0; i < size; i++) {
+            sortedNames[i] = names[order[i]];
+            sortedDocIds[i] = docIds[order[i]];
+            sortedTypes[i] = types[order[i]];
+            sortedDocs[i] = docs[order[i]];
+        }
+        names = sortedNames;
+        docIds = sortedDocIds;
+        types = sortedTypes;
+        docs = sortedDocs;
+    }
+
+    /**
+     * Get the document with the given name, loading it if necessary.
+     *
+     * @return the document or null if there is no such document
+     */
+    DocumentImpl get(final DBBroker broker, final String name) {
+        final int docId;
+        final byte type;
+        synchronized (this) {
+            final int idx = indexOf(name);
+            if (idx < 0) {
+                return null;
+            }
+            final DocumentImpl doc = getLoaded(idx);
+            if (doc != null) {
+                return doc;
+            }
+            docId = docIds[idx];
+            type = types[idx];
+        }
+        final DocumentImpl doc = broker.loadCollectionResource(collection.getId(), type, docId);
+        if (doc == null) {
+            return null;
+        }
+        doc.setCollection(collection);
+        return install(doc);
+    }
+
+    /**
+     * Get all documents in name order, loading them if necessary.
+     */
+    List<DocumentImpl> getAll(final DBBroker broker) {
+        int missing = 0;
+        synchronized (this) {
+            for (int i = 0; i < size; i++) {
+                if (getLoaded(i) == null) {
+                    missing++;
+                }
+            }
+        }
+        if (missing > SCAN_THRESHOLD) {
+            broker.getCollectionResources(new Collection.InternalAccess() {
+                @Override
+                public void addDocument(final DocumentImpl doc) throws EXistException {
+                    doc.setCollection(collection);
+                    install(doc);
+                }
+
+                @Override
+                public void addDocumentEntry(final String name, final int docId, final byte type) {
+                    // not used
+                }
+
+                @Override
+                public int getId() {
+                    return collection.getId();
+                }
+            });
+        }
+
+        final List<DocumentImpl> result = new ArrayList<>(size());
+        for (final String name : getNames()) {
+            final DocumentImpl doc = get(broker, name);
+            if (doc != null) {
+                result.add(doc);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if one of the loaded documents is locked for write
+     */
+    synchronized boolean hasDocumentLockedForWrite() {
+        for (int i = 0; i < size; i++) {
+            final DocumentImpl doc = getLoaded(i);
+            if (doc != null && doc.isLockedForWrite()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the estimated amount of memory used by the index and the loaded
+     * documents. The number of loaded documents is maintained when documents are
+     * added, loaded or removed, so documents reclaimed by the garbage collector
+     * since are still counted.
+     *
+     * @return the estimated amount of memory in bytes
+     */
+    synchronized int getMemorySize() {
+        return size * ENTRY_SIZE + loaded * DOCUMENT_SIZE;
+    }
+
+    /**
+     * Register a document read from disk, unless the entry has been removed
+     * or another instance has been registered in the meantime.
+     *
+     * @return the registered instance
+     */
+    private synchronized DocumentImpl install(final DocumentImpl doc) {
+        final int idx = indexOf(doc.getFileURI().getRawCollectionPath());
+        if (idx < 0 || docIds[idx] != doc.getDocId()) {
+            return doc;
+        }
+        final DocumentImpl current = getLoaded(idx);
+        if (current != null) {
+            return current;
+        }
+        if (docs[idx] == null) {
+            loaded++;
+        }
+        docs[idx] = new SoftReference<>(doc);
+        return doc;
+    }
+
+    @SuppressWarnings("unchecked")
+    private DocumentImpl getLoaded(final int idx) {
+        final Object doc = docs[idx];
+        if (doc instanceof SoftReference) {
+            return ((SoftReference<DocumentImpl>) doc).get();
+        }
+        return (DocumentImpl) doc;
+    }
+
+    private int indexOf(final String name) {
+        return Arrays.binarySearch(names, 0, size, name);
+    }
+
+    private void ensureCapacity(final int capacity) {
+        if (capacity > names.length) {
+            final int newLength = Math.max(capacity, names.length * 3 / 2);
+            names = Arrays.copyOf(names, newLength);
+            docIds = Arrays.copyOf(docIds, newLength);
+            types = Arrays.copyOf(types, newLength);
+            docs = Arrays.copyOf(docs, newLength);
+        }
+    }
+}
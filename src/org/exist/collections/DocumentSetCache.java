@@ -0,0 +1,241 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.collections;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.persistent.DefaultDocumentSet;
+import org.exist.dom.persistent.DocumentSet;
+import org.exist.dom.persistent.MutableDocumentSet;
+import org.exist.security.Permission;
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+
+/**
+ * Caches the set of documents contained in a collection (and optionally its
+ * descendants) as seen by a given user, as used by fn:collection().
+ *
+ * Every entry records the {@link Collection#getVersion() version} of each
+ * collection visited while the set was built. An entry is only returned if all
+ * those collections are still in the collection cache with the same version, so
+ * adding or removing documents or sub-collections or changing permissions
+ * invalidates all sets depending on the modified collection. Sets are keyed by
+ * the user and its groups, as documents the user may not read are excluded.
+ *
+ * The returned sets are shared and must not be modified.
+ *
+ * The cache is disabled by default. It is enabled by setting the attribute
+ * <code>document-set-cache-size</code> (number of entries) on the
+ * <code>xquery</code> element in conf.xml.
+ */
+public class DocumentSetCache {
+
+    private final static Logger LOG = LogManager.getLogger(DocumentSetCache.class);
+
+    public static final String CACHE_SIZE_ATTRIBUTE = "document-set-cache-size";
+    public static final String PROPERTY_CACHE_SIZE = "xquery.document-set-cache-size";
+
+    private final int maxEntries;
+    private final LinkedHashMap<Key, CachedSet> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    public DocumentSetCache(final Configuration conf) {
+        final Integer size = (Integer) conf.getProperty(PROPERTY_CACHE_SIZE);
+        this.maxEntries = size == null ? 0 : size;
+        this.entries = new LinkedHashMap<Key, CachedSet>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, CachedSet> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        if (isEnabled()) {
+            LOG.info("Document set cache: " + maxEntries + " entries");
+        }
+    }
+
+    /**
+     * @return true if a cache size has been configured
+     */
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Returns the documents contained in the given collection, which the user of the
+     * broker may read. The set is served from the cache if none of the collections
+     * it depends on has been modified.
+     *
+     * @param broker the broker
+     * @param collection the collection
+     * @param recursive true to include the documents of all descendant collections
+     *
+     * @return the set of documents, which must not be modified
+     */
+    public DocumentSet getDocuments(final DBBroker broker, final Collection collection, final boolean recursive) {
+        final Key key = new Key(collection.getURI(), recursive, broker.getSubject());
+        final CachedSet cached;
+        synchronized (this) {
+            cached = entries.get(key);
+        }
+        if (cached != null && isValid(broker, cached)) {
+            synchronized (this) {
+                hits++;
+            }
+            return cached.docs;
+        }
+
+        final MutableDocumentSet docs = new DefaultDocumentSet();
+        final List<Dependency> dependencies = new ArrayList<>();
+        collect(broker, collection, recursive, docs, dependencies);
+
+        synchronized (this) {
+            misses++;
+            entries.put(key, new CachedSet(docs, dependencies));
+        }
+        return docs;
+    }
+
+    /**
+     * Collect the documents like {@link Collection#allDocs(DBBroker, MutableDocumentSet, boolean)},
+     * recording the version of every visited collection before reading it.
+     */
+    private void collect(final DBBroker broker, final Collection collection, final boolean recursive,
+            final MutableDocumentSet docs, final List<Dependency> dependencies) {
+        dependencies.add(new Dependency(collection.getURI(), collection.getVersion()));
+        try {
+            collection.allDocs(broker, docs, false);
+        } catch (final PermissionDeniedException e) {
+            // not readable: skip
+        }
+        if (!recursive || !collection.getPermissionsNoLock().validate(broker.getSubject(), Permission.READ)) {
+            return;
+        }
+        try {
+            for (final Iterator<XmldbURI> i = collection.collectionIteratorNoLock(broker); i.hasNext(); ) {
+                final XmldbURI childName = i.next();
+                try {
+                    final Collection child = broker.openCollection(collection.getURI().appendInternal(childName), Lock.NO_LOCK);
+                    //A collection may have been removed in the meantime, so check first
+                    if (child != null) {
+                        collect(broker, child, recursive, docs, dependencies);
+                    }
+                } catch (final PermissionDeniedException e) {
+                    //SKIP to next collection
+                }
+            }
+        } catch (final PermissionDeniedException e) {
+            // not readable: skip
+        }
+    }
+
+    private boolean isValid(final DBBroker broker, final CachedSet entry) {
+        final CollectionCache collectionsCache = broker.getBrokerPool().getCollectionsCache();
+        synchronized (collectionsCache) {
+            for (final Dependency dependency : entry.dependencies) {
+                final Collection collection = collectionsCache.peek(dependency.uri);
+                if (collection == null || collection.getVersion() != dependency.version) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private final static class Key {
+
+        private final XmldbURI uri;
+        private final boolean recursive;
+        private final int userId;
+        private final int[] groupIds;
+
+        private Key(final XmldbURI uri, final boolean recursive, final Subject subject) {
+            this.uri = uri;
+            this.recursive = recursive;
+            this.userId = subject.getId();
+            this.groupIds = subject.getGroupIds();
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return recursive == other.recursive && userId == other.userId &&
+                uri.equals(other.uri) && Arrays.equals(groupIds, other.groupIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return uri.hashCode() * 31 + userId + (recursive ? 1 : 0);
+        }
+    }
+
+    private final static class Dependency {
+
+        private final XmldbURI uri;
+        private final long version;
+
+        private Dependency(final XmldbURI uri, final long version) {
+            this.uri = uri;
+            this.version = version;
+        }
+    }
+
+    private final static class CachedSet {
+
+        private final DocumentSet docs;
+        private final List<Dependency> dependencies;
+
+        private CachedSet(final DocumentSet docs, final List<Dependency> dependencies) {
+            this.docs = docs;
+            this.dependencies = dependencies;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.collections.triggers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.security.Subject;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Executes trigger events outside of the thread and transaction which caused them.
+ * Used by triggers configured for asynchronous execution, e.g. {@link XQueryTrigger}
+ * with the parameter <code>async</code> set to <code>yes</code>.
+ *
+ * Events are queued in a bounded queue and processed by a small pool of worker threads.
+ * Each event is executed with its own broker, running as the user who caused the event.
+ * If the queue is full, {@link #submit(Subject, String, Task)} returns false and the caller
+ * is expected to process the event synchronously.
+ *
+ * Events caused within a transaction are submitted with {@link #submit(Txn, Subject, String, Task)}.
+ * All events of a transaction are collected in one batch, which takes a single place in the
+ * queue once the transaction has been committed and is dropped if the transaction is aborted.
+ * The events of a batch are executed one after the other. A batch which does not fit into the
+ * queue when its transaction commits is passed to a single overflow thread.
+ *
+ * The queue is held in memory only: pending events are processed when the database shuts
+ * down, but are lost if the database crashes. Events which are still pending when the
+ * shutdown times out are logged one by one.
+ */
+public class AsyncTriggerExecutor {
+
+    private final static Logger LOG = LogManager.getLogger(AsyncTriggerExecutor.class);
+
+    public final static int DEFAULT_THREADS = 2;
+    public final static int DEFAULT_QUEUE_SIZE = 1024;
+
+    /** Maximum time to wait for pending events on shutdown */
+    public final static long SHUTDOWN_WAIT = 60000;
+
+    /**
+     * A trigger event to be executed asynchronously.
+     */
+    @FunctionalInterface
+    public interface Task {
+        void execute(DBBroker broker) throws TriggerException;
+    }
+
+    private final BrokerPool pool;
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor overflow;
+    private final Map<Txn, Batch> batches = new ConcurrentHashMap<>();
+
+    public AsyncTriggerExecutor(final BrokerPool pool) {
+        this(pool, DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+    }
+
+    public AsyncTriggerExecutor(final BrokerPool pool, final int threads, final int queueSize) {
+        this.pool = pool;
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueSize), threadFactory(() -> String.valueOf(count.incrementAndGet())));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.overflow = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), threadFactory(() -> "overflow"));
+        this.overflow.allowCoreThreadTimeOut(true);
+    }
+
+    private ThreadFactory threadFactory(final Supplier<String> suffix) {
+        return runnable -> {
+            final Thread thread = new Thread(runnable, "trigger.async." + pool.getId() + "." + suffix.get());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Queue a trigger event for execution.
+     *
+     * @param subject the user who caused the event
+     * @param description describes the event in log messages
+     * @param task the event
+     *
+     * @return false if the queue is full or the executor has been shut down
+     */
+    public boolean submit(final Subject subject, final String description, final Task task) {
+        try {
+            executor.execute(new Event(subject, description, task));
+            return true;
+        } catch (final RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Queue a trigger event for execution once the transaction which caused
+     * it has been committed. If the transaction is aborted, the event is dropped.
+     *
+     * @param transaction the transaction which caused the event, may be null
+     * @param subject the user who caused the event
+     * @param description describes the event in log messages
+     * @param task the event
+     *
+     * @return false if the queue is full or the executor has been shut down
+     */
+    public boolean submit(final Txn transaction, final Subject subject, final String description, final Task task) {
+        if (transaction == null) {
+            return submit(subject, description, task);
+        }
+        Batch batch = batches.get(transaction);
+        if (batch == null) {
+            // the batch will take one place in the queue
+            if (executor.isShutdown() || executor.getQueue().remainingCapacity() == 0) {
+                return false;
+            }
+            batch = new Batch(transaction);
+            batches.put(transaction, batch);
+            transaction.registerListener(batch);
+        }
+        batch.events.add(new Event(subject, description, task));
+        return true;
+    }
+
+    /**
+     * Queue the events of a committed transaction. The committing thread still
+     * holds the locks of the transaction and must not wait, so a batch which does
+     * not fit into the queue is passed to the overflow thread.
+     */
+    private void dispatch(final Batch batch) {
+        try {
+            executor.execute(batch);
+        } catch (final RejectedExecutionException e) {
+            if (executor.isShutdown()) {
+                dropped(batch);
+                return;
+            }
+            LOG.debug("Asynchronous trigger queue is full. Passing " + batch.events.size() +
+                " events to the overflow thread.");
+            try {
+                overflow.execute(batch);
+            } catch (final RejectedExecutionException e2) {
+                dropped(batch);
+            }
+        }
+    }
+
+    private void dropped(final Runnable runnable) {
+        if (runnable instanceof Batch) {
+            for (final Event event : ((Batch) runnable).events) {
+                dropped(event);
+            }
+        } else {
+            LOG.warn("Asynchronous trigger event not processed, the database is shutting down: " + runnable);
+        }
+    }
+
+    /**
+     * @return the number of queued events and batches of events
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size() + overflow.getQueue().size();
+    }
+
+    /**
+     * Stop accepting events and wait for pending events to be processed.
+     * Every event which is not processed within {@link #SHUTDOWN_WAIT} is logged.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        overflow.shutdown();
+        try {
+            final long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT;
+            final boolean terminated = executor.awaitTermination(SHUTDOWN_WAIT, TimeUnit.MILLISECONDS) &&
+                overflow.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            if (!terminated) {
+                LOG.warn("Asynchronous trigger events did not complete within " + SHUTDOWN_WAIT + "ms.");
+                for (final Runnable runnable : executor.shutdownNow()) {
+                    dropped(runnable);
+                }
+                for (final Runnable runnable : overflow.shutdownNow()) {
+                    dropped(runnable);
+                }
+            }
+        } catch (final InterruptedException e) {
+            for (final Runnable runnable : executor.shutdownNow()) {
+                dropped(runnable);
+            }
+            for (final Runnable runnable : overflow.shutdownNow()) {
+                dropped(runnable);
+            }
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Event implements Runnable {
+        private final Subject subject;
+        private final String description;
+        private final Task task;
+
+        private Event(final Subject subject, final String description, final Task task) {
+            this.subject = subject;
+            this.description = description;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try (final DBBroker broker = pool.get(subject)) {
+                task.execute(broker);
+            } catch (final EXistException | TriggerException e) {
+                LOG.error("Error while executing asynchronous trigger " + description + ": " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+    }
+
+    /**
+     * The events of a transaction, queued as one task when the transaction commits.
+     */
+    private final class Batch implements Runnable, TxnListener {
+        private final Txn transaction;
+        private final List<Event> events = new ArrayList<>();
+
+        private Batch(final Txn transaction) {
+            this.transaction = transaction;
+        }
+
+        @Override
+        public void commit() {
+            batches.remove(transaction);
+            dispatch(this);
+        }
+
+        @Override
+        public void abort() {
+            // the changes which caused the events have been rolled back
+            batches.remove(transaction);
+        }
+
+        @Override
+        public void run() {
+            for (final Event event : events) {
+                event.run();
+            }
+        }
+    }
+}
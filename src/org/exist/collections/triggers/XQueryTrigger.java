@@ -45,6 +45,7 @@ import org.exist.source.SourceFactory;
 import org.exist.source.StringSource;
 import org.exist.storage.DBBroker;
 import org.exist.storage.ProcessMonitor;
+import org.exist.storage.XQueryPool;
 import org.exist.storage.txn.Txn;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.AnalyzeContextInfo;
@@ -78,6 +79,12 @@ import org.xml.sax.SAXException;
  * <code>xxx:event</code> : the kind of triggered event
  * xxx is the namespace prefix within the XQuery, can be set by the variable "bindingPrefix"
  * 
+ * Compiled trigger queries are borrowed from and returned to the {@link org.exist.storage.XQueryPool}.
+ * 
+ * If the parameter "async" is set to "yes", the "after" events are not executed within the
+ * transaction which caused them, but queued and executed by the {@link AsyncTriggerExecutor}
+ * once the transaction has been committed. If the transaction is aborted, they are dropped.
+ * 
  * @author Pierrick Brihaye <pierrick.brihaye@free.fr>
  * @author Adam Retter <adam.retter@devon.gov.uk>
  * @author Evgeny Gazdovsky <gazdovsky@gmail.com>
@@ -142,6 +149,7 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
 	private String strQuery = null;
 	private String urlQuery = null;
 	private Properties userDefinedVariables = new Properties();
+	private boolean async = false;
 	
 	/** Namespace prefix associated to trigger */
 	private String bindingPrefix = null;
@@ -207,6 +215,13 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
  					strQuery = (String)parameters.get("query").get(0);
  				}
  				
+ 				//execute "after" events asynchronously?
+ 				else if("async".equals(paramName))
+ 				{
+ 					final String value = (String)parameters.get("async").get(0);
+ 					async = "yes".equalsIgnoreCase(value) || "true".equalsIgnoreCase(value);
+ 				}
+ 				
  				//make any other parameters available as external variables for the query
  				else
  				{
@@ -258,6 +273,71 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
 	
 		return querySource;
 	}
+
+	/**
+	 * Borrow the compiled XQuery from the pool or compile it
+	 * 
+	 * @param broker the database broker
+	 * @param query the source of the XQuery
+	 * 
+	 * @return the compiled XQuery
+	 */
+	private CompiledXQuery getCompiledQuery(DBBroker broker, Source query) throws XPathException, IOException, PermissionDeniedException {
+		final XQueryPool pool = broker.getBrokerPool().getXQueryPool();
+		final CompiledXQuery compiledQuery = pool.borrowCompiledXQuery(broker, query);
+		if (compiledQuery != null)
+			{return compiledQuery;}
+
+		final XQueryContext context = new XQueryContext(broker.getBrokerPool(), AccessContext.TRIGGER);
+		if (query instanceof DBSource) {
+			context.setModuleLoadPath(XmldbURI.EMBEDDED_SERVER_URI_PREFIX + ((DBSource)query).getDocumentPath().removeLastSegment().toString());
+		}
+		return service.compile(broker, context, query);
+	}
+
+	/**
+	 * Return the compiled XQuery to the pool
+	 */
+	private void returnCompiledQuery(DBBroker broker, Source query, CompiledXQuery compiledQuery) {
+		compiledQuery.getContext().runCleanupTasks();
+		broker.getBrokerPool().getXQueryPool().returnCompiledXQuery(query, compiledQuery);
+	}
+
+	/**
+	 * Execute an "after" event, either directly or, if the trigger is
+	 * configured to run asynchronously, by queuing it for the {@link AsyncTriggerExecutor}
+	 * when the transaction commits. If the queue is full, the event is executed directly.
+	 */
+	private void after(DBBroker broker, Txn transaction, final XmldbURI src, final AfterEvent event) throws TriggerException {
+		if (async) {
+			// avoid infinite recursion by allowing just one trigger per thread
+			if (!TriggerStatePerThread.verifyUniqueTriggerPerThreadBeforeFinish(this, src))
+				{return;}
+			TriggerStatePerThread.setTriggerRunningState(TriggerStatePerThread.NO_TRIGGER_RUNNING, this, null);
+			TriggerStatePerThread.setTransaction(null);
+
+			final AsyncTriggerExecutor executor = broker.getBrokerPool().getAsyncTriggerExecutor();
+			if (executor != null && executor.submit(transaction, broker.getSubject(), "XQuery trigger event for " + src, asyncBroker -> {
+				TriggerStatePerThread.setTriggerRunningState(TriggerStatePerThread.TRIGGER_RUNNING_PREPARE, this, src);
+				try {
+					event.execute(asyncBroker, null);
+				} finally {
+					TriggerStatePerThread.setTriggerRunningState(TriggerStatePerThread.NO_TRIGGER_RUNNING, this, null);
+					TriggerStatePerThread.setTransaction(null);
+				}
+			}))
+				{return;}
+
+			LOG.debug("Asynchronous trigger queue is full. Executing trigger directly.");
+			TriggerStatePerThread.setTriggerRunningState(TriggerStatePerThread.TRIGGER_RUNNING_PREPARE, this, src);
+		}
+		event.execute(broker, transaction);
+	}
+
+	@FunctionalInterface
+	private interface AfterEvent {
+		void execute(DBBroker broker, Txn transaction) throws TriggerException;
+	}
 	
 	private void prepare(int event, DBBroker broker, Txn transaction,
 			XmldbURI src, XmldbURI dst, boolean isCollection) throws TriggerException {
@@ -273,13 +353,12 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
 		}
 		TriggerStatePerThread.setTransaction(transaction);
 		
-		final XQueryContext context = new XQueryContext(broker.getBrokerPool(), AccessContext.TRIGGER);
-         //TODO : further initialisations ?
         CompiledXQuery compiledQuery;
         try
         {
         	//compile the XQuery
-        	compiledQuery = service.compile(broker, context, query);
+        	compiledQuery = getCompiledQuery(broker, query);
+        	final XQueryContext context = compiledQuery.getContext();
 
         	//declare external variables
         	context.declareVariable(bindingPrefix + "type", EVENT_TYPE_PREPARE);
@@ -345,6 +424,8 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
     		TriggerStatePerThread.setTriggerRunningState(TriggerStatePerThread.NO_TRIGGER_RUNNING, this, null);
     		TriggerStatePerThread.setTransaction(null);
         	throw new TriggerException(PEPARE_EXCEIPTION_MESSAGE, e);
+        } finally {
+        	returnCompiledQuery(broker, query, compiledQuery);
         }
     }
     
@@ -359,11 +440,11 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
 		if(!TriggerStatePerThread.verifyUniqueTriggerPerThreadBeforeFinish(this, src))
 			{return;}
 		
-        final XQueryContext context = new XQueryContext(broker.getBrokerPool(), AccessContext.TRIGGER);
         CompiledXQuery compiledQuery = null;
         try {
         	//compile the XQuery
-        	compiledQuery = service.compile(broker, context, query);
+        	compiledQuery = getCompiledQuery(broker, query);
+        	final XQueryContext context = compiledQuery.getContext();
         	
         	//declare external variables
         	context.declareVariable(bindingPrefix + "type", EVENT_TYPE_FINISH);
@@ -411,17 +492,21 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
 		}
 
 	    //execute the XQuery
-        try {
-        	//TODO : should we provide another contextSet ?
-	        final NodeSet contextSet = NodeSet.EMPTY_SET;	        
-			service.execute(broker, compiledQuery, contextSet);
-			//TODO : should we have a special processing ?
-        } catch (final XPathException e) {
-        	//Should never be reached
-			LOG.error("Error during trigger finish", e);
-        } catch (final PermissionDeniedException e) {
-        	//Should never be reached
-        	LOG.error(e);
+        if (compiledQuery != null) {
+	        try {
+	        	//TODO : should we provide another contextSet ?
+		        final NodeSet contextSet = NodeSet.EMPTY_SET;	        
+				service.execute(broker, compiledQuery, contextSet);
+				//TODO : should we have a special processing ?
+	        } catch (final XPathException e) {
+	        	//Should never be reached
+				LOG.error("Error during trigger finish", e);
+	        } catch (final PermissionDeniedException e) {
+	        	//Should never be reached
+	        	LOG.error(e);
+	        } finally {
+	        	returnCompiledQuery(broker, query, compiledQuery);
+	        }
         }
         
 		TriggerStatePerThread.setTriggerRunningState(TriggerStatePerThread.NO_TRIGGER_RUNNING, this, null);
@@ -445,15 +530,11 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
 		}
 		TriggerStatePerThread.setTransaction(transaction);
 		
-		final XQueryContext context = new XQueryContext(broker.getBrokerPool(), AccessContext.TRIGGER);
-        if (query instanceof DBSource) {
-            context.setModuleLoadPath(XmldbURI.EMBEDDED_SERVER_URI_PREFIX + ((DBSource)query).getDocumentPath().removeLastSegment().toString());
-        }
-
         CompiledXQuery compiledQuery;
         try {
         	//compile the XQuery
-        	compiledQuery = service.compile(broker, context, query);
+        	compiledQuery = getCompiledQuery(broker, query);
+        	final XQueryContext context = compiledQuery.getContext();
 
         	//declare user defined parameters as external variables
         	for(final Iterator itUserVarName = userDefinedVariables.keySet().iterator(); itUserVarName.hasNext();) {
@@ -528,6 +609,7 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
         	}
     		compiledQuery.reset();
     		context.reset();
+    		returnCompiledQuery(broker, context.getSource(), compiledQuery);
         }
 
         if (!isBefore) {
@@ -629,9 +711,9 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
 	@Override
 	public void afterCreateCollection(DBBroker broker, Txn txn, Collection collection) throws TriggerException {
 		if (events.contains(TriggerEvents.EVENTS.CREATE_COLLECTION)) {
-			finish(1, broker, txn, collection.getURI(), (XmldbURI) null, true);
+			after(broker, txn, collection.getURI(), (afterBroker, transaction) -> finish(1, afterBroker, transaction, collection.getURI(), (XmldbURI) null, true));
 		} else {
-		    execute(false, broker, txn, afterCreateCollection, collection.getURI());
+			after(broker, txn, collection.getURI(), (afterBroker, transaction) -> execute(false, afterBroker, transaction, afterCreateCollection, collection.getURI()));
 	    }
 
 	}
@@ -648,9 +730,9 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
 	@Override
 	public void afterCopyCollection(DBBroker broker, Txn txn, Collection collection, XmldbURI newUri) throws TriggerException {
 		if (events.contains(TriggerEvents.EVENTS.COPY_COLLECTION)) {
-			finish(5, broker, txn, collection.getURI(), newUri, true);
+			after(broker, txn, collection.getURI(), (afterBroker, transaction) -> finish(5, afterBroker, transaction, collection.getURI(), newUri, true));
 		} else {
-		    execute(false, broker, txn, afterCopyCollection, collection.getURI(), newUri);
+			after(broker, txn, collection.getURI(), (afterBroker, transaction) -> execute(false, afterBroker, transaction, afterCopyCollection, collection.getURI(), newUri));
 	    }
 	}
 
@@ -666,9 +748,9 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
 	@Override
 	public void afterMoveCollection(DBBroker broker, Txn txn, Collection collection, XmldbURI oldUri) throws TriggerException {
 		if (events.contains(TriggerEvents.EVENTS.MOVE_COLLECTION)) {
-			finish(7, broker, txn, oldUri, collection.getURI(), true);
+			after(broker, txn, oldUri, (afterBroker, transaction) -> finish(7, afterBroker, transaction, oldUri, collection.getURI(), true));
 		} else {
-		    execute(false, broker, txn, afterMoveCollection, oldUri, collection.getURI());
+			after(broker, txn, oldUri, (afterBroker, transaction) -> execute(false, afterBroker, transaction, afterMoveCollection, oldUri, collection.getURI()));
 	    }
 	}
 
@@ -684,9 +766,9 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
 	@Override
 	public void afterDeleteCollection(DBBroker broker, Txn txn, XmldbURI uri) throws TriggerException {
 		if (events.contains(TriggerEvents.EVENTS.DELETE_COLLECTION)) {
-			finish(9, broker, txn, collection.getURI(), (XmldbURI) null, true);
+			after(broker, txn, collection.getURI(), (afterBroker, transaction) -> finish(9, afterBroker, transaction, collection.getURI(), (XmldbURI) null, true));
 		} else {
-		    execute(false, broker, txn, afterDeleteCollection, uri);
+			after(broker, txn, uri, (afterBroker, transaction) -> execute(false, afterBroker, transaction, afterDeleteCollection, uri));
 	    }
 	}
 
@@ -702,9 +784,9 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
 	@Override
 	public void afterCreateDocument(DBBroker broker, Txn txn, DocumentImpl document) throws TriggerException {
 		if (events.contains(TriggerEvents.EVENTS.CREATE_DOCUMENT)) {
-			finish(0, broker, txn, document.getURI(), (XmldbURI) null, false);
+			after(broker, txn, document.getURI(), (afterBroker, transaction) -> finish(0, afterBroker, transaction, document.getURI(), (XmldbURI) null, false));
 		} else {
-		    execute(false, broker, txn, afterCreateDocument, document.getURI());
+			after(broker, txn, document.getURI(), (afterBroker, transaction) -> execute(false, afterBroker, transaction, afterCreateDocument, document.getURI()));
 	    }
 	}
 
@@ -720,9 +802,9 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
 	@Override
 	public void afterUpdateDocument(DBBroker broker, Txn txn, DocumentImpl document) throws TriggerException {
 		if (events.contains(TriggerEvents.EVENTS.UPDATE_DOCUMENT)) {
-			finish(2, broker, txn, document.getURI(), (XmldbURI) null, false);
+			after(broker, txn, document.getURI(), (afterBroker, transaction) -> finish(2, afterBroker, transaction, document.getURI(), (XmldbURI) null, false));
 		} else {
-		    execute(false, broker, txn, afterUpdateDocument, document.getURI());
+			after(broker, txn, document.getURI(), (afterBroker, transaction) -> execute(false, afterBroker, transaction, afterUpdateDocument, document.getURI()));
 	    }
 	}
 
@@ -738,9 +820,9 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
 	@Override
 	public void afterCopyDocument(DBBroker broker, Txn txn, DocumentImpl document, XmldbURI newUri) throws TriggerException {
 		if (events.contains(TriggerEvents.EVENTS.COPY_DOCUMENT)) {
-			finish(4, broker, txn, document.getURI(), newUri, false);
+			after(broker, txn, document.getURI(), (afterBroker, transaction) -> finish(4, afterBroker, transaction, document.getURI(), newUri, false));
 		} else {
-		    execute(false, broker, txn, afterCopyDocument, document.getURI());
+			after(broker, txn, document.getURI(), (afterBroker, transaction) -> execute(false, afterBroker, transaction, afterCopyDocument, document.getURI()));
 	    }
 	}
 
@@ -756,9 +838,9 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
 	@Override
 	public void afterMoveDocument(DBBroker broker, Txn txn, DocumentImpl document, XmldbURI oldUri) throws TriggerException {
 		if (events.contains(TriggerEvents.EVENTS.MOVE_DOCUMENT)) {
-			finish(6, broker, txn, oldUri, document.getURI(), false);
+			after(broker, txn, oldUri, (afterBroker, transaction) -> finish(6, afterBroker, transaction, oldUri, document.getURI(), false));
 		} else {
-		    execute(false, broker, txn, afterMoveDocument, oldUri);
+			after(broker, txn, oldUri, (afterBroker, transaction) -> execute(false, afterBroker, transaction, afterMoveDocument, oldUri));
 	    }
 	}
 
@@ -774,9 +856,9 @@ public class XQueryTrigger extends SAXTrigger implements DocumentTrigger, Collec
 	@Override
 	public void afterDeleteDocument(DBBroker broker, Txn txn, XmldbURI uri) throws TriggerException {
 		if (events.contains(TriggerEvents.EVENTS.DELETE_DOCUMENT)) {
-			finish(8, broker, txn, uri, (XmldbURI) null, false);
+			after(broker, txn, uri, (afterBroker, transaction) -> finish(8, afterBroker, transaction, uri, (XmldbURI) null, false));
 		} else {
-		    execute(false, broker, txn, afterDeleteDocument, uri);
+			after(broker, txn, uri, (afterBroker, transaction) -> execute(false, afterBroker, transaction, afterDeleteDocument, uri));
 	    }
 	}
 
@@ -61,6 +61,7 @@ import org.xml.sax.SAXException;
 
 import javax.xml.XMLConstants;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -79,7 +80,8 @@ public class DocumentImpl extends NodeImpl<DocumentImpl> implements Document {
     private static final int CHAR_BUF_SIZE = 256;
     private static final int REF_SIZE = 8;
 
-    private static long nextDocId = 0;
+    // documents are created concurrently, e.g. by the workers of a parallel for
+    private static final AtomicLong nextDocId = new AtomicLong();
 
     // holds the node type of a node
     protected short[] nodeKind = null;
@@ -161,7 +163,7 @@ public class DocumentImpl extends NodeImpl<DocumentImpl> implements Document {
     }
 
     private static long createDocId() {
-        return nextDocId++;
+        return nextDocId.getAndIncrement();
     }
 
     private void init() {
@@ -28,22 +28,27 @@ import org.exist.backup.RawDataBackup;
 import org.exist.dom.QName;
 import org.exist.storage.BrokerPool;
 import org.exist.storage.ElementValue;
+import org.exist.storage.io.VariableByteArrayInput;
 import org.exist.storage.io.VariableByteInput;
-import org.exist.storage.io.VariableByteInputStream;
 import org.exist.storage.io.VariableByteOutputStream;
 import org.exist.util.Configuration;
-import org.exist.util.hashtable.Object2IntHashMap;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.Iterator;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Maintains a global symbol table shared by a database instance. The symbol
@@ -53,6 +58,11 @@ import java.util.Iterator;
  * <p/>
  * The global SymbolTable singleton can be retrieved from {@link org.exist.storage.BrokerPool#getSymbols()}.
  * It is saved into the database file "symbols.dbx".
+ * <p/>
+ * Lookups do not block: names are resolved through a concurrent map and ids
+ * through an array which is replaced, never modified, when a symbol is added.
+ * Only the allocation of a new symbol, which appends it to symbols.dbx, is
+ * serialized on the symbol table.
  *
  * @author wolf
  * @author Adam Retter <adam@exist-db.org>
@@ -100,14 +110,20 @@ public class SymbolTable {
     protected final SymbolCollection mimeTypeSymbols = new SymbolCollection(SymbolType.MIMETYPE, 32);
 
     /**
-     * Temporary name pool to share QName instances during indexing.
+     * Temporary name pools to share QName instances during indexing.
+     * Every thread has its own pool, so no synchronization is needed.
      */
-    private final QNamePool namePool = new QNamePool();
+    private final ThreadLocal<QNamePool> namePool = new ThreadLocal<QNamePool>() {
+        @Override
+        protected QNamePool initialValue() {
+            return new QNamePool();
+        }
+    };
 
     /**
      * set to true if the symbol table needs to be saved
      */
-    private boolean changed = false;
+    private volatile boolean changed = false;
 
     /**
      * the underlying symbols.dbx file
@@ -134,19 +150,19 @@ public class SymbolTable {
     }
 
     /**
-     * Retrieve a shared QName instance from the temporary pool.
-     * <p/>
-     * TODO: make the namePool thread-local to avoid synchronization.
+     * Retrieve a shared QName instance from the temporary pool of the
+     * current thread.
      *
      * @param namespaceURI
      * @param localName
      * @param prefix
      */
-    public synchronized QName getQName(final short type, final String namespaceURI, final String localName, final String prefix) {
+    public QName getQName(final short type, final String namespaceURI, final String localName, final String prefix) {
         final byte itype = type == Node.ATTRIBUTE_NODE ? ElementValue.ATTRIBUTE : ElementValue.ELEMENT;
-        QName qn = namePool.get(itype, namespaceURI, localName, prefix);
+        final QNamePool pool = namePool.get();
+        QName qn = pool.get(itype, namespaceURI, localName, prefix);
         if(qn == null) {
-            qn = namePool.add(itype, namespaceURI, localName, prefix);
+            qn = pool.add(itype, namespaceURI, localName, prefix);
         }
         return qn;
     }
@@ -157,7 +173,7 @@ public class SymbolTable {
      * @param element
      */
     //TODO the (short) cast is nasty - should consider using either short or int end to end
-    public synchronized short getSymbol(final Element element) {
+    public short getSymbol(final Element element) {
         return (short) localNameSymbols.getId(element.getLocalName());
     }
 
@@ -167,7 +183,7 @@ public class SymbolTable {
      * @param attr
      */
     //TODO the (short) cast is nasty - should consider using either short or int end to end
-    public synchronized short getSymbol(final Attr attr) {
+    public short getSymbol(final Attr attr) {
         final String key = ATTR_NAME_PREFIX + attr.getLocalName();
         return (short) localNameSymbols.getId(key);
     }
@@ -179,7 +195,7 @@ public class SymbolTable {
      * @param name
      */
     //TODO the (short) cast is nasty - should consider using either short or int end to end
-    public synchronized short getSymbol(final String name) {
+    public short getSymbol(final String name) {
         if(name.length() == 0) {
             throw new IllegalArgumentException("name is empty");
         }
@@ -192,14 +208,14 @@ public class SymbolTable {
      * @param ns
      */
     //TODO the (short) cast is nasty - should consider using either short or int end to end
-    public synchronized short getNSSymbol(final String ns) {
+    public short getNSSymbol(final String ns) {
         if(ns == null || ns.length() == 0) {
             return 0;
         }
         return (short) namespaceSymbols.getId(ns);
     }
 
-    public synchronized int getMimeTypeId(final String mimeType) {
+    public int getMimeTypeId(final String mimeType) {
         return mimeTypeSymbols.getId(mimeType);
     }
 
@@ -207,7 +223,7 @@ public class SymbolTable {
      * Returns true if the symbol table needs to be saved
      * to persistent storage.
      */
-    public synchronized boolean hasChanged() {
+    public boolean hasChanged() {
         return changed;
     }
 
@@ -217,11 +233,11 @@ public class SymbolTable {
      *
      * @param id
      */
-    public synchronized String getName(final short id) {
+    public String getName(final short id) {
         return localNameSymbols.getSymbol(id);
     }
 
-    public synchronized String getMimeType(final int id) {
+    public String getMimeType(final int id) {
         return mimeTypeSymbols.getSymbol(id);
     }
 
@@ -232,7 +248,7 @@ public class SymbolTable {
      *
      * @param id
      */
-    public synchronized String getNamespace(final short id) {
+    public String getNamespace(final short id) {
         return namespaceSymbols.getSymbol(id);
     }
 
@@ -334,35 +350,81 @@ public class SymbolTable {
 
     /**
      * Save the entire symbol table. Will only be called when initializing an
-     * empty database or when upgrading an older dbx file.
+     * empty database, when upgrading an older dbx file or when compacting the
+     * file after loading.
+     *
+     * The table is written to a temporary file, which then replaces symbols.dbx,
+     * so a crash never leaves a partially written table behind.
      *
      * @throws EXistException
      */
     private void saveSymbols() throws EXistException {
+        final File tmp = new File(getFile().getParentFile(), getFile().getName() + ".tmp");
         try {
-            final VariableByteOutputStream os = new VariableByteOutputStream(256);
-            writeAll(os);
-            final FileOutputStream fos = new FileOutputStream(getFile().getAbsolutePath(), false);
-            fos.write(os.toByteArray());
-            fos.close();
+            // the append stream refers to the file which is about to be replaced
+            close();
+            os = null;
+            final VariableByteOutputStream out = new VariableByteOutputStream(256);
+            writeAll(out);
+            try(final FileOutputStream fos = new FileOutputStream(tmp, false)) {
+                fos.write(out.toByteArray());
+                fos.getFD().sync();
+            }
+            try {
+                Files.move(tmp.toPath(), getFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch(final AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), getFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
         } catch(final FileNotFoundException e) {
-            throw new EXistException("File not found: " + this.getFile().getAbsolutePath(), e);
+            throw new EXistException("File not found: " + tmp.getAbsolutePath(), e);
         } catch(final IOException e) {
             throw new EXistException("IO error occurred while creating "
                 + this.getFile().getAbsolutePath(), e);
         }
     }
 
+    /**
+     * Check if the bytes from offset to the end of the file are the beginning
+     * of an entry which was not completely written, i.e. the file ends before
+     * the entry does.
+     *
+     * @param data the content of the file
+     * @param offset the offset of the entry
+     * @return true if fewer bytes are left than the entry needs
+     */
+    private static boolean isIncompleteEntry(final byte[] data, final int offset) {
+        final VariableByteArrayInput is = new VariableByteArrayInput(data, offset, data.length - offset);
+        try {
+            SymbolType.valueOf(is.readByte());
+            is.readInt();
+            final int length = is.readInt();
+            return length > is.available();
+        } catch(final EOFException e) {
+            return true;
+        } catch(final IOException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
     /**
      * Read the global symbol table. The global symbol table stores QNames and
      * namespace/prefix mappings.
      *
+     * The file is read with a single sequential read and parsed in memory.
+     * An incomplete entry at the end of the file, left behind by a crash while
+     * appending a symbol, is cut off after copying the file to symbols.dbx.bak.
+     * An invalid entry anywhere else stops the database. If the file contains entries which are
+     * superseded by later ones, it is compacted.
+     *
      * @throws EXistException
      */
     private synchronized void loadSymbols() throws EXistException {
         try {
-            final FileInputStream fis = new FileInputStream(getFile());
-            final VariableByteInput is = new VariableByteInputStream(fis);
+            final byte[] data = Files.readAllBytes(getFile().toPath());
+            if(data.length < 4) {
+                throw new EOFException("File is too short: " + data.length + " bytes");
+            }
+            final VariableByteArrayInput is = new VariableByteArrayInput(data);
             final int magic = is.readFixedInt();
             if(magic == LEGACY_FILE_FORMAT_VERSION_ID) {
                 LOG.info("Converting legacy symbols.dbx to new format...");
@@ -373,9 +435,40 @@ public class SymbolTable {
                     "or newer version of eXist" + " (file id: " + magic + "). " +
                     "To avoid damage, the database will stop.");
             } else {
-                read(is);
+                localNameSymbols.clear();
+                namespaceSymbols.clear();
+                mimeTypeSymbols.clear();
+                int entries = 0;
+                int validLength = data.length - is.available();
+                try {
+                    while(is.available() > 0) {
+                        readEntry(is);
+                        entries++;
+                        validLength = data.length - is.available();
+                    }
+                } catch(final EOFException | IndexOutOfBoundsException | IllegalArgumentException e) {
+                    if(!isIncompleteEntry(data, validLength)) {
+                        throw new EXistException("Symbol table " + getFile().getAbsolutePath() + " is corrupt: " +
+                            "invalid entry at offset " + validLength + " of " + data.length + " bytes. " +
+                            "To avoid damage, the database will stop. Restore the file from a backup.", e);
+                    }
+                    final File backup = new File(getFile().getParentFile(), getFile().getName() + ".bak");
+                    Files.copy(getFile().toPath(), backup.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    LOG.warn("Symbol table " + getFile().getAbsolutePath() + " ends with an incomplete entry at offset " +
+                        validLength + ". Discarding the last " + (data.length - validLength) + " bytes. " +
+                        "The original file has been copied to " + backup.getAbsolutePath());
+                    try(final RandomAccessFile raf = new RandomAccessFile(getFile(), "rw")) {
+                        raf.setLength(validLength);
+                    }
+                }
+                final int symbols = localNameSymbols.size() + namespaceSymbols.size() + mimeTypeSymbols.size();
+                final int ids = localNameSymbols.idCount() + namespaceSymbols.idCount() + mimeTypeSymbols.idCount();
+                // only compact if every id is still reachable by name, i.e. no id would be lost
+                if(entries > symbols && symbols == ids) {
+                    LOG.info("Compacting symbol table: " + entries + " entries for " + symbols + " symbols");
+                    saveSymbols();
+                }
             }
-            fis.close();
         } catch(final FileNotFoundException e) {
             throw new EXistException("Could not read " + this.getFile().getAbsolutePath(), e);
         } catch(final IOException e) {
@@ -385,18 +478,37 @@ public class SymbolTable {
     }
 
     public void backupSymbolsTo(final OutputStream os) throws IOException {
+        backupSymbolsTo(os, -1);
+    }
+
+    /**
+     * Copy the first <code>length</code> bytes of the symbol table to the given stream.
+     * As new symbols are only appended, this is the state of the symbol table at
+     * the time the file had this length.
+     *
+     * @param length the number of bytes to copy or -1 to copy the entire file
+     */
+    public void backupSymbolsTo(final OutputStream os, long length) throws IOException {
+        if(length < 0) {
+            length = Long.MAX_VALUE;
+        }
         final FileInputStream fis = new FileInputStream(this.getFile());
         final byte[] buf = new byte[1024];
         int len;
-        while((len = fis.read(buf)) > 0) {
+        while(length > 0 && (len = fis.read(buf, 0, (int) Math.min(buf.length, length))) > 0) {
             os.write(buf, 0, len);
+            length -= len;
         }
         fis.close();
     }
 
     public void backupToArchive(final RawDataBackup backup) throws IOException {
+        backupToArchive(backup, -1);
+    }
+
+    public void backupToArchive(final RawDataBackup backup, final long length) throws IOException {
         final OutputStream os = backup.newEntry(getFile().getName());
-        backupSymbolsTo(os);
+        backupSymbolsTo(os, length);
     }
 
     public void flush() throws EXistException {
@@ -427,23 +539,24 @@ public class SymbolTable {
         private final SymbolType symbolType;
 
         /**
-         * Maps mimetype names to an integer id (persisted to disk)
+         * Maps names to an integer id (persisted to disk)
          */
-        private final Object2IntHashMap<String> symbolsByName;
+        private final Map<String, Integer> symbolsByName;
 
         /**
-         * Maps int ids to mimetype names (transient map for fast reverse lookup of symbolsByName)
+         * Maps int ids to names (transient map for fast reverse lookup of symbolsByName).
+         * Entries up to offset are never modified; the array is replaced when it grows.
          */
-        private String[] symbolsById;
+        private volatile String[] symbolsById;
 
         /**
          * contains the offset of the last symbol
          */
-        protected short offset = 0;
+        protected volatile short offset = 0;
 
         public SymbolCollection(final SymbolType symbolType, final int initialSize) {
             this.symbolType = symbolType;
-            symbolsByName = new Object2IntHashMap<>(initialSize);
+            symbolsByName = new ConcurrentHashMap<>(initialSize);
             symbolsById = new String[initialSize];
         }
 
@@ -451,22 +564,30 @@ public class SymbolTable {
             return symbolType;
         }
 
+        /**
+         * Register a symbol. Only called while loading the symbol table or
+         * while holding the monitor of the symbol table.
+         *
+         * The entry is published to readers of symbolsById by increasing offset,
+         * and only afterwards made available by name, so any thread which
+         * obtained the id can also resolve it.
+         */
         private int add(final int id, final String name) {
-            symbolsById = ensureCapacity(symbolsById, id);
-            addSymbolById(id, name);
-            addSymbolByName(name, id);
+            final String[] array = ensureCapacity(symbolsById, id);
+            array[id] = getSymbolById(name);
+            symbolsById = array;
             if(id > offset) {
                 offset = (short) id;
             }
+            symbolsByName.put(name, id);
             return id;
         }
 
-        protected void addSymbolById(final int id, final String name) {
-            symbolsById[id] = name;
-        }
-
-        protected void addSymbolByName(final String name, final int id) {
-            symbolsByName.put(name, id);
+        /**
+         * @return the name stored in the reverse mapping for the given symbol
+         */
+        protected String getSymbolById(final String name) {
+            return name;
         }
 
         protected String[] ensureCapacity(final String[] array, final int max) {
@@ -478,39 +599,74 @@ public class SymbolTable {
             return array;
         }
 
+        /**
+         * @return the number of distinct symbols
+         */
+        private int size() {
+            return symbolsByName.size();
+        }
+
+        /**
+         * @return the number of ids in use, which is larger than {@link #size()}
+         * if a name has been stored with more than one id
+         */
+        private int idCount() {
+            final String[] array = symbolsById;
+            int count = 0;
+            for(int i = 1; i <= offset && i < array.length; i++) {
+                if(array[i] != null) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
         private void clear() {
+            symbolsByName.clear();
+            symbolsById = new String[symbolsById.length];
             offset = 0;
         }
 
-        public synchronized String getSymbol(final int id) {
+        public String getSymbol(final int id) {
+            // read offset first: the entry and the array are published before offset is increased
             if(id <= 0 || id > offset) {
                 return ""; //TODO : raise an exception ? -pb
             }
             return symbolsById[id];
         }
 
-        public synchronized int getId(final String name) {
-            int id = symbolsByName.get(name);
-            if(id != -1) {
+        public int getId(final String name) {
+            final Integer id = symbolsByName.get(name);
+            if(id != null) {
                 return id;
             }
-            // symbol space exceeded. return -1 to indicate.
-            if(offset == Short.MAX_VALUE) {
-                return -1;
-            }
+            return allocate(name);
+        }
 
-            id = add(++offset, name);
-            //we use "++offset" here instead of "offset++", 
-            //because the system expects id's to start at 1, not 0
-            write(id, name);
-            changed = true;
-            return id;
+        private int allocate(final String name) {
+            synchronized(SymbolTable.this) {
+                final Integer existing = symbolsByName.get(name);
+                if(existing != null) {
+                    return existing;
+                }
+                // symbol space exceeded. return -1 to indicate.
+                if(offset == Short.MAX_VALUE) {
+                    return -1;
+                }
+
+                //we use "offset + 1" here, because the system expects id's to start at 1, not 0
+                final int id = offset + 1;
+                write(id, name);
+                add(id, name);
+                changed = true;
+                return id;
+            }
         }
 
         protected final void write(final VariableByteOutputStream os) throws IOException {
-            for(final Iterator<String> i = symbolsByName.iterator(); i.hasNext(); ) {
-                final String symbol = i.next();
-                final int id = symbolsByName.get(symbol);
+            for(final Map.Entry<String, Integer> entry : symbolsByName.entrySet()) {
+                final String symbol = entry.getKey();
+                final int id = entry.getValue();
                 if(id < 0) {
                     LOG.error("Symbol Table: symbolTypeId=" + getSymbolType() +
                         ", symbol='" + symbol + "', id=" + id);
@@ -566,15 +722,15 @@ public class SymbolTable {
         }
 
         @Override
-        protected void addSymbolById(final int id, final String name) {
+        protected String getSymbolById(final String name) {
             /*
              For attributes, Don't store '@' in in-memory mapping of id -> attrName
              enables faster retrieval
              */
             if(name.charAt(0) == ATTR_NAME_PREFIX) {
-                super.addSymbolById(id, name.substring(1));
+                return name.substring(1);
             } else {
-                super.addSymbolById(id, name);
+                return name;
             }
         }
     }
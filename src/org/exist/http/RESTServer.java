@@ -38,6 +38,8 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.XMLConstants;
@@ -82,6 +84,7 @@ import org.exist.storage.DBBroker;
 import org.exist.storage.XQueryPool;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.serializers.EXistOutputKeys;
+import org.exist.storage.serializers.SerializedDocumentCache;
 import org.exist.storage.serializers.Serializer;
 import org.exist.storage.serializers.Serializer.HttpContext;
 import org.exist.storage.txn.TransactionException;
@@ -134,6 +137,15 @@ public class RESTServer {
 
     protected final static Logger LOG = LogManager.getLogger(RESTServer.class);
     public final static String SERIALIZATION_METHOD_PROPERTY = "output-as";
+
+    /** Identifies documents serialized by the REST server in the {@link SerializedDocumentCache} */
+    private final static String DOCUMENT_CACHE_CHANNEL = "rest";
+
+    private final static String GZIP_ENCODING = "gzip";
+    private final static String DEFLATE_ENCODING = "deflate";
+
+    /** Number of result items after which the serialized output is flushed to the client */
+    private final static int STREAMING_FLUSH_INTERVAL = 10;
     // Should we not obey the instance's defaults? /ljo
     protected final static Properties defaultProperties = new Properties();
 
@@ -169,6 +181,7 @@ public class RESTServer {
     private String containerEncoding;
     private boolean useDynamicContentType;
     private boolean safeMode = false;
+    private boolean compression = false;
     private SessionManager sessionManager;
 
     //EXQuery Request Module details
@@ -178,10 +191,21 @@ public class RESTServer {
     // Constructor
     public RESTServer(final BrokerPool pool, final String formEncoding,
             final String containerEncoding, final boolean useDynamicContentType, final boolean safeMode) {
+        this(pool, formEncoding, containerEncoding, useDynamicContentType, safeMode, false);
+    }
+
+    /**
+     * @param compression if true, serialized documents and query results are
+     *                    compressed if the client accepts gzip or deflate content encoding
+     */
+    public RESTServer(final BrokerPool pool, final String formEncoding,
+            final String containerEncoding, final boolean useDynamicContentType, final boolean safeMode,
+            final boolean compression) {
         this.formEncoding = formEncoding;
         this.containerEncoding = containerEncoding;
         this.useDynamicContentType = useDynamicContentType;
         this.safeMode = safeMode;
+        this.compression = compression;
         this.sessionManager = new SessionManager(pool);
         
         //get (optiona) EXQuery Request Module details
@@ -1257,7 +1281,7 @@ public class RESTServer {
                     final Sequence cached = sessionManager.get(query, sessionId);
                     if (cached != null) {
                         LOG.debug("Returning cached query result");
-                        writeResults(response, broker, cached, howmany, start, typed, outputProperties, wrap);
+                        writeResults(request, response, broker, cached, howmany, start, typed, outputProperties, wrap);
 
                     } else {
                         LOG.debug("Cached query result not found. Probably timed out. Repeating query.");
@@ -1313,7 +1337,7 @@ public class RESTServer {
                     }
                 }
 
-                writeResults(response, broker, resultSequence, howmany, start, typed, outputProperties, wrap);
+                writeResults(request, response, broker, resultSequence, howmany, start, typed, outputProperties, wrap);
 
             } finally {
                 pool.returnCompiledXQuery(source, compiled);
@@ -1496,7 +1520,7 @@ public class RESTServer {
 
         try {
             final Sequence result = xquery.execute(broker, compiled, null, outputProperties);
-            writeResults(response, broker, result, -1, 1, false, outputProperties, wrap);
+            writeResults(request, response, broker, result, -1, 1, false, outputProperties, wrap);
 
         } finally {
             context.runCleanupTasks();
@@ -1564,7 +1588,7 @@ public class RESTServer {
 
         try {
             final Sequence result = xquery.execute(broker, compiled, null, outputProperties);
-            writeResults(response, broker, result, -1, 1, false, outputProperties, false);
+            writeResults(request, response, broker, result, -1, 1, false, outputProperties, false);
         } finally {
             pool.returnCompiledXQuery(source, compiled);
         }
@@ -1663,6 +1687,14 @@ public class RESTServer {
             //	response.setContentLength(resource.getContentLength());
             // must be set so
             response.addHeader("Content-Length", Long.toString(resource.getContentLength()));
+
+            final String etag = SerializedDocumentCache.getETag(resource, null);
+            response.setHeader("ETag", etag);
+            if (isNotModified(request, etag)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
             final OutputStream os = response.getOutputStream();
             broker.readBinaryResource((BinaryDocument) resource, os);
             os.flush();
@@ -1720,7 +1752,31 @@ public class RESTServer {
                     outputProperties.setProperty("omit-xml-declaration", "no");
                 }
 
-                final OutputStreamWriter writer = new OutputStreamWriter(response.getOutputStream(), encoding);
+                // documents transformed by a stylesheet depend on other resources and are never cached
+                final SerializedDocumentCache documentCache = broker.getBrokerPool().getSerializedDocumentCache();
+                final boolean cacheable = documentCache != null && documentCache.isEnabled()
+                        && !serializer.isStylesheetApplied();
+                if (cacheable) {
+                    final SerializedDocumentCache.CachedDocument cached =
+                            documentCache.get(DOCUMENT_CACHE_CHANNEL, resource, outputProperties);
+                    if (cached != null) {
+                        writeCachedDocument(cached, request, response);
+                        return;
+                    }
+
+                    // entity tags are only sent for cacheable documents, so the client's copy is still valid
+                    if (isNotModified(request, getEncodedETag(request, response, SerializedDocumentCache.getETag(resource, outputProperties)))) {
+                        response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                        return;
+                    }
+                }
+
+                final OutputStream os = getOutputStream(request, response);
+                final SerializedDocumentCache.BufferingOutputStream buffer = cacheable ?
+                        new SerializedDocumentCache.BufferingOutputStream(os, documentCache.getMaxEntrySize()) : null;
+                final int includeCount = serializer.getXIncludeFilter().getIncludeCount();
+
+                final OutputStreamWriter writer = new OutputStreamWriter(cacheable ? buffer : os, encoding);
                 sax.setOutput(writer, outputProperties);
                 serializer.setSAXHandlers(sax, sax);
 
@@ -1728,8 +1784,23 @@ public class RESTServer {
 
                 writer.flush();
                 writer.close();
+
+                if (cacheable && buffer.isBuffered()) {
+                    final byte[] data = buffer.getData();
+                    // the output of documents using XInclude depends on other resources
+                    if (includeCount == serializer.getXIncludeFilter().getIncludeCount()) {
+                        final SerializedDocumentCache.CachedDocument cached =
+                                documentCache.put(DOCUMENT_CACHE_CHANNEL, resource, outputProperties, data);
+                        if (cached != null) {
+                            response.setHeader("ETag", getEncodedETag(request, response, cached.getETag()));
+                        }
+                    }
+                    os.write(data);
+                    os.close();
+                }
             } catch (final SAXException saxe) {
                 LOG.warn(saxe);
+                discardContent(response);
                 throw new BadRequestException("Error while serializing XML: " + saxe.getMessage());
             } catch (final TransformerConfigurationException e) {
                 LOG.warn(e);
@@ -1742,6 +1813,207 @@ public class RESTServer {
         }
     }
 
+    /**
+     * Writes a document from the serialized document cache, or just
+     * the status 304 if the client already has the current version
+     * of the document.
+     */
+    private void writeCachedDocument(final SerializedDocumentCache.CachedDocument cached,
+            final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final String etag = getEncodedETag(request, response, cached.getETag());
+        response.setHeader("ETag", etag);
+        if (isNotModified(request, etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        final OutputStream os = getOutputStream(request, response);
+        if (!(os instanceof CompressingOutputStream)) {
+            response.setContentLength(cached.getData().length);
+        }
+        os.write(cached.getData());
+        os.close();
+    }
+
+    /**
+     * Returns the entity tag of a serialized document for the content encoding
+     * selected for the response. The compressed and the identity representations
+     * of a document are different entities, so they must not share an entity tag.
+     */
+    private String getEncodedETag(final HttpServletRequest request, final HttpServletResponse response, final String etag) {
+        if (!compression) {
+            return etag;
+        }
+        response.setHeader("Vary", "Accept-Encoding");
+        final String contentEncoding = getAcceptedContentEncoding(request);
+        if (contentEncoding == null) {
+            return etag;
+        }
+        return etag.substring(0, etag.length() - 1) + '-' + contentEncoding + '"';
+    }
+
+    /**
+     * Returns the stream to write the response body to. If compression is
+     * enabled and the client accepts gzip or deflate content encoding, the
+     * response output stream is wrapped into a compressing stream, which sets
+     * the Content-Encoding header when the content is written. The returned
+     * stream is flushable, so content can be streamed incrementally.
+     */
+    private OutputStream getOutputStream(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final OutputStream os = response.getOutputStream();
+        if (!compression || response.isCommitted()) {
+            return os;
+        }
+        response.setHeader("Vary", "Accept-Encoding");
+
+        final String contentEncoding = getAcceptedContentEncoding(request);
+        if (contentEncoding == null) {
+            return os;
+        }
+        return new CompressingOutputStream(response, os, contentEncoding);
+    }
+
+    /**
+     * Called if writing the content failed: if nothing was sent yet, the
+     * partially written content is discarded together with its Content-Encoding
+     * header, so that the error response is sent uncompressed.
+     */
+    private static void discardContent(final HttpServletResponse response) {
+        if (!response.isCommitted()) {
+            response.resetBuffer();
+            response.setHeader("Content-Encoding", null);
+        }
+    }
+
+    /**
+     * Compresses the content of a response. The Content-Encoding header is
+     * only set and the compressing stream only created when the first byte of
+     * content is written, so an error sent instead of the content is not
+     * declared as compressed.
+     */
+    private static class CompressingOutputStream extends OutputStream {
+
+        private final HttpServletResponse response;
+        private final OutputStream os;
+        private final String contentEncoding;
+        private OutputStream out = null;
+
+        private CompressingOutputStream(final HttpServletResponse response, final OutputStream os,
+                final String contentEncoding) {
+            this.response = response;
+            this.os = os;
+            this.contentEncoding = contentEncoding;
+        }
+
+        private OutputStream getOut() throws IOException {
+            if (out == null) {
+                if (response.isCommitted()) {
+                    // the headers were already sent
+                    out = os;
+                } else {
+                    response.setHeader("Content-Encoding", contentEncoding);
+                    if (GZIP_ENCODING.equals(contentEncoding)) {
+                        out = new GZIPOutputStream(os, true);
+                    } else {
+                        out = new DeflaterOutputStream(os, true);
+                    }
+                }
+            }
+            return out;
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            getOut().write(b);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            if (len > 0) {
+                getOut().write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+            } else {
+                os.close();
+            }
+        }
+    }
+
+    /**
+     * HTTP 1.1 RFC 2616 Section 14.3: selects the content coding to use
+     * from the Accept-Encoding request header. gzip is preferred over deflate
+     * if the client accepts both with the same quality.
+     *
+     * @return gzip, deflate or null if no compression should be used
+     */
+    private String getAcceptedContentEncoding(final HttpServletRequest request) {
+        final String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return null;
+        }
+        String selected = null;
+        float selectedQuality = 0;
+        for (final String coding : acceptEncoding.split(",")) {
+            final String[] params = coding.trim().split(";");
+            final String name = params[0].trim().toLowerCase();
+            float quality = 1;
+            for (int i = 1; i < params.length; i++) {
+                final String param = params[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        quality = Float.parseFloat(param.substring(2));
+                    } catch (final NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (GZIP_ENCODING.equals(name) || "x-gzip".equals(name) || "*".equals(name)) {
+                if (quality > selectedQuality || (quality == selectedQuality && !GZIP_ENCODING.equals(selected))) {
+                    selected = GZIP_ENCODING;
+                    selectedQuality = quality;
+                }
+            } else if (DEFLATE_ENCODING.equals(name)) {
+                if (quality > selectedQuality) {
+                    selected = DEFLATE_ENCODING;
+                    selectedQuality = quality;
+                }
+            }
+        }
+        return selectedQuality > 0 ? selected : null;
+    }
+
+    /**
+     * HTTP 1.1 RFC 2616 Section 14.26: checks if the If-None-Match
+     * request header matches the given entity tag.
+     */
+    private boolean isNotModified(final HttpServletRequest request, final String etag) {
+        final String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if ("*".equals(tag) || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * @param response
      * @param encoding
@@ -1989,7 +2261,7 @@ public class RESTServer {
         attrs.addAttribute("", "permissions", "permissions", "CDATA", perm.toString());
     }
 
-    protected void writeResults(final HttpServletResponse response, final DBBroker broker,
+    protected void writeResults(final HttpServletRequest request, final HttpServletResponse response, final DBBroker broker,
             final Sequence results, int howmany, final int start, final boolean typed,
             final Properties outputProperties, final boolean wrap)
             throws BadRequestException {
@@ -2017,14 +2289,14 @@ public class RESTServer {
         final String method = outputProperties.getProperty(SERIALIZATION_METHOD_PROPERTY, "xml");
 
         if ("json".equals(method)) {
-            writeResultJSON(response, broker, results, howmany, start, outputProperties, wrap);
+            writeResultJSON(request, response, broker, results, howmany, start, outputProperties, wrap);
         } else {
-            writeResultXML(response, broker, results, howmany, start, typed, outputProperties, wrap);
+            writeResultXML(request, response, broker, results, howmany, start, typed, outputProperties, wrap);
         }
 
     }
 
-    private void writeResultXML(final HttpServletResponse response,
+    private void writeResultXML(final HttpServletRequest request, final HttpServletResponse response,
         final DBBroker broker, final Sequence results, final int howmany,
         final int start, final boolean typed, final Properties outputProperties,
         final boolean wrap) throws BadRequestException {
@@ -2051,9 +2323,12 @@ public class RESTServer {
             if (wrap) {
                 outputProperties.setProperty("method", "xml");
             }
-            final Writer writer = new OutputStreamWriter(response.getOutputStream(), encoding);
+            final Writer writer = new OutputStreamWriter(getOutputStream(request, response), encoding);
             final XQuerySerializer serializer = new XQuerySerializer(broker, outputProperties, writer);
 
+            // stream the result items to the client as they are serialized
+            serializer.setFlushInterval(writer, STREAMING_FLUSH_INTERVAL);
+
             //Marshaller.marshall(broker, results, start, howmany, serializer.getContentHandler());
             serializer.serialize(results, start, howmany, wrap, typed);
 
@@ -2062,16 +2337,18 @@ public class RESTServer {
 
         } catch (final SAXException e) {
             LOG.warn(e);
+            discardContent(response);
             throw new BadRequestException("Error while serializing xml: "
                     + e.toString(), e);
         } catch (final Exception e) {
             LOG.warn(e.getMessage(), e);
+            discardContent(response);
             throw new BadRequestException("Error while serializing xml: "
                     + e.toString(), e);
         }
     }
 
-    private void writeResultJSON(final HttpServletResponse response,
+    private void writeResultJSON(final HttpServletRequest request, final HttpServletResponse response,
         final DBBroker broker, final Sequence results, int howmany,
         int start, final Properties outputProperties, final boolean wrap)
             throws BadRequestException {
@@ -2095,7 +2372,7 @@ public class RESTServer {
         outputProperties.setProperty(Serializer.GENERATE_DOC_EVENTS, "false");
         try {
             serializer.setProperties(outputProperties);
-            final Writer writer = new OutputStreamWriter(response.getOutputStream(), outputProperties.getProperty(OutputKeys.ENCODING));
+            final Writer writer = new OutputStreamWriter(getOutputStream(request, response), outputProperties.getProperty(OutputKeys.ENCODING));
             final JSONObject root = new JSONObject();
             root.addObject(new JSONSimpleProperty("start", Integer.toString(start), true));
             root.addObject(new JSONSimpleProperty("count", Integer.toString(howmany), true));
@@ -2134,10 +2411,13 @@ public class RESTServer {
             writer.flush();
             writer.close();
         } catch (final IOException e) {
+            discardContent(response);
             throw new BadRequestException("Error while serializing xml: " + e.toString(), e);
         } catch (final SAXException e) {
+            discardContent(response);
             throw new BadRequestException("Error while serializing xml: " + e.toString(), e);
         } catch (final XPathException e) {
+            discardContent(response);
             throw new BadRequestException("Error while serializing xml: " + e.toString(), e);
         }
     }
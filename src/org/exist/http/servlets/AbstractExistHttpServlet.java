@@ -23,15 +23,18 @@ package org.exist.http.servlets;
 
 import java.io.File;
 import java.io.IOException;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.EXistException;
 import org.exist.http.urlrewrite.XQueryURLRewrite;
+import org.exist.management.AgentFactory;
 import org.exist.security.AuthenticationException;
 import java.security.Principal;
 import org.exist.security.Subject;
@@ -45,6 +48,7 @@ import org.xmldb.api.base.XMLDBException;
 import org.exist.security.SecurityManager;
 import org.exist.security.XmldbPrincipal;
 import org.exist.security.internal.AccountImpl;
+import org.exist.xquery.XQueryContext;
 
 /**
  *
@@ -55,6 +59,9 @@ public abstract class AbstractExistHttpServlet extends HttpServlet {
 	private static final long serialVersionUID = 804071766041263220L;
 
 	public final static String DEFAULT_ENCODING = "UTF-8";
+
+    /** Request attribute marking a request which has already been admitted */
+    public final static String ATTR_ADMITTED = "org.exist.http.admitted";
     
     private BrokerPool pool;
     private String formEncoding = DEFAULT_ENCODING;
@@ -64,6 +71,9 @@ public abstract class AbstractExistHttpServlet extends HttpServlet {
     private Authenticator authenticator;
     private Subject defaultUser = null;
     private boolean internalOnly = false;
+    private AdmissionController admissionController = null;
+    private AsyncRequestExecutor asyncExecutor = null;
+    private String[] priorityGroups = { SecurityManager.DBA_GROUP };
     
     @Override
     public void init(ServletConfig config) throws ServletException {
@@ -85,6 +95,9 @@ public abstract class AbstractExistHttpServlet extends HttpServlet {
     @Override
     public void destroy() {
         super.destroy();
+        if(asyncExecutor != null) {
+            asyncExecutor.shutdown();
+        }
         BrokerPool.stopAll(false);
     }
     
@@ -166,7 +179,7 @@ public abstract class AbstractExistHttpServlet extends HttpServlet {
         }
     }
     
-    private void doGeneralExistServletConfig(ServletConfig config) {
+    private void doGeneralExistServletConfig(ServletConfig config) throws ServletException {
         String option = config.getInitParameter("use-default-user");
         boolean useDefaultUser = true;
         if(option != null) {
@@ -222,6 +235,158 @@ public abstract class AbstractExistHttpServlet extends HttpServlet {
         if(param != null) {
             internalOnly = Boolean.valueOf(param);
         }
+
+        configureAdmissionControl(config);
+        configureAsyncProcessing(config);
+    }
+
+    /**
+     * If the init-param "async" is true, requests are processed on a pool of
+     * "async-threads" threads, by default as many as there are brokers, and the
+     * container thread is released. The body of the response is kept, up to
+     * "async-buffer-size" bytes in memory, and only sent to the client after the
+     * broker has been released. The servlet needs to be marked as async-supported.
+     */
+    private void configureAsyncProcessing(ServletConfig config) throws ServletException {
+        final String async = config.getInitParameter("async");
+        if(async == null || !Boolean.valueOf(async.trim())) {
+            return;
+        }
+        final String threads = config.getInitParameter("async-threads");
+        final String outputThreads = config.getInitParameter("async-output-threads");
+        final String outputQueueSize = config.getInitParameter("async-output-queue-size");
+        final String bufferSize = config.getInitParameter("async-buffer-size");
+        try {
+            final int queryThreads = threads == null ? getPool().getMax() : Integer.parseInt(threads.trim());
+            asyncExecutor = new AsyncRequestExecutor(config.getServletName(),
+                queryThreads,
+                outputThreads == null ? queryThreads : Integer.parseInt(outputThreads.trim()),
+                outputQueueSize == null ? AsyncRequestExecutor.DEFAULT_OUTPUT_QUEUE_SIZE : Integer.parseInt(outputQueueSize.trim()),
+                bufferSize == null ? 1024 * 1024 : Integer.parseInt(bufferSize.trim()));
+        } catch(final IllegalArgumentException e) {
+            throw new ServletException("Bad async parameter: " + e.getMessage(), e);
+        }
+        getLog().info("Asynchronous request processing enabled for " + config.getServletName());
+    }
+
+    /**
+     * Admission control is enabled by the init-param "max-concurrent", the number
+     * of requests the servlet executes concurrently. Further requests wait for at most
+     * "queue-timeout" milliseconds in a queue of at most "max-queue-length" entries.
+     * Requests of users in one of the comma separated "priority-groups" are admitted first.
+     */
+    private void configureAdmissionControl(ServletConfig config) throws ServletException {
+        final String maxConcurrent = config.getInitParameter("max-concurrent");
+        if(maxConcurrent == null) {
+            return;
+        }
+
+        final String maxQueueLength = config.getInitParameter("max-queue-length");
+        final String queueTimeout = config.getInitParameter("queue-timeout");
+        final AdmissionController controller;
+        try {
+            final int max = Integer.parseInt(maxConcurrent.trim());
+            if(max <= 0) {
+                return;
+            }
+            controller = new AdmissionController(
+                max,
+                maxQueueLength == null ? 100 : Integer.parseInt(maxQueueLength.trim()),
+                queueTimeout == null ? 30000 : Long.parseLong(queueTimeout.trim()));
+        } catch(final NumberFormatException e) {
+            getLog().error("Bad admission control parameter for " + config.getServletName() + ": max-concurrent=" +
+                maxConcurrent + ", max-queue-length=" + maxQueueLength + ", queue-timeout=" + queueTimeout, e);
+            throw new ServletException("Bad admission control parameter: " + e.getMessage(), e);
+        }
+
+        final String groups = config.getInitParameter("priority-groups");
+        if(groups != null) {
+            priorityGroups = groups.trim().isEmpty() ? new String[0] : groups.trim().split("\\s*,\\s*");
+        }
+
+        try {
+            AgentFactory.getInstance().addMBean(getPool().getId(), "org.exist.management." + getPool().getId() +
+                ":type=AdmissionControl,servlet=" + config.getServletName(), controller);
+        } catch(final DatabaseConfigurationException e) {
+            getLog().warn("Unable to register admission control statistics: " + e.getMessage(), e);
+        }
+
+        getLog().info("Admission control: at most " + controller.getMaxConcurrent() + " concurrent requests for " + config.getServletName());
+        admissionController = controller;
+    }
+
+    @Override
+    protected void service(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        final AdmissionController controller = admissionController;
+        final AsyncRequestExecutor executor = asyncExecutor;
+        // requests forwarded or included by an admitted request are not queued again
+        if((controller == null && executor == null) || request.getAttribute(ATTR_ADMITTED) != null) {
+            super.service(request, response);
+            return;
+        }
+
+        final boolean priority = controller != null && isPriorityRequest(request);
+        if(executor != null && request.isAsyncSupported() && request.getDispatcherType() == DispatcherType.REQUEST) {
+            // admission is awaited on a query thread, so queued requests do not hold a container thread
+            executor.execute(request, response, (req, resp) -> serviceAdmitted(controller, priority, req, resp));
+            return;
+        }
+        serviceAdmitted(controller, priority, request, response);
+    }
+
+    /**
+     * Wait for admission, if admission control is enabled, and process the request.
+     */
+    private void serviceAdmitted(final AdmissionController controller, final boolean priority,
+            final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        if(controller != null && !controller.acquire(priority)) {
+            response.setHeader("Retry-After", Long.toString(controller.getRetryAfter()));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server is busy, please retry later");
+            return;
+        }
+        request.setAttribute(ATTR_ADMITTED, Boolean.TRUE);
+        try {
+            super.service(request, response);
+        } finally {
+            request.removeAttribute(ATTR_ADMITTED);
+            if(controller != null) {
+                controller.release();
+            }
+        }
+    }
+
+    /**
+     * Only identities which are already established, i.e. a user bound to the
+     * request or session, are considered. Credentials sent with the request are
+     * not verified here, so they cannot be used to jump the queue.
+     */
+    protected boolean isPriorityRequest(HttpServletRequest request) {
+        Subject user = HttpAccount.getUserFromServletRequest(request);
+        if(user == null) {
+            final HttpSession session = request.getSession(false);
+            if(session != null) {
+                final Object attr = session.getAttribute(XQueryContext.HTTP_SESSIONVAR_XMLDB_USER);
+                if(attr instanceof Subject) {
+                    user = (Subject) attr;
+                }
+            }
+        }
+        if(user == null || !user.isAuthenticated()) {
+            return false;
+        }
+        if(user.hasDbaRole()) {
+            return true;
+        }
+        for(final String group : priorityGroups) {
+            if(user.hasGroup(group)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected AdmissionController getAdmissionController() {
+        return admissionController;
     }
     
     protected Subject authenticate(HttpServletRequest request, HttpServletResponse response) throws IOException {
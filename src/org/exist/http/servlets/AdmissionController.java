@@ -0,0 +1,228 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.http.servlets;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Limits the number of requests an HTTP endpoint executes concurrently.
+ *
+ * Requests exceeding the limit wait in a bounded FIFO queue. When a request
+ * finishes, its slot is handed to the longest waiting priority request or,
+ * if there is none, to the longest waiting normal request. A normal request
+ * is rejected right away if the queue is full; any request is rejected once
+ * it has waited longer than the queue timeout. Priority requests are never
+ * rejected because of a full queue.
+ *
+ * Rejecting early keeps excess requests from piling up in the broker pool,
+ * where they would block without ordering or timeout.
+ */
+public class AdmissionController implements AdmissionControllerMBean {
+
+    private final int maxConcurrent;
+    private final int maxQueueLength;
+    private final long queueTimeout;
+
+    private final Deque<Waiter> priorityQueue = new ArrayDeque<>();
+    private final Deque<Waiter> queue = new ArrayDeque<>();
+    private int active = 0;
+
+    private int peakQueueLength = 0;
+    private long admitted = 0;
+    private long queued = 0;
+    private long rejected = 0;
+    private long timedOut = 0;
+    private long totalWaitTime = 0;
+    private long maxWaitTime = 0;
+
+    /**
+     * @param maxConcurrent the maximum number of requests executed concurrently
+     * @param maxQueueLength the maximum number of normal requests waiting for admission
+     * @param queueTimeout the time in milliseconds a request may wait for admission
+     */
+    public AdmissionController(final int maxConcurrent, final int maxQueueLength, final long queueTimeout) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be positive");
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueueLength = Math.max(0, maxQueueLength);
+        this.queueTimeout = Math.max(0, queueTimeout);
+    }
+
+    /**
+     * Wait until the request may be executed. Every successful call
+     * has to be followed by a call to {@link #release()}.
+     *
+     * @param priority true if the request belongs to the priority class
+     * @return true if the request was admitted, false if it was rejected
+     */
+    public synchronized boolean acquire(final boolean priority) {
+        if (active < maxConcurrent && priorityQueue.isEmpty() && queue.isEmpty()) {
+            active++;
+            admitted++;
+            return true;
+        }
+        if (!priority && queue.size() >= maxQueueLength) {
+            rejected++;
+            return false;
+        }
+
+        final Waiter waiter = new Waiter();
+        final Deque<Waiter> waiters = priority ? priorityQueue : queue;
+        waiters.addLast(waiter);
+        peakQueueLength = Math.max(peakQueueLength, priorityQueue.size() + queue.size());
+
+        final long start = System.currentTimeMillis();
+        final long deadline = start + queueTimeout;
+        try {
+            while (!waiter.granted) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    waiters.remove(waiter);
+                    timedOut++;
+                    return false;
+                }
+                wait(remaining);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (waiter.granted) {
+                // pass the slot on
+                release();
+            } else {
+                waiters.remove(waiter);
+            }
+            rejected++;
+            return false;
+        }
+
+        final long waited = System.currentTimeMillis() - start;
+        admitted++;
+        queued++;
+        totalWaitTime += waited;
+        maxWaitTime = Math.max(maxWaitTime, waited);
+        return true;
+    }
+
+    /**
+     * Free the slot of a request admitted by {@link #acquire(boolean)}.
+     */
+    public synchronized void release() {
+        Waiter next = priorityQueue.pollFirst();
+        if (next == null) {
+            next = queue.pollFirst();
+        }
+        if (next == null) {
+            active--;
+        } else {
+            // the slot is handed over, active stays unchanged
+            next.granted = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of seconds after which a rejected client should retry
+     */
+    public long getRetryAfter() {
+        return Math.max(1, (queueTimeout + 999) / 1000);
+    }
+
+    @Override
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    @Override
+    public int getMaxQueueLength() {
+        return maxQueueLength;
+    }
+
+    @Override
+    public long getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    @Override
+    public synchronized int getActive() {
+        return active;
+    }
+
+    @Override
+    public synchronized int getQueueLength() {
+        return priorityQueue.size() + queue.size();
+    }
+
+    @Override
+    public synchronized int getPriorityQueueLength() {
+        return priorityQueue.size();
+    }
+
+    @Override
+    public synchronized int getPeakQueueLength() {
+        return peakQueueLength;
+    }
+
+    @Override
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    @Override
+    public synchronized long getQueued() {
+        return queued;
+    }
+
+    @Override
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public synchronized long getTimedOut() {
+        return timedOut;
+    }
+
+    @Override
+    public synchronized long getAverageWaitTime() {
+        return queued == 0 ? 0 : totalWaitTime / queued;
+    }
+
+    @Override
+    public synchronized long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    @Override
+    public synchronized void resetStatistics() {
+        peakQueueLength = priorityQueue.size() + queue.size();
+        admitted = 0;
+        queued = 0;
+        rejected = 0;
+        timedOut = 0;
+        totalWaitTime = 0;
+        maxWaitTime = 0;
+    }
+
+    private final static class Waiter {
+        boolean granted = false;
+    }
+}
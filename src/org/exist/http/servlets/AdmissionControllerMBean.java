@@ -0,0 +1,87 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.http.servlets;
+
+/**
+ * Statistics of the admission control of an HTTP endpoint.
+ */
+public interface AdmissionControllerMBean {
+
+    public int getMaxConcurrent();
+
+    public int getMaxQueueLength();
+
+    /**
+     * @return the time in milliseconds a request may wait for admission
+     */
+    public long getQueueTimeout();
+
+    /**
+     * @return the number of requests currently executing
+     */
+    public int getActive();
+
+    /**
+     * @return the number of requests currently waiting for admission
+     */
+    public int getQueueLength();
+
+    /**
+     * @return the number of priority requests currently waiting for admission
+     */
+    public int getPriorityQueueLength();
+
+    /**
+     * @return the highest number of waiting requests seen
+     */
+    public int getPeakQueueLength();
+
+    /**
+     * @return the number of requests admitted
+     */
+    public long getAdmitted();
+
+    /**
+     * @return the number of admitted requests which had to wait
+     */
+    public long getQueued();
+
+    /**
+     * @return the number of requests rejected because the queue was full
+     */
+    public long getRejected();
+
+    /**
+     * @return the number of requests rejected because they waited longer than the queue timeout
+     */
+    public long getTimedOut();
+
+    /**
+     * @return the average time in milliseconds waited by requests which had to wait
+     */
+    public long getAverageWaitTime();
+
+    /**
+     * @return the longest time in milliseconds a request waited
+     */
+    public long getMaxWaitTime();
+
+    public void resetStatistics();
+}
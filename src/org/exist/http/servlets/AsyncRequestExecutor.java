@@ -0,0 +1,194 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.http.servlets;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Processes HTTP requests asynchronously, so that the container thread is
+ * returned to the servlet container right away.
+ *
+ * A request is processed in two stages. The query stage runs the servlet
+ * on a thread of a fixed size pool and keeps the body of the response in a
+ * {@link BufferedResponse}. Once the servlet has returned, the broker and
+ * any other resources it used have been released and the completion
+ * The output stage then sends the body to the client on a separate, bounded
+ * pool, so slow clients only hold an output thread and the buffered body,
+ * neither a broker nor a query thread. If all output threads are busy and
+ * the output queue is full, the request is answered with 503 Service Unavailable.
+ */
+public class AsyncRequestExecutor {
+
+    private final static Logger LOG = LogManager.getLogger(AsyncRequestExecutor.class);
+
+    /** Default number of responses waiting for an output thread */
+    public final static int DEFAULT_OUTPUT_QUEUE_SIZE = 1024;
+
+    /**
+     * Runs the actual processing of a request.
+     */
+    public interface Handler {
+        void handle(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException;
+    }
+
+    private final ExecutorService queryExecutor;
+    private final ExecutorService outputExecutor;
+    private final int maxMemory;
+
+    /**
+     * @param name the name used for the threads
+     * @param threads the number of requests processed concurrently
+     * @param outputThreads the number of responses sent concurrently
+     * @param outputQueueSize the number of responses waiting for an output thread
+     * @param maxMemory the number of bytes of a response body kept in memory
+     */
+    public AsyncRequestExecutor(final String name, final int threads, final int outputThreads,
+            final int outputQueueSize, final int maxMemory) {
+        this.queryExecutor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("AsyncQuery-" + name));
+        final ThreadPoolExecutor output = new ThreadPoolExecutor(outputThreads, outputThreads, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(outputQueueSize), new NamedThreadFactory("AsyncOutput-" + name));
+        output.allowCoreThreadTimeOut(true);
+        this.outputExecutor = output;
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Start asynchronous processing of the request. The request must support
+     * asynchronous processing. The handler is expected to release the broker
+     * and any other resources before it returns, the body is sent afterwards.
+     *
+     * @param handler processes the request
+     */
+    public void execute(final HttpServletRequest request, final HttpServletResponse response, final Handler handler) {
+        final AsyncContext context = request.startAsync(request, response);
+        // queries are limited by the XQuery watchdog
+        context.setTimeout(0);
+        try {
+            queryExecutor.execute(() -> process(context, request, response, handler));
+        } catch (final RejectedExecutionException e) {
+            try {
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server is shutting down");
+            } catch (final IOException ioe) {
+                LOG.debug(ioe.getMessage(), ioe);
+            }
+            context.complete();
+        }
+    }
+
+    private void process(final AsyncContext context, final HttpServletRequest request,
+            final HttpServletResponse response, final Handler handler) {
+        final BufferedResponse buffered = new BufferedResponse(response, maxMemory);
+        boolean success = false;
+        try {
+            handler.handle(request, buffered);
+            success = true;
+        } catch (final Throwable e) {
+            LOG.error("Error while processing " + request.getRequestURI() + ": " + e.getMessage(), e);
+        }
+
+        if (!success) {
+            buffered.discard();
+            try {
+                if (!response.isCommitted()) {
+                    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            } catch (final IOException e) {
+                LOG.debug(e.getMessage(), e);
+            }
+            context.complete();
+            return;
+        }
+
+        try {
+            outputExecutor.execute(() -> write(context, response, buffered));
+        } catch (final RejectedExecutionException e) {
+            if (outputExecutor.isShutdown()) {
+                // requests already accepted are finished
+                write(context, response, buffered);
+                return;
+            }
+            LOG.warn("Output queue is full, rejecting response to " + request.getRequestURI());
+            buffered.discard();
+            try {
+                if (!response.isCommitted()) {
+                    response.reset();
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server is busy, please retry later");
+                }
+            } catch (final IOException ioe) {
+                LOG.debug(ioe.getMessage(), ioe);
+            }
+            context.complete();
+        }
+    }
+
+    private void write(final AsyncContext context, final HttpServletResponse response, final BufferedResponse buffered) {
+        try {
+            buffered.writeTo(response.getOutputStream());
+        } catch (final IOException e) {
+            LOG.debug("Unable to send response: " + e.getMessage(), e);
+        } finally {
+            buffered.discard();
+            context.complete();
+        }
+    }
+
+    /**
+     * Stop accepting requests. Requests already accepted are finished.
+     */
+    public void shutdown() {
+        queryExecutor.shutdown();
+        outputExecutor.shutdown();
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private int id = 0;
+
+        NamedThreadFactory(final String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, prefix + "-" + getId());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+        private synchronized int getId() {
+            return id++;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.http.servlets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.exist.util.io.TemporaryFileManager;
+
+/**
+ * A response which keeps the body instead of sending it to the client, so
+ * that the resources used to produce it can be released before the client
+ * has received it. The body is held in memory up to a limit and in a
+ * temporary file beyond.
+ *
+ * Headers and status are passed to the wrapped response immediately.
+ * {@link #sendError(int)} and {@link #sendRedirect(String)} discard the
+ * body kept so far and are passed on as well; later output is ignored.
+ */
+public class BufferedResponse extends HttpServletResponseWrapper {
+
+    private final int maxMemory;
+
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream(4096);
+    private File file = null;
+    private OutputStream fileOut = null;
+
+    private ServletOutputStream out = null;
+    private PrintWriter writer = null;
+    private boolean bypassed = false;
+
+    /**
+     * @param response the response to send the body to
+     * @param maxMemory the number of bytes kept in memory before a temporary file is used
+     */
+    public BufferedResponse(final HttpServletResponse response, final int maxMemory) {
+        super(response);
+        this.maxMemory = maxMemory;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (out == null) {
+            out = new ServletOutputStream() {
+                @Override
+                public void write(final int b) throws IOException {
+                    stream(1).write(b);
+                }
+
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    stream(len).write(b, off, len);
+                }
+            };
+        }
+        return out;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    /**
+     * The body is kept until {@link #writeTo(OutputStream)}, so flushing
+     * does not commit the response.
+     */
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        super.resetBuffer();
+        clear();
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        clear();
+    }
+
+    @Override
+    public void sendError(final int sc, final String msg) throws IOException {
+        bypass();
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendError(final int sc) throws IOException {
+        bypass();
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendRedirect(final String location) throws IOException {
+        bypass();
+        super.sendRedirect(location);
+    }
+
+    /**
+     * @return the number of bytes kept
+     */
+    public long getSize() {
+        if (writer != null) {
+            writer.flush();
+        }
+        return file != null ? file.length() : memory.size();
+    }
+
+    /**
+     * Send the body kept to the given stream, usually the output stream of the
+     * wrapped response. Nothing is sent if the response was bypassed by an error
+     * or redirect.
+     */
+    public void writeTo(final OutputStream os) throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (bypassed) {
+            return;
+        }
+        if (fileOut != null) {
+            fileOut.close();
+            fileOut = null;
+        }
+        if (file != null) {
+            try (final InputStream is = new BufferedInputStream(new FileInputStream(file))) {
+                IOUtils.copy(is, os);
+            }
+        } else {
+            memory.writeTo(os);
+        }
+        os.flush();
+    }
+
+    /**
+     * Release the memory and temporary file used by the body.
+     */
+    public void discard() {
+        clear();
+        memory = null;
+    }
+
+    private OutputStream stream(final int len) throws IOException {
+        if (bypassed) {
+            // like the container, ignore output after an error or redirect
+            return NullOutputStream.NULL_OUTPUT_STREAM;
+        }
+        if (file == null && memory.size() + len > maxMemory) {
+            file = TemporaryFileManager.getInstance().getTemporaryFile();
+            fileOut = new BufferedOutputStream(new FileOutputStream(file));
+            memory.writeTo(fileOut);
+            memory = new ByteArrayOutputStream(0);
+        }
+        return file != null ? fileOut : memory;
+    }
+
+    private void bypass() {
+        clear();
+        bypassed = true;
+    }
+
+    private void clear() {
+        // drop characters not yet encoded
+        writer = null;
+        if (fileOut != null) {
+            try {
+                fileOut.close();
+            } catch (final IOException e) {
+                // nothing to do
+            }
+            fileOut = null;
+        }
+        if (file != null) {
+            TemporaryFileManager.getInstance().returnTemporaryFile(file);
+            file = null;
+        }
+        if (memory != null) {
+            memory.reset();
+        }
+    }
+}
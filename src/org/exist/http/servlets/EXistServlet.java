@@ -74,9 +74,15 @@ public class EXistServlet extends AbstractExistHttpServlet {
             useDynamicContentType = "no";
         }
 
+        String compression = config.getInitParameter("compression");
+        if (compression == null) {
+            compression = "no";
+        }
+
         // Instantiate REST Server
         srvREST = new RESTServer(getPool(), getFormEncoding(), getContainerEncoding(), useDynamicContentType.equalsIgnoreCase("yes")
-                || useDynamicContentType.equalsIgnoreCase("true"), isInternalOnly());
+                || useDynamicContentType.equalsIgnoreCase("true"), isInternalOnly(),
+                compression.equalsIgnoreCase("yes") || compression.equalsIgnoreCase("true"));
 
         // XML lib checks....
         XmlLibraryChecker.check();
@@ -49,6 +49,9 @@ public class ControllerForward extends URLRewrite {
      */
 	private String serverName = null;
 
+	/** declarative routes tried before the controller.xql, or null */
+	private RouteTable routes = null;
+
     public ControllerForward(Element config, String uri) {
         super(config, uri);
         this.target = config.getAttribute("path");
@@ -57,6 +60,7 @@ public class ControllerForward extends URLRewrite {
     public ControllerForward(ControllerForward other) {
         super(other);
         this.serverName = other.serverName;
+        this.routes = other.routes;
     }
 
     @Override
@@ -101,6 +105,14 @@ public class ControllerForward extends URLRewrite {
 		return serverName;
 	}
 
+	public void setRoutes(RouteTable routes) {
+		this.routes = routes;
+	}
+
+	public RouteTable getRoutes() {
+		return routes;
+	}
+
     @Override
     protected URLRewrite copy() {
         return new ControllerForward(this);
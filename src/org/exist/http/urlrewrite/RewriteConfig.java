@@ -258,6 +258,7 @@ public class RewriteConfig {
         	if (serverName != null && serverName.length() > 0) {
         		cf.setServerName(serverName);
         	}
+        	cf.setRoutes(RouteTable.parse(config, action));
             rewrite = cf;
         }
         return rewrite;
@@ -0,0 +1,348 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.http.urlrewrite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+
+import org.exist.Namespaces;
+import org.w3c.dom.Element;
+
+/**
+ * Declarative routes of a controller root, defined by route elements inside
+ * a root element in controller-config.xml:
+ *
+ * <pre>
+ * &lt;root pattern="/apps/myapp" path="xmldb:exist:///db/apps/myapp"&gt;
+ *     &lt;route path="/"&gt;&lt;redirect url="index.html"/&gt;&lt;/route&gt;
+ *     &lt;route path="/users/{id}" method="GET"&gt;
+ *         &lt;forward url="/modules/user.xql"&gt;
+ *             &lt;add-parameter name="id" value="{id}"/&gt;
+ *         &lt;/forward&gt;
+ *     &lt;/route&gt;
+ *     &lt;route path="/resources/**"&gt;&lt;ignore/&gt;&lt;/route&gt;
+ * &lt;/root&gt;
+ * </pre>
+ *
+ * A route path is matched against the request path below the root. Its
+ * segments are either literals, templates like {id} matching any single
+ * segment, or a final ** matching all remaining segments. A route contains
+ * the same actions as the dispatch element returned by a controller.xql:
+ * forward, redirect, ignore, view and error-handler. Placeholders {name}
+ * in their attributes are replaced by the matched template segments, {**}
+ * by the segments matched by **, and {$exist:path}, {$exist:resource},
+ * {$exist:prefix}, {$exist:root} and {$exist:context} by the values the
+ * controller would see.
+ *
+ * The routes are compiled into a trie of path segments. Literal segments
+ * are tried before templates and templates before **; among routes for
+ * the same path, the first one declared for the request method wins.
+ * Matching requires neither a broker nor a query. If no route matches,
+ * the request is passed to the controller.xql.
+ */
+public class RouteTable {
+
+    public final static String ROUTE_ELEMENT = "route";
+    public final static String TAIL = "**";
+
+    private final Node root = new Node();
+
+    /**
+     * @param config the servlet config used for forwards
+     * @param parent the element containing the route elements
+     * @return the routes or null if the element does not contain routes
+     */
+    public static RouteTable parse(final ServletConfig config, final Element parent) throws ServletException {
+        RouteTable table = null;
+        org.w3c.dom.Node child = parent.getFirstChild();
+        while (child != null) {
+            if (child.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE && Namespaces.EXIST_NS.equals(child.getNamespaceURI()) &&
+                    ROUTE_ELEMENT.equals(child.getLocalName())) {
+                if (table == null) {
+                    table = new RouteTable();
+                }
+                table.add(parseRoute(config, (Element) child));
+            }
+            child = child.getNextSibling();
+        }
+        return table;
+    }
+
+    private static Route parseRoute(final ServletConfig config, final Element elem) throws ServletException {
+        final String path = elem.getAttribute("path");
+        if (path == null || path.length() == 0) {
+            throw new ServletException("Route in controller-config.xml has no path");
+        }
+        final String method = elem.getAttribute("method");
+        final Route route = new Route(path, method == null || method.length() == 0 ? null : method.toUpperCase());
+
+        org.w3c.dom.Node node = elem.getFirstChild();
+        while (node != null) {
+            if (node.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE && Namespaces.EXIST_NS.equals(node.getNamespaceURI())) {
+                final Element action = (Element) node;
+                final String name = action.getLocalName();
+                if ("view".equals(name)) {
+                    parseActions(config, action, path, route.views);
+                } else if ("error-handler".equals(name)) {
+                    parseActions(config, action, path, route.errorHandlers);
+                } else if ("ignore".equals(name)) {
+                    route.model = null;
+                } else {
+                    final URLRewrite rewrite = parseAction(config, action, path);
+                    if (rewrite == null) {
+                        throw new ServletException("Unknown action in route " + path + ": " + name);
+                    }
+                    route.model = rewrite;
+                }
+            }
+            node = node.getNextSibling();
+        }
+        return route;
+    }
+
+    private static void parseActions(final ServletConfig config, final Element parent, final String path,
+            final List<URLRewrite> actions) throws ServletException {
+        org.w3c.dom.Node node = parent.getFirstChild();
+        while (node != null) {
+            if (node.getNodeType() == org.w3c.dom.Node.ELEMENT_NODE && Namespaces.EXIST_NS.equals(node.getNamespaceURI())) {
+                final URLRewrite rewrite = parseAction(config, (Element) node, path);
+                if (rewrite != null) {
+                    actions.add(rewrite);
+                }
+            }
+            node = node.getNextSibling();
+        }
+    }
+
+    private static URLRewrite parseAction(final ServletConfig config, final Element action, final String path) throws ServletException {
+        if ("forward".equals(action.getLocalName())) {
+            return new PathForward(config, action, path);
+        } else if ("redirect".equals(action.getLocalName())) {
+            return new Redirect(action, path);
+        }
+        return null;
+    }
+
+    void add(final Route route) throws ServletException {
+        final String[] segments = split(route.path);
+        Node node = root;
+        for (int i = 0; i < segments.length; i++) {
+            final String segment = segments[i];
+            if (TAIL.equals(segment)) {
+                if (i != segments.length - 1) {
+                    throw new ServletException("** has to be the last segment of route " + route.path);
+                }
+                node.tailRoutes.add(route);
+                return;
+            }
+            if (segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}') {
+                final String name = segment.substring(1, segment.length() - 1);
+                Node child = node.templates.get(name);
+                if (child == null) {
+                    child = new Node();
+                    node.templates.put(name, child);
+                    node.templateNames.add(name);
+                }
+                node = child;
+            } else {
+                Node child = node.literals.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    node.literals.put(segment, child);
+                }
+                node = child;
+            }
+        }
+        node.routes.add(route);
+    }
+
+    /**
+     * Find the route for a request.
+     *
+     * @param method the request method
+     * @param path the request path below the root
+     * @return the route and the values of its templates or null if no route matches
+     */
+    public Match match(final String method, final String path) {
+        final String[] segments = split(path);
+        final Map<String, String> parameters = new HashMap<>();
+        final Route route = match(root, segments, 0, method, parameters);
+        return route == null ? null : new Match(route, parameters);
+    }
+
+    private Route match(final Node node, final String[] segments, final int pos, final String method,
+            final Map<String, String> parameters) {
+        if (pos == segments.length) {
+            final Route route = select(node.routes, method);
+            if (route != null) {
+                return route;
+            }
+        } else {
+            final Node literal = node.literals.get(segments[pos]);
+            if (literal != null) {
+                final Route route = match(literal, segments, pos + 1, method, parameters);
+                if (route != null) {
+                    return route;
+                }
+            }
+            if (segments[pos].length() > 0) {
+                for (final String name : node.templateNames) {
+                    final String previous = parameters.put(name, segments[pos]);
+                    final Route route = match(node.templates.get(name), segments, pos + 1, method, parameters);
+                    if (route != null) {
+                        return route;
+                    }
+                    if (previous == null) {
+                        parameters.remove(name);
+                    } else {
+                        parameters.put(name, previous);
+                    }
+                }
+            }
+        }
+        final Route route = select(node.tailRoutes, method);
+        if (route != null) {
+            final StringBuilder tail = new StringBuilder();
+            for (int i = pos; i < segments.length; i++) {
+                if (i > pos) {
+                    tail.append('/');
+                }
+                tail.append(segments[i]);
+            }
+            parameters.put(TAIL, tail.toString());
+        }
+        return route;
+    }
+
+    private static Route select(final List<Route> routes, final String method) {
+        for (final Route route : routes) {
+            if (route.method == null || route.method.equalsIgnoreCase(method)) {
+                return route;
+            }
+        }
+        return null;
+    }
+
+    private static String[] split(String path) {
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        if (path.length() == 0) {
+            return new String[0];
+        }
+        return path.split("/", -1);
+    }
+
+    /**
+     * Replace the placeholders {name} in the given string by the values of the
+     * variables. Placeholders of unknown variables are left untouched.
+     */
+    static String expand(final String str, final Map<String, String> variables) {
+        if (str == null || str.indexOf('{') < 0) {
+            return str;
+        }
+        final StringBuilder result = new StringBuilder(str.length() + 16);
+        int pos = 0;
+        while (pos < str.length()) {
+            final int start = str.indexOf('{', pos);
+            final int end = start < 0 ? -1 : str.indexOf('}', start + 1);
+            if (end < 0) {
+                result.append(str, pos, str.length());
+                break;
+            }
+            final String value = variables.get(str.substring(start + 1, end));
+            if (value == null) {
+                result.append(str, pos, end + 1);
+            } else {
+                result.append(str, pos, start).append(value);
+            }
+            pos = end + 1;
+        }
+        return result.toString();
+    }
+
+    private final static class Node {
+        final Map<String, Node> literals = new HashMap<>();
+        final Map<String, Node> templates = new HashMap<>();
+        final List<String> templateNames = new ArrayList<>(1);
+        final List<Route> routes = new ArrayList<>(1);
+        final List<Route> tailRoutes = new ArrayList<>(1);
+    }
+
+    /**
+     * A route: the model, views and error handlers used for the matching requests.
+     * The model is null if the request should be passed through.
+     */
+    public final static class Route {
+        final String path;
+        final String method;
+        URLRewrite model = null;
+        final List<URLRewrite> views = new ArrayList<>();
+        final List<URLRewrite> errorHandlers = new ArrayList<>();
+
+        Route(final String path, final String method) {
+            this.path = path;
+            this.method = method;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public URLRewrite getModel() {
+            return model;
+        }
+
+        public List<URLRewrite> getViews() {
+            return Collections.unmodifiableList(views);
+        }
+
+        public List<URLRewrite> getErrorHandlers() {
+            return Collections.unmodifiableList(errorHandlers);
+        }
+    }
+
+    public final static class Match {
+        private final Route route;
+        private final Map<String, String> parameters;
+
+        Match(final Route route, final Map<String, String> parameters) {
+            this.route = route;
+            this.parameters = parameters;
+        }
+
+        public Route getRoute() {
+            return route;
+        }
+
+        /**
+         * @return the values of the templates of the route, and of ** under the key "**"
+         */
+        public Map<String, String> getParameters() {
+            return parameters;
+        }
+    }
+}
@@ -151,6 +151,39 @@ public abstract class URLRewrite {
 
     protected abstract URLRewrite copy();
 
+    /**
+     * Create a copy of this rewrite rule for the given request URI, with the
+     * placeholders in the target, parameters, attributes and headers replaced.
+     *
+     * @see RouteTable#expand(String, Map)
+     */
+    protected URLRewrite expand(String requestURI, Map<String, String> variables) {
+        final URLRewrite rewrite = copy();
+        rewrite.copyFrom(this);
+        rewrite.uri = requestURI;
+        rewrite.target = RouteTable.expand(target, variables);
+        if (rewrite.parameters != null) {
+            for (final List<String> values : rewrite.parameters.values()) {
+                for (int i = 0; i < values.size(); i++) {
+                    values.set(i, RouteTable.expand(values.get(i), variables));
+                }
+            }
+        }
+        if (rewrite.attributes != null) {
+            for (final Map.Entry<String, String> entry : rewrite.attributes.entrySet()) {
+                if (!entry.getValue().equals(UNSET)) {
+                    entry.setValue(RouteTable.expand(entry.getValue(), variables));
+                }
+            }
+        }
+        if (rewrite.headers != null) {
+            for (final Map.Entry<String, String> entry : rewrite.headers.entrySet()) {
+                entry.setValue(RouteTable.expand(entry.getValue(), variables));
+            }
+        }
+        return rewrite;
+    }
+
     private void setHeader(String key, String value) {
         if(headers == null) {
             headers = new HashMap<String, String>();
@@ -231,10 +231,16 @@ public class XQueryURLRewrite extends HttpServlet {
                     staticRewrite.updateRequest(modifiedRequest);
                 }
 
-                // check if the request URI is already in the url cache
-                ModelAndView modelView = getFromCache(
+                // try the declarative routes of the root first, then the url cache
+                ModelAndView modelView = null;
+                if (staticRewrite instanceof ControllerForward) {
+                    modelView = route((ControllerForward) staticRewrite, request, modifiedRequest);
+                }
+                if (modelView == null) {
+                    modelView = getFromCache(
                 		request.getHeader("Host") + request.getRequestURI(),
                 		user);
+                }
                 
                 if (LOG.isDebugEnabled()) {
                 	LOG.debug(
@@ -573,6 +579,68 @@ public class XQueryURLRewrite extends HttpServlet {
         return rewrite;
     }
 
+    /**
+     * Look up the request in the routes declared for the root in controller-config.xml.
+     *
+     * @return the model and views of the matching route or null if the controller.xql
+     *  has to be run
+     */
+    private ModelAndView route(ControllerForward root, HttpServletRequest request, RequestWrapper modifiedRequest) {
+        final RouteTable routes = root.getRoutes();
+        if (routes == null) {
+            return null;
+        }
+        String path = modifiedRequest.getInContextPath();
+        final int p = path.lastIndexOf(';');
+        if (p != Constants.STRING_NOT_FOUND) {
+            path = path.substring(0, p);
+        }
+        final RouteTable.Match match = routes.match(modifiedRequest.getMethod(), path);
+        if (match == null) {
+            return null;
+        }
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Request " + request.getRequestURI() + " matches route " + match.getRoute().getPath());
+        }
+
+        String resource = "";
+        final Matcher nameMatcher = NAME_REGEX.matcher(path);
+        if (nameMatcher.matches()) {
+            resource = nameMatcher.group(1);
+        }
+        final String prefix = root.getPrefix() == null ? "" : root.getPrefix();
+        final Map<String, String> variables = new HashMap<String, String>(match.getParameters());
+        variables.put("$exist:path", path);
+        variables.put("$exist:resource", resource);
+        variables.put("$exist:prefix", prefix);
+        variables.put("$exist:root", root.getTarget());
+        variables.put("$exist:context", request.getContextPath());
+        variables.put("$exist:controller", "");
+        for (final Map.Entry<String, String> variable : variables.entrySet()) {
+            if (variable.getKey().startsWith("$exist:")) {
+                modifiedRequest.setAttribute(variable.getKey(), variable.getValue());
+            }
+        }
+
+        final RouteTable.Route route = match.getRoute();
+        final ModelAndView modelView = new ModelAndView();
+        if (route.getModel() == null) {
+            modelView.setModel(new PassThrough(config, modifiedRequest));
+        } else {
+            modelView.setModel(route.getModel().expand(request.getRequestURI(), variables));
+        }
+        for (final URLRewrite view : route.getViews()) {
+            modelView.addView(view.expand(request.getRequestURI(), variables));
+        }
+        for (final URLRewrite handler : route.getErrorHandlers()) {
+            modelView.addErrorHandler(handler.expand(request.getRequestURI(), variables));
+        }
+
+        modifiedRequest.setAttribute(RQ_ATTR_REQUEST_URI, request.getRequestURI());
+        modifiedRequest.setAttribute(RQ_ATTR_SERVLET_PATH, request.getServletPath());
+        return modelView;
+    }
+
     private void parseViews(HttpServletRequest request, Element view, ModelAndView modelView) throws ServletException {
         Node node = view.getFirstChild();
         while (node != null) {
@@ -115,6 +115,21 @@ public class IndexController {
         return null;
     }
 
+    /**
+     * Returns the first {@link org.exist.indexing.IndexWorker} instance implementing
+     * the given interface, e.g. {@link org.exist.indexing.SortKeyIndex}.
+     *
+     * @param type the interface
+     * @return instance of index worker or null if no index implements the interface
+     */
+    public <T> T getWorkerByType(Class<T> type) {
+        for (final IndexWorker worker : indexWorkers.values()) {
+            if (type.isInstance(worker))
+                {return type.cast(worker);}
+        }
+        return null;
+    }
+
     /**
      * Sets the document for the next operation.
      * 
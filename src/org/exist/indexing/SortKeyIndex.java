@@ -0,0 +1,54 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.indexing;
+
+import org.exist.dom.persistent.NodeProxy;
+
+/**
+ * Indexes that store a precomputed sort key for the nodes they index should implement this
+ * interface. "order by" clauses use the keys instead of atomizing and comparing the string
+ * values of the nodes they sort on.
+ *
+ * Sort keys are ordered like the string values of their nodes in the default (codepoint)
+ * collation: if the keys of two nodes differ, they compare like the string values. If they
+ * are equal and {@link #isExact(long)} is false, the keys are only an abbreviation of the
+ * values and the values have to be compared.
+ */
+public interface SortKeyIndex extends IndexWorker {
+
+    /**
+     * Returned by {@link #getSortKey(NodeProxy)} if the node has no sort key
+     */
+    public static final long NO_KEY = Long.MIN_VALUE;
+
+    /**
+     * Returns the sort key of the given node.
+     *
+     * @param node the node
+     * @return the sort key or {@link #NO_KEY} if the node is not indexed
+     */
+    public long getSortKey(NodeProxy node);
+
+    /**
+     * @param key a sort key returned by {@link #getSortKey(NodeProxy)}
+     * @return true if nodes having this key have the same string value
+     */
+    public boolean isExact(long key);
+}
@@ -0,0 +1,96 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.management;
+
+public class CollectionCache implements CollectionCacheMBean {
+
+    private final org.exist.collections.CollectionCache cache;
+
+    public CollectionCache(org.exist.collections.CollectionCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public int getSize() {
+        synchronized (cache) {
+            return cache.getBuffers();
+        }
+    }
+
+    @Override
+    public int getUsed() {
+        synchronized (cache) {
+            return cache.getUsedBuffers();
+        }
+    }
+
+    @Override
+    public long getMaxMemory() {
+        return cache.getMaxSize();
+    }
+
+    @Override
+    public long getUsedMemory() {
+        synchronized (cache) {
+            return cache.getCurrentSize();
+        }
+    }
+
+    @Override
+    public long getHits() {
+        synchronized (cache) {
+            return cache.getHitCount();
+        }
+    }
+
+    @Override
+    public long getMisses() {
+        synchronized (cache) {
+            return cache.getMissCount();
+        }
+    }
+
+    @Override
+    public long getEvictions() {
+        synchronized (cache) {
+            return cache.getEvictions();
+        }
+    }
+
+    @Override
+    public long getLoads() {
+        synchronized (cache) {
+            return cache.getLoads();
+        }
+    }
+
+    @Override
+    public double getAverageLoadTime() {
+        synchronized (cache) {
+            final long loads = cache.getLoads();
+            return loads == 0 ? 0 : cache.getLoadTime() / (loads * 1000000.0);
+        }
+    }
+
+    @Override
+    public String[] getPinned() {
+        return cache.getPinned();
+    }
+}
@@ -85,11 +85,13 @@ public class JMXtoXML {
             CATEGORIES.put("caches", new ObjectName[]{
                 new ObjectName("org.exist.management.exist:type=CacheManager"),
                 new ObjectName("org.exist.management.exist:type=CollectionCacheManager"),
-                new ObjectName("org.exist.management.exist:type=CacheManager.Cache,*")
+                new ObjectName("org.exist.management.exist:type=CacheManager.Cache,*"),
+                new ObjectName("org.exist.management.*:type=XQueryPool")
             });
             CATEGORIES.put("locking", new ObjectName[]{new ObjectName("org.exist.management:type=LockManager")});
             CATEGORIES.put("processes", new ObjectName[]{new ObjectName("org.exist.management.*:type=ProcessReport")});
             CATEGORIES.put("sanity", new ObjectName[]{new ObjectName("org.exist.management.*.tasks:type=SanityReport")});
+            CATEGORIES.put("defragmentation", new ObjectName[]{new ObjectName("org.exist.management.*:type=Defragmentation")});
 
             // Jetty
             CATEGORIES.put("jetty.threads", new ObjectName[] { new ObjectName("org.eclipse.jetty.util.thread:type=queuedthreadpool,id=0")});
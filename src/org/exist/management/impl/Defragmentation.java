@@ -0,0 +1,124 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.management.impl;
+
+import java.util.Map;
+
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.FragmentationTracker;
+import org.exist.xmldb.XmldbURI;
+
+public class Defragmentation implements DefragmentationMBean {
+
+    private final static Logger LOG = LogManager.getLogger(Defragmentation.class);
+
+    private static String[] itemNames = { "collection", "documents", "splits", "maxSplits", "pages" };
+    private static String[] itemDescriptions = {
+        "Collection path",
+        "Number of fragmented documents in the collection",
+        "Total number of page splits of the fragmented documents",
+        "Highest number of page splits of a single document",
+        "Total number of pages used by the fragmented documents"
+    };
+    private static String[] indexNames = { "collection" };
+
+    private final BrokerPool pool;
+
+    public Defragmentation(final BrokerPool pool) {
+        this.pool = pool;
+    }
+
+    private FragmentationTracker getTracker() {
+        return pool.getFragmentationTracker();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        final FragmentationTracker tracker = getTracker();
+        return tracker != null && tracker.isEnabled();
+    }
+
+    @Override
+    public int getFragmentedDocuments() {
+        final FragmentationTracker tracker = getTracker();
+        return tracker == null ? 0 : tracker.size();
+    }
+
+    @Override
+    public long getDefragmentedDocuments() {
+        final FragmentationTracker tracker = getTracker();
+        return tracker == null ? 0 : tracker.getDefragmentedCount();
+    }
+
+    @Override
+    public long getPagesRewritten() {
+        final FragmentationTracker tracker = getTracker();
+        return tracker == null ? 0 : tracker.getPagesRewritten();
+    }
+
+    @Override
+    public long getDefragmentationTime() {
+        final FragmentationTracker tracker = getTracker();
+        return tracker == null ? 0 : tracker.getDefragmentationTime();
+    }
+
+    @Override
+    public long getLastRun() {
+        final FragmentationTracker tracker = getTracker();
+        return tracker == null ? 0 : tracker.getLastRun();
+    }
+
+    @Override
+    public TabularData getCollections() {
+        final FragmentationTracker tracker = getTracker();
+        if (tracker == null) {
+            return null;
+        }
+        final OpenType<?>[] itemTypes = { SimpleType.STRING, SimpleType.INTEGER, SimpleType.LONG, SimpleType.INTEGER, SimpleType.LONG };
+        try {
+            final CompositeType infoType = new CompositeType("fragmentedCollection",
+                "Fragmentation statistics of a collection", itemNames, itemDescriptions, itemTypes);
+            final TabularType tabularType = new TabularType("fragmentedCollections",
+                "Collections containing documents waiting for defragmentation", infoType, indexNames);
+            final TabularDataSupport data = new TabularDataSupport(tabularType);
+            for (final Map.Entry<XmldbURI, FragmentationTracker.CollectionStatistics> entry : tracker.getCollectionStatistics().entrySet()) {
+                final FragmentationTracker.CollectionStatistics stats = entry.getValue();
+                final Object[] itemValues = { entry.getKey().toString(), stats.getDocumentCount(),
+                    stats.getSplitCount(), stats.getMaxSplitCount(), stats.getPageCount() };
+                data.put(new CompositeDataSupport(infoType, itemNames, itemValues));
+            }
+            return data;
+        } catch (final OpenDataException e) {
+            LOG.warn(e.getMessage(), e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.management.impl;
+
+import javax.management.openmbean.TabularData;
+
+/**
+ * Statistics of the background defragmentation.
+ */
+public interface DefragmentationMBean {
+
+    public boolean isEnabled();
+
+    /**
+     * @return the number of documents waiting for defragmentation
+     */
+    public int getFragmentedDocuments();
+
+    /**
+     * @return the number of documents defragmented in the background
+     */
+    public long getDefragmentedDocuments();
+
+    public long getPagesRewritten();
+
+    /**
+     * @return the total time spent defragmenting documents in milliseconds
+     */
+    public long getDefragmentationTime();
+
+    public long getLastRun();
+
+    /**
+     * @return fragmentation statistics for every collection containing
+     * documents waiting for defragmentation
+     */
+    public TabularData getCollections();
+}
@@ -0,0 +1,97 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.management.impl;
+
+import org.exist.storage.BrokerPool;
+
+public class XQueryPool implements XQueryPoolMBean {
+
+    private final BrokerPool pool;
+
+    public XQueryPool(final BrokerPool pool) {
+        this.pool = pool;
+    }
+
+    private org.exist.storage.XQueryPool getPool() {
+        return pool.getXQueryPool();
+    }
+
+    @Override
+    public int getSize() {
+        final org.exist.storage.XQueryPool xqueryPool = getPool();
+        return xqueryPool == null ? 0 : xqueryPool.size();
+    }
+
+    @Override
+    public int getQueryCount() {
+        final org.exist.storage.XQueryPool xqueryPool = getPool();
+        return xqueryPool == null ? 0 : xqueryPool.getQueryCount();
+    }
+
+    @Override
+    public int getMaxSize() {
+        final org.exist.storage.XQueryPool xqueryPool = getPool();
+        return xqueryPool == null ? 0 : xqueryPool.getMaxPoolSize();
+    }
+
+    @Override
+    public int getMaxStackSize() {
+        final org.exist.storage.XQueryPool xqueryPool = getPool();
+        return xqueryPool == null ? 0 : xqueryPool.getMaxStackSize();
+    }
+
+    @Override
+    public long getHits() {
+        final org.exist.storage.XQueryPool xqueryPool = getPool();
+        return xqueryPool == null ? 0 : xqueryPool.getHits();
+    }
+
+    @Override
+    public long getMisses() {
+        final org.exist.storage.XQueryPool xqueryPool = getPool();
+        return xqueryPool == null ? 0 : xqueryPool.getMisses();
+    }
+
+    @Override
+    public long getEvictions() {
+        final org.exist.storage.XQueryPool xqueryPool = getPool();
+        return xqueryPool == null ? 0 : xqueryPool.getEvictions();
+    }
+
+    @Override
+    public long getCompilations() {
+        final org.exist.storage.XQueryPool xqueryPool = getPool();
+        return xqueryPool == null ? 0 : xqueryPool.getCompilations();
+    }
+
+    @Override
+    public long getCompileTime() {
+        final org.exist.storage.XQueryPool xqueryPool = getPool();
+        return xqueryPool == null ? 0 : xqueryPool.getCompileTime();
+    }
+
+    @Override
+    public void clear() {
+        final org.exist.storage.XQueryPool xqueryPool = getPool();
+        if (xqueryPool != null) {
+            xqueryPool.clear();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.management.impl;
+
+/**
+ * Statistics of the XQuery pool.
+ */
+public interface XQueryPoolMBean {
+
+    /**
+     * @return the number of query sources held by the pool
+     */
+    public int getSize();
+
+    /**
+     * @return the number of compiled queries held by the pool
+     */
+    public int getQueryCount();
+
+    public int getMaxSize();
+
+    public int getMaxStackSize();
+
+    /**
+     * @return the number of requests for which a compiled query was found in the pool
+     */
+    public long getHits();
+
+    /**
+     * @return the number of requests for which no compiled query was found in the pool
+     */
+    public long getMisses();
+
+    /**
+     * @return the number of query sources evicted because the pool was full
+     */
+    public long getEvictions();
+
+    /**
+     * @return the number of queries compiled
+     */
+    public long getCompilations();
+
+    /**
+     * @return the total time spent compiling queries in milliseconds
+     */
+    public long getCompileTime();
+
+    /**
+     * Remove all compiled queries from the pool.
+     */
+    public void clear();
+}
@@ -29,6 +29,7 @@ import org.exist.collections.Collection;
 import org.exist.collections.CollectionCache;
 import org.exist.collections.CollectionConfiguration;
 import org.exist.collections.CollectionConfigurationManager;
+import org.exist.collections.DocumentSetCache;
 import org.exist.collections.triggers.*;
 import org.exist.config.ConfigurationDocumentTrigger;
 import org.exist.config.Configurator;
@@ -52,10 +53,12 @@ import org.exist.security.*;
 import org.exist.security.SecurityManager;
 import org.exist.security.internal.SecurityManagerImpl;
 import org.exist.storage.btree.DBException;
+import org.exist.storage.btree.SnapshotSession;
 import org.exist.storage.lock.DeadlockDetection;
 import org.exist.storage.lock.FileLock;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.lock.ReentrantReadWriteLock;
+import org.exist.storage.serializers.SerializedDocumentCache;
 import org.exist.storage.sync.Sync;
 import org.exist.storage.sync.SyncTask;
 import org.exist.storage.txn.TransactionException;
@@ -562,6 +565,39 @@ public class BrokerPool implements Database {
      */
     private NotificationService notificationService = null;
 
+    /**
+     * Cache for serialized documents, subscribed to the
+     * notification service.
+     */
+    private SerializedDocumentCache serializedDocumentCache = null;
+
+    /**
+     * Cache for the document sets returned by fn:collection().
+     */
+    private DocumentSetCache documentSetCache = null;
+
+    /**
+     * Cache for the results of queries declaring the result-cache option,
+     * subscribed to the notification service.
+     */
+    private QueryResultCache queryResultCache = null;
+
+    /**
+     * Tracks documents waiting for background defragmentation,
+     * subscribed to the notification service.
+     */
+    private FragmentationTracker fragmentationTracker = null;
+
+    /**
+     * Executes trigger events asynchronously.
+     */
+    private AsyncTriggerExecutor asyncTriggerExecutor = null;
+
+    /**
+     * The online backup of the raw storage files currently running, if any.
+     */
+    private volatile SnapshotSession snapshotSession = null;
+
     /**
      * The cache in which the database instance may store items.
      */
@@ -856,6 +892,25 @@ public class BrokerPool implements Database {
 
                     notificationService = new NotificationService();
 
+                    serializedDocumentCache = new SerializedDocumentCache(conf);
+                    if(serializedDocumentCache.isEnabled()) {
+                        notificationService.subscribe(serializedDocumentCache);
+                    }
+
+                    documentSetCache = new DocumentSetCache(conf);
+
+                    queryResultCache = new QueryResultCache(conf);
+                    if(queryResultCache.isEnabled()) {
+                        notificationService.subscribe(queryResultCache);
+                    }
+
+                    fragmentationTracker = new FragmentationTracker(conf);
+                    if(fragmentationTracker.isEnabled()) {
+                        notificationService.subscribe(fragmentationTracker);
+                    }
+
+                    asyncTriggerExecutor = new AsyncTriggerExecutor(this);
+
                     //REFACTOR : construct then... configure
                     //TODO : journal directory *may* be different from BrokerPool.PROPERTY_DATA_DIR
                     transactionManager = new TransactionManager(this, new File((String) conf.getProperty(BrokerPool.PROPERTY_DATA_DIR)), isTransactional());
@@ -1049,6 +1104,12 @@ public class BrokerPool implements Database {
 
                         scheduler.run();
 
+                        collectionCacheMgr.preloadAsync(this);
+
+                        if(((Boolean) conf.getProperty(XQueryPoolSnapshot.PROPERTY_PERSISTENT, false)).booleanValue()) {
+                            new XQueryPoolSnapshot(getStoragePlace()).restoreAsync(this);
+                        }
+
                         ClasspathHelper.updateClasspath(this);
 
                         statusReporter.setStatus(SIGNAL_STARTED);
@@ -1310,6 +1371,88 @@ public class BrokerPool implements Database {
         return notificationService;
     }
 
+    /**
+     * Returns the cache for serialized documents. Check
+     * {@link SerializedDocumentCache#isEnabled()} before using it.
+     *
+     * @return the serialized document cache
+     */
+    public SerializedDocumentCache getSerializedDocumentCache() {
+        return serializedDocumentCache;
+    }
+
+    /**
+     * Returns the cache for the document sets of collections. Check
+     * {@link DocumentSetCache#isEnabled()} before using it.
+     *
+     * @return the document set cache
+     */
+    public DocumentSetCache getDocumentSetCache() {
+        return documentSetCache;
+    }
+
+    /**
+     * Returns the cache for the results of queries. Check
+     * {@link QueryResultCache#isEnabled()} before using it.
+     *
+     * @return the query result cache
+     */
+    public QueryResultCache getQueryResultCache() {
+        return queryResultCache;
+    }
+
+    /**
+     * Returns the tracker for documents waiting for background
+     * defragmentation. Check {@link FragmentationTracker#isEnabled()}
+     * before registering documents.
+     *
+     * @return the fragmentation tracker
+     */
+    public FragmentationTracker getFragmentationTracker() {
+        return fragmentationTracker;
+    }
+
+    public AsyncTriggerExecutor getAsyncTriggerExecutor() {
+        return asyncTriggerExecutor;
+    }
+
+    /**
+     * Start an online backup of the raw storage files. From now on, the
+     * paged files preserve their current contents before they are
+     * overwritten. Must be called while the files are consistent on disk,
+     * i.e. from a system task running after a checkpoint.
+     *
+     * @return the new session
+     * @throws EXistException if another session is active
+     */
+    public synchronized SnapshotSession startSnapshotSession() throws EXistException {
+        if(snapshotSession != null) {
+            throw new EXistException("An online backup is already running");
+        }
+        final SnapshotSession session = new SnapshotSession();
+        // the symbol table is only appended to
+        session.recordLength(symbols.getFile());
+        snapshotSession = session;
+        return session;
+    }
+
+    /**
+     * @return the online backup currently running or null
+     */
+    public SnapshotSession getSnapshotSession() {
+        return snapshotSession;
+    }
+
+    /**
+     * End the given online backup and release its snapshots.
+     */
+    public synchronized void endSnapshotSession(final SnapshotSession session) {
+        if(snapshotSession == session) {
+            snapshotSession = null;
+        }
+        session.close();
+    }
+
     /**
      * Returns whether transactions can be handled by the database instance.
      *
@@ -1581,11 +1724,7 @@ public class BrokerPool implements Database {
         // the same broker instance for each thread.
         if(broker != null) {
             //increase its number of uses
-            broker.incReferenceCount();
-            if(user != null) {
-                broker.setSubject(user);
-            }
-            return broker;
+            return reuse(broker, user);
             //TODO : share the code with what is below (including notifyAll) ?
             // WM: notifyAll is not necessary if we don't have to wait for a broker.
         }
@@ -1619,29 +1758,78 @@ public class BrokerPool implements Database {
                         }
                     }
             }
-            broker = inactiveBrokers.pop();
-            //activate the broker
-            activeBrokers.put(Thread.currentThread(), broker);
+            return activate(user);
+        }
+    }
 
-            if(LOG.isTraceEnabled()) {
-                LOG.trace("+++ " + Thread.currentThread() + stackTop(Thread.currentThread().getStackTrace(), 10));
-            }
-            
-            if(watchdog != null) {
-                watchdog.add(broker);
-            }
+    /**
+     * Returns an active broker for the database instance if one is available
+     * without waiting, e.g. for a task which can also be done by another thread.
+     *
+     * @return The broker or null if all brokers are in use or the database is in service mode
+     * @throws EXistException If the instance is not available (stopped or not configured)
+     */
+    public DBBroker tryGet(final Subject user) throws EXistException {
+        if(!isInstanceConfigured()) {
+            throw new EXistException("database instance '" + instanceName + "' is not available");
+        }
 
-            broker.incReferenceCount();
-            if(user != null) {
-                broker.setSubject(user);
-            } else {
-                broker.setSubject(securityManager.getGuestSubject());
+        final DBBroker broker = activeBrokers.get(Thread.currentThread());
+        if(broker != null) {
+            return reuse(broker, user);
+        }
+
+        if(serviceModeUser != null && user != null && !user.equals(serviceModeUser)) {
+            return null;
+        }
+
+        synchronized(this) {
+            if(inactiveBrokers.isEmpty()) {
+                if(brokersCount < maxBrokers) {
+                    createBroker();
+                } else {
+                    return null;
+                }
             }
-            //Inform the other threads that we have a new-comer
-            // TODO: do they really need to be informed here???????
-            this.notifyAll();
-            return broker;
+            return activate(user);
+        }
+    }
+
+    private DBBroker reuse(final DBBroker broker, final Subject user) {
+        broker.incReferenceCount();
+        if(user != null) {
+            broker.setSubject(user);
         }
+        return broker;
+    }
+
+    /**
+     * Take an inactive broker and make it the broker of the current thread.
+     * Must be called while synchronized on the pool.
+     */
+    private DBBroker activate(final Subject user) throws EXistException {
+        final DBBroker broker = inactiveBrokers.pop();
+        //activate the broker
+        activeBrokers.put(Thread.currentThread(), broker);
+
+        if(LOG.isTraceEnabled()) {
+            LOG.trace("+++ " + Thread.currentThread() + stackTop(Thread.currentThread().getStackTrace(), 10));
+        }
+        
+        if(watchdog != null) {
+            watchdog.add(broker);
+        }
+
+        broker.incReferenceCount();
+        if(user != null) {
+            broker.setSubject(user);
+        } else {
+            broker.setSubject(securityManager.getGuestSubject());
+        }
+        //Inform the other threads that we have a new-comer
+        // TODO: do they really need to be informed here???????
+        this.notifyAll();
+        return broker;
     }
     
     /**
@@ -1925,6 +2113,18 @@ public class BrokerPool implements Database {
         //Shutdown the scheduler
         scheduler.shutdown(true);
 
+        //Process pending asynchronous trigger events
+        if(asyncTriggerExecutor != null) {
+            asyncTriggerExecutor.shutdown();
+        }
+
+        //Abort a running online backup
+        final SnapshotSession session = snapshotSession;
+        if(session != null) {
+            LOG.warn("Shutting down while an online backup is running. The backup will be incomplete.");
+            endSnapshotSession(session);
+        }
+
         final java.util.concurrent.locks.Lock lock = transactionManager.getLock();
         try {
             // wait for currently running system tasks before we shutdown
@@ -2019,6 +2219,14 @@ public class BrokerPool implements Database {
                     broker = inactiveBrokers.peek();
                 }
 
+                if(((Boolean) conf.getProperty(XQueryPoolSnapshot.PROPERTY_PERSISTENT, false)).booleanValue() && !isReadOnly) {
+                    new XQueryPoolSnapshot(getStoragePlace()).save(xQueryPool);
+                }
+
+                if(fragmentationTracker != null && !isReadOnly) {
+                    fragmentationTracker.save();
+                }
+
                 //TOUNDERSTAND (pb) : shutdown() is called on only *one* broker ?
                 // WM: yes, the database files are shared, so only one broker is needed to close them for all
                 if(broker != null) {
@@ -2082,6 +2290,11 @@ public class BrokerPool implements Database {
             shutdownListener = null;
             securityManager = null;
             notificationService = null;
+            serializedDocumentCache = null;
+            documentSetCache = null;
+            queryResultCache = null;
+            fragmentationTracker = null;
+            asyncTriggerExecutor = null;
         }
     }
 
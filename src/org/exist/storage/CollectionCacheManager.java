@@ -19,13 +19,22 @@
  */
 package org.exist.storage;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.collections.Collection;
 import org.exist.collections.CollectionCache;
+import org.exist.security.PermissionDeniedException;
 import org.exist.storage.cache.Cache;
 import org.exist.util.DatabaseConfigurationException;
 import org.exist.management.AgentFactory;
 import org.exist.management.Agent;
+import org.exist.xmldb.XmldbURI;
 
 public class CollectionCacheManager implements CacheManager {
 
@@ -34,12 +43,21 @@ public class CollectionCacheManager implements CacheManager {
     public static final String CACHE_SIZE_ATTRIBUTE = "collectionCache";
     public static final String PROPERTY_CACHE_SIZE = "db-connection.collection-cache-mem";
 
+    public static final String PINNED_ATTRIBUTE = "collectionCachePinned";
+    public static final String PROPERTY_PINNED = "db-connection.collection-cache-pinned";
+
+    public static final String PRELOAD_ATTRIBUTE = "collectionCachePreload";
+    public static final String PROPERTY_PRELOAD = "db-connection.collection-cache-preload";
+
     private static final int DEFAULT_CACHE_SIZE = 8;
 
     private int maxCacheSize;
 
     private CollectionCache collectionCache;
 
+    private final List<XmldbURI> pinned;
+    private final List<XmldbURI> preload;
+
     public CollectionCacheManager(BrokerPool pool, CollectionCache cache) {
         int cacheSize;
         
@@ -53,8 +71,13 @@ public class CollectionCacheManager implements CacheManager {
             LOG.debug("collection collectionCache will be using " + this.maxCacheSize + " bytes max.");
         }
 
+        this.pinned = parseCollections((String) pool.getConfiguration().getProperty(PROPERTY_PINNED));
+        this.preload = parseCollections((String) pool.getConfiguration().getProperty(PROPERTY_PRELOAD));
+
         this.collectionCache = cache;
         this.collectionCache.setCacheManager(this);
+        this.collectionCache.setMaxSize(maxCacheSize);
+        this.collectionCache.setPinned(pinned);
 
         registerMBean(pool.getId());
     }
@@ -70,7 +93,7 @@ public class CollectionCacheManager implements CacheManager {
 
     @Override
     public int requestMem(Cache cache) {
-        final int realSize = collectionCache.getRealSize();
+        final long realSize = collectionCache.getCurrentSize();
         if (realSize < maxCacheSize) {
             synchronized (this) {
                 final int newCacheSize = (int)(collectionCache.getBuffers() * collectionCache.getGrowthFactor());
@@ -115,7 +138,63 @@ public class CollectionCacheManager implements CacheManager {
      */
     @Override
     public long getCurrentSize() {
-        return collectionCache.getRealSize();
+        return collectionCache.getCurrentSize();
+    }
+
+    /**
+     * Read the pinned and preloaded collections into the cache, using a
+     * background thread. Called once the database has been started.
+     */
+    public void preloadAsync(final BrokerPool pool) {
+        final Set<XmldbURI> collections = new LinkedHashSet<>(pinned);
+        collections.addAll(preload);
+        if (collections.isEmpty()) {
+            return;
+        }
+        final Thread thread = new Thread(() -> preload(pool, collections), "collection-cache-preload." + pool.getId());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private void preload(final BrokerPool pool, final Set<XmldbURI> collections) {
+        final long start = System.currentTimeMillis();
+        int loaded = 0;
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            for (final XmldbURI uri : collections) {
+                if (pool.isShuttingDown()) {
+                    return;
+                }
+                try {
+                    final Collection collection = broker.getCollection(uri);
+                    if (collection == null) {
+                        LOG.info("Collection " + uri + " configured for preloading does not exist");
+                    } else {
+                        loaded++;
+                    }
+                } catch (final PermissionDeniedException e) {
+                    LOG.warn("Failed to preload collection " + uri + ": " + e.getMessage());
+                }
+            }
+        } catch (final EXistException e) {
+            LOG.warn("Failed to preload collections: " + e.getMessage(), e);
+        }
+        LOG.info("Preloaded " + loaded + " collections in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Parse a list of collection paths separated by whitespace or commas.
+     */
+    private static List<XmldbURI> parseCollections(final String value) {
+        final List<XmldbURI> collections = new ArrayList<>();
+        if (value != null) {
+            for (final String path : value.trim().split("[\\s,]+")) {
+                if (!path.isEmpty()) {
+                    collections.add(XmldbURI.create(path).toCollectionPathURI());
+                }
+            }
+        }
+        return collections;
     }
 
     private void registerMBean(String instanceName) {
@@ -123,6 +202,8 @@ public class CollectionCacheManager implements CacheManager {
         try {
             agent.addMBean(instanceName, "org.exist.management." + instanceName +
                 ":type=CollectionCacheManager", new org.exist.management.CacheManager(this));
+            agent.addMBean(instanceName, "org.exist.management." + instanceName +
+                ":type=CollectionCache", new org.exist.management.CollectionCache(collectionCache));
         } catch (final DatabaseConfigurationException e) {
             LOG.warn("Exception while registering cache mbean.", e);
         }
@@ -54,6 +54,8 @@ public class ConsistencyCheckTask implements SystemTask {
     private boolean incrementalCheck = false;
     private boolean checkDocs = false;
     private int maxInc = -1;
+    private int threads = 1;
+    private long maxRate = -1;
 
     private File lastExportedBackup = null;
 
@@ -66,6 +68,8 @@ public class ConsistencyCheckTask implements SystemTask {
     public final static String INCREMENTAL_CHECK_PROP_NAME = "incremental-check";
     public final static String MAX_PROP_NAME = "max";
     public final static String CHECK_DOCS_PROP_NAME = "check-documents";
+    public final static String THREADS_PROP_NAME = "threads";
+    public final static String MAX_RATE_PROP_NAME = "max-rate";
 
     private final static LoggingCallback logCallback = new LoggingCallback();
     
@@ -109,6 +113,22 @@ public class ConsistencyCheckTask implements SystemTask {
 
         final String check = properties.getProperty(CHECK_DOCS_PROP_NAME, "no");
         checkDocs = check.equalsIgnoreCase("YES");
+
+        final String threadsStr = properties.getProperty(THREADS_PROP_NAME, "1");
+        try {
+            threads = Integer.parseInt(threadsStr);
+        } catch (final NumberFormatException e) {
+            throw new EXistException("Parameter '" + THREADS_PROP_NAME + "' has to be an integer");
+        }
+
+        final String maxRateStr = properties.getProperty(MAX_RATE_PROP_NAME, "-1");
+        try {
+            // configured in kilobytes per second
+            final long rate = Long.parseLong(maxRateStr);
+            maxRate = rate > 0 ? rate * 1024 : -1;
+        } catch (final NumberFormatException e) {
+            throw new EXistException("Parameter '" + MAX_RATE_PROP_NAME + "' has to be an integer");
+        }
     }
 
     @Override
@@ -164,6 +184,11 @@ public class ConsistencyCheckTask implements SystemTask {
                 LOG.info("Starting backup...");
 
                 final SystemExport sysexport = new SystemExport(broker, logCallback, monitor, false);
+                sysexport.setMaxRate(maxRate);
+                if (errors == null || errors.isEmpty()) {
+                    // a damaged database is exported by a single thread, reading the collection store directly
+                    sysexport.setThreads(threads);
+                }
                 lastExportedBackup = sysexport.export(exportDir, incremental, maxInc, createZip, errors);
                 agentInstance.changeStatus(brokerPool, new TaskStatus(TaskStatus.Status.RUNNING_BACKUP));
 
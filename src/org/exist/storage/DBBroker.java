@@ -92,6 +92,12 @@ public abstract class DBBroker extends Observable implements AutoCloseable {
     //TODO : move elsewhere
     public final static String PROPERTY_XUPDATE_CONSISTENCY_CHECKS = "xupdate.consistency-checks";
 
+    //TODO : move elsewhere
+    public final static String XUPDATE_BACKGROUND_DEFRAG_ATTRIBUTE = "background-defragmentation";
+
+    //TODO : move elsewhere
+    public final static String PROPERTY_XUPDATE_BACKGROUND_DEFRAG = "xupdate.background-defragmentation";
+
     protected final static Logger LOG = LogManager.getLogger(DBBroker.class);
 
     protected boolean caseSensitive = true;
@@ -561,6 +567,23 @@ public abstract class DBBroker extends Observable implements AutoCloseable {
 
     public abstract void getCollectionResources(Collection.InternalAccess collectionInternalAccess);
 
+    /**
+     * Reads the name, id and type of all resources of a collection without
+     * creating the document objects.
+     *
+     * @param collectionInternalAccess receives the entries via
+     *     {@link Collection.InternalAccess#addDocumentEntry(String, int, byte)}
+     */
+    public abstract void getCollectionResourceEntries(Collection.InternalAccess collectionInternalAccess);
+
+    /**
+     * Reads a single resource of a collection from the collection store.
+     * The collection of the returned document is not set.
+     *
+     * @return the document or null if it does not exist
+     */
+    public abstract DocumentImpl loadCollectionResource(int collectionId, byte resourceType, int documentId);
+
     public abstract void readBinaryResource(final BinaryDocument blob,
         final OutputStream os) throws IOException;
 
@@ -27,6 +27,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.EXistException;
 import org.exist.backup.RawDataBackup;
+import org.exist.storage.btree.SnapshotSession;
 import org.exist.util.Configuration;
 
 import java.io.File;
@@ -41,6 +42,18 @@ import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
+/**
+ * Copies the raw storage files into a zip archive. The task runs after a
+ * checkpoint while the database is quiescent.
+ *
+ * If parameter "online" is set to "yes", only the binary resources and the
+ * data of the index modules, which cannot be preserved by a snapshot, are
+ * copied while the database is quiescent. The task then starts a
+ * {@link SnapshotSession}, which makes the paged storage files preserve the
+ * state they had at the checkpoint, and copies them in a background thread
+ * while the database continues to run. All files in the archive thus reflect
+ * the state of the database at the checkpoint.
+ */
 public class DataBackup implements SystemTask {
 
     private final static Logger LOG = LogManager.getLogger(DataBackup.class);
@@ -49,6 +62,7 @@ public class DataBackup implements SystemTask {
     private final SimpleDateFormat creationDateFormat = new SimpleDateFormat(DATE_FORMAT_PICTURE);
     
 	private String dest;
+	private boolean online = false;
 	
     public DataBackup() {
     }
@@ -80,6 +94,8 @@ public class DataBackup implements SystemTask {
             {f.mkdirs();}
         dest = f.getAbsolutePath();
         LOG.debug("Setting backup data directory: " + dest);
+
+        online = "yes".equalsIgnoreCase(properties.getProperty("online", "no"));
     }
     
 	public void execute(DBBroker broker) throws EXistException {
@@ -93,6 +109,15 @@ public class DataBackup implements SystemTask {
 		final String creationDate = creationDateFormat.format(Calendar.getInstance().getTime());
         final String outFilename = dest + File.separatorChar + creationDate + ".zip";
         
+        if (online) {
+            startOnlineBackup((NativeBroker) broker, outFilename);
+            return;
+        }
+
+        archive(broker, outFilename);
+	}
+
+    private boolean archive(final DBBroker broker, final String outFilename) throws EXistException {
         // Create the ZIP file
         LOG.debug("Archiving data files into: " + outFilename);
         
@@ -103,10 +128,75 @@ public class DataBackup implements SystemTask {
             broker.backupToArchive(cb);
             // close the zip file
 			out.close();
+            return true;
 		} catch (final IOException e) {
 			LOG.warn("An IO error occurred while backing up data files: " + e.getMessage(), e);
+            return false;
 		}
-	}
+    }
+
+    private void startOnlineBackup(final NativeBroker broker, final String outFilename) {
+        final BrokerPool pool = broker.getBrokerPool();
+        final ZipOutputStream out;
+        final Callback cb;
+        try {
+            out = new ZipOutputStream(new FileOutputStream(outFilename));
+            out.setLevel(Deflater.NO_COMPRESSION);
+            cb = new Callback(out);
+            // the files which are not preserved by the snapshot are copied while the database is quiescent
+            broker.backupFilesToArchive(cb);
+        } catch (final IOException e) {
+            LOG.warn("An IO error occurred while backing up data files: " + e.getMessage(), e);
+            new File(outFilename).delete();
+            return;
+        }
+
+        final SnapshotSession session;
+        try {
+            session = pool.startSnapshotSession();
+        } catch (final EXistException e) {
+            LOG.warn("Skipping data backup: " + e.getMessage());
+            closeQuietly(out);
+            new File(outFilename).delete();
+            return;
+        }
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.currentTimeMillis();
+                boolean success = false;
+                try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+                    ((NativeBroker) broker).backupStorageToArchive(cb);
+                    out.close();
+                    success = true;
+                } catch (final Exception e) {
+                    LOG.warn("Online backup of data files failed: " + e.getMessage(), e);
+                } finally {
+                    final long preserved = session.getPreservedBlocks();
+                    pool.endSnapshotSession(session);
+                    if (success) {
+                        LOG.info("Online backup of data files written to " + outFilename + " in " +
+                            (System.currentTimeMillis() - start) + "ms. " + preserved +
+                            " blocks were modified during the backup.");
+                    } else {
+                        closeQuietly(out);
+                        new File(outFilename).delete();
+                    }
+                }
+            }
+        }, "db." + pool.getId() + ".data-backup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(final OutputStream out) {
+        try {
+            out.close();
+        } catch (final IOException e) {
+            // the archive is deleted anyway
+        }
+    }
 
     private static class Callback implements RawDataBackup {
 
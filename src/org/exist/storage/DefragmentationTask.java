@@ -0,0 +1,178 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage;
+
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.scheduler.JobException;
+import org.exist.scheduler.UserJavaJob;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.FragmentationTracker.FragmentedDocument;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+
+/**
+ * Rewrites documents registered with the {@link FragmentationTracker}.
+ * Requires background defragmentation to be enabled via the
+ * <code>background-defragmentation</code> attribute of the
+ * <code>xupdate</code> element in conf.xml.
+ *
+ * The task runs as a user job next to other requests: every document is
+ * rewritten in a transaction of its own, holding only the write lock on
+ * that document. Every run rewrites the most fragmented documents first and
+ * stops as soon as one of the configured limits is reached:
+ *
+ * <ul>
+ *     <li>max-documents: maximum number of documents rewritten per run</li>
+ *     <li>max-pages: maximum number of pages rewritten per run. At least one
+ *     document is rewritten, even if it is larger.</li>
+ *     <li>max-time: maximum time in milliseconds spent per run</li>
+ * </ul>
+ *
+ * If max-active-brokers is set, the run stops as soon as more brokers are
+ * serving other requests, i.e. the database is busy. Documents not processed
+ * remain tracked for the next run.
+ */
+public class DefragmentationTask extends UserJavaJob {
+
+    private final static Logger LOG = LogManager.getLogger(DefragmentationTask.class);
+
+    public final static String MAX_DOCUMENTS_PROP_NAME = "max-documents";
+    public final static String MAX_PAGES_PROP_NAME = "max-pages";
+    public final static String MAX_TIME_PROP_NAME = "max-time";
+    public final static String MAX_ACTIVE_BROKERS_PROP_NAME = "max-active-brokers";
+
+    public final static int DEFAULT_MAX_DOCUMENTS = 10;
+    public final static long DEFAULT_MAX_PAGES = 1024;
+    public final static long DEFAULT_MAX_TIME = 10000;
+
+    private String name = "Defragmentation";
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setName(final String name) {
+        this.name = name;
+    }
+
+    private static long parseLong(final Map<String, ?> params, final String name, final long defaultValue) throws JobException {
+        final Object value = params == null ? null : params.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.toString());
+        } catch (final NumberFormatException e) {
+            throw new JobException(JobException.JobExceptionAction.JOB_ABORT_THIS, "Parameter '" + name + "' has to be an integer");
+        }
+    }
+
+    @Override
+    public void execute(final BrokerPool pool, final Map<String, ?> params) throws JobException {
+        final int maxDocuments = (int) parseLong(params, MAX_DOCUMENTS_PROP_NAME, DEFAULT_MAX_DOCUMENTS);
+        final long maxPages = parseLong(params, MAX_PAGES_PROP_NAME, DEFAULT_MAX_PAGES);
+        final long maxTime = parseLong(params, MAX_TIME_PROP_NAME, DEFAULT_MAX_TIME);
+        final int maxActiveBrokers = (int) parseLong(params, MAX_ACTIVE_BROKERS_PROP_NAME, -1);
+
+        final FragmentationTracker tracker = pool.getFragmentationTracker();
+        if (!tracker.isEnabled()) {
+            LOG.warn("Background defragmentation is not enabled. Set attribute " +
+                DBBroker.XUPDATE_BACKGROUND_DEFRAG_ATTRIBUTE + " on element xupdate in conf.xml.");
+            return;
+        }
+        if (tracker.size() == 0) {
+            return;
+        }
+
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            final TransactionManager transact = pool.getTransactionManager();
+            final long start = System.currentTimeMillis();
+            int documents = 0;
+            long pages = 0;
+            for (final FragmentedDocument fragmented : tracker.getDocuments()) {
+                if (documents >= maxDocuments ||
+                        (documents > 0 && pages + fragmented.getPageCount() > maxPages) ||
+                        (maxTime > 0 && System.currentTimeMillis() - start > maxTime)) {
+                    break;
+                }
+                // do not count the broker used by this task
+                final int active = pool.countActiveBrokers() - 1;
+                if (maxActiveBrokers > -1 && active > maxActiveBrokers) {
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug("Stopping defragmentation: " + active + " active brokers");
+                    }
+                    break;
+                }
+
+                final long docStart = System.currentTimeMillis();
+                final DocumentImpl doc;
+                try {
+                    doc = broker.getXMLResource(fragmented.getURI(), Lock.WRITE_LOCK);
+                } catch (final PermissionDeniedException e) {
+                    LOG.warn("Unable to load document " + fragmented.getURI() + ": " + e.getMessage());
+                    tracker.remove(fragmented.getDocId());
+                    continue;
+                }
+                if (doc == null) {
+                    // document was removed in the meantime
+                    tracker.remove(fragmented.getDocId());
+                    continue;
+                }
+                try {
+                    if (doc.getDocId() != fragmented.getDocId()) {
+                        // document was replaced in the meantime
+                        tracker.remove(fragmented.getDocId());
+                        continue;
+                    }
+                    try (final Txn transaction = transact.beginTransaction()) {
+                        broker.defragXMLResource(transaction, doc);
+                        transact.commit(transaction);
+                    } catch (final Exception e) {
+                        LOG.warn("Defragmentation of " + doc.getURI() + " failed: " + e.getMessage(), e);
+                        tracker.remove(fragmented.getDocId());
+                        continue;
+                    }
+                } finally {
+                    doc.getUpdateLock().release(Lock.WRITE_LOCK);
+                }
+
+                tracker.defragmented(fragmented, System.currentTimeMillis() - docStart);
+                documents++;
+                pages += fragmented.getPageCount();
+            }
+            tracker.runCompleted();
+
+            if (documents > 0) {
+                LOG.info("Defragmented " + documents + " documents (" + pages + " pages) in " +
+                    (System.currentTimeMillis() - start) + "ms. " + tracker.size() + " fragmented documents remaining.");
+            }
+        } catch (final EXistException e) {
+            LOG.warn("Defragmentation failed: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NodeHandle;
+import org.exist.numbering.NodeId;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of documents which exceeded the allowed fragmentation
+ * (see {@link DBBroker#PROPERTY_XUPDATE_FRAGMENTATION_FACTOR}).
+ *
+ * If background defragmentation is enabled, updates do not defragment
+ * a document themselves, but register it with the tracker. The documents
+ * are later rewritten by the {@link DefragmentationTask}, which should be
+ * scheduled to run in low-traffic windows.
+ *
+ * The tracker is registered with the {@link NotificationService} and
+ * forgets a document as soon as it is removed.
+ *
+ * The list of tracked documents is written to the data directory after every
+ * run of the {@link DefragmentationTask} and on shutdown, and read again on
+ * startup. Documents tracked after the last run are lost if the database crashes.
+ */
+public class FragmentationTracker implements UpdateListener {
+
+    private final static Logger LOG = LogManager.getLogger(FragmentationTracker.class);
+
+    public final static String FILE_NAME = "defragmentation.dat";
+
+    private final static int VERSION = 1;
+
+    private final boolean enabled;
+    private final File file;
+
+    private final ConcurrentMap<Integer, FragmentedDocument> documents = new ConcurrentHashMap<>();
+
+    private final AtomicLong defragmented = new AtomicLong();
+    private final AtomicLong pagesRewritten = new AtomicLong();
+    private final AtomicLong defragmentationTime = new AtomicLong();
+    private volatile long lastRun = 0;
+
+    public FragmentationTracker(final Configuration conf) {
+        final Boolean background = (Boolean) conf.getProperty(DBBroker.PROPERTY_XUPDATE_BACKGROUND_DEFRAG);
+        this.enabled = background != null && background;
+        final String dataDir = (String) conf.getProperty(BrokerPool.PROPERTY_DATA_DIR);
+        this.file = dataDir == null ? null : new File(dataDir, FILE_NAME);
+        if (enabled) {
+            LOG.info("Background defragmentation enabled. Fragmented documents will be rewritten by " +
+                DefragmentationTask.class.getName());
+            load();
+        }
+    }
+
+    /**
+     * Read the documents tracked before the database was shut down.
+     */
+    private void load() {
+        if (file == null || !file.canRead()) {
+            return;
+        }
+        try (final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != VERSION) {
+                LOG.info("Ignoring list of fragmented documents written by a different version");
+                return;
+            }
+            final int count = is.readInt();
+            for (int i = 0; i < count; i++) {
+                final FragmentedDocument doc = FragmentedDocument.read(is);
+                documents.put(doc.docId, doc);
+            }
+            LOG.info("Loaded " + count + " fragmented documents from " + file.getAbsolutePath());
+        } catch (final IOException e) {
+            LOG.warn("Failed to read list of fragmented documents " + file.getAbsolutePath() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Write the tracked documents to the data directory, so they
+     * are defragmented after a restart.
+     */
+    public void save() {
+        if (!enabled || file == null) {
+            return;
+        }
+        final List<FragmentedDocument> list = new ArrayList<>(documents.values());
+        try (final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            os.writeInt(VERSION);
+            os.writeInt(list.size());
+            for (final FragmentedDocument doc : list) {
+                doc.write(os);
+            }
+        } catch (final IOException e) {
+            LOG.warn("Failed to save list of fragmented documents to " + file.getAbsolutePath() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return true if documents should be defragmented in the background
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Register a fragmented document or update its statistics
+     * if it is already known.
+     */
+    public void track(final DocumentImpl doc) {
+        documents.put(doc.getDocId(), new FragmentedDocument(doc));
+    }
+
+    /**
+     * Forget the document with the given id.
+     *
+     * @return true if the document was tracked
+     */
+    public boolean remove(final int docId) {
+        return documents.remove(docId) != null;
+    }
+
+    public boolean isTracked(final int docId) {
+        return documents.containsKey(docId);
+    }
+
+    /**
+     * @return the number of documents waiting for defragmentation
+     */
+    public int size() {
+        return documents.size();
+    }
+
+    /**
+     * Returns the tracked documents, most fragmented documents first.
+     */
+    public List<FragmentedDocument> getDocuments() {
+        final List<FragmentedDocument> list = new ArrayList<>(documents.values());
+        Collections.sort(list, new Comparator<FragmentedDocument>() {
+            @Override
+            public int compare(final FragmentedDocument o1, final FragmentedDocument o2) {
+                return Integer.compare(o2.splitCount, o1.splitCount);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Returns fragmentation statistics for every collection
+     * containing at least one tracked document, ordered by
+     * collection path.
+     */
+    public Map<XmldbURI, CollectionStatistics> getCollectionStatistics() {
+        final Map<XmldbURI, CollectionStatistics> stats = new TreeMap<>();
+        for (final FragmentedDocument doc : documents.values()) {
+            final XmldbURI collection = doc.uri.removeLastSegment();
+            CollectionStatistics collectionStats = stats.get(collection);
+            if (collectionStats == null) {
+                collectionStats = new CollectionStatistics(collection);
+                stats.put(collection, collectionStats);
+            }
+            collectionStats.add(doc);
+        }
+        return stats;
+    }
+
+    /**
+     * Called by the {@link DefragmentationTask} after a document was rewritten.
+     */
+    void defragmented(final FragmentedDocument doc, final long time) {
+        documents.remove(doc.docId, doc);
+        defragmented.incrementAndGet();
+        pagesRewritten.addAndGet(doc.pageCount);
+        defragmentationTime.addAndGet(time);
+    }
+
+    void runCompleted() {
+        lastRun = System.currentTimeMillis();
+        save();
+    }
+
+    /**
+     * @return the number of documents defragmented in the background
+     */
+    public long getDefragmentedCount() {
+        return defragmented.get();
+    }
+
+    /**
+     * @return the number of pages rewritten by background defragmentation
+     */
+    public long getPagesRewritten() {
+        return pagesRewritten.get();
+    }
+
+    /**
+     * @return the total time spent defragmenting documents in milliseconds
+     */
+    public long getDefragmentationTime() {
+        return defragmentationTime.get();
+    }
+
+    /**
+     * @return the time of the last completed defragmentation run or 0
+     */
+    public long getLastRun() {
+        return lastRun;
+    }
+
+    @Override
+    public void documentUpdated(final DocumentImpl document, final int event) {
+        if (event == UpdateListener.REMOVE) {
+            remove(document.getDocId());
+        }
+    }
+
+    @Override
+    public void nodeMoved(final NodeId oldNodeId, final NodeHandle newNode) {
+        // nothing to do
+    }
+
+    @Override
+    public void unsubscribe() {
+        documents.clear();
+    }
+
+    @Override
+    public void debug() {
+        LOG.debug("FragmentationTracker: " + size() + " fragmented documents; " + getDefragmentedCount() +
+            " defragmented; " + getPagesRewritten() + " pages rewritten");
+    }
+
+    /**
+     * A document waiting for defragmentation.
+     */
+    public static class FragmentedDocument {
+
+        private final int docId;
+        private final XmldbURI uri;
+        private final int splitCount;
+        private final long pageCount;
+        private final long timestamp;
+
+        private FragmentedDocument(final DocumentImpl doc) {
+            this(doc.getDocId(), doc.getURI(), doc.getMetadata().getSplitCount(),
+                doc.getMetadata().getPageCount(), System.currentTimeMillis());
+        }
+
+        private FragmentedDocument(final int docId, final XmldbURI uri, final int splitCount,
+                final long pageCount, final long timestamp) {
+            this.docId = docId;
+            this.uri = uri;
+            this.splitCount = splitCount;
+            this.pageCount = pageCount;
+            this.timestamp = timestamp;
+        }
+
+        private void write(final DataOutputStream os) throws IOException {
+            os.writeInt(docId);
+            os.writeUTF(uri.toString());
+            os.writeInt(splitCount);
+            os.writeLong(pageCount);
+            os.writeLong(timestamp);
+        }
+
+        private static FragmentedDocument read(final DataInputStream is) throws IOException {
+            return new FragmentedDocument(is.readInt(), XmldbURI.create(is.readUTF()), is.readInt(),
+                is.readLong(), is.readLong());
+        }
+
+        public int getDocId() {
+            return docId;
+        }
+
+        public XmldbURI getURI() {
+            return uri;
+        }
+
+        public int getSplitCount() {
+            return splitCount;
+        }
+
+        public long getPageCount() {
+            return pageCount;
+        }
+
+        /**
+         * @return the time at which the fragmentation was last reported
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    /**
+     * Aggregated fragmentation statistics of the tracked
+     * documents in a collection.
+     */
+    public static class CollectionStatistics {
+
+        private final XmldbURI collection;
+        private int documentCount = 0;
+        private long splitCount = 0;
+        private int maxSplitCount = 0;
+        private long pageCount = 0;
+
+        private CollectionStatistics(final XmldbURI collection) {
+            this.collection = collection;
+        }
+
+        private void add(final FragmentedDocument doc) {
+            documentCount++;
+            splitCount += doc.splitCount;
+            maxSplitCount = Math.max(maxSplitCount, doc.splitCount);
+            pageCount += doc.pageCount;
+        }
+
+        public XmldbURI getCollection() {
+            return collection;
+        }
+
+        public int getDocumentCount() {
+            return documentCount;
+        }
+
+        public long getSplitCount() {
+            return splitCount;
+        }
+
+        public int getMaxSplitCount() {
+            return maxSplitCount;
+        }
+
+        public long getPageCount() {
+            return pageCount;
+        }
+    }
+}
@@ -488,6 +488,15 @@ public class NativeBroker extends DBBroker {
 
     @Override
     public void backupToArchive(final RawDataBackup backup) throws IOException, EXistException {
+        backupStorageToArchive(backup);
+        backupFilesToArchive(backup);
+    }
+
+    /**
+     * Copy the paged storage files and the symbol table. During an online
+     * backup, these keep the state they had when the snapshot session started.
+     */
+    public void backupStorageToArchive(final RawDataBackup backup) throws IOException, EXistException {
         for(final byte i : ALL_STORAGE_FILES) {
             final Paged paged = getStorage(i);
             if(paged == null) {
@@ -498,7 +507,21 @@ public class NativeBroker extends DBBroker {
             paged.backupToStream(os);
             backup.closeEntry();
         }
-        pool.getSymbols().backupToArchive(backup);
+        final SnapshotSession session = pool.getSnapshotSession();
+        if(session != null) {
+            // online backup: only copy the symbols known when the backup started
+            pool.getSymbols().backupToArchive(backup, session.getLength(pool.getSymbols().getFile()));
+        } else {
+            pool.getSymbols().backupToArchive(backup);
+        }
+    }
+
+    /**
+     * Copy the binary resources and the data of the index modules. These are
+     * not protected by a snapshot session, so an online backup has to copy them
+     * while the database is quiescent.
+     */
+    public void backupFilesToArchive(final RawDataBackup backup) throws IOException {
         backupBinary(backup, fsDir, "");
         pool.getIndexManager().backupToArchive(backup);
         //TODO backup counters
@@ -915,8 +938,10 @@ public class NativeBroker extends DBBroker {
                     if(is == null) {
                         return null;
                     }
+                    final long start = System.nanoTime();
                     collection = new Collection(this, uri);
                     collection.read(this, is);
+                    collectionsCache.recordLoad(System.nanoTime() - start);
                     //TODO : manage this from within the cache -pb
                     if(!pool.isInitializing()) {
                         collectionsCache.add(collection);
@@ -1068,6 +1093,8 @@ public class NativeBroker extends DBBroker {
 
                 final Collection newCollection = doCopyCollection(transaction, docTrigger, collection, destination, newName, false);
 
+                invalidateQueryResults(newCollection.getURI());
+
                 trigger.afterCopyCollection(this, transaction, newCollection, srcURI);
             } finally {
                 lock.release(Lock.WRITE_LOCK);
@@ -1259,6 +1286,9 @@ public class NativeBroker extends DBBroker {
             // For binary resources, though, just move the top level directory and all descendants come with it.
             moveBinaryFork(transaction, fsSourceDir, destination, newName);
 
+            invalidateQueryResults(srcURI);
+            invalidateQueryResults(dstURI);
+
             trigger.afterMoveCollection(this, transaction, collection, srcURI);
 
         } finally {
@@ -1622,6 +1652,8 @@ public class NativeBroker extends DBBroker {
                     LOG.debug("Removing collection '" + collName + "' took " + (System.currentTimeMillis() - start));
                 }
 
+                invalidateQueryResults(collection.getURI());
+
                 colTrigger.afterDeleteCollection(this, transaction, collection.getURI());
 
                 return true;
@@ -1655,9 +1687,13 @@ public class NativeBroker extends DBBroker {
 
         if(!pool.isInitializing()) {
             // don't cache the collection during initialization: SecurityManager is not yet online
-            pool.getCollectionsCache().add(collection);
+            pool.getCollectionsCache().update(collection);
         }
 
+        // permissions may have changed
+        collection.modified();
+        invalidateQueryResults(collection.getURI());
+
         final Lock lock = collectionsDb.getLock();
         try {
             lock.acquire(Lock.WRITE_LOCK);
@@ -1991,6 +2027,9 @@ public class NativeBroker extends DBBroker {
             doc.write(os);
             final Value key = new CollectionStore.DocumentKey(doc.getCollection().getId(), doc.getResourceType(), doc.getDocId());
             collectionsDb.put(transaction, key, os.data(), true);
+            // the permissions of the document may have changed
+            doc.getCollection().modified();
+            invalidateQueryResults(doc.getURI());
             //} catch (ReadOnlyException e) {
             //LOG.warn(DATABASE_IS_READ_ONLY);
         } catch(final LockException e) {
@@ -2083,6 +2122,7 @@ public class NativeBroker extends DBBroker {
         } catch(final TransactionException e) {
             LOG.warn(e.getMessage(), e);
         }
+        invalidateQueryResults(blob.getURI());
     }
 
     @Override
@@ -2119,6 +2159,7 @@ public class NativeBroker extends DBBroker {
         } catch(final TransactionException e) {
             LOG.warn(e.getMessage(), e);
         }
+        invalidateQueryResults(blob.getURI());
     }
 
     public Document getXMLResource(final XmldbURI fileName) throws PermissionDeniedException {
@@ -2274,6 +2315,53 @@ public class NativeBroker extends DBBroker {
         }
     }
 
+    @Override
+    public void getCollectionResourceEntries(final Collection.InternalAccess collectionInternalAccess) {
+        final Lock lock = collectionsDb.getLock();
+        try {
+            lock.acquire(Lock.READ_LOCK);
+            final Value key = new CollectionStore.DocumentKey(collectionInternalAccess.getId());
+            final IndexQuery query = new IndexQuery(IndexQuery.TRUNC_RIGHT, key);
+
+            collectionsDb.query(query, new DocumentEntryCallback(collectionInternalAccess));
+        } catch(final LockException e) {
+            LOG.warn("Failed to acquire lock on " + collectionsDb.getFile().getName());
+        } catch(final IOException | BTreeException | TerminatedException e) {
+            LOG.warn("Exception while reading document data", e);
+        } finally {
+            lock.release(Lock.READ_LOCK);
+        }
+    }
+
+    @Override
+    public DocumentImpl loadCollectionResource(final int collectionId, final byte resourceType, final int documentId) {
+        final Lock lock = collectionsDb.getLock();
+        try {
+            lock.acquire(Lock.READ_LOCK);
+            final Value key = new CollectionStore.DocumentKey(collectionId, resourceType, documentId);
+            final VariableByteInput is = collectionsDb.getAsStream(key);
+            if(is == null) {
+                return null;
+            }
+            final DocumentImpl doc;
+            if(resourceType == DocumentImpl.BINARY_FILE) {
+                doc = new BinaryDocument(pool);
+            } else {
+                doc = new DocumentImpl(pool);
+            }
+            doc.read(is);
+            return doc;
+        } catch(final LockException e) {
+            LOG.warn("Failed to acquire lock on " + collectionsDb.getFile().getName());
+            return null;
+        } catch(final IOException e) {
+            LOG.warn("IOException while reading document data", e);
+            return null;
+        } finally {
+            lock.release(Lock.READ_LOCK);
+        }
+    }
+
     @Override
     public void getResourcesFailsafe(final BTreeCallback callback, final boolean fullScan) throws TerminatedException {
         final Lock lock = collectionsDb.getLock();
@@ -2480,6 +2568,8 @@ public class NativeBroker extends DBBroker {
                     newDocument = newDoc;
                 }
 
+                invalidateQueryResults(newDocument.getURI());
+
                 trigger.afterCopyDocument(this, transaction, newDocument, oldUri);
 
             } catch(final IOException e) {
@@ -2644,6 +2734,9 @@ public class NativeBroker extends DBBroker {
             storeXMLResource(transaction, doc);
             saveCollection(transaction, destination);
 
+            invalidateQueryResults(oldURI);
+            invalidateQueryResults(doc.getURI());
+
             trigger.afterMoveDocument(this, transaction, doc, oldURI);
 
         } catch(final ReadOnlyException e) {
@@ -2771,6 +2864,18 @@ public class NativeBroker extends DBBroker {
 
         getIndexController().setDocument(blob, StreamListener.REMOVE_BINARY);
         getIndexController().flush();
+        invalidateQueryResults(blob.getURI());
+    }
+
+    /**
+     * Drop the cached results of queries depending on a collection or resource
+     * which is changed without a notification through the {@link NotificationService}.
+     */
+    private void invalidateQueryResults(final XmldbURI uri) {
+        final QueryResultCache resultCache = pool.getQueryResultCache();
+        if(resultCache != null && resultCache.isEnabled()) {
+            resultCache.invalidate(uri);
+        }
     }
 
     /**
@@ -3925,6 +4030,34 @@ public class NativeBroker extends DBBroker {
         }
     }
 
+    private final class DocumentEntryCallback implements BTreeCallback {
+
+        private final Collection.InternalAccess collectionInternalAccess;
+
+        private DocumentEntryCallback(final Collection.InternalAccess collectionInternalAccess) {
+            this.collectionInternalAccess = collectionInternalAccess;
+        }
+
+        @Override
+        public boolean indexInfo(final Value key, final long pointer) throws TerminatedException {
+
+            try {
+                final byte type = key.data()[key.start() + Collection.LENGTH_COLLECTION_ID + DocumentImpl.LENGTH_DOCUMENT_TYPE];
+                final VariableByteInput is = collectionsDb.getAsStream(pointer);
+
+                // only read the id and name, see DocumentImpl#read
+                final int docId = is.readInt();
+                final String name = is.readUTF();
+
+                collectionInternalAccess.addDocumentEntry(name, docId, type);
+            } catch(final EXistException | IOException e) {
+                LOG.error("Exception while reading document data", e);
+            }
+
+            return true;
+        }
+    }
+
     private final class DocumentCallback implements BTreeCallback {
 
         private final Collection.InternalAccess collectionInternalAccess;
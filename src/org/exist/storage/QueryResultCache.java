@@ -0,0 +1,598 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.QName;
+import org.exist.dom.memtree.DocumentBuilderReceiver;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.memtree.NodeImpl;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NodeHandle;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.http.servlets.RequestWrapper;
+import org.exist.numbering.NodeId;
+import org.exist.security.Subject;
+import org.exist.source.DBSource;
+import org.exist.source.Source;
+import org.exist.storage.serializers.Serializer;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.ExternalModule;
+import org.exist.xquery.Function;
+import org.exist.xquery.Module;
+import org.exist.xquery.Option;
+import org.exist.xquery.Variable;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.functions.array.ArrayModule;
+import org.exist.xquery.functions.map.MapModule;
+import org.exist.xquery.functions.math.MathModule;
+import org.exist.xquery.functions.request.RequestModule;
+import org.exist.xquery.value.AtomicValue;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.JavaObjectValue;
+import org.exist.xquery.value.NodeValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Size-bounded cache of the results of queries which declare the option
+ *
+ * <pre>declare option exist:result-cache "max-age=60";</pre>
+ *
+ * The max-age (in seconds) is optional and defaults to {@link #DEFAULT_MAX_AGE}.
+ * Entries are keyed by the source of the query, the user executing it and the
+ * values of the external variables and request parameters. Queries containing
+ * update expressions or calling built-in functions whose reads cannot be tracked,
+ * or whose results differ between executions, are not cached, see
+ * {@link #isCacheable(QName)}.
+ * While a query is executed for the cache, the
+ * {@link XQueryContext} records the collections and documents it reads.
+ * The cache is registered with the {@link NotificationService} and drops an
+ * entry as soon as one of its dependencies is updated or removed. Changes
+ * which are not reported through the notification service, e.g. to binary
+ * resources, whole collections or the permissions of a resource, are passed
+ * to {@link #invalidate(XmldbURI)} by the broker.
+ *
+ * The result is stored materialized: atomic values and persistent nodes as
+ * they are, in-memory nodes as copies, which are copied again into the
+ * context of every query served from the cache.
+ *
+ * The cache is disabled by default. It is enabled by setting the attribute
+ * <code>result-cache-size</code> (number of entries) on the <code>xquery</code>
+ * element in conf.xml.
+ */
+public class QueryResultCache implements UpdateListener {
+
+    private final static Logger LOG = LogManager.getLogger(QueryResultCache.class);
+
+    public static final String CACHE_SIZE_ATTRIBUTE = "result-cache-size";
+    public static final String PROPERTY_CACHE_SIZE = "xquery.result-cache-size";
+
+    /** Results with more items are not cached */
+    public static final int MAX_ITEMS = 10000;
+
+    /** Default max-age of an entry in seconds */
+    public static final long DEFAULT_MAX_AGE = 300;
+
+    /** The modules whose functions only read what is tracked as a dependency of the query */
+    private static final Set<String> CACHEABLE_NAMESPACES = new HashSet<>(Arrays.asList(
+        Function.BUILTIN_FUNCTION_NS, MathModule.NAMESPACE_URI, MapModule.NAMESPACE_URI, ArrayModule.NAMESPACE_URI));
+
+    /** The functions of the cacheable modules which read the environment or return a different result each time */
+    private static final Set<String> UNCACHEABLE_BUILTIN_FUNCTIONS = new HashSet<>(Arrays.asList(
+        "current-dateTime", "current-date", "current-time", "implicit-timezone", "generate-id",
+        "environment-variable", "available-environment-variables", "function-lookup", "json-doc"));
+
+    /** The functions of the request module whose results are covered by the key */
+    private static final Set<String> CACHEABLE_REQUEST_FUNCTIONS =
+        new HashSet<>(Arrays.asList("get-parameter", "get-parameter-names"));
+
+    /** Number of invalidations remembered to detect changes during the execution of a query */
+    private static final int MAX_RECENT_INVALIDATIONS = 256;
+
+    private final int maxEntries;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+    private long invalidations = 0;
+    private final Deque<String> recentInvalidations = new ArrayDeque<>();
+
+    private long hits = 0;
+    private long misses = 0;
+
+    public QueryResultCache(final Configuration conf) {
+        final Integer size = (Integer) conf.getProperty(PROPERTY_CACHE_SIZE);
+        this.maxEntries = size == null ? 0 : size;
+
+        if (isEnabled()) {
+            LOG.info("Query result cache: max entries = " + maxEntries);
+        }
+    }
+
+    /**
+     * @return true if a cache size has been configured
+     */
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Check if the result of a query calling the given built-in function may be
+     * cached. Only the functions of the standard modules, whose reads of the database
+     * are recorded as dependencies, are cacheable, except those returning a different
+     * result on each execution. The key only covers the parameters of the HTTP request,
+     * so the request parameter getters are the only other cacheable functions. The
+     * functions of all other modules, e.g. util, xmldb, http or file, may read resources
+     * which are not tracked or have side effects, so a query calling them is not cached.
+     *
+     * @param function the name of the function
+     * @return false if the result of a query calling the function must not be cached
+     */
+    public static boolean isCacheable(final QName function) {
+        final String namespace = function.getNamespaceURI();
+        if (RequestModule.NAMESPACE_URI.equals(namespace)) {
+            return CACHEABLE_REQUEST_FUNCTIONS.contains(function.getLocalPart());
+        }
+        return CACHEABLE_NAMESPACES.contains(namespace) && !UNCACHEABLE_BUILTIN_FUNCTIONS.contains(function.getLocalPart());
+    }
+
+    /**
+     * Compute the key for the current execution of a query.
+     *
+     * @param context the context of the query
+     * @param subject the user executing the query
+     *
+     * @return the key or null if the query does not declare the result-cache option,
+     *     must not be cached or is bound to values which cannot be part of a key,
+     *     e.g. in-memory nodes
+     */
+    public Key getKey(final XQueryContext context, final Subject subject) throws XPathException {
+        final Option option = context.getOption(Option.RESULT_CACHE_QNAME);
+        if (option == null || context.getSource() == null || !context.isResultCacheable()) {
+            return null;
+        }
+
+        long maxAge = DEFAULT_MAX_AGE * 1000;
+        for (final String param : option.tokenizeContents()) {
+            final String[] pair = Option.parseKeyValuePair(param);
+            if (pair == null || !"max-age".equals(pair[0])) {
+                throw new XPathException("Unknown parameter found in " + option.getQName().getStringValue() + ": '" + param + "'");
+            }
+            try {
+                maxAge = Long.parseLong(pair[1]) * 1000;
+            } catch (final NumberFormatException e) {
+                throw new XPathException("max-age of " + option.getQName().getStringValue() + " is not a number: " + pair[1]);
+            }
+            if (maxAge <= 0) {
+                throw new XPathException("max-age of " + option.getQName().getStringValue() + " must be positive: " + pair[1]);
+            }
+        }
+
+        final StringBuilder bindings = new StringBuilder();
+        for (final Variable var : context.getGlobalVariables().values()) {
+            bindings.append(var.getQName().getStringValue()).append('=');
+            if (!appendValue(bindings, var.getValue())) {
+                return null;
+            }
+            bindings.append(';');
+        }
+
+        final Module requestModule = context.getModule(RequestModule.NAMESPACE_URI);
+        if (requestModule != null) {
+            final Variable var = requestModule.resolveVariable(RequestModule.REQUEST_VAR);
+            if (var != null && !appendValue(bindings, var.getValue())) {
+                return null;
+            }
+        }
+
+        return new Key(context.getSource(), subject, bindings.toString(), maxAge);
+    }
+
+    private static boolean appendValue(final StringBuilder bindings, final Sequence value) throws XPathException {
+        if (value == null) {
+            return true;
+        }
+        for (final SequenceIterator i = value.iterate(); i.hasNext(); ) {
+            final Item item = i.nextItem();
+            if (item instanceof JavaObjectValue) {
+                // only the request parameters of the servlet objects are part of the key
+                final Object object = ((JavaObjectValue) item).getObject();
+                if (object instanceof RequestWrapper) {
+                    appendParameters(bindings, (RequestWrapper) object);
+                }
+            } else if (item instanceof AtomicValue) {
+                bindings.append(Type.getTypeName(item.getType())).append('(').append(item.getStringValue()).append(')');
+            } else if (item instanceof NodeProxy) {
+                final NodeProxy p = (NodeProxy) item;
+                bindings.append(p.getOwnerDocument().getURI()).append('#').append(p.getNodeId());
+            } else {
+                return false;
+            }
+            bindings.append(',');
+        }
+        return true;
+    }
+
+    private static void appendParameters(final StringBuilder bindings, final RequestWrapper request) {
+        final Set<String> names = new TreeSet<>();
+        for (final Enumeration<String> e = request.getParameterNames(); e.hasMoreElements(); ) {
+            names.add(e.nextElement());
+        }
+        bindings.append('{');
+        for (final String name : names) {
+            bindings.append(name).append('=').append(Arrays.toString(request.getParameterValues(name))).append('&');
+        }
+        bindings.append('}');
+    }
+
+    /**
+     * Lookup the result of a query.
+     *
+     * @param context the context of the query, into which in-memory nodes of the result are copied
+     * @param key the key returned by {@link #getKey(XQueryContext, Subject)}
+     *
+     * @return the result or null if it is not in the cache
+     */
+    public Sequence get(final XQueryContext context, final Key key) throws XPathException {
+        final Entry entry;
+        synchronized (this) {
+            Entry cached = entries.get(key);
+            if (cached != null && !cached.isValid(context.getBroker())) {
+                entries.remove(key);
+                cached = null;
+            }
+            if (cached == null) {
+                misses++;
+                return null;
+            }
+            hits++;
+            entry = cached;
+        }
+
+        // an enclosing query, e.g. calling util:eval, depends on the same resources
+        final Set<String> dependencies = context.getDependencies();
+        if (dependencies != null) {
+            dependencies.addAll(entry.dependencies);
+        }
+        return entry.copyResult(context);
+    }
+
+    /**
+     * Prepare a query for caching its result: start recording its dependencies.
+     *
+     * @return a stamp to be passed to {@link #put(Key, XQueryContext, long, Sequence)}
+     */
+    public synchronized long startRecording(final XQueryContext context) {
+        context.recordDependencies();
+        return invalidations;
+    }
+
+    /**
+     * Add the result of a query to the cache. The result is not cached if it
+     * is too large or contains items which cannot be cached, like function
+     * items, or if one of the dependencies of the query was changed during
+     * its execution.
+     *
+     * @param key the key returned by {@link #getKey(XQueryContext, Subject)}
+     * @param context the context of the query
+     * @param stamp the stamp returned by {@link #startRecording(XQueryContext)}
+     * @param result the result of the query
+     */
+    public void put(final Key key, final XQueryContext context, final long stamp, final Sequence result) throws XPathException {
+        // e.g. fn:doc has loaded a document from a URL
+        if (!isEnabled() || !context.isResultCacheable() || result.getItemCount() > MAX_ITEMS) {
+            return;
+        }
+
+        final Set<String> dependencies = getDependencies(context, result);
+        if (dependencies == null) {
+            return;
+        }
+        final Sequence materialized = materialize(context.getBroker(), result);
+        if (materialized == null) {
+            return;
+        }
+
+        final Entry entry = new Entry(key.source, key.maxAge, dependencies, materialized);
+        synchronized (this) {
+            if (invalidations - stamp > MAX_RECENT_INVALIDATIONS) {
+                return;
+            }
+            // the most recent invalidations are at the head of the deque
+            final Iterator<String> i = recentInvalidations.iterator();
+            for (long n = invalidations; n > stamp && i.hasNext(); n--) {
+                if (entry.dependsOn(i.next())) {
+                    return;
+                }
+            }
+
+            entries.put(key, entry);
+            if (entries.size() > maxEntries) {
+                // evict the least recently used entry
+                final Iterator<Key> keys = entries.keySet().iterator();
+                keys.next();
+                keys.remove();
+            }
+        }
+    }
+
+    private static Set<String> getDependencies(final XQueryContext context, final Sequence result) throws XPathException {
+        if (context.getDependencies() == null) {
+            return null;
+        }
+        final Set<String> dependencies = new HashSet<>(context.getDependencies());
+
+        // the persistent nodes in the result, which may also have been passed in through variables
+        for (final Iterator<DocumentImpl> i = result.getDocumentSet().getDocumentIterator(); i.hasNext(); ) {
+            dependencies.add(i.next().getURI().getCollectionPath());
+        }
+
+        // the stored modules of the query
+        if (context.getSource() instanceof DBSource) {
+            dependencies.add(((DBSource) context.getSource()).getDocumentPath().getCollectionPath());
+        }
+        for (final Iterator<Module> i = context.getAllModules(); i.hasNext(); ) {
+            final Module module = i.next();
+            if (module instanceof ExternalModule && ((ExternalModule) module).getSource() instanceof DBSource) {
+                dependencies.add(((DBSource) ((ExternalModule) module).getSource()).getDocumentPath().getCollectionPath());
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * Copy the in-memory nodes of the result out of the context of the query.
+     *
+     * @return the materialized result or null if it cannot be cached
+     */
+    private static Sequence materialize(final DBBroker broker, final Sequence result) throws XPathException {
+        final ValueSequence materialized = new ValueSequence(result.getItemCount());
+        for (final SequenceIterator i = result.iterate(); i.hasNext(); ) {
+            final Item item = i.nextItem();
+            if (item instanceof JavaObjectValue) {
+                return null;
+            } else if (item instanceof AtomicValue) {
+                materialized.add(item);
+            } else if (item instanceof NodeProxy) {
+                materialized.add(new NodeProxy((NodeHandle) item));
+            } else if (item instanceof NodeImpl) {
+                final NodeImpl copy = copyExpanded(broker, (NodeImpl) item);
+                if (copy == null) {
+                    return null;
+                }
+                materialized.add(copy);
+            } else {
+                return null;
+            }
+        }
+        return materialized;
+    }
+
+    /**
+     * Copy an in-memory node into a new document, replacing references
+     * to persistent nodes by copies of the persistent nodes.
+     */
+    private static NodeImpl copyExpanded(final DBBroker broker, final NodeImpl node) throws XPathException {
+        final short nodeType = node.getNodeType();
+        if (nodeType == Node.ATTRIBUTE_NODE || nodeType == NodeImpl.NAMESPACE_NODE) {
+            return null;
+        }
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument(nodeType == Node.DOCUMENT_NODE);
+        final DocumentBuilderReceiver receiver = new DocumentBuilderReceiver(builder, true);
+        final Serializer serializer = broker.newSerializer();
+        serializer.setSAXHandlers(receiver, receiver);
+        try {
+            serializer.setProperty(Serializer.GENERATE_DOC_EVENTS, "false");
+            serializer.toSAX((NodeValue) node);
+        } catch (final SAXException e) {
+            throw new XPathException("Error while caching the result of the query: " + e.getMessage(), e);
+        }
+        builder.endDocument();
+        return nodeType == Node.DOCUMENT_NODE ? builder.getDocument() : (NodeImpl) builder.getDocument().getFirstChild();
+    }
+
+    /**
+     * Copy a cached in-memory node into the context of a query.
+     */
+    private static NodeImpl copy(final XQueryContext context, final NodeImpl node) throws XPathException {
+        final MemTreeBuilder builder = new MemTreeBuilder(context);
+        builder.startDocument(node.getNodeType() == Node.DOCUMENT_NODE);
+        final DocumentBuilderReceiver receiver = new DocumentBuilderReceiver(builder);
+        try {
+            if (node.getNodeType() == Node.DOCUMENT_NODE) {
+                for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                    ((NodeImpl) child).copyTo(context.getBroker(), receiver);
+                }
+            } else {
+                node.copyTo(context.getBroker(), receiver);
+            }
+        } catch (final SAXException e) {
+            throw new XPathException("Error while copying a cached result: " + e.getMessage(), e);
+        }
+        builder.endDocument();
+        return node.getNodeType() == Node.DOCUMENT_NODE ? builder.getDocument() : (NodeImpl) builder.getDocument().getFirstChild();
+    }
+
+    /**
+     * Remove all entries depending on the given collection or document, or
+     * on one of its descendants or ancestors.
+     */
+    public void invalidate(final XmldbURI uri) {
+        invalidate(uri.getCollectionPath());
+    }
+
+    private synchronized void invalidate(final String path) {
+        invalidations++;
+        recentInvalidations.addFirst(path);
+        if (recentInvalidations.size() > MAX_RECENT_INVALIDATIONS) {
+            recentInvalidations.removeLast();
+        }
+
+        for (final Iterator<Entry> i = entries.values().iterator(); i.hasNext(); ) {
+            if (i.next().dependsOn(path)) {
+                i.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public void documentUpdated(final DocumentImpl document, final int event) {
+        invalidate(document.getURI());
+    }
+
+    @Override
+    public void nodeMoved(final NodeId oldNodeId, final NodeHandle newNode) {
+        // node moves are always part of a document update
+    }
+
+    @Override
+    public void unsubscribe() {
+        clear();
+    }
+
+    @Override
+    public void debug() {
+        LOG.debug("QueryResultCache: " + getEntryCount() + " entries; " + getHits() + " hits; " + getMisses() + " misses");
+    }
+
+    private static class Entry {
+        private final Source source;
+        private final long expires;
+        private final Set<String> dependencies;
+        private final Sequence result;
+
+        private Entry(final Source source, final long maxAge, final Set<String> dependencies, final Sequence result) {
+            this.source = source;
+            this.expires = System.currentTimeMillis() + maxAge;
+            this.dependencies = Collections.unmodifiableSet(dependencies);
+            this.result = result;
+        }
+
+        private boolean isValid(final DBBroker broker) {
+            if (System.currentTimeMillis() > expires) {
+                return false;
+            }
+            // changes to stored queries are tracked as dependencies
+            return source instanceof DBSource || source.isValid(broker) != Source.INVALID;
+        }
+
+        private boolean dependsOn(final String path) {
+            for (final String dependency : dependencies) {
+                if (dependency.equals(path) || isDescendant(dependency, path) || isDescendant(path, dependency)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean isDescendant(final String path, final String ancestor) {
+            return path.length() > ancestor.length() && path.startsWith(ancestor) &&
+                (ancestor.endsWith("/") || path.charAt(ancestor.length()) == '/');
+        }
+
+        private Sequence copyResult(final XQueryContext context) throws XPathException {
+            final ValueSequence copy = new ValueSequence(result.getItemCount());
+            for (final SequenceIterator i = result.iterate(); i.hasNext(); ) {
+                final Item item = i.nextItem();
+                if (item instanceof NodeProxy) {
+                    copy.add(new NodeProxy((NodeHandle) item));
+                } else if (item instanceof NodeImpl) {
+                    copy.add(copy(context, (NodeImpl) item));
+                } else {
+                    copy.add(item);
+                }
+            }
+            return copy;
+        }
+    }
+
+    public static class Key {
+        private final Source source;
+        private final Object sourceKey;
+        private final int userId;
+        private final int[] groupIds;
+        private final String bindings;
+        private final long maxAge;
+
+        private Key(final Source source, final Subject subject, final String bindings, final long maxAge) {
+            this.source = source;
+            this.sourceKey = source.getKey();
+            this.userId = subject.getId();
+            this.groupIds = subject.getGroupIds().clone();
+            Arrays.sort(this.groupIds);
+            this.bindings = bindings;
+            this.maxAge = maxAge;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return userId == other.userId && sourceKey.equals(other.sourceKey) &&
+                Arrays.equals(groupIds, other.groupIds) && bindings.equals(other.bindings);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = sourceKey.hashCode();
+            result = 31 * result + userId;
+            result = 31 * result + Arrays.hashCode(groupIds);
+            result = 31 * result + bindings.hashCode();
+            return result;
+        }
+    }
+}
@@ -22,8 +22,15 @@
  */
 package org.exist.storage;
 
+
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -33,7 +40,6 @@ import org.exist.security.Permission;
 import org.exist.security.PermissionDeniedException;
 import org.exist.source.Source;
 import org.exist.util.Configuration;
-import org.exist.util.hashtable.Object2ObjectHashMap;
 import org.exist.xquery.*;
 
 /**
@@ -43,11 +49,16 @@ import org.exist.xquery.*;
  * {@link #MAX_STACK_SIZE} compiled expressions are kept in the pool. An XQuery
  * expression will be removed from the pool if it has not been used for a
  * pre-defined timeout. These settings can be configured in conf.xml.
+ *
+ * The pool does not use a global lock: sources are held in a concurrent map and
+ * the compiled expressions for each source in a lock-free deque. If the pool is
+ * full, the least recently used source is evicted. Hit, miss and compilation
+ * statistics are collected for monitoring through JMX.
  * 
  * @author wolf
  */
 @ConfigurationClass("query-pool")
-public class XQueryPool extends Object2ObjectHashMap {
+public class XQueryPool {
 
 	public final static int MAX_POOL_SIZE = 128;
 
@@ -59,8 +70,16 @@ public class XQueryPool extends Object2ObjectHashMap {
 
 	private final static Logger LOG = LogManager.getLogger(XQueryPool.class);
 
-	private long lastTimeOutCheck;
-	private long lastTimeOfCleanup;
+	private final ConcurrentMap<Source, PooledQueries> pool = new ConcurrentHashMap<>();
+
+	private final AtomicLong lastTimeOutCheck;
+	private volatile long lastTimeOfCleanup;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder compilations = new LongAdder();
+	private final LongAdder compileTime = new LongAdder();
 
 	@ConfigurationFieldAsAttribute("size")
 	private int maxPoolSize;
@@ -89,8 +108,9 @@ public class XQueryPool extends Object2ObjectHashMap {
 	 * @param conf
 	 */
 	public XQueryPool(Configuration conf) {
-		super(27);
-		lastTimeOutCheck = lastTimeOfCleanup = System.currentTimeMillis();
+		final long now = System.currentTimeMillis();
+		lastTimeOutCheck = new AtomicLong(now);
+		lastTimeOfCleanup = now;
 
 		final Integer maxStSz = (Integer) conf.getProperty(PROPERTY_MAX_STACK_SIZE);
 		final Integer maxPoolSz = (Integer) conf.getProperty(PROPERTY_POOL_SIZE);
@@ -126,121 +146,229 @@ public class XQueryPool extends Object2ObjectHashMap {
 	}
 
 	public void returnCompiledXQuery(Source source, CompiledXQuery xquery) {
-		returnObject(source, xquery);
-	}
+		final long ts = source.getCacheTimestamp();
+		if (ts != 0 && ts <= lastTimeOfCleanup)
+			// the query was compiled before the pool has been cleared
+			return;
+		if (maxPoolSize <= 0 || maxStackSize <= 0)
+			return;
 
-	private synchronized void returnObject(Source source, Object o) {
-		long ts = source.getCacheTimestamp();
-		if (ts == 0 || ts > lastTimeOfCleanup) {
-			if (size() >= maxPoolSize)
+		PooledQueries queries = pool.get(source);
+		if (queries == null) {
+			if (pool.size() >= maxPoolSize) {
 				timeoutCheck();
-
-			if (size() < maxPoolSize) {
-				Stack stack = (Stack) get(source);
-				if (stack == null) {
-					stack = new Stack();
-					source.setCacheTimestamp(System.currentTimeMillis());
-					put(source, stack);
-				}
-				if (stack.size() < maxStackSize) {
-					for (int i = 0; i < stack.size(); i++) {
-						if (stack.get(i) == o)
-							// query already in pool. may happen for modules.
-							// don't add it a second time.
-							return;
-					}
-					stack.push(o);
-				}
+				while (pool.size() >= maxPoolSize && evictLeastRecentlyUsed());
+			}
+			final PooledQueries newQueries = new PooledQueries(source);
+			queries = pool.putIfAbsent(source, newQueries);
+			if (queries == null) {
+				source.setCacheTimestamp(System.currentTimeMillis());
+				queries = newQueries;
 			}
 		}
+		queries.push(xquery, maxStackSize);
 	}
 
-	private Object borrowObject(DBBroker broker, Source source) {
-
-        CompiledXQuery query = null;
-        Source key = null;
-
-        synchronized (this) {
-            final int idx = getIndex(source);
-            if (idx < 0) {
-                return null;
-            }
-            key = (Source) keys[idx];
-            int validity = key.isValid(broker);
-            if (validity == Source.UNKNOWN)
-                validity = key.isValid(source);
-
-            if (validity == Source.INVALID || validity == Source.UNKNOWN) {
-                keys[idx] = REMOVED;
-                values[idx] = null;
-                LOG.debug(source.getKey() + " is invalid");
-                return null;
-            }
-            final Stack stack = (Stack) values[idx];
-            if (stack == null || stack.isEmpty())
-                return null;
-
-            // now check if the compiled expression is valid
-            // it might become invalid if an imported module has changed.
-            query = (CompiledXQuery) stack.pop();
-            final XQueryContext context = query.getContext();
-            //context.setBroker(broker);
-        }
-
-        // query.isValid() may open collections which in turn tries to acquire
-        // org.exist.storage.lock.ReentrantReadWriteLock. In order to avoid
-        // deadlocks with concurrent queries holding that lock while borrowing
-        // we must not hold onto the XQueryPool while calling isValid().
-
-		if (!query.isValid()) synchronized (this) {
+	private CompiledXQuery borrowObject(DBBroker broker, Source source) {
+		final PooledQueries queries = pool.get(source);
+		if (queries == null)
+			return null;
+
+		final Source key = queries.source;
+		int validity = key.isValid(broker);
+		if (validity == Source.UNKNOWN)
+			validity = key.isValid(source);
+
+		if (validity == Source.INVALID || validity == Source.UNKNOWN) {
+			pool.remove(key, queries);
+			LOG.debug(source.getKey() + " is invalid");
+			return null;
+		}
+
+		final CompiledXQuery query = queries.pop();
+		if (query == null)
+			return null;
+
+		// now check if the compiled expression is valid
+		// it might become invalid if an imported module has changed.
+		if (!query.isValid()) {
 			// the compiled query is no longer valid: one of the imported
 			// modules may have changed
-			remove(key);
+			pool.remove(key, queries);
 			return null;
-		} else
-			return query;
+		}
+		return query;
 	}
 
-	public synchronized CompiledXQuery borrowCompiledXQuery(DBBroker broker, Source source) throws PermissionDeniedException {
-		final CompiledXQuery query = (CompiledXQuery) borrowObject(broker, source);
-		if (query == null)
+	public CompiledXQuery borrowCompiledXQuery(DBBroker broker, Source source) throws PermissionDeniedException {
+		final CompiledXQuery query = borrowObject(broker, source);
+		if (query == null) {
+			misses.increment();
 			return null;
-		
+		}
+		hits.increment();
+
 		//check execution permission
 		source.validate(broker.getSubject(), Permission.EXECUTE);
-		
-		// now check if the compiled expression is valid
-		// it might become invalid if an imported module has changed.
-		//final XQueryContext context = query.getContext();
-		//context.setBroker(broker);
+
 		return query;
 	}
 
-    public synchronized void clear() {
-    	lastTimeOfCleanup = System.currentTimeMillis();
-        
-        for (final Iterator i = iterator(); i.hasNext();) {
-            final Source next = (Source) i.next();
-            remove(next);
-        }
-    }
+	/**
+	 * Returns one compiled expression for each source held by the pool.
+	 * The expressions stay in the pool and must not be executed.
+	 */
+	public Map<Source, CompiledXQuery> getCompiledQueries() {
+		final Map<Source, CompiledXQuery> queries = new HashMap<>();
+		for (final PooledQueries next : pool.values()) {
+			final CompiledXQuery query = next.queries.peekFirst();
+			if (query != null)
+				queries.put(next.source, query);
+		}
+		return queries;
+	}
+
+	/**
+	 * @return true if the pool holds a compiled expression for the source
+	 */
+	public boolean isPooled(Source source) {
+		final PooledQueries queries = pool.get(source);
+		return queries != null && queries.size.get() > 0;
+	}
+
+	public void clear() {
+		lastTimeOfCleanup = System.currentTimeMillis();
+		pool.clear();
+	}
+
+	/**
+	 * Record the time it took to compile a query.
+	 *
+	 * @param time compilation time in milliseconds
+	 */
+	public void compiled(long time) {
+		compilations.increment();
+		compileTime.add(time);
+	}
+
+	/**
+	 * @return the number of sources held by the pool
+	 */
+	public int size() {
+		return pool.size();
+	}
+
+	/**
+	 * @return the number of compiled expressions held by the pool
+	 */
+	public int getQueryCount() {
+		int count = 0;
+		for (final PooledQueries next : pool.values())
+			count += next.size.get();
+		return count;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public long getCompilations() {
+		return compilations.sum();
+	}
+
+	/**
+	 * @return the total time spent compiling queries in milliseconds
+	 */
+	public long getCompileTime() {
+		return compileTime.sum();
+	}
+
+	public int getMaxPoolSize() {
+		return maxPoolSize;
+	}
+
+	public int getMaxStackSize() {
+		return maxStackSize;
+	}
+
+	private boolean evictLeastRecentlyUsed() {
+		PooledQueries oldest = null;
+		for (final PooledQueries next : pool.values()) {
+			if (oldest == null || next.lastAccess < oldest.lastAccess)
+				oldest = next;
+		}
+		if (oldest == null)
+			return false;
+		if (pool.remove(oldest.source, oldest))
+			evictions.increment();
+		return true;
+	}
 
 	private void timeoutCheck() {
 		if (timeoutCheckInterval < 0L)
 			return;
 
 		final long currentTime = System.currentTimeMillis();
+		final long lastCheck = lastTimeOutCheck.get();
 
-		if (currentTime - lastTimeOutCheck < timeoutCheckInterval)
+		if (currentTime - lastCheck < timeoutCheckInterval)
 			return;
 
-		for (final Iterator i = iterator(); i.hasNext();) {
-			final Source next = (Source) i.next();
-			if (currentTime - next.getCacheTimestamp() > timeout) {
-				remove(next);
+		// only one thread needs to do the check
+		if (!lastTimeOutCheck.compareAndSet(lastCheck, currentTime))
+			return;
+
+		for (final Iterator<PooledQueries> i = pool.values().iterator(); i.hasNext();) {
+			final PooledQueries next = i.next();
+			if (currentTime - next.lastAccess > timeout) {
+				i.remove();
 			}
 		}
-		
-		lastTimeOutCheck = currentTime;
+	}
+
+	/**
+	 * The compiled expressions available for a source.
+	 */
+	private static class PooledQueries {
+
+		private final Source source;
+		private final ConcurrentLinkedDeque<CompiledXQuery> queries = new ConcurrentLinkedDeque<>();
+		private final AtomicInteger size = new AtomicInteger();
+		private volatile long lastAccess = System.currentTimeMillis();
+
+		private PooledQueries(Source source) {
+			this.source = source;
+		}
+
+		private void push(CompiledXQuery query, int maxStackSize) {
+			lastAccess = System.currentTimeMillis();
+			for (final CompiledXQuery next : queries) {
+				if (next == query)
+					// query already in pool. may happen for modules.
+					// don't add it a second time.
+					return;
+			}
+			if (size.incrementAndGet() > maxStackSize) {
+				size.decrementAndGet();
+				return;
+			}
+			queries.addFirst(query);
+		}
+
+		private CompiledXQuery pop() {
+			lastAccess = System.currentTimeMillis();
+			final CompiledXQuery query = queries.pollFirst();
+			if (query != null)
+				size.decrementAndGet();
+			return query;
+		}
 	}
 }
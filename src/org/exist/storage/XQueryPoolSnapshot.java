@@ -0,0 +1,330 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.xacml.AccessContext;
+import org.exist.source.DBSource;
+import org.exist.source.FileSource;
+import org.exist.source.Source;
+import org.exist.storage.lock.Lock;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.CompiledXQuery;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists the list of queries held by the {@link XQueryPool} when the database
+ * shuts down, so the pool can be warmed up again after a restart.
+ *
+ * Compiled expression trees reference the running database instance and cannot be
+ * written to disk. Instead, the snapshot records the location of each pooled query
+ * stored in the database or in the file system, together with its last-modified time,
+ * the module load path and the access context it was compiled with. Queries passed
+ * as strings are never written to the snapshot, as they may contain sensitive data.
+ *
+ * After startup, the queries are compiled again one by one in a background thread
+ * and put into the pool. The thread only compiles a query while no broker is
+ * serving other requests, so warming up the pool does not compete with the first
+ * requests, and it skips queries which requests have put into the pool in the
+ * meantime. Sources which have been changed or removed since the snapshot was
+ * taken are skipped as well.
+ *
+ * Queries are recompiled as the guest user, so a query will only be restored
+ * if the guest user can import all its modules. Permissions to execute the query
+ * are checked as usual when it is borrowed from the pool.
+ *
+ * The snapshot is disabled by default. It is enabled by setting the attribute
+ * <code>persistent="yes"</code> on the <code>query-pool</code> element in conf.xml.
+ */
+public class XQueryPoolSnapshot {
+
+    private final static Logger LOG = LogManager.getLogger(XQueryPoolSnapshot.class);
+
+    public static final String PERSISTENT_ATTRIBUTE = "persistent";
+    public static final String PROPERTY_PERSISTENT = "db-connection.query-pool.persistent";
+
+    public static final String FILE_NAME = "xquery-pool.dat";
+
+    private static final int VERSION = 2;
+
+    private static final byte DB_SOURCE = 0;
+    private static final byte FILE_SOURCE = 1;
+
+    /** Time to wait before checking again if the database is idle */
+    private static final long IDLE_CHECK_INTERVAL = 1000;
+
+    private static final AccessContext[] ACCESS_CONTEXTS = {
+        AccessContext.REST, AccessContext.XMLRPC, AccessContext.XMLDB, AccessContext.XQJ,
+        AccessContext.TRIGGER, AccessContext.WEBDAV, AccessContext.SOAP, AccessContext.XSLT
+    };
+
+    private final File file;
+
+    public XQueryPoolSnapshot(final File dataDir) {
+        this.file = new File(dataDir, FILE_NAME);
+    }
+
+    /**
+     * Write the sources of all queries currently held by the pool to disk.
+     */
+    public void save(final XQueryPool pool) {
+        final List<Entry> entries = new ArrayList<>();
+        for (final Map.Entry<Source, CompiledXQuery> next : pool.getCompiledQueries().entrySet()) {
+            final Entry entry = Entry.create(next.getKey(), next.getValue().getContext());
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+
+        try (final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            os.writeInt(VERSION);
+            os.writeInt(entries.size());
+            for (final Entry entry : entries) {
+                entry.write(os);
+            }
+            LOG.info("Saved " + entries.size() + " queries from the query pool to " + file.getAbsolutePath());
+        } catch (final IOException e) {
+            LOG.warn("Failed to save query pool to " + file.getAbsolutePath() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read the snapshot and delete the file, so a snapshot is never
+     * restored twice.
+     */
+    List<Entry> load() {
+        final List<Entry> entries = new ArrayList<>();
+        if (!file.canRead()) {
+            return entries;
+        }
+        try (final DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (is.readInt() != VERSION) {
+                LOG.info("Ignoring query pool snapshot written by a different version");
+                return entries;
+            }
+            final int count = is.readInt();
+            for (int i = 0; i < count; i++) {
+                entries.add(Entry.read(is));
+            }
+        } catch (final IOException e) {
+            LOG.warn("Failed to read query pool snapshot " + file.getAbsolutePath() + ": " + e.getMessage(), e);
+        } finally {
+            if (!file.delete()) {
+                LOG.warn("Failed to delete query pool snapshot " + file.getAbsolutePath());
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Compile the queries recorded in the snapshot and return them to the pool.
+     * Each query is compiled separately once the database is idle.
+     *
+     * @return the number of queries which have been restored
+     */
+    public int restore(final BrokerPool pool) {
+        final List<Entry> entries = load();
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        int restored = 0;
+        try {
+            for (final Entry entry : entries) {
+                if (!awaitIdle(pool)) {
+                    break;
+                }
+                if (restore(pool, entry)) {
+                    restored++;
+                }
+            }
+        } catch (final EXistException e) {
+            LOG.warn("Failed to restore query pool: " + e.getMessage(), e);
+        }
+        LOG.info("Restored " + restored + " of " + entries.size() + " queries into the query pool");
+        return restored;
+    }
+
+    private boolean restore(final BrokerPool pool, final Entry entry) throws EXistException {
+        final XQueryPool xqueryPool = pool.getXQueryPool();
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getGuestSubject())) {
+            final Source source = entry.toSource(broker);
+            if (source == null || xqueryPool.isPooled(source)) {
+                return false;
+            }
+            final XQueryContext context = new XQueryContext(pool, entry.getAccessContext());
+            if (entry.moduleLoadPath != null) {
+                context.setModuleLoadPath(entry.moduleLoadPath);
+            }
+            final CompiledXQuery compiled = pool.getXQueryService().compile(broker, context, source);
+            xqueryPool.returnCompiledXQuery(source, compiled);
+            return true;
+        } catch (final XPathException | IOException | PermissionDeniedException e) {
+            LOG.debug("Could not restore query " + entry.key + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Wait until no broker is serving requests.
+     *
+     * @return false if the database is shutting down
+     */
+    private boolean awaitIdle(final BrokerPool pool) {
+        while (!pool.isShuttingDown()) {
+            if (pool.countActiveBrokers() == 0) {
+                return true;
+            }
+            try {
+                Thread.sleep(IDLE_CHECK_INTERVAL);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Restore the snapshot in a background thread.
+     */
+    public void restoreAsync(final BrokerPool pool) {
+        if (!file.canRead()) {
+            return;
+        }
+        final Thread thread = new Thread(() -> restore(pool), "xquery-pool-restore." + pool.getId());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    static class Entry {
+        private final byte type;
+        private final String key;
+        private final long lastModified;
+        private final String moduleLoadPath;
+        private final String accessContext;
+
+        Entry(final byte type, final String key, final long lastModified, final String moduleLoadPath, final String accessContext) {
+            this.type = type;
+            this.key = key;
+            this.lastModified = lastModified;
+            this.moduleLoadPath = moduleLoadPath;
+            this.accessContext = accessContext;
+        }
+
+        static Entry create(final Source source, final XQueryContext context) {
+            final String moduleLoadPath = context.getModuleLoadPath();
+            final String accessContext = context.getAccessContext().toString();
+            if (source instanceof DBSource) {
+                final DBSource dbSource = (DBSource) source;
+                return new Entry(DB_SOURCE, dbSource.getDocumentPath().toString(), dbSource.getLastModified(), moduleLoadPath, accessContext);
+            } else if (source instanceof FileSource) {
+                final File f = ((FileSource) source).getFile();
+                return new Entry(FILE_SOURCE, f.getAbsolutePath(), f.lastModified(), moduleLoadPath, accessContext);
+            }
+            return null;
+        }
+
+        /**
+         * Recreate the source of the query.
+         *
+         * @return the source or null if the source has been changed or removed
+         */
+        Source toSource(final DBBroker broker) {
+            switch (type) {
+                case DB_SOURCE:
+                    DocumentImpl doc = null;
+                    try {
+                        doc = broker.getXMLResource(XmldbURI.create(key), Lock.READ_LOCK);
+                        if (doc != null && doc.getResourceType() == DocumentImpl.BINARY_FILE &&
+                                doc.getMetadata().getLastModified() == lastModified) {
+                            return new DBSource(broker, (BinaryDocument) doc, true);
+                        }
+                    } catch (final PermissionDeniedException e) {
+                        LOG.debug("Could not restore query " + key + ": " + e.getMessage());
+                    } finally {
+                        if (doc != null) {
+                            doc.getUpdateLock().release(Lock.READ_LOCK);
+                        }
+                    }
+                    return null;
+
+                case FILE_SOURCE:
+                    final File f = new File(key);
+                    return f.canRead() && f.lastModified() == lastModified ? new FileSource(f, "UTF-8", true) : null;
+
+                default:
+                    return null;
+            }
+        }
+
+        AccessContext getAccessContext() {
+            for (final AccessContext ctx : ACCESS_CONTEXTS) {
+                if (ctx.toString().equals(accessContext)) {
+                    return ctx;
+                }
+            }
+            return AccessContext.REST;
+        }
+
+        void write(final DataOutputStream os) throws IOException {
+            os.writeByte(type);
+            writeString(os, key);
+            os.writeLong(lastModified);
+            os.writeBoolean(moduleLoadPath != null);
+            if (moduleLoadPath != null) {
+                writeString(os, moduleLoadPath);
+            }
+            writeString(os, accessContext);
+        }
+
+        static Entry read(final DataInputStream is) throws IOException {
+            final byte type = is.readByte();
+            final String key = readString(is);
+            final long lastModified = is.readLong();
+            final String moduleLoadPath = is.readBoolean() ? readString(is) : null;
+            final String accessContext = readString(is);
+            return new Entry(type, key, lastModified, moduleLoadPath, accessContext);
+        }
+
+        private static void writeString(final DataOutputStream os, final String s) throws IOException {
+            final byte[] data = s.getBytes("UTF-8");
+            os.writeInt(data.length);
+            os.write(data);
+        }
+
+        private static String readString(final DataInputStream is) throws IOException {
+            final byte[] data = new byte[is.readInt()];
+            is.readFully(data);
+            return new String(data, "UTF-8");
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Copy-on-write snapshot of a {@link Paged} file, taken while an online
+ * backup is running (see {@link SnapshotSession}).
+ *
+ * The snapshot is created before the file is modified for the first time
+ * after the session started, so its length and contents reflect the state
+ * of the file at that time. Before a block of the file is overwritten, its
+ * previous contents are preserved in a temporary file, unless the block has
+ * already been copied to the backup. {@link #writeTo(OutputStream)} copies
+ * the file sequentially and substitutes the preserved blocks.
+ */
+public class PageSnapshot {
+
+    /** Number of blocks copied while holding the monitor of the snapshot */
+    private final static int CHUNK_BLOCKS = 64;
+
+    private final File file;
+    private final FileChannel source;
+    private final long length;
+    private final int blockSize;
+
+    /** Maps block numbers to the offset of their preserved contents in the spill file */
+    private final Map<Long, Long> preserved = new HashMap<>();
+    private RandomAccessFile spill = null;
+    private File spillFile = null;
+
+    /** All blocks below this one have been copied to the backup */
+    private long copiedBlocks = 0;
+    private boolean closed = false;
+
+    PageSnapshot(final File file, final FileChannel source, final int blockSize) throws IOException {
+        this.file = file;
+        this.source = source;
+        this.blockSize = blockSize;
+        this.length = source.size();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the length of the file when the snapshot was taken
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the number of blocks preserved because they were modified
+     */
+    public synchronized int getPreservedBlocks() {
+        return preserved.size();
+    }
+
+    /**
+     * Called before the given range of the file is overwritten. Preserves
+     * the contents of all blocks in the range which are part of the snapshot,
+     * but have neither been preserved nor copied yet.
+     */
+    synchronized void beforeWrite(final long offset, final int len) throws IOException {
+        if (closed || offset >= length) {
+            return;
+        }
+        final long first = Math.max(offset / blockSize, copiedBlocks);
+        final long last = (Math.min(offset + len, length) - 1) / blockSize;
+        for (long block = first; block <= last; block++) {
+            if (!preserved.containsKey(block)) {
+                preserve(block);
+            }
+        }
+    }
+
+    private void preserve(final long block) throws IOException {
+        if (spill == null) {
+            spillFile = File.createTempFile("exist-snapshot-" + file.getName() + "-", ".tmp");
+            spill = new RandomAccessFile(spillFile, "rw");
+        }
+        final ByteBuffer buf = readBlock(block);
+        final long spillOffset = spill.length();
+        spill.getChannel().write(buf, spillOffset);
+        preserved.put(block, spillOffset);
+    }
+
+    private ByteBuffer readBlock(final long block) throws IOException {
+        final long start = block * blockSize;
+        final ByteBuffer buf = ByteBuffer.allocate((int) Math.min(blockSize, length - start));
+        while (buf.hasRemaining()) {
+            if (source.read(buf, start + buf.position()) < 0) {
+                break;
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Write the contents of the file, as they were when the snapshot was
+     * taken, to the given stream. Writers of the file are only blocked while
+     * a single chunk of blocks is copied.
+     */
+    public void writeTo(final OutputStream os) throws IOException {
+        final WritableByteChannel target = Channels.newChannel(os);
+        final long blocks = (length + blockSize - 1) / blockSize;
+        long block = 0;
+        while (block < blocks) {
+            final long end = Math.min(block + CHUNK_BLOCKS, blocks);
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Snapshot of " + file.getName() + " has been closed");
+                }
+                copyBlocks(block, end, target);
+                copiedBlocks = end;
+            }
+            block = end;
+        }
+    }
+
+    private void copyBlocks(final long from, final long to, final WritableByteChannel target) throws IOException {
+        long runStart = from;
+        for (long block = from; block < to; block++) {
+            final Long spillOffset = preserved.get(block);
+            if (spillOffset == null) {
+                continue;
+            }
+            // copy unmodified blocks directly from the file
+            transfer(source, runStart * blockSize, (block - runStart) * blockSize, target);
+            final ByteBuffer buf = ByteBuffer.allocate((int) Math.min(blockSize, length - block * blockSize));
+            while (buf.hasRemaining() && spill.getChannel().read(buf, spillOffset + buf.position()) >= 0) {
+                // read the preserved block
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                target.write(buf);
+            }
+            runStart = block + 1;
+        }
+        transfer(source, runStart * blockSize, Math.min(to * blockSize, length) - runStart * blockSize, target);
+    }
+
+    private static void transfer(final FileChannel channel, long position, long count, final WritableByteChannel target) throws IOException {
+        while (count > 0) {
+            final long transferred = channel.transferTo(position, count, target);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    /**
+     * Release the resources of the snapshot. Further writes to the file are
+     * no longer tracked.
+     */
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        preserved.clear();
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (final IOException e) {
+                Paged.LOG.warn("Failed to close snapshot file " + spillFile.getAbsolutePath(), e);
+            }
+            spillFile.delete();
+        }
+    }
+}
@@ -133,8 +133,13 @@ public abstract class Paged {
 
     private byte[] tempPageData = null;
     private byte[] tempHeaderData = null;
+
+    private final BrokerPool pool;
+    private PageSnapshot snapshot = null;
+    private SnapshotSession snapshotSession = null;
 	
     public Paged(BrokerPool pool) {
+        this.pool = pool;
         fileHeader = createFileHeader(pool.getPageSize());
         tempPageData = new byte[fileHeader.pageSize];
         tempHeaderData = new byte[fileHeader.pageHeaderSize];
@@ -225,6 +230,15 @@ public abstract class Paged {
      * @throws IOException
      */
     public void backupToStream(OutputStream os) throws IOException {
+        final SnapshotSession session = pool.getSnapshotSession();
+        if (session != null) {
+            final PageSnapshot current = getSnapshot(session);
+            if (current != null) {
+                // online backup: copy the file as it was when the session started
+                current.writeTo(os);
+                return;
+            }
+        }
         raf.seek(0);
         final byte[] buf = new byte[4096];
         int len;
@@ -233,6 +247,38 @@ public abstract class Paged {
         }
     }
 
+    /**
+     * Returns the snapshot of this file for the given online backup session,
+     * creating it if necessary.
+     *
+     * @return the snapshot or null if the session has been closed
+     */
+    private synchronized PageSnapshot getSnapshot(final SnapshotSession session) throws IOException {
+        if (snapshotSession != session) {
+            snapshotSession = session;
+            snapshot = new PageSnapshot(file, raf.getChannel(), fileHeader.pageSize);
+            if (!session.register(snapshot)) {
+                snapshot = null;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Called before data is written to the given range of the file. If an
+     * online backup is running, the data about to be overwritten is preserved.
+     */
+    private void beforeWrite(final long offset, final int length) throws IOException {
+        final SnapshotSession session = pool.getSnapshotSession();
+        if (session == null) {
+            return;
+        }
+        final PageSnapshot current = getSnapshot(session);
+        if (current != null) {
+            current.beforeWrite(offset, length);
+        }
+    }
+
     /**
      *  getFile returns the file object for this Paged.
      *
@@ -820,6 +866,7 @@ public abstract class Paged {
         }
 
         public final synchronized void write() throws IOException {
+            beforeWrite(0, buf.length);
             raf.seek(0);
             write(buf);
             raf.write(buf);
@@ -960,6 +1007,7 @@ public abstract class Paged {
                     System.arraycopy(data, 0, tempPageData, fileHeader.pageHeaderSize, data.length);
                 }
             }
+            beforeWrite(offset, tempPageData.length);
             if (raf.getFilePointer() != offset)
                 {raf.seek(offset);}
             raf.write(tempPageData);
@@ -0,0 +1,102 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage.btree;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An online backup of the raw storage files. While a session is active,
+ * every {@link Paged} file keeps a {@link PageSnapshot} of the state it had
+ * when the session was started, so the files can be copied while the
+ * database continues to modify them.
+ *
+ * A session must be started while the files are consistent on disk, i.e.
+ * directly after a checkpoint while no transactions are running. It is
+ * started and ended via {@link org.exist.storage.BrokerPool#startSnapshotSession()}.
+ */
+public class SnapshotSession {
+
+    private final long started = System.currentTimeMillis();
+    private final List<PageSnapshot> snapshots = new ArrayList<>();
+    private final Map<File, Long> lengths = new HashMap<>();
+    private boolean closed = false;
+
+    public long getStarted() {
+        return started;
+    }
+
+    /**
+     * Record the length of a file which is only ever appended to. Only
+     * this part of the file belongs to the backup.
+     */
+    public synchronized void recordLength(final File file) {
+        lengths.put(file.getAbsoluteFile(), file.length());
+    }
+
+    /**
+     * @return the length recorded for the file or -1
+     */
+    public synchronized long getLength(final File file) {
+        final Long length = lengths.get(file.getAbsoluteFile());
+        return length == null ? -1 : length;
+    }
+
+    synchronized boolean register(final PageSnapshot snapshot) {
+        if (closed) {
+            snapshot.close();
+            return false;
+        }
+        snapshots.add(snapshot);
+        return true;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the number of blocks preserved because they were modified during the session
+     */
+    public synchronized long getPreservedBlocks() {
+        long blocks = 0;
+        for (final PageSnapshot snapshot : snapshots) {
+            blocks += snapshot.getPreservedBlocks();
+        }
+        return blocks;
+    }
+
+    /**
+     * End the session and release all snapshots.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (final PageSnapshot snapshot : snapshots) {
+            snapshot.close();
+        }
+        snapshots.clear();
+    }
+}
@@ -2322,9 +2322,11 @@ public class BFile extends BTree {
         }
 
         public final void skipBytes(long count) throws IOException {
-            for(long i = 0; i < count; i++) {
+            while (count > 0) {
                 if (offset == pageLen) {advance();}
-                offset++;
+                final int skipped = (int) Math.min(count, pageLen - offset);
+                offset += skipped;
+                count -= skipped;
             }
         }
 
@@ -178,8 +178,7 @@ public class VariableByteArrayInput extends AbstractVariableByteInput {
 
     @Override
     public void skipBytes(long count) throws IOException {
-        for(long i = 0; i < count && position < end; i++)
-            position++;
+        position = (int) Math.min(end, position + Math.max(0, count));
     }
 
     public String toString(int len) {
@@ -0,0 +1,353 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage.serializers;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NodeHandle;
+import org.exist.numbering.NodeId;
+import org.exist.storage.UpdateListener;
+import org.exist.util.Configuration;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Size-bounded cache of serialized documents. Entries are keyed by document id,
+ * last-modified time and the output properties used for serialization, so a cached
+ * entry can never be served for a different version of a document or a different
+ * set of serialization options.
+ *
+ * The cache is registered with the {@link org.exist.storage.NotificationService}
+ * and drops all entries of a document as soon as it is updated or removed.
+ *
+ * The cache is disabled by default. It is enabled by setting the attribute
+ * <code>document-cache-size</code> (in megabytes) on the <code>serializer</code>
+ * element in conf.xml.
+ */
+public class SerializedDocumentCache implements UpdateListener {
+
+    private final static Logger LOG = LogManager.getLogger(SerializedDocumentCache.class);
+
+    public static final String CACHE_SIZE_ATTRIBUTE = "document-cache-size";
+    public static final String PROPERTY_CACHE_SIZE = "serialization.document-cache-size";
+
+    public static final String MAX_ENTRY_SIZE_ATTRIBUTE = "document-cache-max-entry";
+    public static final String PROPERTY_MAX_ENTRY_SIZE = "serialization.document-cache-max-entry";
+
+    /** Default maximum size of a single entry: 1MB */
+    public static final int DEFAULT_MAX_ENTRY_SIZE = 1024;
+
+    private final long maxSize;
+    private final int maxEntrySize;
+
+    private final LinkedHashMap<Key, CachedDocument> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long currentSize = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    public SerializedDocumentCache(final Configuration conf) {
+        final Integer size = (Integer) conf.getProperty(PROPERTY_CACHE_SIZE);
+        final Integer entrySize = (Integer) conf.getProperty(PROPERTY_MAX_ENTRY_SIZE);
+
+        this.maxSize = size == null ? 0 : size * 1024L * 1024L;
+        this.maxEntrySize = (entrySize == null ? DEFAULT_MAX_ENTRY_SIZE : entrySize) * 1024;
+
+        if (isEnabled()) {
+            LOG.info("Serialized document cache: size = " + maxSize + " bytes; max entry size = " + maxEntrySize + " bytes");
+        }
+    }
+
+    /**
+     * @return true if a cache size has been configured
+     */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * Lookup the serialized form of a document.
+     *
+     * @param channel identifies the code path which produced the bytes,
+     *                e.g. the REST or the XML-RPC interface
+     * @param doc the document
+     * @param outputProperties the output properties used for serialization
+     *
+     * @return the cached document or null if it is not in the cache
+     */
+    public synchronized CachedDocument get(final String channel, final DocumentImpl doc, final Properties outputProperties) {
+        final CachedDocument cached = entries.get(new Key(channel, doc, outputProperties));
+        if (cached == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return cached;
+    }
+
+    /**
+     * Add the serialized form of a document to the cache. Data exceeding
+     * the configured maximum entry size will not be cached.
+     *
+     * @return the cached document or null if the data could not be cached
+     */
+    public synchronized CachedDocument put(final String channel, final DocumentImpl doc, final Properties outputProperties, final byte[] data) {
+        if (!isEnabled() || data.length > maxEntrySize) {
+            return null;
+        }
+        final Key key = new Key(channel, doc, outputProperties);
+        final CachedDocument cached = new CachedDocument(data, getETag(doc, outputProperties));
+        final CachedDocument old = entries.put(key, cached);
+        if (old != null) {
+            currentSize -= old.data.length;
+        }
+        currentSize += data.length;
+
+        // evict least recently used entries
+        for (final Iterator<CachedDocument> i = entries.values().iterator(); i.hasNext() && currentSize > maxSize; ) {
+            final CachedDocument next = i.next();
+            if (next != cached) {
+                currentSize -= next.data.length;
+                i.remove();
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * Remove all cached serializations of the document with the given id.
+     */
+    public synchronized void invalidate(final int docId) {
+        for (final Iterator<Map.Entry<Key, CachedDocument>> i = entries.entrySet().iterator(); i.hasNext(); ) {
+            final Map.Entry<Key, CachedDocument> next = i.next();
+            if (next.getKey().docId == docId) {
+                currentSize -= next.getValue().data.length;
+                i.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        currentSize = 0;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getCurrentSize() {
+        return currentSize;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Compute an entity tag for the serialized form of a document. The tag
+     * changes whenever the document is modified or a different set of
+     * output properties is used.
+     */
+    public static String getETag(final DocumentImpl doc, final Properties outputProperties) {
+        return '"' + Integer.toHexString(doc.getDocId()) + '-' +
+            Long.toHexString(doc.getMetadata().getLastModified()) + '-' +
+            Integer.toHexString(canonicalize(outputProperties).hashCode()) + '"';
+    }
+
+    private static String canonicalize(final Properties properties) {
+        if (properties == null) {
+            return "";
+        }
+        final StringBuilder builder = new StringBuilder();
+        for (final String name : new TreeSet<>(properties.stringPropertyNames())) {
+            builder.append(name).append('=').append(properties.getProperty(name)).append(';');
+        }
+        return builder.toString();
+    }
+
+    @Override
+    public void documentUpdated(final DocumentImpl document, final int event) {
+        invalidate(document.getDocId());
+    }
+
+    @Override
+    public void nodeMoved(final NodeId oldNodeId, final NodeHandle newNode) {
+        // node moves do not change the serialized form of a document
+    }
+
+    @Override
+    public void unsubscribe() {
+        clear();
+    }
+
+    @Override
+    public void debug() {
+        LOG.debug("SerializedDocumentCache: " + getEntryCount() + " entries; " + getCurrentSize() + " bytes; " +
+            getHits() + " hits; " + getMisses() + " misses");
+    }
+
+    /**
+     * The serialized form of a document together with its entity tag.
+     */
+    public static class CachedDocument {
+
+        private final byte[] data;
+        private final String etag;
+
+        private CachedDocument(final byte[] data, final String etag) {
+            this.data = data;
+            this.etag = etag;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+    }
+
+    private static class Key {
+        private final String channel;
+        private final int docId;
+        private final long lastModified;
+        private final String properties;
+
+        private Key(final String channel, final DocumentImpl doc, final Properties outputProperties) {
+            this.channel = channel;
+            this.docId = doc.getDocId();
+            this.lastModified = doc.getMetadata().getLastModified();
+            this.properties = canonicalize(outputProperties);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return docId == other.docId && lastModified == other.lastModified &&
+                channel.equals(other.channel) && properties.equals(other.properties);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = docId;
+            result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+            result = 31 * result + channel.hashCode();
+            result = 31 * result + properties.hashCode();
+            return result;
+        }
+    }
+
+    /**
+     * An output stream which buffers up to the maximum entry size of the
+     * cache. If more data is written, the buffered data is flushed to the
+     * underlying stream and all further output is passed through.
+     */
+    public static class BufferingOutputStream extends OutputStream {
+
+        private final OutputStream os;
+        private final int limit;
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        public BufferingOutputStream(final OutputStream os, final int limit) {
+            this.os = os;
+            this.limit = limit;
+        }
+
+        /**
+         * @return true if all data written so far is held in the buffer
+         */
+        public boolean isBuffered() {
+            return buffer != null;
+        }
+
+        /**
+         * @return the buffered data or null if the limit was exceeded
+         */
+        public byte[] getData() {
+            return buffer == null ? null : buffer.toByteArray();
+        }
+
+        private void checkLimit(final int len) throws IOException {
+            if (buffer != null && buffer.size() + len > limit) {
+                buffer.writeTo(os);
+                buffer = null;
+            }
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            checkLimit(1);
+            if (buffer != null) {
+                buffer.write(b);
+            } else {
+                os.write(b);
+            }
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            checkLimit(len);
+            if (buffer != null) {
+                buffer.write(b, off, len);
+            } else {
+                os.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer == null) {
+                os.flush();
+            }
+        }
+
+        /**
+         * Closes the underlying stream if the limit was exceeded. Otherwise the
+         * underlying stream stays open, so the caller can write the buffered data.
+         */
+        @Override
+        public void close() throws IOException {
+            if (buffer == null) {
+                os.close();
+            }
+        }
+    }
+}
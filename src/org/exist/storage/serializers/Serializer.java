@@ -22,6 +22,7 @@
  */
 package org.exist.storage.serializers;
 
+import java.io.Flushable;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
@@ -194,6 +195,10 @@ public abstract class Serializer implements XMLReader {
     protected Subject user = null;
     
     protected HttpContext httpContext = null;
+
+    private Flushable flushable = null;
+    private int flushInterval = 0;
+
     public class HttpContext
     {
     	private RequestWrapper request = null;
@@ -447,8 +452,23 @@ public abstract class Serializer implements XMLReader {
         outputProperties.clear();
         showId = EXIST_ID_NONE;
         httpContext = null;
+        flushable = null;
+        flushInterval = 0;
 	}
 
+    /**
+     * Flush the given output after the first item and then after every
+     * <code>interval</code> items serialized by {@link #toSAX(Sequence, int, int, boolean, boolean)},
+     * so large results are streamed to the client while they are serialized.
+     *
+     * @param flushable the output to flush, usually the writer passed to the SAX handlers
+     * @param interval number of items between flushes
+     */
+    public void setFlushInterval(Flushable flushable, int interval) {
+        this.flushable = flushable;
+        this.flushInterval = interval;
+    }
+
 	public String serialize(DocumentImpl doc) throws SAXException {
 		final StringWriter writer = new StringWriter();
 		serialize(doc, writer);
@@ -923,6 +943,14 @@ public abstract class Serializer implements XMLReader {
                         }
                         
 			itemToSAX(item, typed, wrap, attrs);
+
+			if (flushable != null && flushInterval > 0 && (i - start) % flushInterval == 0) {
+				try {
+					flushable.flush();
+				} catch (final IOException e) {
+					throw new SAXException(e.getMessage(), e);
+				}
+			}
 		}
 		
 		if(wrap) {
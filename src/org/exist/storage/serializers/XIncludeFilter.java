@@ -120,6 +120,8 @@ public class XIncludeFilter implements Receiver {
 
     private ResourceError error = null;
 
+    private int includeCount = 0;
+
     public XIncludeFilter(Serializer serializer, Receiver receiver) {
 		this.receiver = receiver;
 		this.serializer = serializer;
@@ -143,6 +145,17 @@ public class XIncludeFilter implements Receiver {
         this.error = null;
     }
 
+    /**
+     * Returns the number of xi:include elements processed by this filter
+     * since it was created. Used to detect if the serialized form of a document
+     * depends on other resources.
+     *
+     * @return the number of processed includes
+     */
+    public int getIncludeCount() {
+        return includeCount;
+    }
+
     public void setModuleLoadPath(String path) {
         this.moduleLoadPath = path;
     }
@@ -235,6 +248,7 @@ public class XIncludeFilter implements Receiver {
                 if (LOG.isDebugEnabled()) {
                     LOG.debug("processing include ...");
                 }
+                includeCount++;
 
                 final Optional<ResourceError> maybeResourceError = processXInclude(attribs.getValue(HREF_ATTRIB), attribs.getValue(XPOINTER_ATTRIB));
 
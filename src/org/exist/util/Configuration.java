@@ -37,6 +37,7 @@ import org.xml.sax.XMLReader;
 
 import org.exist.Indexer;
 import org.exist.indexing.IndexManager;
+import org.exist.collections.DocumentSetCache;
 import org.exist.dom.memtree.SAXAdapter;
 import org.exist.protocolhandler.eXistURLStreamHandlerFactory;
 import org.exist.scheduler.JobConfig;
@@ -51,9 +52,12 @@ import org.exist.storage.DefaultCacheManager;
 import org.exist.storage.IndexSpec;
 import org.exist.storage.NativeBroker;
 import org.exist.storage.NativeValueIndex;
+import org.exist.storage.QueryResultCache;
 import org.exist.storage.XQueryPool;
+import org.exist.storage.XQueryPoolSnapshot;
 import org.exist.storage.journal.Journal;
 import org.exist.storage.serializers.CustomMatchListenerFactory;
+import org.exist.storage.serializers.SerializedDocumentCache;
 import org.exist.storage.serializers.Serializer;
 import org.exist.storage.txn.TransactionManager;
 import org.exist.validation.GrammarPool;
@@ -336,6 +340,32 @@ public class Configuration implements ErrorHandler
         config.put( XQueryContext.PROPERTY_XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL, Configuration.parseBoolean( raiseErrorOnFailedRetrieval, XQueryContext.XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL_DEFAULT ) );
         LOG.debug( XQueryContext.PROPERTY_XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL + ": " + config.get( XQueryContext.PROPERTY_XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL ) );
 
+        final String documentSetCacheSize = getConfigAttributeValue( xquery, DocumentSetCache.CACHE_SIZE_ATTRIBUTE );
+
+        if( documentSetCacheSize != null ) {
+
+            try {
+                config.put( DocumentSetCache.PROPERTY_CACHE_SIZE, Integer.valueOf(documentSetCacheSize) );
+                LOG.debug( DocumentSetCache.PROPERTY_CACHE_SIZE + ": " + config.get( DocumentSetCache.PROPERTY_CACHE_SIZE ) );
+            }
+            catch( final NumberFormatException nfe ) {
+                LOG.warn( nfe );
+            }
+        }
+
+        final String resultCacheSize = getConfigAttributeValue( xquery, QueryResultCache.CACHE_SIZE_ATTRIBUTE );
+
+        if( resultCacheSize != null ) {
+
+            try {
+                config.put( QueryResultCache.PROPERTY_CACHE_SIZE, Integer.valueOf(resultCacheSize) );
+                LOG.debug( QueryResultCache.PROPERTY_CACHE_SIZE + ": " + config.get( QueryResultCache.PROPERTY_CACHE_SIZE ) );
+            }
+            catch( final NumberFormatException nfe ) {
+                LOG.warn( nfe );
+            }
+        }
+
         final String trace = getConfigAttributeValue( xquery, PerformanceStats.CONFIG_ATTR_TRACE );
         config.put( PerformanceStats.CONFIG_PROPERTY_TRACE, trace );
 
@@ -499,6 +529,13 @@ public class Configuration implements ErrorHandler
             config.put( DBBroker.PROPERTY_XUPDATE_CONSISTENCY_CHECKS, parseBoolean( consistencyCheck, false ) );
             LOG.debug( DBBroker.PROPERTY_XUPDATE_CONSISTENCY_CHECKS + ": " + config.get( DBBroker.PROPERTY_XUPDATE_CONSISTENCY_CHECKS ) );
         }
+
+        final String backgroundDefrag = getConfigAttributeValue( xupdate, DBBroker.XUPDATE_BACKGROUND_DEFRAG_ATTRIBUTE );
+
+        if( backgroundDefrag != null ) {
+            config.put( DBBroker.PROPERTY_XUPDATE_BACKGROUND_DEFRAG, parseBoolean( backgroundDefrag, false ) );
+            LOG.debug( DBBroker.PROPERTY_XUPDATE_BACKGROUND_DEFRAG + ": " + config.get( DBBroker.PROPERTY_XUPDATE_BACKGROUND_DEFRAG ) );
+        }
     }
 
 
@@ -615,6 +652,40 @@ public class Configuration implements ErrorHandler
             LOG.debug( Serializer.PROPERTY_TAG_MATCHING_ATTRIBUTES + ": " + config.get( Serializer.PROPERTY_TAG_MATCHING_ATTRIBUTES ) );
         }
 
+        String documentCacheSize = getConfigAttributeValue( serializer, SerializedDocumentCache.CACHE_SIZE_ATTRIBUTE );
+
+        if( documentCacheSize != null ) {
+
+            if( documentCacheSize.endsWith( "M" ) || documentCacheSize.endsWith( "m" ) ) {
+                documentCacheSize = documentCacheSize.substring( 0, documentCacheSize.length() - 1 );
+            }
+
+            try {
+                config.put( SerializedDocumentCache.PROPERTY_CACHE_SIZE, Integer.valueOf(documentCacheSize) );
+                LOG.debug( SerializedDocumentCache.PROPERTY_CACHE_SIZE + ": " + config.get( SerializedDocumentCache.PROPERTY_CACHE_SIZE ) + "m" );
+            }
+            catch( final NumberFormatException nfe ) {
+                LOG.warn( nfe );
+            }
+        }
+
+        String documentCacheMaxEntry = getConfigAttributeValue( serializer, SerializedDocumentCache.MAX_ENTRY_SIZE_ATTRIBUTE );
+
+        if( documentCacheMaxEntry != null ) {
+
+            if( documentCacheMaxEntry.endsWith( "K" ) || documentCacheMaxEntry.endsWith( "k" ) ) {
+                documentCacheMaxEntry = documentCacheMaxEntry.substring( 0, documentCacheMaxEntry.length() - 1 );
+            }
+
+            try {
+                config.put( SerializedDocumentCache.PROPERTY_MAX_ENTRY_SIZE, Integer.valueOf(documentCacheMaxEntry) );
+                LOG.debug( SerializedDocumentCache.PROPERTY_MAX_ENTRY_SIZE + ": " + config.get( SerializedDocumentCache.PROPERTY_MAX_ENTRY_SIZE ) + "k" );
+            }
+            catch( final NumberFormatException nfe ) {
+                LOG.warn( nfe );
+            }
+        }
+
         final NodeList nlFilters = serializer.getElementsByTagName( CustomMatchListenerFactory.CONFIGURATION_ELEMENT );
 
         if( nlFilters == null ) {
@@ -829,6 +900,20 @@ public class Configuration implements ErrorHandler
             }
         }
 
+        final String collectionCachePinned = getConfigAttributeValue( con, CollectionCacheManager.PINNED_ATTRIBUTE );
+
+        if( collectionCachePinned != null ) {
+            config.put( CollectionCacheManager.PROPERTY_PINNED, collectionCachePinned );
+            LOG.debug( CollectionCacheManager.PROPERTY_PINNED + ": " + config.get( CollectionCacheManager.PROPERTY_PINNED ) );
+        }
+
+        final String collectionCachePreload = getConfigAttributeValue( con, CollectionCacheManager.PRELOAD_ATTRIBUTE );
+
+        if( collectionCachePreload != null ) {
+            config.put( CollectionCacheManager.PROPERTY_PRELOAD, collectionCachePreload );
+            LOG.debug( CollectionCacheManager.PROPERTY_PRELOAD + ": " + config.get( CollectionCacheManager.PROPERTY_PRELOAD ) );
+        }
+
         final String pageSize = getConfigAttributeValue( con, NativeBroker.PAGE_SIZE_ATTRIBUTE );
 
         if( pageSize != null ) {
@@ -1182,6 +1267,10 @@ public class Configuration implements ErrorHandler
                 LOG.warn( e );
             }
         }
+
+        final String persistent = getConfigAttributeValue( queryPool, XQueryPoolSnapshot.PERSISTENT_ATTRIBUTE );
+        config.put( XQueryPoolSnapshot.PROPERTY_PERSISTENT, Configuration.parseBoolean( persistent, false ) );
+        LOG.debug( XQueryPoolSnapshot.PROPERTY_PERSISTENT + ": " + config.get( XQueryPoolSnapshot.PROPERTY_PERSISTENT ) );
     }
     
     public static class StartupTriggerConfig {
@@ -3,6 +3,8 @@ package org.exist.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -23,6 +25,7 @@ public final class ZipEntryInputSource
 {
 	private ZipEntry zipEntry;
 	private ZipFile zipFile;
+	private final List<InputStream> inputStreams = new ArrayList<InputStream>();
 	
 	public ZipEntryInputSource()
 	{
@@ -39,6 +42,7 @@ public final class ZipEntryInputSource
 	
 	public void setZipEntry(ZipFile zipFile,ZipEntry zipEntry)
 	{
+		close();
 		this.zipFile=zipFile;
 		this.zipEntry=zipEntry;
 	}
@@ -48,6 +52,7 @@ public final class ZipEntryInputSource
 		if(zipFile!=null && zipEntry!=null) {
 			try {
 				retval=zipFile.getInputStream(zipEntry);
+				inputStreams.add(retval);
 			} catch(final IOException ioe) {
 				// No way to notify :-(
 			}
@@ -85,7 +90,19 @@ public final class ZipEntryInputSource
 		return zipFile.getName()+"#"+zipEntry.getName();
 	}
 
+    /**
+     * Closes all streams returned by {@link #getByteStream()}.
+     * The inflater of an unclosed stream holds native memory until the
+     * stream is garbage collected.
+     */
     public void close() {
-        // Nothing to close
+        for(final InputStream inputStream : inputStreams) {
+            try {
+                inputStream.close();
+            } catch(final IOException e) {
+                // ignore if the stream is already closed
+            }
+        }
+        inputStreams.clear();
     }
 }
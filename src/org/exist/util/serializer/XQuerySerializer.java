@@ -10,6 +10,7 @@ import org.xml.sax.SAXNotRecognizedException;
 import org.xml.sax.SAXNotSupportedException;
 
 import javax.xml.transform.OutputKeys;
+import java.io.Flushable;
 import java.io.Writer;
 import java.util.Properties;
 
@@ -25,6 +26,9 @@ public class XQuerySerializer {
     private final DBBroker broker;
     private final Writer writer;
 
+    private Flushable flushable = null;
+    private int flushInterval = 0;
+
     public XQuerySerializer(DBBroker broker, Properties outputProperties, Writer writer) {
         super();
         this.broker = broker;
@@ -32,6 +36,17 @@ public class XQuerySerializer {
         this.writer = writer;
     }
 
+    /**
+     * Stream XML results incrementally by flushing the given output
+     * after the first and then after every <code>interval</code> items.
+     *
+     * @see Serializer#setFlushInterval(Flushable, int)
+     */
+    public void setFlushInterval(Flushable flushable, int interval) {
+        this.flushable = flushable;
+        this.flushInterval = interval;
+    }
+
     public void serialize(Sequence sequence) throws SAXException, XPathException {
         serialize(sequence, 1, sequence.getItemCount(), false, false);
     }
@@ -58,6 +73,9 @@ public class XQuerySerializer {
             sax.setOutput(writer, outputProperties);
             serializer.setProperties(outputProperties);
             serializer.setSAXHandlers(sax, sax);
+            if (flushable != null) {
+                serializer.setFlushInterval(flushable, flushInterval);
+            }
             serializer.toSAX(sequence, start, howmany, wrap, typed);
         } catch (SAXNotSupportedException | SAXNotRecognizedException e) {
             throw new SAXException(e.getMessage(), e);
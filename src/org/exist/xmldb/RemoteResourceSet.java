@@ -31,6 +31,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.xmlrpc.XmlRpcException;
 import org.exist.storage.serializers.EXistOutputKeys;
+import org.exist.util.Compressor;
 import org.exist.util.VirtualTempFile;
 import org.xmldb.api.base.ErrorCodes;
 import org.xmldb.api.base.Resource;
@@ -40,12 +41,25 @@ import org.xmldb.api.base.XMLDBException;
 
 public class RemoteResourceSet implements ResourceSet {
 
+    /**
+     * Maximum number of nodes retrieved from the server per round trip
+     */
+    private static final int BATCH_SIZE = 64;
+
     private final RemoteCollection collection;
     private int handle = -1;
     private int hash = -1;
     private final List resources;
     private final Properties outputProperties;
 
+    /**
+     * The serialized nodes of the last batch retrieved from the server,
+     * starting at position batchStart
+     */
+    private List<String> batch = Collections.emptyList();
+    private long batchStart = -1;
+    private boolean batchRetrieval = true;
+
     private static Logger LOG = LogManager.getLogger(RemoteResourceSet.class.getName());
 
     public RemoteResourceSet(RemoteCollection col, Properties properties, Object[] resources, int handle, int hash) {
@@ -78,6 +92,8 @@ public class RemoteResourceSet implements ResourceSet {
         handle = -1;
         hash = -1;
         resources.clear();
+        batch = Collections.emptyList();
+        batchStart = -1;
     }
 
     @Override
@@ -209,6 +225,10 @@ public class RemoteResourceSet implements ResourceSet {
             parent.setProperties(outputProperties);
             final RemoteXMLResource res = new RemoteXMLResource(parent, handle, (int) pos, docUri, s_id);
             res.setProperties(outputProperties);
+            final String content = getBatchedContent(pos);
+            if (content != null) {
+                res.setContent(content);
+            }
             return res;
         } else if (resources.get((int) pos) instanceof Resource) {
             return (Resource) resources.get((int) pos);
@@ -221,6 +241,54 @@ public class RemoteResourceSet implements ResourceSet {
         }
     }
 
+    /**
+     * Returns the serialized node at position pos in the result set. The nodes
+     * are retrieved from the server in batches, so iterating over the result
+     * set needs one round trip per batch instead of one per node.
+     *
+     * @return the serialized node or null if it has to be retrieved separately
+     */
+    private String getBatchedContent(final long pos) throws XMLDBException {
+        if (handle < 0 || !batchRetrieval) {
+            return null;
+        }
+        if (pos < batchStart || pos >= batchStart + batch.size()) {
+            final List<Object> params = new ArrayList<>();
+            params.add(handle);
+            params.add((int) pos);
+            params.add(BATCH_SIZE);
+            params.add(outputProperties);
+            final Map<?, ?> table;
+            try {
+                table = (Map<?, ?>) collection.getClient().execute("retrieveBatch", params);
+            } catch (final XmlRpcException e) {
+                // the server does not support batched retrieval: fall back to retrieving each node
+                LOG.debug("Failed to retrieve a batch of results: " + e.getMessage(), e);
+                batchRetrieval = false;
+                return null;
+            }
+
+            final Object[] data = (Object[]) table.get("data");
+            final boolean isCompressed = "yes".equals(outputProperties.getProperty(EXistOutputKeys.COMPRESS_OUTPUT, "no"));
+            final String encoding = outputProperties.getProperty(OutputKeys.ENCODING, "UTF-8");
+            final List<String> contents = new ArrayList<>(data.length);
+            try {
+                for (final Object item : data) {
+                    final byte[] bytes = isCompressed ? Compressor.uncompress((byte[]) item) : (byte[]) item;
+                    contents.add(new String(bytes, encoding));
+                }
+            } catch (final IOException e) {
+                throw new XMLDBException(ErrorCodes.VENDOR_ERROR, e.getMessage(), e);
+            }
+            batch = contents;
+            batchStart = pos;
+            if (batch.isEmpty()) {
+                return null;
+            }
+        }
+        return batch.get((int) (pos - batchStart));
+    }
+
     @Override
     public long getSize() throws XMLDBException {
         return resources == null ? 0 : (long) resources.size();
@@ -23,46 +23,65 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Used by {@link XmldbRequestProcessorFactory} to cache query results. Each query result
- * is identified by a unique integer id.
+ * is identified by a unique integer id, which serves as a server-side cursor for the client.
+ *
+ * Results are kept in a concurrent map indexed by id. The cache is bounded by the number
+ * of results and by the total number of items held by cached query results. If either limit
+ * is exceeded, the least recently used results are evicted. Results which have not been
+ * accessed for {@link #TIMEOUT} milliseconds are removed by {@link #checkTimestamps()}.
  */
 public class QueryResultCache {
 
     public final static int TIMEOUT = 180000;
 
-    private static final int INITIAL_SIZE = 254;
+    /** Default maximum number of cached results */
+    public final static int DEFAULT_MAX_RESULTS = 1024;
 
-    private AbstractCachedResult[] results;
+    /** Default maximum number of items held by all cached query results */
+    public final static long DEFAULT_MAX_ITEMS = 1000000;
 
     private static final Logger LOG = LogManager.getLogger(QueryResultCache.class);
 
+    private final Map<Integer, CachedEntry> results = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AtomicLong items = new AtomicLong();
+
+    private final int maxResults;
+    private final long maxItems;
+    private final long timeout;
+
     public QueryResultCache() {
-        results = new AbstractCachedResult[INITIAL_SIZE];
+        this(DEFAULT_MAX_RESULTS, DEFAULT_MAX_ITEMS, TIMEOUT);
+    }
+
+    public QueryResultCache(final int maxResults, final long maxItems, final long timeout) {
+        this.maxResults = maxResults;
+        this.maxItems = maxItems;
+        this.timeout = timeout;
     }
 
     public int add(final AbstractCachedResult qr) {
-        for (int i = 0; i < results.length; i++) {
-            if (results[i] == null) {
-                results[i] = qr;
-                return i;
-            }
-        }
-        // no empty bucket. need to resize.
-        final AbstractCachedResult[] temp = new AbstractCachedResult[(results.length * 3) / 2];
-        System.arraycopy(results, 0, temp, 0, results.length);
-        final int pos = results.length;
-        temp[pos] = qr;
-        results = temp;
-        return pos;
+        final CachedEntry entry = new CachedEntry(qr);
+        int id;
+        do {
+            id = nextId.getAndIncrement() & Integer.MAX_VALUE;
+        } while (results.putIfAbsent(id, entry) != null);
+        items.addAndGet(entry.items);
+        evict(id);
+        return id;
     }
 
     public AbstractCachedResult get(final int pos) {
-        if (pos < 0 || pos >= results.length) {
-            return null;
-        }
-        return results[pos];
+        final CachedEntry entry = results.get(pos);
+        return entry == null ? null : entry.result;
     }
 
     public QueryResult getResult(final int pos) {
@@ -76,41 +95,95 @@ public class QueryResultCache {
     }
 
     public void remove(final int pos) {
-        if (pos > -1 && pos < results.length) {
+        final CachedEntry entry = results.remove(pos);
+        if (entry != null) {
+            items.addAndGet(-entry.items);
             // Perhaps we should not free resources here
             // but an explicit remove implies you want
             // to free resources
-
-            if (results[pos] != null) { // Prevent NPE
-                results[pos].free();
-                results[pos] = null;
-            }
+            entry.result.free();
         }
     }
 
     public void remove(final int pos, final int hash) {
-        if (pos > -1 && pos < results.length && (results[pos] != null && results[pos].hashCode() == hash)) {
+        final CachedEntry entry = results.get(pos);
+        if (entry != null && entry.result.hashCode() == hash && results.remove(pos, entry)) {
+            items.addAndGet(-entry.items);
             // Perhaps we should not free resources here
             // but an explicit remove implies you want
             // to free resources
-            results[pos].free();
-            results[pos] = null;
+            entry.result.free();
         }
     }
 
+    /**
+     * @return the number of cached results
+     */
+    public int size() {
+        return results.size();
+    }
+
+    /**
+     * @return the number of items held by all cached query results
+     */
+    public long getItemCount() {
+        return items.get();
+    }
+
     public void checkTimestamps() {
         final long now = System.currentTimeMillis();
-        for (int i = 0; i < results.length; i++) {
-            final AbstractCachedResult result = results[i];
-            if (result != null) {
-                if (now - result.getTimestamp() > TIMEOUT) {
-                    if (LOG.isDebugEnabled()) {
-                        LOG.debug("Removing result set " + new Date(result.getTimestamp()).toString());
-                    }
-                    // Here we should not free resources, because they could be still in use
-                    // by other threads, so leave the work to the garbage collector
-                    results[i] = null;
+        for (final Iterator<Map.Entry<Integer, CachedEntry>> i = results.entrySet().iterator(); i.hasNext(); ) {
+            final Map.Entry<Integer, CachedEntry> next = i.next();
+            final AbstractCachedResult result = next.getValue().result;
+            if (now - result.getTimestamp() > timeout) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Removing result set " + new Date(result.getTimestamp()).toString());
                 }
+                // Here we should not free resources, because they could be still in use
+                // by other threads, so leave the work to the garbage collector
+                if (results.remove(next.getKey(), next.getValue())) {
+                    items.addAndGet(-next.getValue().items);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evict least recently used results until the cache is within its limits again.
+     * The result which has just been added is never evicted.
+     */
+    private void evict(final int added) {
+        while (results.size() > maxResults || items.get() > maxItems) {
+            Map.Entry<Integer, CachedEntry> oldest = null;
+            for (final Map.Entry<Integer, CachedEntry> next : results.entrySet()) {
+                if (next.getKey() != added &&
+                        (oldest == null || next.getValue().result.getTimestamp() < oldest.getValue().result.getTimestamp())) {
+                    oldest = next;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            if (results.remove(oldest.getKey(), oldest.getValue())) {
+                items.addAndGet(-oldest.getValue().items);
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Evicting result set " + oldest.getKey() + " from cache");
+                }
+                // as in checkTimestamps, resources could still be in use by another thread
+            }
+        }
+    }
+
+    private static class CachedEntry {
+        private final AbstractCachedResult result;
+        private final long items;
+
+        private CachedEntry(final AbstractCachedResult result) {
+            this.result = result;
+            if (result instanceof QueryResult && ((QueryResult) result).result != null) {
+                this.items = ((QueryResult) result).result.getItemCount();
+            } else {
+                this.items = 0;
             }
         }
     }
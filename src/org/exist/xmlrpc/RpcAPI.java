@@ -732,6 +732,25 @@ public interface RpcAPI {
     Map<String, Object> retrieveFirstChunk(int resultId, int num, Map<String, Object> parameters)
             throws EXistException, PermissionDeniedException;
 
+    /**
+     * Retrieve a batch of results from the result-set identified by resultId,
+     * starting at position start. At most howmany items are returned, but the
+     * batch may be cut short once the serialized items exceed the download
+     * chunk size. If compression is requested, each item is compressed separately.
+     *
+     * @param resultId the id of the result set
+     * @param start position of the first item to retrieve
+     * @param howmany maximum number of items to retrieve
+     * @param parameters serialization parameters
+     * @return a map containing the serialized items as "data", the position
+     * of the next item to retrieve as "next" (-1 if the end of the result set
+     * has been reached) and the number of hits as "hits"
+     * @exception EXistException Description of the Exception
+     * @exception PermissionDeniedException Description of the Exception
+     */
+    Map<String, Object> retrieveBatch(int resultId, int start, int howmany, Map<String, Object> parameters)
+            throws EXistException, PermissionDeniedException;
+
     boolean addAccount(String name, String passwd, String digestPassword, List<String> groups, Boolean isEnabled, Integer umask, Map<String, String> metadata)
             throws EXistException, PermissionDeniedException;
 
@@ -70,6 +70,7 @@ import org.exist.storage.*;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.lock.LockedDocumentMap;
 import org.exist.storage.serializers.EXistOutputKeys;
+import org.exist.storage.serializers.SerializedDocumentCache;
 import org.exist.storage.serializers.Serializer;
 import org.exist.storage.sync.Sync;
 import org.exist.storage.txn.Txn;
@@ -128,6 +129,9 @@ public class RpcConnection implements RpcAPI {
     private final static int MAX_DOWNLOAD_CHUNK_SIZE = 0x40000;
     private final static Charset DEFAULT_ENCODING = StandardCharsets.UTF_8;
 
+    /** Identifies documents serialized by the XML-RPC interface in the {@link SerializedDocumentCache} */
+    private final static String DOCUMENT_CACHE_CHANNEL = "xmlrpc";
+
     private final XmldbRequestProcessorFactory factory;
     private final Subject user;
 
@@ -615,9 +619,26 @@ public class RpcConnection implements RpcAPI {
 
     private String getDocumentAsString(final XmldbURI docUri, final Map<String, Object> parameters) throws EXistException, PermissionDeniedException {
         return this.<String>readDocument(docUri).apply((document, broker, transaction) -> {
+            final Properties properties = toProperties(parameters);
+            final SerializedDocumentCache documentCache = broker.getBrokerPool().getSerializedDocumentCache();
+            final boolean cacheable = documentCache != null && documentCache.isEnabled();
+            if (cacheable) {
+                final SerializedDocumentCache.CachedDocument cached = documentCache.get(DOCUMENT_CACHE_CHANNEL, document, properties);
+                if (cached != null) {
+                    return new String(cached.getData(), StandardCharsets.UTF_8);
+                }
+            }
+
             final Serializer serializer = broker.getSerializer();
-            serializer.setProperties(toProperties(parameters));
-            return serializer.serialize(document);
+            serializer.setProperties(properties);
+            final int includeCount = serializer.getXIncludeFilter().getIncludeCount();
+            final String xml = serializer.serialize(document);
+
+            // documents using XInclude or a stylesheet depend on other resources and are never cached
+            if (cacheable && !serializer.isStylesheetApplied() && includeCount == serializer.getXIncludeFilter().getIncludeCount()) {
+                documentCache.put(DOCUMENT_CACHE_CHANNEL, document, properties, xml.getBytes(StandardCharsets.UTF_8));
+            }
+            return xml;
         });
     }
 
@@ -2145,6 +2166,58 @@ public class RpcConnection implements RpcAPI {
         });
     }
 
+    @Override
+    public Map<String, Object> retrieveBatch(final int resultId, final int start, final int howmany,
+            final Map<String, Object> parameters) throws EXistException, PermissionDeniedException {
+        final Charset encoding = getEncoding(parameters);
+        final boolean compression = useCompression(parameters);
+
+        return withDb((broker, transaction) -> {
+            final QueryResult qr = factory.resultSets.getResult(resultId);
+            if (qr == null) {
+                throw new EXistException("result set unknown or timed out: " + resultId);
+            }
+            qr.touch();
+            final int hits = qr.result.getItemCount();
+            if (start < 0 || start > hits) {
+                throw new EXistException("index out of range");
+            }
+
+            final Serializer serializer = broker.getSerializer();
+            serializer.reset();
+            for (final Map.Entry<Object, Object> entry : qr.serialization.entrySet()) {
+                parameters.put(entry.getKey().toString(), entry.getValue().toString());
+            }
+            serializer.setProperties(toProperties(parameters));
+
+            final List<byte[]> data = new ArrayList<>();
+            int pos = start;
+            long size = 0;
+            try {
+                while (pos < hits && data.size() < howmany && size < MAX_DOWNLOAD_CHUNK_SIZE) {
+                    final Item item = qr.result.itemAt(pos++);
+                    final String xml;
+                    if (Type.subTypeOf(item.getType(), Type.NODE)) {
+                        xml = serializer.serialize((NodeValue) item);
+                    } else {
+                        xml = item.getStringValue();
+                    }
+                    final byte[] bytes = compression ? Compressor.compress(xml.getBytes(encoding)) : xml.getBytes(encoding);
+                    size += bytes.length;
+                    data.add(bytes);
+                }
+            } catch (final XPathException | IOException e) {
+                throw new EXistException(e);
+            }
+
+            final Map<String, Object> result = new HashMap<>();
+            result.put("data", data);
+            result.put("next", pos < hits ? pos : -1);
+            result.put("hits", hits);
+            return result;
+        });
+    }
+
     @Override
     public byte[] retrieveAll(final int resultId, final Map<String, Object> parameters) throws EXistException,
             PermissionDeniedException {
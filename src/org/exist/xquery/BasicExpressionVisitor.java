@@ -19,6 +19,8 @@
  */
 package org.exist.xquery;
 
+import org.exist.xquery.update.Modification;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -109,6 +111,18 @@ public class BasicExpressionVisitor implements ExpressionVisitor {
     public void visitVariableDeclaration(VariableDeclaration decl) {
     	// Nothing to do
     }
+
+    /**
+     * Default implementation traverses the target and
+     * the new value of the update.
+     */
+    @Override
+    public void visitModification(Modification modification) {
+        modification.getSelectExpression().accept(this);
+        if (modification.getValueExpression() != null) {
+            modification.getValueExpression().accept(this);
+        }
+    }
     
     protected void processWrappers(Expression expr) {
         if (expr instanceof Atomize ||
@@ -19,6 +19,8 @@
  */
 package org.exist.xquery;
 
+import org.exist.xquery.update.Modification;
+
 /**
  * Defines a visitor to be used for traversing and analyzing the
  * expression tree.
@@ -85,4 +87,7 @@ public interface ExpressionVisitor {
     public void visitVariableReference(VariableReference ref);
 
     public void visitVariableDeclaration(VariableDeclaration decl);
+
+    /** Found an update expression */
+    public void visitModification(Modification modification);
 }
@@ -50,6 +50,10 @@ public class ExtensionExpression extends AbstractExpression {
         this.innerExpression = inner;
     }
 
+    public Expression getExpression() {
+        return innerExpression;
+    }
+
     public void addPragma(Pragma pragma) {
         pragmas.add(pragma);
     }
@@ -97,8 +101,11 @@ public class ExtensionExpression extends AbstractExpression {
 
     public void analyze(AnalyzeContextInfo contextInfo) throws XPathException {
         final AnalyzeContextInfo newContext = new AnalyzeContextInfo(contextInfo);
+        // pragmas see the extension expression as their parent
+        final AnalyzeContextInfo pragmaContext = new AnalyzeContextInfo(contextInfo);
+        pragmaContext.setParent(this);
         for (final Pragma pragma : pragmas) {
-            pragma.analyze(newContext);
+            pragma.analyze(pragmaContext);
         }
         innerExpression.analyze(newContext);
     }
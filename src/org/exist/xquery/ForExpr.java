@@ -62,6 +62,10 @@ public class ForExpr extends BindingExpression {
         positionalVariable = var;
     }
 
+    public String getPositionalVariable() {
+        return positionalVariable;
+    }
+
     public void analyze(AnalyzeContextInfo contextInfo, OrderSpec orderBy[]) throws XPathException { 
         analyze(contextInfo, orderBy, null); 
     } 
@@ -24,6 +24,7 @@ import java.util.List;
 
 import org.exist.Namespaces;
 import org.exist.dom.QName;
+import org.exist.storage.QueryResultCache;
 import org.exist.xquery.parser.XQueryAST;
 import org.exist.xquery.value.SequenceType;
 import org.exist.xquery.value.StringValue;
@@ -310,6 +311,9 @@ public class FunctionFactory {
             throw new XPathException(ast.getLine(), ast.getColumn(),
                 "Access to deprecated functions is not allowed. Call to '" + qname.getStringValue() + "()' denied. " + def.getSignature().getDeprecated());
         }
+        if (!QueryResultCache.isCacheable(def.getSignature().getName())) {
+            context.disableResultCache();
+        }
         final Function fn = Function.createFunction(context, ast, def);
         fn.setArguments(params);
         fn.setASTNode(ast);
@@ -211,6 +211,16 @@ public class ModuleContext extends XQueryContext {
 	public DocumentSet getStaticallyKnownDocuments() throws XPathException {
 		return parentContext.getStaticallyKnownDocuments();
 	}
+
+	@Override
+	public void addDependency(XmldbURI uri) {
+		parentContext.addDependency(uri);
+	}
+
+	@Override
+	public void disableResultCache() {
+		parentContext.disableResultCache();
+	}
 	
 	/* (non-Javadoc)
 	 * @see org.exist.xquery.XQueryContext#getModule(java.lang.String)
@@ -42,6 +42,7 @@ public class Option {
     public final static QName OPTIMIZE_QNAME = new QName("optimize", Namespaces.EXIST_NS);
     public final static QName OPTIMIZE_IMPLICIT_TIMEZONE = new QName("implicit-timezone", Namespaces.EXIST_NS);
     public final static QName CURRENT_DATETIME = new QName("current-dateTime", Namespaces.EXIST_NS);
+    public final static QName RESULT_CACHE_QNAME = new QName("result-cache", Namespaces.EXIST_NS);
 	
     private final static String paramPattern =
 		"\\s*([\\w\\.-]+)\\s*=\\s*('[^']*'|\"[^\"]*\"|[^\"\'\\s][^\\s]*)";
@@ -71,6 +71,10 @@ public class OrderSpec {
 		return modifiers;
 	}
 	
+	public XQueryContext getContext() {
+		return context;
+	}
+	
 	public Collator getCollator() {
 		return collator == null ? context.getDefaultCollator() : collator;
 	}
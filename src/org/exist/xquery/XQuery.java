@@ -46,6 +46,7 @@ import org.exist.source.FileSource;
 import org.exist.source.Source;
 import org.exist.source.StringSource;
 import org.exist.storage.DBBroker;
+import org.exist.storage.QueryResultCache;
 import org.exist.storage.XQueryPool;
 import org.exist.xquery.parser.XQueryLexer;
 import org.exist.xquery.parser.XQueryParser;
@@ -161,9 +162,15 @@ public class XQuery {
                 }
             }
             
+            final long elapsed = System.currentTimeMillis() - start;
+            final XQueryPool pool = broker.getBrokerPool().getXQueryPool();
+            if (pool != null) {
+                pool.compiled(elapsed);
+            }
+
             if (LOG.isDebugEnabled()) {
             	final NumberFormat nf = NumberFormat.getNumberInstance();
-            	LOG.debug("Compilation took "  +  nf.format(System.currentTimeMillis() - start) + " ms");
+            	LOG.debug("Compilation took "  +  nf.format(elapsed) + " ms");
             }
             
             return expr;
@@ -277,7 +284,20 @@ public class XQuery {
             context.getProfiler().traceQueryStart();
             broker.getBrokerPool().getProcessMonitor().queryStarted(context.getWatchDog());
             try {
-                final Sequence result = expression.eval(contextSequence);
+                final QueryResultCache resultCache = broker.getBrokerPool().getQueryResultCache();
+                final QueryResultCache.Key cacheKey = contextSequence == null && resultCache != null && resultCache.isEnabled() ?
+                    resultCache.getKey(context, broker.getSubject()) : null;
+
+                Sequence result = cacheKey == null ? null : resultCache.get(context, cacheKey);
+                if(result == null) {
+                    if(cacheKey == null) {
+                        result = expression.eval(contextSequence);
+                    } else {
+                        final long stamp = resultCache.startRecording(context);
+                        result = expression.eval(contextSequence);
+                        resultCache.put(cacheKey, context, stamp, result);
+                    }
+                }
                 if(LOG.isDebugEnabled()) {
                     final NumberFormat nf = NumberFormat.getNumberInstance();
                     LOG.debug("Execution took "  +  nf.format(System.currentTimeMillis() - start) + " ms");
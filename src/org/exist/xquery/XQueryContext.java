@@ -32,10 +32,12 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.SimpleTimeZone;
 import java.util.Stack;
 import java.util.TimeZone;
@@ -228,6 +230,18 @@ public class XQueryContext implements BinaryValueManager, Context
      */
     protected MutableDocumentSet                       modifiedDocuments             = null;
 
+    /**
+     * The paths of the collections and documents read by the query, recorded while the
+     * result of the query is to be cached, see {@link org.exist.storage.QueryResultCache}.
+     */
+    protected Set<String>                              dependencies                  = null;
+
+    /**
+     * False if the query contains expressions or calls functions whose result may not be
+     * cached, see {@link org.exist.storage.QueryResultCache}. Set while compiling the query.
+     */
+    protected boolean                                  resultCacheable               = true;
+
     /** A general-purpose map to set attributes in the current query context. */
     protected Map<String, Object>                      attributes                    = new HashMap<String, Object>();
 
@@ -421,6 +435,34 @@ public class XQueryContext implements BinaryValueManager, Context
     }
 
 
+    /**
+     * Create an independent context for evaluating a copy of this query in another thread, used by
+     * {@link org.exist.xquery.pragmas.ParallelPragma}. Unlike {@link #copyContext()}, modules, functions and
+     * variables are not shared: the query has to be compiled again in the new context. The dynamic context
+     * which has to be stable across the query, e.g. the current dateTime, and the watchdog are taken from this context.
+     *
+     * @return  a new context
+     */
+    public XQueryContext createWorkerContext()
+    {
+        final XQueryContext ctx = new XQueryContext( db, accessCtx );
+        ctx.calendar            = getCalendar();
+        ctx.implicitTimeZone    = getImplicitTimeZone();
+        ctx.baseURI             = this.baseURI;
+        ctx.baseURISetInProlog  = this.baseURISetInProlog;
+        ctx.staticDocumentPaths = this.staticDocumentPaths;
+        ctx.staticDocuments     = this.staticDocuments;
+        ctx.moduleLoadPath      = this.moduleLoadPath;
+        ctx.watchdog            = this.watchdog;
+        ctx.realUser            = this.realUser;
+
+        if( dependencies != null ) {
+            ctx.recordDependencies();
+        }
+        return( ctx );
+    }
+
+
     /**
      * Update the current dynamic context using the properties of another context. This is needed by {@link org.exist.xquery.functions.util.Eval}.
      *
@@ -471,6 +513,7 @@ public class XQueryContext implements BinaryValueManager, Context
         ctx.declaredFunctions        = new TreeMap<FunctionId, UserDefinedFunction>( this.declaredFunctions );
         ctx.globalVariables          = new TreeMap<QName, Variable>( this.globalVariables );
         ctx.attributes               = new HashMap<String, Object>( this.attributes );
+        ctx.dependencies             = this.dependencies;
 
         // make imported modules available in the new context
         ctx.modules                  = new HashMap<String, Module>();
@@ -1148,6 +1191,18 @@ public class XQueryContext implements BinaryValueManager, Context
      */
     public DocumentSet getStaticallyKnownDocuments() throws XPathException
     {
+        if( dependencies != null ) {
+
+            if( staticDocumentPaths == null ) {
+                addDependency( XmldbURI.ROOT_COLLECTION_URI );
+            } else {
+
+                for( final XmldbURI path : staticDocumentPaths ) {
+                    addDependency( path );
+                }
+            }
+        }
+
         if( staticDocuments != null ) {
 
             // the document set has already been built, return it
@@ -1333,6 +1388,60 @@ public class XQueryContext implements BinaryValueManager, Context
     }
 
 
+    /**
+     * Start recording the collections and documents read by the query. If they are
+     * already recorded, e.g. for an enclosing query, the same set is used.
+     */
+    public void recordDependencies()
+    {
+        if( dependencies == null ) {
+            dependencies = new HashSet<String>();
+        }
+    }
+
+
+    /**
+     * Record that the query read the given collection, including its descendants,
+     * or document. Nothing is recorded unless {@link #recordDependencies()} was called.
+     *
+     * @param  uri  the collection or document
+     */
+    public void addDependency( XmldbURI uri )
+    {
+        if( dependencies != null ) {
+            dependencies.add( uri.getCollectionPath() );
+        }
+    }
+
+
+    /**
+     * @return  the paths of the collections and documents read by the query, or null if they are not recorded
+     */
+    public Set<String> getDependencies()
+    {
+        return( dependencies );
+    }
+
+
+    /**
+     * Mark the query as one whose result must not be cached, e.g. because it
+     * updates documents or depends on the HTTP request.
+     */
+    public void disableResultCache()
+    {
+        resultCacheable = false;
+    }
+
+
+    /**
+     * @return  false if the result of the query must not be cached
+     */
+    public boolean isResultCacheable()
+    {
+        return( resultCacheable );
+    }
+
+
     public void addModifiedDoc( DocumentImpl document )
     {
         if( modifiedDocuments == null ) {
@@ -1360,7 +1469,7 @@ public class XQueryContext implements BinaryValueManager, Context
         if( modifiedDocuments != null ) {
 
             try {
-                Modification.checkFragmentation( this, modifiedDocuments );
+                Modification.scheduleDefragmentation( this, modifiedDocuments );
             }
             catch( final EXistException e ) {
                 LOG.warn( "Error while checking modified documents: " + e.getMessage(), e );
@@ -1369,6 +1478,7 @@ public class XQueryContext implements BinaryValueManager, Context
         }
         calendar         = null;
         implicitTimeZone = null;
+        dependencies     = null;
         
         resetDocumentBuilder();
 
@@ -3230,6 +3340,10 @@ public class XQueryContext implements BinaryValueManager, Context
             if( NoIndexPragma.NO_INDEX_PRAGMA.equals(qname) ) {
                 return( new NoIndexPragma( qname, contents ) );
             }
+
+            if( ParallelPragma.PARALLEL_PRAGMA.equals(qname) ) {
+                return( new ParallelPragma( this, qname, contents ) );
+            }
         }
         return( null );
     }
@@ -25,6 +25,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import org.exist.collections.Collection;
+import org.exist.collections.DocumentSetCache;
 import org.exist.dom.persistent.DefaultDocumentSet;
 import org.exist.dom.persistent.DocumentImpl;
 import org.exist.dom.persistent.DocumentSet;
@@ -131,15 +132,29 @@ public class ExtCollection extends Function {
                 //If the value of the default collection is undefined an error is raised [err:FODC0002].
                 docs = context.getStaticallyKnownDocuments();
             } else {
-                MutableDocumentSet ndocs = new DefaultDocumentSet();
+                final DocumentSetCache cache = context.getBroker().getBrokerPool().getDocumentSetCache();
+                MutableDocumentSet ndocs = null;
                 for (final String next : args) {
                     final XmldbURI uri = new AnyURIValue(next).toXmldbURI();
+                    context.addDependency(uri);
                     final Collection coll = context.getBroker().getCollection(uri);
                     if (coll == null) {
                         if (context.isRaiseErrorOnFailedRetrieval()) {
                             throw new XPathException("FODC0002: can not access collection '" + uri + "'");
                         }
+                    } else if (!context.inProtectedMode() && cache != null && cache.isEnabled()) {
+                        final DocumentSet cached = cache.getDocuments(context.getBroker(), coll, includeSubCollections);
+                        if (args.size() == 1) {
+                            // the cached set is shared, but it is only read below
+                            docs = cached;
+                        } else {
+                            if (ndocs == null)
+                                {ndocs = new DefaultDocumentSet();}
+                            ndocs.addAll(cached);
+                        }
                     } else {
+                        if (ndocs == null)
+                            {ndocs = new DefaultDocumentSet();}
                         if (context.inProtectedMode())
                             {context.getProtectedDocs().getDocsByCollection(coll, includeSubCollections, ndocs);}
                         else
@@ -147,7 +162,8 @@ public class ExtCollection extends Function {
                                 includeSubCollections, context.getProtectedDocs());}
                     }
                 }
-                docs = ndocs;
+                if (docs == null)
+                    {docs = ndocs == null ? DocumentSet.EMPTY_DOCUMENT_SET : ndocs;}
             }
         } catch (final XPathException e) { //From AnyURIValue constructor
             e.setLocation(line, column);
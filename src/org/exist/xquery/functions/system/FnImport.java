@@ -66,6 +66,13 @@ public class FnImport extends BasicFunction {
 		new FunctionParameterSequenceType("new-admin-pass", Type.STRING, Cardinality.ZERO_OR_ONE,
 				"Set the admin password to this new password.");
 
+	protected final static FunctionParameterSequenceType PARALLEL =
+		new FunctionParameterSequenceType("parallel", Type.BOOLEAN, Cardinality.EXACTLY_ONE,
+				"If true, collections are restored in parallel and indexes configured for the restored " +
+				"collections are built by a reindex at the end of the restore. Until then, the collection " +
+				"configurations of the restored collections are disabled, which is visible to concurrent " +
+				"users, and collection triggers do not fire for restored resources. Default: false.");
+
 	protected final static FunctionReturnSequenceType RETURN =
 		new FunctionReturnSequenceType(Type.NODE, Cardinality.EXACTLY_ONE, "the import results");
 
@@ -80,6 +87,17 @@ public class FnImport extends BasicFunction {
 			}, 
 			RETURN
 		),
+		new FunctionSignature(
+			NAME,
+			DESCRIPTION,
+			new SequenceType[] {
+				DIRorFILE,
+				ADMIN_PASS,
+				NEW_ADMIN_PASS,
+				PARALLEL
+			},
+			RETURN
+		),
 		new FunctionSignature(
 			new QName("import-silently", SystemModule.NAMESPACE_URI, SystemModule.PREFIX),
 			DESCRIPTION +
@@ -90,9 +108,23 @@ public class FnImport extends BasicFunction {
 				NEW_ADMIN_PASS
 			}, 
 			RETURN
+		),
+		new FunctionSignature(
+			new QName("import-silently", SystemModule.NAMESPACE_URI, SystemModule.PREFIX),
+			DESCRIPTION +
+			" Messagers from exporter reroute to logs.",
+			new SequenceType[] {
+				DIRorFILE,
+				ADMIN_PASS,
+				NEW_ADMIN_PASS,
+				PARALLEL
+			},
+			RETURN
 		)
 	};
 
+	private final static int MAX_IMPORT_THREADS = 4;
+
 	public final static QName IMPORT_ELEMENT = new QName("import", SystemModule.NAMESPACE_URI, SystemModule.PREFIX);
 	
 
@@ -112,6 +144,7 @@ public class FnImport extends BasicFunction {
         String adminPassAfter = null;
         if (args[2].hasOne())
                 {adminPassAfter = args[2].getStringValue();}
+        final boolean parallel = args.length > 3 && args[3].effectiveBooleanValue();
 
         MemTreeBuilder builder = null;
         if (NAME.equals( mySignature.getName() )) {
@@ -122,6 +155,10 @@ public class FnImport extends BasicFunction {
         
         try {
         	final SystemImport restore = new SystemImport(context.getDatabase());
+        	if (parallel) {
+        		restore.setThreads(Math.min(Runtime.getRuntime().availableProcessors(), MAX_IMPORT_THREADS));
+        		restore.setDeferIndexing(true);
+        	}
             final RestoreListener listener = new XMLRestoreListener(builder);
             restore.restore(listener, org.exist.security.SecurityManager.DBA_USER, adminPass, adminPassAfter, new File(dirOrFile), XmldbURI.EMBEDDED_SERVER_URI.toString());
         } catch (final Exception e) {
@@ -0,0 +1,633 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.xquery.pragmas;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.Namespaces;
+import org.exist.dom.QName;
+import org.exist.dom.persistent.NewArrayNodeSet;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
+import org.exist.source.Source;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.xquery.*;
+import org.exist.xquery.functions.array.ArrayModule;
+import org.exist.xquery.functions.map.MapModule;
+import org.exist.xquery.update.Modification;
+import org.exist.xquery.util.ExpressionDumper;
+import org.exist.xquery.value.AtomicValue;
+import org.exist.xquery.value.BinaryValue;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.ValueSequence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Evaluates the iterations of a "for" clause in parallel:
+ *
+ * <pre>
+ * (# exist:parallel threads=8 #) {
+ *     for $doc in collection('/db/data')/record
+ *     return local:analyze($doc)
+ * }
+ * </pre>
+ *
+ * The input sequence of the "for" is split into contiguous chunks. The first chunk is
+ * evaluated by the calling thread, the others by a fork/join pool. The expression tree
+ * of a query keeps state while it is evaluated, so every worker compiles its own copy
+ * of the query into its own {@link XQueryContext} and evaluates it with its own broker.
+ * The persistent nodes and atomic values bound to the variables in scope are copied into
+ * the workers. The results of the chunks are concatenated in order.
+ *
+ * The expression is evaluated sequentially, as if there was no pragma, unless the
+ * iterations are known to be independent: the "for" must not have a positional variable
+ * or an "order by" or "group by" clause, and it must not contain update expressions,
+ * calls to functions outside of the modules known to be free of side effects, dynamic
+ * function calls or function items. Sequential evaluation is also used if a variable in
+ * scope holds in-memory nodes or function items, if there are no free brokers, or if
+ * the pragma is used in a library module. Workers never wait for a broker: a chunk whose
+ * worker finds no free broker is evaluated by the calling thread.
+ */
+public class ParallelPragma extends Pragma {
+
+    public final static QName PARALLEL_PRAGMA = new QName("parallel", Namespaces.EXIST_NS, "exist");
+
+    private final static Logger LOG = LogManager.getLogger(ParallelPragma.class);
+
+    /** Modules whose functions do not have side effects */
+    private final static Set<String> PURE_MODULES = new HashSet<String>(Arrays.asList(
+        Namespaces.XPATH_FUNCTIONS_NS,
+        Namespaces.XPATH_FUNCTIONS_MATH_NS,
+        MapModule.NAMESPACE_URI,
+        ArrayModule.NAMESPACE_URI,
+        "http://exist-db.org/xquery/lucene",
+        "http://exist-db.org/xquery/range",
+        "http://exist-db.org/xquery/ngram"
+    ));
+
+    /** Functions from the modules above which are not free of side effects */
+    private final static Set<String> IMPURE_FUNCTIONS = new HashSet<String>(Arrays.asList(
+        "trace", "function-lookup"
+    ));
+
+    private final static ForkJoinPool workerPool = new ForkJoinPool();
+
+    private final XQueryContext context;
+    private final int index;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean enabled;
+
+    private ExtensionExpression extension = null;
+    private ForExpr forExpr = null;
+    private boolean analyzed = false;
+    private String query = null;
+    private Worker workers[] = null;
+
+    public ParallelPragma(XQueryContext context, QName qname, String contents) throws XPathException {
+        super(qname, contents);
+        this.context = context;
+        if (contents != null && contents.length() > 0) {
+            final String options[] = Option.tokenize(contents);
+            for (int i = 0; i < options.length; i++) {
+                final String param[] = Option.parseKeyValuePair(options[i]);
+                if (param == null || !"threads".equals(param[0]))
+                    {throw new XPathException("Invalid content found for pragma " + PARALLEL_PRAGMA.getStringValue() +
+                        ": " + contents);}
+                try {
+                    threads = Integer.parseInt(param[1]);
+                } catch (final NumberFormatException e) {
+                    throw new XPathException("Invalid number of threads for pragma " +
+                        PARALLEL_PRAGMA.getStringValue() + ": " + param[1]);
+                }
+            }
+        }
+        // the workers find their copy of this pragma by its position in the main module
+        this.index = context.hasParent() ? -1 : register(context, this);
+        this.enabled = index > -1 && threads > 1;
+    }
+
+    public void analyze(AnalyzeContextInfo contextInfo) throws XPathException {
+        super.analyze(contextInfo);
+        if (contextInfo.getParent() instanceof ExtensionExpression)
+            {extension = (ExtensionExpression) contextInfo.getParent();}
+    }
+
+    public Sequence eval(Sequence contextSequence, Item contextItem) throws XPathException {
+        final ForExpr parallelFor = getParallelFor();
+        if (parallelFor == null)
+            {return null;}
+
+        final List<Variable> locals = context.getLocalStack();
+        final Map<QName, Variable> globals = context.getGlobalVariables();
+        if (!isShareable(contextSequence) || !areShareable(locals) || !areShareable(globals.values())) {
+            if (LOG.isDebugEnabled())
+                {LOG.debug("exist:parallel: variables in scope cannot be shared, evaluating sequentially");}
+            return null;
+        }
+
+        final DBBroker broker = context.getBroker();
+        final BrokerPool pool = broker.getBrokerPool();
+        final Subject subject = broker.getSubject();
+
+        final Expression input = parallelFor.getInputSequence();
+        final Sequence in = input.eval(contextSequence, null);
+
+        // every worker needs a broker. This is only an estimate: brokers may be taken by other
+        // queries before the workers start, in which case the calling thread evaluates their chunks
+        final int freeBrokers = pool.available() + pool.getMax() - pool.total();
+        final int chunks = Math.min(Math.min(threads, in.getItemCount()), 1 + freeBrokers);
+        if (chunks < 2 || !isShareable(in)) {
+            return evalChunk(parallelFor, in, contextSequence, contextItem);
+        }
+
+        final int chunkSize = (in.getItemCount() + chunks - 1) / chunks;
+        if (workers == null || workers.length < chunks)
+            {workers = workers == null ? new Worker[chunks] : Arrays.copyOf(workers, chunks);}
+
+        // copy everything the workers need before the main thread continues
+        @SuppressWarnings("unchecked")
+        final ForkJoinTask<Sequence> tasks[] = new ForkJoinTask[chunks];
+        for (int i = 1; i < chunks; i++) {
+            final int chunkIndex = i;
+            final Sequence chunk = copy(in, i * chunkSize, Math.min(in.getItemCount(), (i + 1) * chunkSize));
+            final Sequence workerContextSequence = copy(contextSequence);
+            final List<Variable> workerLocals = copyLocals(locals);
+            final List<Variable> workerGlobals = workers[i] == null ? copyGlobals(globals.values()) : null;
+            final XQueryContext workerContext = workers[i] == null ? context.createWorkerContext() : null;
+            final String workerQuery = workers[i] == null ? getQuery() : null;
+            tasks[i] = workerPool.submit(() -> {
+                // blocking a thread of the pool while waiting for a broker could starve the pool
+                try (final DBBroker workerBroker = pool.tryGet(subject)) {
+                    if (workerBroker == null)
+                        {return null;}
+                    if (workers[chunkIndex] == null)
+                        {workers[chunkIndex] = createWorker(workerBroker, workerContext, workerQuery, workerGlobals);}
+                    return workers[chunkIndex].eval(workerLocals, workerContextSequence, chunk);
+                }
+            });
+        }
+
+        final Sequence results[] = new Sequence[chunks];
+        XPathException error = null;
+        try {
+            results[0] = evalChunk(parallelFor, copy(in, 0, chunkSize, false), contextSequence, contextItem);
+        } catch (final XPathException e) {
+            error = e;
+        }
+        for (int i = 1; i < chunks; i++) {
+            try {
+                results[i] = tasks[i].get();
+                if (results[i] == null && error == null)
+                    // the worker did not get a broker
+                    {results[i] = evalChunk(parallelFor, copy(in, i * chunkSize,
+                        Math.min(in.getItemCount(), (i + 1) * chunkSize), false), contextSequence, contextItem);}
+            } catch (final XPathException e) {
+                if (error == null)
+                    {error = e;}
+            } catch (final InterruptedException e) {
+                if (error == null)
+                    {error = new XPathException(extension, "exist:parallel: interrupted while waiting for a worker", e);}
+            } catch (final ExecutionException e) {
+                if (error == null) {
+                    // the pool wraps checked exceptions
+                    Throwable cause = e.getCause();
+                    while (cause instanceof RuntimeException && cause.getCause() != null)
+                        {cause = cause.getCause();}
+                    if (cause instanceof XPathException)
+                        {error = (XPathException) cause;}
+                    else
+                        {error = new XPathException(extension, "exist:parallel: worker failed: " + cause.getMessage(), cause);}
+                }
+            }
+        }
+        if (error != null)
+            {throw error;}
+
+        if (context.getDependencies() != null) {
+            for (int i = 1; i < chunks; i++) {
+                if (workers[i] == null)
+                    {continue;}
+                final Set<String> dependencies = workers[i].context.getDependencies();
+                if (dependencies != null)
+                    {context.getDependencies().addAll(dependencies);}
+            }
+        }
+
+        final ValueSequence result = new ValueSequence();
+        for (final Sequence chunkResult : results) {
+            result.addAll(chunkResult);
+        }
+        return result;
+    }
+
+    public void before(XQueryContext context, Expression expression, Sequence contextSequence) throws XPathException {
+    }
+
+    public void after(XQueryContext context, Expression expression) throws XPathException {
+    }
+
+    public void resetState(boolean postOptimization) {
+        super.resetState(postOptimization);
+        if (workers == null)
+            {return;}
+        if (postOptimization) {
+            for (final Worker worker : workers) {
+                if (worker != null)
+                    {worker.forExpr.resetState(true);}
+            }
+        } else {
+            // the workers only live as long as one execution of the query
+            workers = null;
+        }
+    }
+
+    /**
+     * Evaluate the "for" clause on a part of its input in the calling thread.
+     */
+    private static Sequence evalChunk(ForExpr forExpr, Sequence chunk, Sequence contextSequence, Item contextItem)
+            throws XPathException {
+        final Expression input = forExpr.getInputSequence();
+        forExpr.setInputSequence(new ChunkInput(input, chunk));
+        try {
+            return forExpr.eval(contextSequence, contextItem);
+        } finally {
+            forExpr.setInputSequence(input);
+        }
+    }
+
+    private Worker createWorker(DBBroker broker, XQueryContext workerContext, String workerQuery,
+            List<Variable> globals) throws XPathException {
+        try {
+            broker.getBrokerPool().getXQueryService().compile(broker, workerContext, workerQuery);
+        } catch (final PermissionDeniedException e) {
+            throw new XPathException(extension, "exist:parallel: failed to compile the query for a worker", e);
+        }
+        final Registry registry = (Registry) workerContext.getAttribute(Registry.ATTRIBUTE);
+        if (registry == null || registry.owner != workerContext || registry.pragmas.size() <= index)
+            {throw new XPathException(extension, "exist:parallel: pragma not found in the worker's copy of the query");}
+        // parallel expressions nested in a worker are evaluated by the worker
+        for (final ParallelPragma pragma : registry.pragmas) {
+            pragma.enabled = false;
+        }
+        final ForExpr workerFor = getForExpr(registry.pragmas.get(index).extension);
+        if (workerFor == null)
+            {throw new XPathException(extension, "exist:parallel: pragma not found in the worker's copy of the query");}
+
+        for (final Variable var : globals) {
+            workerContext.declareGlobalVariable(var);
+        }
+        final ChunkInput input = new ChunkInput(workerFor.getInputSequence(), null);
+        workerFor.setInputSequence(input);
+        return new Worker(workerContext, workerFor, input);
+    }
+
+    /**
+     * @return the "for" expression to evaluate in parallel, or null if the
+     *     expression has to be evaluated sequentially
+     */
+    private ForExpr getParallelFor() throws XPathException {
+        if (!enabled)
+            {return null;}
+        if (!analyzed) {
+            analyzed = true;
+            forExpr = getForExpr(extension);
+            if (forExpr != null && !isIndependent(forExpr)) {
+                if (LOG.isDebugEnabled())
+                    {LOG.debug("exist:parallel: iterations are not independent, evaluating sequentially");}
+                forExpr = null;
+            }
+            if (forExpr != null && getQuery() == null)
+                {forExpr = null;}
+        }
+        return forExpr;
+    }
+
+    private String getQuery() throws XPathException {
+        if (query == null) {
+            final Source source = context.getSource();
+            if (source == null)
+                {return null;}
+            try {
+                query = source.getContent();
+            } catch (final IOException e) {
+                throw new XPathException(extension, "exist:parallel: failed to read the query: " + e.getMessage(), e);
+            }
+        }
+        return query;
+    }
+
+    private static ForExpr getForExpr(ExtensionExpression extension) {
+        if (extension == null)
+            {return null;}
+        Expression expr = extension.getExpression();
+        while (true) {
+            if (expr instanceof DebuggableExpression)
+                {expr = expr.getSubExpression(0);}
+            else if (expr != null && expr.getClass() == PathExpr.class && ((PathExpr) expr).getLength() == 1)
+                {expr = ((PathExpr) expr).getExpression(0);}
+            else
+                {break;}
+        }
+        return expr instanceof ForExpr ? (ForExpr) expr : null;
+    }
+
+    /**
+     * Check that the iterations of the "for" expression can be evaluated independently
+     * of each other.
+     */
+    private static boolean isIndependent(ForExpr forExpr) {
+        if (forExpr.getPositionalVariable() != null)
+            {return false;}
+        Expression expr = forExpr;
+        while (expr instanceof BindingExpression) {
+            final BindingExpression binding = (BindingExpression) expr;
+            if (binding.getOrderSpecs().length > 0 || binding.getGroupSpecs().length > 0)
+                {return false;}
+            expr = binding.getReturnExpression();
+        }
+        final SideEffectsVisitor visitor = new SideEffectsVisitor();
+        forExpr.accept(visitor);
+        return visitor.isFree();
+    }
+
+    private static boolean areShareable(Collection<Variable> vars) throws XPathException {
+        for (final Variable var : vars) {
+            if (!(var instanceof VariableImpl) || !isShareable(var.getValue()))
+                {return false;}
+        }
+        return true;
+    }
+
+    /**
+     * Persistent nodes and atomic values can be copied into a worker. In-memory
+     * nodes belong to the document builder of the context which created them.
+     */
+    private static boolean isShareable(Sequence seq) throws XPathException {
+        if (seq == null || seq.isEmpty() || seq.isPersistentSet())
+            {return true;}
+        for (final SequenceIterator i = seq.iterate(); i.hasNext(); ) {
+            final Item item = i.nextItem();
+            if (!(item instanceof NodeProxy) && (!(item instanceof AtomicValue) || item instanceof BinaryValue))
+                {return false;}
+        }
+        return true;
+    }
+
+    private static Sequence copy(Sequence seq) throws XPathException {
+        if (seq == null)
+            {return null;}
+        return copy(seq, 0, seq.getItemCount());
+    }
+
+    private static Sequence copy(Sequence seq, int start, int end) throws XPathException {
+        return copy(seq, start, end, true);
+    }
+
+    /**
+     * Copy the items from start to end. The nodes are copied unless the copy is used
+     * by the calling thread, as they keep state while the query is evaluated.
+     */
+    private static Sequence copy(Sequence seq, int start, int end, boolean copyNodes) throws XPathException {
+        if (seq.isEmpty())
+            {return Sequence.EMPTY_SEQUENCE;}
+        final Sequence copy = seq.isPersistentSet() ? new NewArrayNodeSet() : new ValueSequence(end - start);
+        final SequenceIterator i = seq.iterate();
+        for (int pos = 0; pos < end && i.hasNext(); pos++) {
+            final Item item = i.nextItem();
+            if (pos < start)
+                {continue;}
+            if (copyNodes && item instanceof NodeProxy) {
+                final NodeProxy node = (NodeProxy) item;
+                final NodeProxy nodeCopy = new NodeProxy(node.getOwnerDocument(), node.getNodeId(),
+                    node.getNodeType(), node.getInternalAddress());
+                nodeCopy.addMatches(node);
+                copy.add(nodeCopy);
+            } else {
+                copy.add(item);
+            }
+        }
+        return copy;
+    }
+
+    private static List<Variable> copyLocals(List<Variable> locals) throws XPathException {
+        final List<Variable> copies = new ArrayList<Variable>(locals.size());
+        for (final Variable var : locals) {
+            final LocalVariable copy = new LocalVariable((LocalVariable) var, true);
+            copy.setValue(copy(var.getValue()));
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    private static List<Variable> copyGlobals(Collection<Variable> globals) throws XPathException {
+        final List<Variable> copies = new ArrayList<Variable>(globals.size());
+        for (final Variable var : globals) {
+            final VariableImpl copy = new VariableImpl((VariableImpl) var);
+            copy.setValue(copy(var.getValue()));
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    private static int register(XQueryContext context, ParallelPragma pragma) {
+        Registry registry = (Registry) context.getAttribute(Registry.ATTRIBUTE);
+        if (registry == null || registry.owner != context) {
+            registry = new Registry(context);
+            context.setAttribute(Registry.ATTRIBUTE, registry);
+        }
+        registry.pragmas.add(pragma);
+        return registry.pragmas.size() - 1;
+    }
+
+    /**
+     * The parallel pragmas of a main module in the order they were parsed.
+     */
+    private static class Registry {
+        final static String ATTRIBUTE = ParallelPragma.class.getName();
+
+        final XQueryContext owner;
+        final List<ParallelPragma> pragmas = new ArrayList<ParallelPragma>();
+
+        Registry(XQueryContext owner) {
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * A compiled copy of the query, evaluating the iterations of one chunk.
+     */
+    private static class Worker {
+        final XQueryContext context;
+        final ForExpr forExpr;
+        final ChunkInput input;
+
+        Worker(XQueryContext context, ForExpr forExpr, ChunkInput input) {
+            this.context = context;
+            this.forExpr = forExpr;
+            this.input = input;
+        }
+
+        Sequence eval(List<Variable> locals, Sequence contextSequence, Sequence chunk) throws XPathException {
+            input.chunk = chunk;
+            final LocalVariable mark = context.markLocalVariables(false);
+            try {
+                context.restoreStack(locals);
+                return forExpr.eval(contextSequence, null);
+            } finally {
+                context.popLocalVariables(mark);
+                input.chunk = null;
+            }
+        }
+    }
+
+    /**
+     * Replaces the input expression of a "for" by one chunk of its items.
+     */
+    private static class ChunkInput extends AbstractExpression {
+        private final Expression original;
+        private Sequence chunk;
+
+        ChunkInput(Expression original, Sequence chunk) {
+            super(original.getContext());
+            this.original = original;
+            this.chunk = chunk;
+        }
+
+        public Sequence eval(Sequence contextSequence, Item contextItem) throws XPathException {
+            return chunk;
+        }
+
+        public void analyze(AnalyzeContextInfo contextInfo) throws XPathException {
+        }
+
+        public int returnsType() {
+            return original.returnsType();
+        }
+
+        public int getCardinality() {
+            return original.getCardinality();
+        }
+
+        public void dump(ExpressionDumper dumper) {
+            original.dump(dumper);
+        }
+
+        public String toString() {
+            return original.toString();
+        }
+    }
+
+    /**
+     * Finds expressions which may have side effects or depend on the order of evaluation.
+     * Expressions not known to be free of side effects are treated as if they had some.
+     */
+    private static class SideEffectsVisitor extends DefaultExpressionVisitor {
+
+        private boolean free = true;
+        private final Set<UserDefinedFunction> visited = new HashSet<UserDefinedFunction>();
+
+        boolean isFree() {
+            return free;
+        }
+
+        public void visit(Expression expression) {
+            if (!free || expression == null)
+                {return;}
+            if (expression instanceof PathExpr)
+                // the body of an extension expression
+                {expression.accept(this);}
+            else if (expression instanceof QuantifiedExpression) {
+                final QuantifiedExpression quantified = (QuantifiedExpression) expression;
+                quantified.getInputSequence().accept(this);
+                quantified.getReturnExpression().accept(this);
+            } else if (expression instanceof AtomicToString)
+                {expression.getSubExpression(0).accept(this);}
+            else if (!(expression instanceof LiteralValue || expression instanceof EmptySequenceExpr ||
+                    expression instanceof RootNode || expression instanceof TextConstructor ||
+                    expression instanceof CommentConstructor || expression instanceof PIConstructor ||
+                    expression instanceof CDATAConstructor))
+                {free = false;}
+        }
+
+        public void visitModification(Modification modification) {
+            free = false;
+        }
+
+        public void visitBuiltinFunction(Function function) {
+            final QName name = function.getSignature().getName();
+            if (!PURE_MODULES.contains(name.getNamespaceURI()) ||
+                    (Namespaces.XPATH_FUNCTIONS_NS.equals(name.getNamespaceURI()) &&
+                        IMPURE_FUNCTIONS.contains(name.getLocalPart())))
+                {free = false;}
+            else
+                {super.visitBuiltinFunction(function);}
+        }
+
+        public void visitFunctionCall(FunctionCall call) {
+            for (int i = 0; i < call.getArgumentCount(); i++) {
+                call.getArgument(i).accept(this);
+            }
+            // UserDefinedFunction.accept only visits a function once per query
+            final UserDefinedFunction function = call.getFunction();
+            if (function == null)
+                {free = false;}
+            else if (visited.add(function))
+                {visitUserFunction(function);}
+        }
+
+        public void visitFilteredExpr(FilteredExpression filtered) {
+            filtered.getExpression().accept(this);
+            for (final Predicate pred : filtered.getPredicates()) {
+                pred.accept(this);
+            }
+        }
+
+        public void visitGeneralComparison(GeneralComparison comparison) {
+            visitPathExpr(comparison);
+        }
+
+        public void visitAndExpr(OpAnd and) {
+            visitPathExpr(and);
+        }
+
+        public void visitOrExpr(OpOr or) {
+            visitPathExpr(or);
+        }
+
+        public void visitCastExpr(CastExpression expression) {
+            expression.getInnerExpression().accept(this);
+        }
+    }
+}
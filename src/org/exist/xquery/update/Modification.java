@@ -41,6 +41,7 @@ import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.dom.persistent.NodeHandle;
 import org.exist.security.PermissionDeniedException;
 import org.exist.storage.DBBroker;
+import org.exist.storage.FragmentationTracker;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.serializers.Serializer;
 import org.exist.storage.txn.TransactionException;
@@ -84,6 +85,8 @@ public abstract class Modification extends AbstractExpression
 		this.select = select;
 		this.value = value;
         this.triggers = new Int2ObjectHashMap<DocumentTrigger>(10);
+        // serving the result from a cache would skip the update
+        context.disableResultCache();
     }
 
 	public int getCardinality() {
@@ -107,12 +110,17 @@ public abstract class Modification extends AbstractExpression
 			{value.resetState(postOptimization);}
 	}
 
+    public Expression getSelectExpression() {
+        return select;
+    }
+
+    public Expression getValueExpression() {
+        return value;
+    }
+
     @Override
     public void accept(ExpressionVisitor visitor) {
-        select.accept(visitor);
-        if (value != null) {
-            value.accept(visitor);
-        }
+        visitor.visitModification(this);
     }
 
 	/* (non-Javadoc)
@@ -251,6 +259,33 @@ public abstract class Modification extends AbstractExpression
         checkFragmentation(context, docs, fragmentationLimit);
     }
 
+    /**
+     * Called after an update. Defragments the modified documents if necessary, unless
+     * background defragmentation is enabled. In this case, the documents exceeding the
+     * allowed fragmentation are registered with the {@link FragmentationTracker} and
+     * will be rewritten later by the {@link org.exist.storage.DefragmentationTask}.
+     *
+     * @param docs the modified documents
+     */
+    public static void scheduleDefragmentation(XQueryContext context, DocumentSet docs) throws EXistException {
+        final DBBroker broker = context.getBroker();
+        final FragmentationTracker tracker = broker.getBrokerPool().getFragmentationTracker();
+        if (!tracker.isEnabled()) {
+            checkFragmentation(context, docs);
+            return;
+        }
+        int fragmentationLimit = -1;
+        final Object property = broker.getBrokerPool().getConfiguration().getProperty(DBBroker.PROPERTY_XUPDATE_FRAGMENTATION_FACTOR);
+        if (property != null)
+            {fragmentationLimit = ((Integer)property).intValue();}
+        for (final Iterator<DocumentImpl> i = docs.getDocumentIterator(); i.hasNext(); ) {
+            final DocumentImpl next = i.next();
+            if(next.getMetadata().getSplitCount() > fragmentationLimit)
+                {tracker.track(next);}
+            broker.checkXMLResourceConsistency(next);
+        }
+    }
+
 	/**
 	 * Check if any of the modified documents needs defragmentation.
 	 * 
@@ -83,6 +83,8 @@ public class DocUtils {
 		{
             XMLReader reader = null;
 			/* URL */
+			// changes of external documents are not tracked by the query result cache
+			context.disableResultCache();
             try {
                 final Source source = SourceFactory.getSource(context.getBroker(), "", path, false);
                 final InputStream istream = source.getInputStream();
@@ -161,6 +163,8 @@ public class DocUtils {
 					//workaround: ignore Windows issue
 				}
 
+				context.addDependency(pathUri);
+
 				// try to open the document and acquire a lock
 				doc = context.getBroker().getXMLResource(pathUri, lockType);
 				if(doc != null)
@@ -26,6 +26,7 @@ import org.exist.dom.persistent.NodeProxy;
 import org.exist.dom.persistent.NodeSet;
 import org.exist.dom.memtree.DocumentImpl;
 import org.exist.dom.memtree.NodeImpl;
+import org.exist.indexing.SortKeyIndex;
 import org.exist.numbering.NodeId;
 import org.exist.util.FastQSort;
 import org.exist.xquery.Constants;
@@ -34,6 +35,8 @@ import org.exist.xquery.XPathException;
 import org.exist.xquery.util.ExpressionDumper;
 import org.w3c.dom.Node;
 
+import java.util.Arrays;
+
 /**
  * A sequence that sorts its entries in the order specified by the order specs of
  * an "order by" clause. Used by {@link org.exist.xquery.ForExpr}.
@@ -42,6 +45,9 @@ import org.w3c.dom.Node;
  * all order expressions are evaluated once for each item in the sequence 
  * <b>while</b> items are added.
  * 
+ * If an order expression selects a stored node for which a {@link SortKeyIndex}
+ * has a precomputed sort key, the key is compared instead of the atomized node.
+ * 
  * @author wolf
  */
 public class OrderedValueSequence extends AbstractSequence {
@@ -54,11 +60,26 @@ public class OrderedValueSequence extends AbstractSequence {
     // used to keep track of the type of added items.
     private int itemType = Type.ANY_TYPE;
     
+    private SortKeyIndex sortKeyIndex = null;
+    // order specs for which sort keys are looked up
+    private final boolean useSortKeys[];
+    private final boolean sortKeysFound[];
+
 	public OrderedValueSequence(OrderSpec orderSpecs[], int size) {
 		this.orderSpecs = orderSpecs;
         if (size == 0)
             {size = 1;}
 		this.items = new Entry[size];
+		this.useSortKeys = new boolean[orderSpecs.length];
+		this.sortKeysFound = new boolean[orderSpecs.length];
+		for (int i = 0; i < orderSpecs.length; i++) {
+			// sort keys follow the codepoint collation
+			if (orderSpecs[i].getCollator() == null) {
+				if (sortKeyIndex == null)
+					{sortKeyIndex = orderSpecs[i].getContext().getBroker().getIndexController().getWorkerByType(SortKeyIndex.class);}
+				useSortKeys[i] = sortKeyIndex != null;
+			}
+		}
 	}
 
 	/* (non-Javadoc)
@@ -289,10 +310,30 @@ public class OrderedValueSequence extends AbstractSequence {
         return true;
     }
 
+    /**
+     * Look up the sort key of the value of the order expression at position i. Lookups
+     * for an order expression stop if the first lookup does not find a key.
+     */
+    private long getSortKey(int i, Item item) {
+        if (!useSortKeys[i] || !Type.subTypeOf(item.getType(), Type.NODE) ||
+                ((NodeValue) item).getImplementationType() != NodeValue.PERSISTENT_NODE)
+            {return SortKeyIndex.NO_KEY;}
+        final long key = sortKeyIndex.getSortKey((NodeProxy) item);
+        if (key != SortKeyIndex.NO_KEY)
+            {sortKeysFound[i] = true;}
+        else if (!sortKeysFound[i])
+            {useSortKeys[i] = false;}
+        return key;
+    }
+
     private class Entry implements Comparable<Entry> {
 		
 		Item item;
+		// null until atomized if a sort key has been found
 		AtomicValue values[];
+		// the sort keys and the values they have been found for, or null
+		long keys[] = null;
+		Item keyItems[] = null;
 		int pos;
 		
 		/**
@@ -308,7 +349,19 @@ public class OrderedValueSequence extends AbstractSequence {
 				final Sequence seq = orderSpecs[i].getSortExpression().eval(null);
 				values[i] = AtomicValue.EMPTY_VALUE;
 				if(seq.hasOne()) {
-					values[i] = seq.itemAt(0).atomize();
+					final Item next = seq.itemAt(0);
+					final long key = getSortKey(i, next);
+					if (key != SortKeyIndex.NO_KEY) {
+						if (keys == null) {
+							keys = new long[orderSpecs.length];
+							Arrays.fill(keys, SortKeyIndex.NO_KEY);
+							keyItems = new Item[orderSpecs.length];
+						}
+						keys[i] = key;
+						keyItems[i] = next;
+						values[i] = null;
+					} else
+						{values[i] = next.atomize();}
 				} else if(seq.hasMany())
 					{throw new XPathException("expected a single value for order expression " +
 						ExpressionDumper.dump(orderSpecs[i].getSortExpression()) + 
@@ -316,6 +369,16 @@ public class OrderedValueSequence extends AbstractSequence {
 			}
 		}
 
+		private AtomicValue getValue(int i) throws XPathException {
+			if (values[i] == null)
+				{values[i] = keyItems[i].atomize();}
+			return values[i];
+		}
+
+		private boolean hasSortKey(int i) {
+			return keys != null && keys[i] != SortKeyIndex.NO_KEY;
+		}
+
 		/* (non-Javadoc)
 		 * @see java.lang.Comparable#compareTo(java.lang.Object)
 		 */
@@ -324,8 +387,17 @@ public class OrderedValueSequence extends AbstractSequence {
 			AtomicValue a, b;
 			for(int i = 0; i < values.length; i++) {
 				try {
-					a = values[i];
-					b = other.values[i];
+					if (hasSortKey(i) && other.hasSortKey(i) &&
+							(keys[i] != other.keys[i] || sortKeyIndex.isExact(keys[i]))) {
+						cmp = Long.compare(keys[i], other.keys[i]);
+						if((orderSpecs[i].getModifiers() & OrderSpec.DESCENDING_ORDER) != 0)
+							{cmp = cmp * -1;}
+						if(cmp != Constants.EQUAL)
+							{break;}
+						continue;
+					}
+					a = getValue(i);
+					b = other.getValue(i);
                     final boolean aIsEmpty = (a.isEmpty() || (Type.subTypeOf(a.getType(), Type.NUMBER) && ((NumericValue) a).isNaN()));
                     final boolean bIsEmpty = (b.isEmpty() || (Type.subTypeOf(b.getType(), Type.NUMBER) && ((NumericValue) b).isNaN()));
                     if (aIsEmpty) {
@@ -374,7 +446,7 @@ public class OrderedValueSequence extends AbstractSequence {
     		for (int i = 0; i < values.length; i++) {
     			if (i > 0)
     				{builder.append(", ");}
-    			builder.append(values[i].toString());
+    			builder.append(values[i] == null ? keyItems[i].toString() : values[i].toString());
     		}
     		builder.append("]");
     		return builder.toString();
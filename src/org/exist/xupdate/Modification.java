@@ -47,6 +47,7 @@ import org.exist.security.xacml.NullAccessContextException;
 import org.exist.source.Source;
 import org.exist.source.StringSource;
 import org.exist.storage.DBBroker;
+import org.exist.storage.FragmentationTracker;
 import org.exist.storage.XQueryPool;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.txn.Txn;
@@ -295,10 +296,15 @@ public abstract class Modification {
         final Object property = broker.getBrokerPool().getConfiguration().getProperty(DBBroker.PROPERTY_XUPDATE_FRAGMENTATION_FACTOR);
         if (property != null)
 	        {fragmentationLimit = ((Integer)property).intValue();}		
+        final FragmentationTracker tracker = broker.getBrokerPool().getFragmentationTracker();
 	    for(final Iterator<DocumentImpl> i = docs.getDocumentIterator(); i.hasNext(); ) {
 	        final DocumentImpl next = i.next();
-	        if(next.getMetadata().getSplitCount() > fragmentationLimit)
-	            {broker.defragXMLResource(transaction, next);}
+	        if(next.getMetadata().getSplitCount() > fragmentationLimit) {
+	            if(tracker.isEnabled())
+	                {tracker.track(next);}
+	            else
+	                {broker.defragXMLResource(transaction, next);}
+	        }
 	        broker.checkXMLResourceConsistency(next);
 	    }
 	}
@@ -155,6 +155,112 @@ public class SystemExportImportTest {
         BrokerPool.stopAll(false);
 	}
 	
+    @Test
+    public void parallelImport() throws Exception {
+
+        startDB();
+
+        final int subCollections = 4;
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            for (int i = 0; i < subCollections; i++) {
+                final Collection sub = broker.getOrCreateCollection(transaction, col1uri.append("sub" + i));
+                broker.saveCollection(transaction, sub);
+                for (int j = 0; j < 5; j++) {
+                    final String xml = "<test n=\"" + i + "-" + j + "\"/>";
+                    final IndexInfo info = sub.validateXMLResource(transaction, broker, XmldbURI.create("doc" + j + ".xml"), xml);
+                    sub.store(transaction, broker, info, xml, false);
+                }
+            }
+            pool.getTransactionManager().commit(transaction);
+        }
+
+        File file;
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            final SystemExport sysexport = new SystemExport(broker, null, null, true);
+            file = sysexport.export("backup", false, true, null);
+        }
+
+        clean();
+
+        final SystemImport restore = new SystemImport(pool);
+        restore.setThreads(3);
+        restore.setDeferIndexing(true);
+        final RestoreListener listener = new LogRestoreListener();
+        restore.restore(listener, "admin", "", "", file, "xmldb:exist://");
+        assertFalse(listener.warningsAndErrorsAsString(), listener.hasProblems());
+
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            final Collection col = broker.getCollection(col1uri);
+            assertNotNull(col);
+            assertTrue(col.isCollectionConfigEnabled());
+            assertEquals(XML1, serializer(broker, getDoc(broker, col, doc01uri.lastSegment())));
+
+            for (int i = 0; i < subCollections; i++) {
+                final Collection sub = broker.getCollection(col1uri.append("sub" + i));
+                assertNotNull(sub);
+                assertTrue(sub.isCollectionConfigEnabled());
+                assertEquals(5, sub.getDocumentCount(broker));
+                assertEquals("<test n=\"" + i + "-4\"/>", serializer(broker, getDoc(broker, sub, XmldbURI.create("doc4.xml"))));
+            }
+        }
+
+        BrokerPool.stopAll(false);
+    }
+
+    @Test
+    public void parallelExport() throws Exception {
+
+        startDB();
+
+        final int subCollections = 6;
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            for (int i = 0; i < subCollections; i++) {
+                final Collection sub = broker.getOrCreateCollection(transaction, col1uri.append("sub" + i));
+                broker.saveCollection(transaction, sub);
+                for (int j = 0; j < 5; j++) {
+                    final String xml = "<test n=\"" + i + "-" + j + "\"/>";
+                    final IndexInfo info = sub.validateXMLResource(transaction, broker, XmldbURI.create("doc" + j + ".xml"), xml);
+                    sub.store(transaction, broker, info, xml, false);
+                }
+            }
+            pool.getTransactionManager().commit(transaction);
+        }
+
+        File file;
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            final SystemExport sysexport = new SystemExport(broker, null, null, true);
+            sysexport.setThreads(3);
+            sysexport.setMaxRate(1024 * 1024);
+            file = sysexport.export("backup", false, true, null);
+        }
+        assertNotNull(file);
+
+        clean();
+
+        final SystemImport restore = new SystemImport(pool);
+        final RestoreListener listener = new LogRestoreListener();
+        restore.restore(listener, "admin", "", "", file, "xmldb:exist://");
+        assertFalse(listener.warningsAndErrorsAsString(), listener.hasProblems());
+
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            final Collection col = broker.getCollection(col1uri);
+            assertNotNull(col);
+            assertEquals(XML1, serializer(broker, getDoc(broker, col, doc01uri.lastSegment())));
+            assertEquals(XML2_PROPER, serializer(broker, getDoc(broker, col, doc02uri.lastSegment())));
+
+            for (int i = 0; i < subCollections; i++) {
+                final Collection sub = broker.getCollection(col1uri.append("sub" + i));
+                assertNotNull(sub);
+                assertEquals(5, sub.getDocumentCount(broker));
+                assertEquals("<test n=\"" + i + "-2\"/>", serializer(broker, getDoc(broker, sub, XmldbURI.create("doc2.xml"))));
+            }
+        }
+
+        BrokerPool.stopAll(false);
+    }
+
 	private DocumentImpl getDoc(DBBroker broker, Collection col, XmldbURI uri) throws PermissionDeniedException {
         DocumentImpl doc = col.getDocument(broker, uri);
     	assertNotNull(doc);
@@ -0,0 +1,171 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.collections;
+
+import org.exist.EXistException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.CollectionCacheManager;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.util.Configuration;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.xmldb.XmldbURI;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CollectionCacheTest {
+
+    private final static XmldbURI TEST_COLLECTION_URI = XmldbURI.ROOT_COLLECTION_URI.append("cache-test");
+    private final static XmldbURI PINNED_URI = TEST_COLLECTION_URI.append("pinned");
+    private final static XmldbURI PRELOAD_URI = TEST_COLLECTION_URI.append("c1");
+
+    private BrokerPool pool;
+
+    @Test
+    public void sizeLimitKeepsPinnedCollections() throws Exception {
+        createCollection(PINNED_URI);
+        final CollectionCache cache = pool.getCollectionsCache();
+        final long maxSize = cache.getMaxSize();
+        final long evictions;
+        synchronized (cache) {
+            cache.setMaxSize(cache.getCurrentSize() + 4096);
+            evictions = cache.getEvictions();
+        }
+        try {
+            for (int i = 0; i < 30; i++) {
+                createCollection(TEST_COLLECTION_URI.append("c" + i));
+            }
+            synchronized (cache) {
+                assertTrue(cache.getEvictions() > evictions);
+                assertTrue(cache.getCurrentSize() <= cache.getMaxSize());
+                assertNotNull(cache.get(PINNED_URI));
+            }
+        } finally {
+            synchronized (cache) {
+                cache.setMaxSize(maxSize);
+            }
+        }
+    }
+
+    @Test
+    public void loadsAreRecorded() throws Exception {
+        createCollection(PRELOAD_URI);
+        final CollectionCache cache = pool.getCollectionsCache();
+        final long loads;
+        final long hits;
+        synchronized (cache) {
+            cache.remove(cache.get(PRELOAD_URI));
+            loads = cache.getLoads();
+            hits = cache.getHitCount();
+        }
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            assertNotNull(broker.getCollection(PRELOAD_URI));
+            assertNotNull(broker.getCollection(PRELOAD_URI));
+        }
+        synchronized (cache) {
+            assertEquals(loads + 1, cache.getLoads());
+            assertTrue(cache.getLoadTime() > 0);
+            assertTrue(cache.getHitCount() > hits);
+        }
+    }
+
+    @Test
+    public void peekDoesNotCount() throws Exception {
+        createCollection(PRELOAD_URI);
+        final CollectionCache cache = pool.getCollectionsCache();
+        synchronized (cache) {
+            final long hits = cache.getHitCount();
+            final long misses = cache.getMissCount();
+            assertNotNull(cache.peek(PRELOAD_URI));
+            assertNull(cache.peek(TEST_COLLECTION_URI.append("unknown")));
+            assertEquals(hits, cache.getHitCount());
+            assertEquals(misses, cache.getMissCount());
+        }
+    }
+
+    @Test
+    public void sizeIsUpdatedOnModification() throws Exception {
+        createCollection(PRELOAD_URI);
+        final CollectionCache cache = pool.getCollectionsCache();
+        final long size;
+        synchronized (cache) {
+            size = cache.getCurrentSize();
+        }
+        // a sub-collection increases the estimated size of its parent
+        createCollection(PRELOAD_URI.append("child"));
+        synchronized (cache) {
+            assertTrue(cache.getCurrentSize() > size);
+        }
+    }
+
+    @Test
+    public void preloadOnStartup() throws Exception {
+        createCollection(PRELOAD_URI);
+        BrokerPool.stopAll(false);
+        startDB();
+
+        final CollectionCache cache = pool.getCollectionsCache();
+        Collection collection = null;
+        for (int i = 0; i < 100 && collection == null; i++) {
+            synchronized (cache) {
+                collection = cache.get(PRELOAD_URI);
+            }
+            if (collection == null) {
+                Thread.sleep(100);
+            }
+        }
+        assertNotNull(collection);
+        assertFalse(cache.isPinned(collection));
+    }
+
+    private void createCollection(final XmldbURI uri) throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, uri);
+            broker.saveCollection(transaction, collection);
+            pool.getTransactionManager().commit(transaction);
+        }
+    }
+
+    @Before
+    public void startDB() throws DatabaseConfigurationException, EXistException {
+        final Configuration config = new Configuration();
+        config.setProperty(CollectionCacheManager.PROPERTY_PINNED, PINNED_URI.toString());
+        config.setProperty(CollectionCacheManager.PROPERTY_PRELOAD, PRELOAD_URI.toString());
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+    }
+
+    @After
+    public void stopDB() throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getCollection(TEST_COLLECTION_URI);
+            if (collection != null) {
+                broker.removeCollection(transaction, collection);
+            }
+            pool.getTransactionManager().commit(transaction);
+        }
+        BrokerPool.stopAll(false);
+    }
+}
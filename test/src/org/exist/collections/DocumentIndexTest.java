@@ -0,0 +1,185 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.collections;
+
+import java.util.Iterator;
+
+import org.exist.EXistException;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.util.Configuration;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.xmldb.XmldbURI;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DocumentIndexTest {
+
+    private final static XmldbURI TEST_COLLECTION_URI = XmldbURI.ROOT_COLLECTION_URI.append("docindex-test");
+    private final static int DOCUMENT_COUNT = 50;
+
+    private static BrokerPool pool;
+
+    @Test
+    public void documentsAreLoadedOnDemand() throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            final Collection collection = reload(broker);
+            assertEquals(DOCUMENT_COUNT + 1, collection.getDocumentCount(broker));
+            assertTrue(collection.hasDocument(broker, XmldbURI.create("test10.xml")));
+            assertFalse(collection.hasDocument(broker, XmldbURI.create("unknown.xml")));
+
+            // only the names have been read
+            final int unloaded = collection.getMemorySize();
+
+            final DocumentImpl doc = collection.getDocument(broker, XmldbURI.create("test10.xml"));
+            assertNotNull(doc);
+            assertSame(collection, doc.getCollection());
+            assertEquals("test10.xml", doc.getFileURI().toString());
+            assertSame(doc, collection.getDocument(broker, XmldbURI.create("test10.xml")));
+            assertTrue(collection.getMemorySize() > unloaded);
+
+            final DocumentImpl binary = collection.getDocument(broker, XmldbURI.create("test.bin"));
+            assertTrue(binary instanceof BinaryDocument);
+
+            assertNull(collection.getDocument(broker, XmldbURI.create("unknown.xml")));
+        }
+    }
+
+    @Test
+    public void iterationLoadsAllDocuments() throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            final Collection collection = reload(broker);
+            final DocumentImpl loaded = collection.getDocument(broker, XmldbURI.create("test20.xml"));
+
+            int count = 0;
+            boolean found = false;
+            for (final Iterator<DocumentImpl> i = collection.iterator(broker); i.hasNext(); ) {
+                final DocumentImpl doc = i.next();
+                final String name = doc.getFileURI().toString();
+                assertSame(collection, doc.getCollection());
+                // the instance already loaded is reused
+                if (name.equals("test20.xml")) {
+                    assertSame(loaded, doc);
+                    found = true;
+                }
+                count++;
+            }
+            assertEquals(DOCUMENT_COUNT + 1, count);
+            assertTrue(found);
+        }
+    }
+
+    @Test
+    public void addAndRemoveAfterReload() throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            reload(broker);
+        }
+        store("added.xml");
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getCollection(TEST_COLLECTION_URI);
+            assertEquals(DOCUMENT_COUNT + 2, collection.getDocumentCount(broker));
+            collection.removeXMLResource(transaction, broker, XmldbURI.create("test0.xml"));
+            pool.getTransactionManager().commit(transaction);
+            assertEquals(DOCUMENT_COUNT + 1, collection.getDocumentCount(broker));
+            assertNull(collection.getDocument(broker, XmldbURI.create("test0.xml")));
+        }
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            final Collection collection = reload(broker);
+            assertEquals(DOCUMENT_COUNT + 1, collection.getDocumentCount(broker));
+            assertNotNull(collection.getDocument(broker, XmldbURI.create("added.xml")));
+            assertNull(collection.getDocument(broker, XmldbURI.create("test0.xml")));
+        }
+    }
+
+    /**
+     * Remove the collection from the cache, so it is read again.
+     */
+    private Collection reload(final DBBroker broker) throws Exception {
+        final CollectionCache cache = pool.getCollectionsCache();
+        synchronized (cache) {
+            final Collection cached = cache.get(TEST_COLLECTION_URI);
+            if (cached != null) {
+                cache.remove(cached);
+            }
+        }
+        final Collection collection = broker.getCollection(TEST_COLLECTION_URI);
+        assertNotNull(collection);
+        return collection;
+    }
+
+    private void store(final String name) throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            final String xml = "<test>" + name + "</test>";
+            final IndexInfo info = collection.validateXMLResource(transaction, broker, XmldbURI.create(name), xml);
+            collection.store(transaction, broker, info, xml, false);
+            pool.getTransactionManager().commit(transaction);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            store("test" + i + ".xml");
+        }
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getCollection(TEST_COLLECTION_URI);
+            final byte[] data = "binary data".getBytes("UTF-8");
+            collection.addBinaryResource(transaction, broker, XmldbURI.create("test.bin"), data, "application/octet-stream");
+            pool.getTransactionManager().commit(transaction);
+        }
+    }
+
+    @After
+    public void removeCollection() throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getCollection(TEST_COLLECTION_URI);
+            if (collection != null) {
+                broker.removeCollection(transaction, collection);
+            }
+            pool.getTransactionManager().commit(transaction);
+        }
+    }
+
+    @BeforeClass
+    public static void startDB() throws DatabaseConfigurationException, EXistException {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+    }
+
+    @AfterClass
+    public static void stopDB() {
+        BrokerPool.stopAll(false);
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.collections;
+
+import org.exist.EXistException;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.DocumentSet;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.util.Configuration;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.xmldb.XmldbURI;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DocumentSetCacheTest {
+
+    private final static XmldbURI TEST_COLLECTION_URI = XmldbURI.ROOT_COLLECTION_URI.append("docset-test");
+    private final static XmldbURI CHILD_COLLECTION_URI = TEST_COLLECTION_URI.append("child");
+
+    private static BrokerPool pool;
+
+    @Test
+    public void cachedUntilModified() throws Exception {
+        final DocumentSetCache cache = pool.getDocumentSetCache();
+        assertTrue(cache.isEnabled());
+
+        final DocumentSet first = getDocuments(TEST_COLLECTION_URI, false);
+        assertEquals(2, first.getDocumentCount());
+        final long misses = cache.getMisses();
+        assertSame(first, getDocuments(TEST_COLLECTION_URI, false));
+        assertEquals(misses, cache.getMisses());
+
+        store(TEST_COLLECTION_URI, "c.xml");
+        final DocumentSet afterStore = getDocuments(TEST_COLLECTION_URI, false);
+        assertNotSame(first, afterStore);
+        assertEquals(3, afterStore.getDocumentCount());
+
+        remove(TEST_COLLECTION_URI, "a.xml");
+        assertEquals(2, getDocuments(TEST_COLLECTION_URI, false).getDocumentCount());
+    }
+
+    @Test
+    public void recursiveSetDependsOnChildren() throws Exception {
+        final DocumentSet first = getDocuments(TEST_COLLECTION_URI, true);
+        assertEquals(3, first.getDocumentCount());
+        assertSame(first, getDocuments(TEST_COLLECTION_URI, true));
+
+        // modifying the child collection invalidates the set of the parent
+        store(CHILD_COLLECTION_URI, "d.xml");
+        final DocumentSet afterStore = getDocuments(TEST_COLLECTION_URI, true);
+        assertNotSame(first, afterStore);
+        assertEquals(4, afterStore.getDocumentCount());
+
+        // the non-recursive set does not include the child
+        assertEquals(2, getDocuments(TEST_COLLECTION_URI, false).getDocumentCount());
+    }
+
+    @Test
+    public void keyedByUser() throws Exception {
+        final DocumentSet system = getDocuments(TEST_COLLECTION_URI, false);
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getGuestSubject())) {
+            final Collection collection = broker.getCollection(TEST_COLLECTION_URI);
+            assertNotSame(system, pool.getDocumentSetCache().getDocuments(broker, collection, false));
+        }
+    }
+
+    private DocumentSet getDocuments(final XmldbURI uri, final boolean recursive) throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            final Collection collection = broker.getCollection(uri);
+            return pool.getDocumentSetCache().getDocuments(broker, collection, recursive);
+        }
+    }
+
+    private void store(final XmldbURI uri, final String name) throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, uri);
+            broker.saveCollection(transaction, collection);
+            final String xml = "<test>" + name + "</test>";
+            final IndexInfo info = collection.validateXMLResource(transaction, broker, XmldbURI.create(name), xml);
+            collection.store(transaction, broker, info, xml, false);
+            pool.getTransactionManager().commit(transaction);
+        }
+    }
+
+    private void remove(final XmldbURI uri, final String name) throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getCollection(uri);
+            final DocumentImpl doc = collection.getDocument(broker, XmldbURI.create(name));
+            collection.removeXMLResource(transaction, broker, doc.getFileURI());
+            pool.getTransactionManager().commit(transaction);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        store(TEST_COLLECTION_URI, "a.xml");
+        store(TEST_COLLECTION_URI, "b.xml");
+        store(CHILD_COLLECTION_URI, "a.xml");
+    }
+
+    @After
+    public void removeCollection() throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getCollection(TEST_COLLECTION_URI);
+            if (collection != null) {
+                broker.removeCollection(transaction, collection);
+            }
+            pool.getTransactionManager().commit(transaction);
+        }
+        pool.getDocumentSetCache().clear();
+    }
+
+    @BeforeClass
+    public static void startDB() throws DatabaseConfigurationException, EXistException {
+        final Configuration config = new Configuration();
+        config.setProperty(DocumentSetCache.PROPERTY_CACHE_SIZE, 16);
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+    }
+
+    @AfterClass
+    public static void stopDB() {
+        BrokerPool.stopAll(false);
+    }
+}
@@ -25,7 +25,8 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
         TriggerConfigTest.class,
-        XQueryTriggerTest.class
+        XQueryTriggerTest.class,
+        AsyncTriggerExecutorTest.class
 })
 public class AllTriggerTests {
 }
\ No newline at end of file
@@ -0,0 +1,108 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.collections.triggers;
+
+import org.exist.EXistException;
+import org.exist.security.Subject;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.txn.TransactionException;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.util.Configuration;
+import org.exist.util.DatabaseConfigurationException;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AsyncTriggerExecutorTest {
+
+    private static BrokerPool pool;
+
+    @Test
+    public void eventsAreQueuedOnCommit() throws InterruptedException, TransactionException {
+        final AsyncTriggerExecutor executor = new AsyncTriggerExecutor(pool);
+        final Subject subject = pool.getSecurityManager().getSystemSubject();
+        final CountDownLatch executed = new CountDownLatch(1);
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final Txn transaction = transact.beginTransaction()) {
+            assertTrue(executor.submit(transaction, subject, "test", broker -> executed.countDown()));
+            // not executed before the transaction has been committed
+            assertFalse(executed.await(200, TimeUnit.MILLISECONDS));
+            transact.commit(transaction);
+        }
+        assertTrue(executed.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    @Test
+    public void eventsAreDroppedOnAbort() throws InterruptedException {
+        final AsyncTriggerExecutor executor = new AsyncTriggerExecutor(pool);
+        final Subject subject = pool.getSecurityManager().getSystemSubject();
+        final AtomicInteger executed = new AtomicInteger();
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final Txn transaction = transact.beginTransaction()) {
+            assertTrue(executor.submit(transaction, subject, "test", broker -> executed.incrementAndGet()));
+            transact.abort(transaction);
+        }
+        executor.shutdown();
+        assertEquals(0, executed.get());
+    }
+
+    @Test
+    public void eventsOfTransactionAreQueuedAsOneBatch() throws InterruptedException, TransactionException {
+        final AsyncTriggerExecutor executor = new AsyncTriggerExecutor(pool, 1, 1);
+        final Subject subject = pool.getSecurityManager().getSystemSubject();
+        final List<Integer> executed = Collections.synchronizedList(new ArrayList<>());
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final Txn transaction = transact.beginTransaction()) {
+            // more events than the queue can hold
+            for (int i = 0; i < 10; i++) {
+                final int event = i;
+                assertTrue(executor.submit(transaction, subject, "test", broker -> executed.add(event)));
+            }
+            transact.commit(transaction);
+        }
+        executor.shutdown();
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), executed);
+    }
+
+    @BeforeClass
+    public static void startDB() throws DatabaseConfigurationException, EXistException {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+    }
+
+    @AfterClass
+    public static void stopDB() {
+        BrokerPool.stopAll(false);
+        pool = null;
+    }
+}
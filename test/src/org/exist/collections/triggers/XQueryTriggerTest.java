@@ -72,6 +72,19 @@ public class XQueryTriggerTest {
 		"  </exist:triggers>" +
         "</exist:collection>";    
 
+    private final static String ASYNC_COLLECTION_CONFIG =
+    	"<exist:collection xmlns:exist='http://exist-db.org/collection-config/1.0'>" +
+	    "  <exist:triggers>" +
+		"     <exist:trigger class='org.exist.collections.triggers.XQueryTrigger'>" +
+		"	     <exist:parameter " +
+		"			name='url' " +
+		"			value='" +XmldbURI.LOCAL_DB +  "/" + TEST_COLLECTION + "/" + MODULE_NAME + "' " +
+		"        />" +
+		"	     <exist:parameter name='async' value='yes'/>" +
+		"     </exist:trigger>" +
+		"  </exist:triggers>" +
+        "</exist:collection>";
+
     private final static String EMPTY_COLLECTION_CONFIG =
     	"<exist:collection xmlns:exist='http://exist-db.org/collection-config/1.0'>" +
         "</exist:collection>";    
@@ -327,6 +340,37 @@ public class XQueryTriggerTest {
 //	        assertXMLEqual(DOCUMENT_CONTENT, ((XMLResource)result.getResource(0)).getContent().toString());
     }
 
+    /** test an asynchronous trigger fired by storing a new Document  */
+    @Test
+    public void documentCreateAsync() throws XMLDBException, InterruptedException {
+        final IndexQueryService idxConf = (IndexQueryService)
+        testCollection.getService("IndexQueryService", "1.0");
+        idxConf.configureCollection(ASYNC_COLLECTION_CONFIG);
+
+        // this will fire the trigger
+        final XMLResource doc = (XMLResource) testCollection.createResource(DOCUMENT_NAME, "XMLResource" );
+        doc.setContent(DOCUMENT_CONTENT);
+        testCollection.storeResource(doc);
+
+        final XPathQueryService service = (XPathQueryService) testCollection.getService("XPathQueryService", "1.0");
+
+        ResourceSet result = service.query(BEFORE+CREATE+DOCUMENT+documentURI);
+        assertEquals(1, result.getSize());
+
+        // the after event is processed in the background
+        for (int i = 0; i < 100 && service.query(AFTER+CREATE+DOCUMENT+documentURI).getSize() == 0; i++) {
+            Thread.sleep(100);
+        }
+
+        idxConf.configureCollection(EMPTY_COLLECTION_CONFIG);
+
+        result = service.query(AFTER+CREATE+DOCUMENT+documentURI);
+        assertEquals(1, result.getSize());
+
+        result = service.query(EVENTS);
+        assertEquals(2, result.getSize());
+    }
+
     /** test a trigger fired by a Document Update */
     @Test
     public void documentUpdate() throws XMLDBException {
@@ -12,10 +12,24 @@ import static org.easymock.EasyMock.captureByte;
 import static org.easymock.EasyMock.captureInt;
 import static org.easymock.EasyMock.capture;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.exist.EXistException;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author Adam Retter <adam@exist-db.org>
@@ -79,6 +93,60 @@ public class SymbolTableTest {
         assertEquals(localName, roundTrippedLocalName);
     }
 
+    @Test
+    public void concurrent_lookups_agree_on_ids() throws Exception {
+        final File dir = emptyDir("symbols-concurrent");
+        final SymbolTable symbolTable = new SymbolTable(dir);
+        final int threads = 8;
+        final int names = 500;
+        final short[][] ids = new short[threads][names];
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    for (int i = 0; i < names; i++) {
+                        // every thread walks the names in a different order
+                        final int n = (i * (thread + 1)) % names;
+                        final String name = "concurrent-" + ((thread % 2 == 0) ? n : names - 1 - n);
+                        final short id = symbolTable.getSymbol(name);
+                        assertEquals(name, symbolTable.getName(id));
+                    }
+                    for (int i = 0; i < names; i++) {
+                        ids[thread][i] = symbolTable.getSymbol("concurrent-" + i);
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (final Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        final Set<Short> distinct = new HashSet<>();
+        for (int i = 0; i < names; i++) {
+            for (int t = 1; t < threads; t++) {
+                assertEquals(ids[0][i], ids[t][i]);
+            }
+            distinct.add(ids[0][i]);
+        }
+        assertEquals(names, distinct.size());
+        symbolTable.close();
+
+        // all symbols have been persisted
+        final SymbolTable reloaded = new SymbolTable(dir);
+        for (int i = 0; i < names; i++) {
+            assertEquals("concurrent-" + i, reloaded.getName(ids[0][i]));
+        }
+        reloaded.close();
+    }
+
     @Test
     public void namespace_ids_are_stable() throws EXistException, IOException {
         SymbolTable symbolTable = new SymbolTable(tmpDir);
@@ -188,4 +256,95 @@ public class SymbolTableTest {
 
         symbolTable.close();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void incomplete_entry_is_discarded_on_load() throws EXistException, IOException {
+        final File dir = emptyDir("symbols-truncated");
+        SymbolTable symbolTable = new SymbolTable(dir);
+        final short completeId = symbolTable.getSymbol("complete");
+        final File file = new File(dir, SymbolTable.getFileName());
+        final long completeLength = file.length();
+        symbolTable.getSymbol("incomplete");
+        symbolTable.close();
+
+        // simulate a crash while the last symbol was appended
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        symbolTable = new SymbolTable(dir);
+        assertEquals("complete", symbolTable.getName(completeId));
+        assertEquals(completeLength, file.length());
+        assertTrue(new File(dir, SymbolTable.getFileName() + ".bak").length() > completeLength);
+        final short incompleteId = symbolTable.getSymbol("incomplete");
+        symbolTable.close();
+
+        symbolTable = new SymbolTable(dir);
+        assertEquals("complete", symbolTable.getName(completeId));
+        assertEquals("incomplete", symbolTable.getName(incompleteId));
+        symbolTable.close();
+    }
+
+    @Test
+    public void invalid_entry_stops_loading() throws EXistException, IOException {
+        final File dir = emptyDir("symbols-corrupt");
+        SymbolTable symbolTable = new SymbolTable(dir);
+        symbolTable.getSymbol("first");
+        symbolTable.getSymbol("second");
+        symbolTable.close();
+
+        // overwrite the type of the first entry with an unknown type
+        final File file = new File(dir, SymbolTable.getFileName());
+        final long length = file.length();
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(4);
+            raf.writeByte(127);
+        }
+
+        try {
+            new SymbolTable(dir);
+            fail("Loading a corrupt symbol table should fail");
+        } catch (final EXistException e) {
+            assertTrue(e.getMessage().contains("corrupt"));
+        }
+        // nothing has been discarded
+        assertEquals(length, file.length());
+    }
+
+    @Test
+    public void superseded_entries_are_compacted_on_load() throws EXistException, IOException {
+        final File dir = emptyDir("symbols-compact");
+        SymbolTable symbolTable = new SymbolTable(dir);
+        final short id1 = symbolTable.getSymbol("first");
+        final short id2 = symbolTable.getSymbol("second");
+        final short nsId = symbolTable.getNSSymbol("http://exist-db.org/test");
+        symbolTable.close();
+
+        // append all entries a second time
+        final File file = new File(dir, SymbolTable.getFileName());
+        final byte[] data = Files.readAllBytes(file.toPath());
+        try (final FileOutputStream os = new FileOutputStream(file, true)) {
+            os.write(data, 4, data.length - 4);
+        }
+
+        symbolTable = new SymbolTable(dir);
+        assertEquals(data.length, file.length());
+        assertEquals("first", symbolTable.getName(id1));
+        assertEquals("second", symbolTable.getName(id2));
+        assertEquals("http://exist-db.org/test", symbolTable.getNamespace(nsId));
+        assertEquals(id1, symbolTable.getSymbol("first"));
+        symbolTable.close();
+    }
+
+    private File emptyDir(final String name) {
+        final File dir = new File(tmpDir, name);
+        dir.mkdirs();
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        return dir;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.http.servlets;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void rejectsWhenQueueIsFull() {
+        final AdmissionController controller = new AdmissionController(2, 0, 1000);
+        assertTrue(controller.acquire(false));
+        assertTrue(controller.acquire(false));
+        assertEquals(2, controller.getActive());
+
+        assertFalse(controller.acquire(false));
+        assertEquals(1, controller.getRejected());
+
+        controller.release();
+        assertTrue(controller.acquire(false));
+        controller.release();
+        controller.release();
+        assertEquals(0, controller.getActive());
+        assertEquals(3, controller.getAdmitted());
+    }
+
+    @Test
+    public void rejectsAfterTimeout() {
+        final AdmissionController controller = new AdmissionController(1, 10, 100);
+        assertTrue(controller.acquire(false));
+
+        final long start = System.currentTimeMillis();
+        assertFalse(controller.acquire(false));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(1, controller.getTimedOut());
+        assertEquals(0, controller.getQueueLength());
+        assertEquals(1, controller.getRetryAfter());
+
+        controller.release();
+        assertEquals(0, controller.getActive());
+    }
+
+    @Test
+    public void priorityRequestsAreAdmittedFirst() throws InterruptedException {
+        final AdmissionController controller = new AdmissionController(1, 10, 10000);
+        assertTrue(controller.acquire(false));
+
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final Thread normal = waitFor(controller, false, "normal", order);
+        awaitQueueLength(controller, 1);
+        final Thread priority = waitFor(controller, true, "priority", order);
+        awaitQueueLength(controller, 2);
+        assertEquals(1, controller.getPriorityQueueLength());
+
+        controller.release();
+        normal.join(5000);
+        priority.join(5000);
+
+        assertEquals(2, order.size());
+        assertEquals("priority", order.get(0));
+        assertEquals("normal", order.get(1));
+        assertEquals(0, controller.getActive());
+        assertEquals(2, controller.getQueued());
+        assertEquals(2, controller.getPeakQueueLength());
+    }
+
+    @Test
+    public void priorityRequestsIgnoreQueueLimit() throws InterruptedException {
+        final AdmissionController controller = new AdmissionController(1, 0, 10000);
+        assertTrue(controller.acquire(false));
+        assertFalse(controller.acquire(false));
+
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final Thread priority = waitFor(controller, true, "priority", order);
+        awaitQueueLength(controller, 1);
+        controller.release();
+        priority.join(5000);
+
+        assertEquals(1, order.size());
+        assertEquals(0, controller.getActive());
+    }
+
+    private Thread waitFor(final AdmissionController controller, final boolean priority, final String name,
+            final List<String> order) {
+        final Thread thread = new Thread(() -> {
+            if (controller.acquire(priority)) {
+                order.add(name);
+                controller.release();
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void awaitQueueLength(final AdmissionController controller, final int length) throws InterruptedException {
+        for (int i = 0; i < 500 && controller.getQueueLength() < length; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(length, controller.getQueueLength());
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.http.servlets;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.anyString;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.*;
+
+public class AsyncRequestExecutorTest {
+
+    @Test
+    public void rejectsResponsesIfOutputQueueIsFull() throws Exception {
+        final AsyncRequestExecutor executor = new AsyncRequestExecutor("test", 1, 1, 1, 1024);
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch completed = new CountDownLatch(2);
+
+        // the first response blocks the only output thread, the second one waits in the queue
+        final HttpServletResponse blocked = mockResponse(new ServletOutputStream() {
+            @Override
+            public void write(final int b) throws IOException {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+        });
+        replay(blocked);
+        executor.execute(mockRequest(completed), blocked, (req, resp) -> resp.getWriter().write("1"));
+        assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+        final HttpServletResponse queued = mockResponse(EasyMock.createNiceMock(ServletOutputStream.class));
+        replay(queued);
+        executor.execute(mockRequest(completed), queued, (req, resp) -> resp.getWriter().write("2"));
+
+        final HttpServletResponse rejected = mockResponse(null);
+        rejected.sendError(EasyMock.eq(HttpServletResponse.SC_SERVICE_UNAVAILABLE), anyString());
+        EasyMock.expectLastCall();
+        replay(rejected);
+        final CountDownLatch rejectedCompleted = new CountDownLatch(1);
+        executor.execute(mockRequest(rejectedCompleted), rejected, (req, resp) -> resp.getWriter().write("3"));
+        assertTrue(rejectedCompleted.await(10, TimeUnit.SECONDS));
+        verify(rejected);
+
+        release.countDown();
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+
+    private HttpServletRequest mockRequest(final CountDownLatch completed) {
+        final AsyncContext context = EasyMock.createNiceMock(AsyncContext.class);
+        context.complete();
+        EasyMock.expectLastCall().andAnswer(() -> {
+            completed.countDown();
+            return null;
+        });
+        replay(context);
+        final HttpServletRequest request = EasyMock.createNiceMock(HttpServletRequest.class);
+        expect(request.startAsync(anyObject(), anyObject())).andReturn(context);
+        expect(request.getRequestURI()).andReturn("/test").anyTimes();
+        replay(request);
+        return request;
+    }
+
+    private HttpServletResponse mockResponse(final ServletOutputStream os) throws IOException {
+        final HttpServletResponse response = EasyMock.createNiceMock(HttpServletResponse.class);
+        expect(response.getCharacterEncoding()).andReturn("UTF-8").anyTimes();
+        expect(response.getOutputStream()).andReturn(os).anyTimes();
+        return response;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.http.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.easymock.EasyMock;
+import org.junit.Test;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.*;
+
+public class BufferedResponseTest {
+
+    @Test
+    public void keepsSmallBodyInMemory() throws Exception {
+        final HttpServletResponse response = mockResponse();
+        replay(response);
+
+        final BufferedResponse buffered = new BufferedResponse(response, 1024);
+        final PrintWriter writer = buffered.getWriter();
+        writer.write("h\u00e9llo");
+        buffered.flushBuffer();
+        assertEquals(6, buffered.getSize());
+
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        buffered.writeTo(os);
+        assertEquals("h\u00e9llo", os.toString("UTF-8"));
+        buffered.discard();
+        verify(response);
+    }
+
+    @Test
+    public void spillsLargeBodyToFile() throws Exception {
+        final HttpServletResponse response = mockResponse();
+        replay(response);
+
+        final byte[] data = new byte[100000];
+        new Random(7).nextBytes(data);
+        final BufferedResponse buffered = new BufferedResponse(response, 4096);
+        buffered.getOutputStream().write(data, 0, 1000);
+        buffered.getOutputStream().write(data[1000]);
+        buffered.getOutputStream().write(data, 1001, data.length - 1001);
+        assertEquals(data.length, buffered.getSize());
+
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        buffered.writeTo(os);
+        assertTrue(Arrays.equals(data, os.toByteArray()));
+        buffered.discard();
+    }
+
+    @Test
+    public void errorDiscardsBody() throws Exception {
+        final HttpServletResponse response = mockResponse();
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "not found");
+        EasyMock.expectLastCall();
+        replay(response);
+
+        final BufferedResponse buffered = new BufferedResponse(response, 16);
+        buffered.getOutputStream().write(new byte[100]);
+        buffered.sendError(HttpServletResponse.SC_NOT_FOUND, "not found");
+        // ignored
+        buffered.getOutputStream().write(new byte[10]);
+
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        buffered.writeTo(os);
+        assertEquals(0, os.size());
+        buffered.discard();
+        verify(response);
+    }
+
+    @Test
+    public void resetDiscardsBody() throws Exception {
+        final HttpServletResponse response = mockResponse();
+        replay(response);
+
+        final BufferedResponse buffered = new BufferedResponse(response, 1024);
+        buffered.getWriter().write("discarded");
+        buffered.resetBuffer();
+        buffered.getWriter().write("kept");
+
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        buffered.writeTo(os);
+        assertEquals("kept", os.toString("UTF-8"));
+        buffered.discard();
+    }
+
+    private HttpServletResponse mockResponse() {
+        final HttpServletResponse response = EasyMock.createNiceMock(HttpServletResponse.class);
+        expect(response.getCharacterEncoding()).andReturn("UTF-8").anyTimes();
+        return response;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.http.urlrewrite;
+
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+import static org.junit.Assert.*;
+
+public class RouteTableTest {
+
+    private final static String ROUTES =
+        "<root xmlns='http://exist.sourceforge.net/NS/exist' pattern='/apps/test' path='xmldb:exist:///db/apps/test'>" +
+        "  <route path='/'><redirect url='index.html'/></route>" +
+        "  <route path='/users/{id}' method='GET'>" +
+        "    <forward url='/modules/user.xql'><add-parameter name='id' value='{id}'/></forward>" +
+        "  </route>" +
+        "  <route path='/users/{id}' method='POST'><forward url='/modules/update.xql'/></route>" +
+        "  <route path='/users/me' method='GET'><forward url='/modules/me.xql'/></route>" +
+        "  <route path='/users/{id}/items/{item}'>" +
+        "    <forward url='/modules/item.xql'>" +
+        "      <set-attribute name='item' value='{id}:{item}'/>" +
+        "    </forward>" +
+        "    <view><forward url='/modules/view.xql'><add-parameter name='path' value='{$exist:path}'/></forward></view>" +
+        "  </route>" +
+        "  <route path='/resources/**'><ignore/></route>" +
+        "  <route path='/docs/**'><forward url='/data/{**}'/></route>" +
+        "</root>";
+
+    private static RouteTable routes;
+
+    @BeforeClass
+    public static void parseRoutes() throws Exception {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final Element root = factory.newDocumentBuilder().parse(new InputSource(new StringReader(ROUTES))).getDocumentElement();
+        routes = RouteTable.parse(null, root);
+        assertNotNull(routes);
+    }
+
+    @Test
+    public void literalsBeforeTemplates() {
+        RouteTable.Match match = routes.match("GET", "/users/me");
+        assertEquals("/users/me", match.getRoute().getPath());
+        assertTrue(match.getParameters().isEmpty());
+
+        match = routes.match("GET", "/users/42");
+        assertEquals("/users/{id}", match.getRoute().getPath());
+        assertEquals("42", match.getParameters().get("id"));
+
+        // no POST route for the literal, so the template matches
+        match = routes.match("POST", "/users/me");
+        assertEquals("/users/{id}", match.getRoute().getPath());
+        assertEquals("/modules/update.xql", match.getRoute().getModel().getTarget());
+    }
+
+    @Test
+    public void methodAndPathMismatch() {
+        assertNull(routes.match("DELETE", "/users/42"));
+        assertNull(routes.match("GET", "/users"));
+        assertNull(routes.match("GET", "/users/"));
+        assertNull(routes.match("GET", "/unknown"));
+        assertNull(routes.match("GET", "/users/42/items"));
+    }
+
+    @Test
+    public void rootAndTail() {
+        assertEquals("/", routes.match("GET", "/").getRoute().getPath());
+        assertEquals("/", routes.match("GET", "").getRoute().getPath());
+
+        RouteTable.Match match = routes.match("GET", "/resources/css/style.css");
+        assertNull(match.getRoute().getModel());
+        assertEquals("css/style.css", match.getParameters().get(RouteTable.TAIL));
+
+        match = routes.match("GET", "/resources");
+        assertEquals("/resources/**", match.getRoute().getPath());
+        assertEquals("", match.getParameters().get(RouteTable.TAIL));
+    }
+
+    @Test
+    public void expandTemplates() {
+        RouteTable.Match match = routes.match("GET", "/users/42/items/7");
+        Map<String, String> variables = new HashMap<>(match.getParameters());
+        variables.put("$exist:path", "/users/42/items/7");
+        final URLRewrite model = match.getRoute().getModel().expand("/exist/apps/test/users/42/items/7", variables);
+        assertEquals("/modules/item.xql", model.getTarget());
+        assertEquals("42:7", model.attributes.get("item"));
+        assertEquals("/exist/apps/test/users/42/items/7", model.getURI());
+
+        final List<URLRewrite> views = match.getRoute().getViews();
+        assertEquals(1, views.size());
+        final URLRewrite view = views.get(0).expand("/exist/apps/test/users/42/items/7", variables);
+        assertEquals("/users/42/items/7", view.parameters.get("path").get(0));
+        // the template is not modified
+        assertEquals("{$exist:path}", views.get(0).parameters.get("path").get(0));
+
+        match = routes.match("GET", "/users/42");
+        final URLRewrite user = match.getRoute().getModel().expand("/users/42", match.getParameters());
+        assertEquals("42", user.parameters.get("id").get(0));
+
+        match = routes.match("GET", "/docs/a/b.xml");
+        assertEquals("/data/a/b.xml", match.getRoute().getModel().expand("/docs/a/b.xml", match.getParameters()).getTarget());
+    }
+
+    @Test
+    public void expandLeavesUnknownPlaceholders() {
+        final Map<String, String> variables = new HashMap<>();
+        variables.put("a", "1");
+        assertEquals("1/{b}/1{", RouteTable.expand("{a}/{b}/{a}{", variables));
+        assertEquals("plain", RouteTable.expand("plain", variables));
+    }
+}
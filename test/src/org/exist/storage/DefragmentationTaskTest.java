@@ -0,0 +1,189 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.util.Configuration;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Sequence;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DefragmentationTaskTest {
+
+    private final static XmldbURI TEST_COLLECTION_URI = XmldbURI.ROOT_COLLECTION_URI.append("defrag-test");
+    private final static XmldbURI TEST_DOC_URI = TEST_COLLECTION_URI.append("test.xml");
+
+    private static BrokerPool pool;
+
+    @Test
+    public void updateIsTracked() throws Exception {
+        final FragmentationTracker tracker = pool.getFragmentationTracker();
+        assertTrue(tracker.isEnabled());
+        assertEquals(0, tracker.size());
+
+        update();
+
+        assertEquals(1, tracker.size());
+        final Map<XmldbURI, FragmentationTracker.CollectionStatistics> stats = tracker.getCollectionStatistics();
+        assertEquals(1, stats.size());
+        final FragmentationTracker.CollectionStatistics collectionStats = stats.get(TEST_COLLECTION_URI);
+        assertNotNull(collectionStats);
+        assertEquals(1, collectionStats.getDocumentCount());
+        assertTrue(collectionStats.getPageCount() > 0);
+    }
+
+    @Test
+    public void taskDefragments() throws Exception {
+        final FragmentationTracker tracker = pool.getFragmentationTracker();
+        update();
+        assertEquals(1, tracker.size());
+        final long defragmented = tracker.getDefragmentedCount();
+
+        final DefragmentationTask task = new DefragmentationTask();
+        task.execute(pool, new HashMap<String, String>());
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            assertEquals(0, tracker.size());
+            assertEquals(defragmented + 1, tracker.getDefragmentedCount());
+            assertTrue(tracker.getLastRun() > 0);
+
+            final DocumentImpl doc = broker.getXMLResource(TEST_DOC_URI, Lock.NO_LOCK);
+            assertEquals(0, doc.getMetadata().getSplitCount());
+            final Sequence result = pool.getXQueryService().execute(broker,
+                "count(doc('" + TEST_DOC_URI + "')/test/item)", null, AccessContext.TEST);
+            assertEquals(3, ((IntegerValue) result.itemAt(0)).getInt());
+        }
+    }
+
+    @Test
+    public void budgetLimitsRun() throws Exception {
+        final FragmentationTracker tracker = pool.getFragmentationTracker();
+        update();
+        assertEquals(1, tracker.size());
+
+        final DefragmentationTask task = new DefragmentationTask();
+        final Map<String, String> properties = new HashMap<>();
+        properties.put(DefragmentationTask.MAX_DOCUMENTS_PROP_NAME, "0");
+        task.execute(pool, properties);
+        assertEquals(1, tracker.size());
+    }
+
+    @Test
+    public void trackedDocumentsAreSaved() throws Exception {
+        final FragmentationTracker tracker = pool.getFragmentationTracker();
+        update();
+        final int docId = tracker.getDocuments().get(0).getDocId();
+        tracker.save();
+        assertTrue(new File((String) pool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR),
+            FragmentationTracker.FILE_NAME).exists());
+
+        final FragmentationTracker loaded = new FragmentationTracker(pool.getConfiguration());
+        assertEquals(1, loaded.size());
+        assertTrue(loaded.isTracked(docId));
+        assertEquals(TEST_DOC_URI, loaded.getDocuments().get(0).getURI());
+    }
+
+    @Test
+    public void removedDocumentIsNotTracked() throws Exception {
+        final FragmentationTracker tracker = pool.getFragmentationTracker();
+        update();
+        assertEquals(1, tracker.size());
+
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+                final Txn transaction = transact.beginTransaction()) {
+            final Collection collection = broker.getCollection(TEST_COLLECTION_URI);
+            collection.removeXMLResource(transaction, broker, TEST_DOC_URI.lastSegment());
+            transact.commit(transaction);
+        }
+        assertEquals(0, tracker.size());
+    }
+
+    private void update() throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            final XQuery xquery = pool.getXQueryService();
+            xquery.execute(broker, "update insert <item>3</item> into doc('" + TEST_DOC_URI + "')/test",
+                null, AccessContext.TEST);
+        }
+    }
+
+    @Before
+    public void storeDocument() throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+                final Txn transaction = transact.beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            final String xml = "<test><item>1</item><item>2</item></test>";
+            final IndexInfo info = collection.validateXMLResource(transaction, broker, TEST_DOC_URI.lastSegment(), xml);
+            collection.store(transaction, broker, info, xml, false);
+            transact.commit(transaction);
+        }
+    }
+
+    @After
+    public void removeCollection() throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+                final Txn transaction = transact.beginTransaction()) {
+            final Collection collection = broker.getCollection(TEST_COLLECTION_URI);
+            if (collection != null) {
+                broker.removeCollection(transaction, collection);
+            }
+            transact.commit(transaction);
+        }
+        pool.getFragmentationTracker().unsubscribe();
+    }
+
+    @BeforeClass
+    public static void startDB() throws EXistException, DatabaseConfigurationException {
+        final Configuration config = new Configuration();
+        config.setProperty(DBBroker.PROPERTY_XUPDATE_BACKGROUND_DEFRAG, Boolean.TRUE);
+        // every update exceeds the allowed fragmentation
+        config.setProperty(DBBroker.PROPERTY_XUPDATE_FRAGMENTATION_FACTOR, -1);
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+    }
+
+    @AfterClass
+    public static void stopDB() {
+        BrokerPool.stopAll(false);
+        pool = null;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionFactory;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.serializers.Serializer;
+import org.exist.storage.txn.Txn;
+import org.exist.util.Configuration;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.CompiledXQuery;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.NodeValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.exist.xquery.value.Type;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.xml.transform.OutputKeys;
+
+import static org.junit.Assert.*;
+
+public class QueryResultCacheTest {
+
+    private final static XmldbURI TEST_COLLECTION_URI = XmldbURI.ROOT_COLLECTION_URI.append("result-cache-test");
+    private final static XmldbURI OTHER_COLLECTION_URI = XmldbURI.ROOT_COLLECTION_URI.append("result-cache-other");
+
+    private final static String COUNT_QUERY =
+        "declare option exist:result-cache \"max-age=600\";\n" +
+        "count(collection('" + TEST_COLLECTION_URI + "')//item)";
+
+    private static BrokerPool pool;
+
+    @Test
+    public void cachedUntilDependencyChanges() throws Exception {
+        final QueryResultCache cache = pool.getQueryResultCache();
+        assertTrue(cache.isEnabled());
+
+        assertEquals("2", execute(COUNT_QUERY, null));
+        final long hits = cache.getHits();
+        assertEquals("2", execute(COUNT_QUERY, null));
+        assertEquals(hits + 1, cache.getHits());
+
+        // changes to other collections do not invalidate the result
+        store(OTHER_COLLECTION_URI, "c.xml", "<test><item/></test>");
+        assertEquals("2", execute(COUNT_QUERY, null));
+        assertEquals(hits + 2, cache.getHits());
+
+        store(TEST_COLLECTION_URI, "c.xml", "<test><item/><item/></test>");
+        assertEquals("4", execute(COUNT_QUERY, null));
+        assertEquals(hits + 2, cache.getHits());
+
+        remove(TEST_COLLECTION_URI, "a.xml");
+        assertEquals("3", execute(COUNT_QUERY, null));
+    }
+
+    @Test
+    public void inMemoryResultIsCopied() throws Exception {
+        final String query =
+            "declare option exist:result-cache \"\";\n" +
+            "<result>{doc('" + TEST_COLLECTION_URI.append("a.xml") + "')/test/item}</result>";
+
+        final String expected = "<result><item/></result>";
+        assertEquals(expected, execute(query, null));
+        final long hits = pool.getQueryResultCache().getHits();
+        assertEquals(expected, execute(query, null));
+        assertEquals(hits + 1, pool.getQueryResultCache().getHits());
+
+        store(TEST_COLLECTION_URI, "a.xml", "<test><item n='1'/></test>");
+        assertEquals("<result><item n=\"1\"/></result>", execute(query, null));
+    }
+
+    @Test
+    public void keyedByExternalVariables() throws Exception {
+        final String query =
+            "declare option exist:result-cache \"\";\n" +
+            "declare variable $name external;\n" +
+            "count(collection('" + TEST_COLLECTION_URI + "')//*[local-name() = $name])";
+
+        assertEquals("2", execute(query, "item"));
+        assertEquals("2", execute(query, "test"));
+        final long hits = pool.getQueryResultCache().getHits();
+        assertEquals("2", execute(query, "item"));
+        assertEquals("2", execute(query, "test"));
+        assertEquals(hits + 2, pool.getQueryResultCache().getHits());
+        assertEquals("0", execute(query, "none"));
+    }
+
+    @Test
+    public void onlyQueriesDeclaringTheOption() throws Exception {
+        final String query = "count(collection('" + TEST_COLLECTION_URI + "')//item)";
+        final long hits = pool.getQueryResultCache().getHits();
+        final long misses = pool.getQueryResultCache().getMisses();
+        assertEquals("2", execute(query, null));
+        assertEquals("2", execute(query, null));
+        assertEquals(hits, pool.getQueryResultCache().getHits());
+        assertEquals(misses, pool.getQueryResultCache().getMisses());
+    }
+
+    @Test
+    public void permissionChangesInvalidate() throws Exception {
+        assertEquals("2", execute(COUNT_QUERY, null));
+        final long hits = pool.getQueryResultCache().getHits();
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            PermissionFactory.updatePermissions(broker, TEST_COLLECTION_URI.append("a.xml"), permission -> permission.setMode(0700));
+        }
+        assertEquals("2", execute(COUNT_QUERY, null));
+        assertEquals(hits, pool.getQueryResultCache().getHits());
+
+        assertEquals("2", execute(COUNT_QUERY, null));
+        assertEquals(hits + 1, pool.getQueryResultCache().getHits());
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            PermissionFactory.updatePermissions(broker, TEST_COLLECTION_URI, permission -> permission.setMode(0700));
+        }
+        assertEquals("2", execute(COUNT_QUERY, null));
+        assertEquals(hits + 1, pool.getQueryResultCache().getHits());
+    }
+
+    @Test
+    public void updatesAreNotCached() throws Exception {
+        final String query =
+            "declare option exist:result-cache \"\";\n" +
+            "update insert <item/> into doc('" + TEST_COLLECTION_URI.append("a.xml") + "')/test,\n" +
+            "'done'";
+        final long hits = pool.getQueryResultCache().getHits();
+        final long misses = pool.getQueryResultCache().getMisses();
+        assertEquals("done", execute(query, null));
+        assertEquals("done", execute(query, null));
+        assertEquals(hits, pool.getQueryResultCache().getHits());
+        assertEquals(misses, pool.getQueryResultCache().getMisses());
+        // both executions updated the document
+        assertEquals("4", execute("count(collection('" + TEST_COLLECTION_URI + "')//item)", null));
+    }
+
+    @Test
+    public void onlyRequestParametersAreCacheable() throws Exception {
+        assertTrue(isCacheable("request:get-parameter('a', ())"));
+        assertTrue(isCacheable("request:get-parameter-names()"));
+        assertFalse(isCacheable("request:get-header('Accept')"));
+        assertFalse(isCacheable("request:get-uri()"));
+        assertFalse(isCacheable("session:get-attribute('a')"));
+        assertFalse(isCacheable("response:set-header('a', 'b')"));
+    }
+
+    @Test
+    public void untrackedReadsAreNotCacheable() throws Exception {
+        assertTrue(isCacheable("fn:count(fn:collection('/db'))"));
+        assertTrue(isCacheable("math:sqrt(2)"));
+        assertFalse(isCacheable("util:binary-doc('/db/a.bin')"));
+        assertFalse(isCacheable("util:eval('1')"));
+        assertFalse(isCacheable("util:uuid()"));
+        assertFalse(isCacheable("xmldb:get-child-resources('/db')"));
+        assertFalse(isCacheable("fn:current-dateTime()"));
+        assertFalse(isCacheable("fn:function-lookup(xs:QName('fn:true'), 0)"));
+    }
+
+    private boolean isCacheable(final String query) throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            final XQueryContext context = new XQueryContext(pool, AccessContext.TEST);
+            pool.getXQueryService().compile(broker, context, "declare option exist:result-cache \"\";\n" + query);
+            return context.isResultCacheable();
+        }
+    }
+
+    private String execute(final String query, final String name) throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            final XQuery xquery = pool.getXQueryService();
+            final XQueryContext context = new XQueryContext(pool, AccessContext.TEST);
+            if (name != null) {
+                context.declareVariable("name", new StringValue(name));
+            }
+            final CompiledXQuery compiled = xquery.compile(broker, context, query);
+            final Sequence result = xquery.execute(broker, compiled, null);
+            assertEquals(1, result.getItemCount());
+            if (Type.subTypeOf(result.getItemType(), Type.NODE)) {
+                final Serializer serializer = broker.getSerializer();
+                serializer.reset();
+                serializer.setProperty(OutputKeys.INDENT, "no");
+                return serializer.serialize((NodeValue) result.itemAt(0));
+            }
+            return result.getStringValue();
+        }
+    }
+
+    private void store(final XmldbURI uri, final String name, final String xml) throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, uri);
+            broker.saveCollection(transaction, collection);
+            final IndexInfo info = collection.validateXMLResource(transaction, broker, XmldbURI.create(name), xml);
+            collection.store(transaction, broker, info, xml, false);
+            pool.getTransactionManager().commit(transaction);
+        }
+    }
+
+    private void remove(final XmldbURI uri, final String name) throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getCollection(uri);
+            final DocumentImpl doc = collection.getDocument(broker, XmldbURI.create(name));
+            collection.removeXMLResource(transaction, broker, doc.getFileURI());
+            pool.getTransactionManager().commit(transaction);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        store(TEST_COLLECTION_URI, "a.xml", "<test><item/></test>");
+        store(TEST_COLLECTION_URI, "b.xml", "<test><item/></test>");
+        // creating a collection changes its parent and invalidates the results depending on it
+        store(OTHER_COLLECTION_URI, "a.xml", "<test/>");
+    }
+
+    @After
+    public void removeCollections() throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            for (final XmldbURI uri : new XmldbURI[] { TEST_COLLECTION_URI, OTHER_COLLECTION_URI }) {
+                final Collection collection = broker.getCollection(uri);
+                if (collection != null) {
+                    broker.removeCollection(transaction, collection);
+                }
+            }
+            pool.getTransactionManager().commit(transaction);
+        }
+        pool.getQueryResultCache().clear();
+    }
+
+    @BeforeClass
+    public static void startDB() throws DatabaseConfigurationException, EXistException {
+        final Configuration config = new Configuration();
+        config.setProperty(QueryResultCache.PROPERTY_CACHE_SIZE, 16);
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+    }
+
+    @AfterClass
+    public static void stopDB() {
+        BrokerPool.stopAll(false);
+    }
+}
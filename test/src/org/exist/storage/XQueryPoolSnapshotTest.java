@@ -0,0 +1,96 @@
+package org.exist.storage;
+
+import org.exist.EXistException;
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.xacml.AccessContext;
+import org.exist.source.FileSource;
+import org.exist.source.Source;
+import org.exist.source.StringSource;
+import org.exist.util.Configuration;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.xquery.CompiledXQuery;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.XQueryContext;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class XQueryPoolSnapshotTest {
+
+    private static BrokerPool pool;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void saveAndRestore() throws EXistException, PermissionDeniedException, XPathException, IOException {
+        final XQueryPool xqueryPool = pool.getXQueryPool();
+        final File queryFile = createQuery("query.xq", "declare variable $local:x := 42; $local:x");
+        final File invalidFile = createQuery("invalid.xq", "$undeclared");
+        final Source source = new FileSource(queryFile, "UTF-8", true);
+        final Source invalid = new FileSource(invalidFile, "UTF-8", true);
+        final Source string = new StringSource("declare variable $local:password := 'secret'; $local:password");
+
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            final XQuery xquery = pool.getXQueryService();
+            final XQueryContext context = new XQueryContext(pool, AccessContext.XMLRPC);
+            context.setModuleLoadPath("/db/apps/test");
+            xqueryPool.returnCompiledXQuery(source, xquery.compile(broker, context, source));
+            // compiles now, but will fail to compile when restored
+            xqueryPool.returnCompiledXQuery(invalid, xquery.compile(broker, new XQueryContext(pool, AccessContext.REST), new StringSource("1")));
+            xqueryPool.returnCompiledXQuery(string, xquery.compile(broker, new XQueryContext(pool, AccessContext.REST), string));
+        }
+
+        final XQueryPoolSnapshot snapshot = new XQueryPoolSnapshot(temp.getRoot());
+        snapshot.save(xqueryPool);
+        final File file = new File(temp.getRoot(), XQueryPoolSnapshot.FILE_NAME);
+        assertTrue(file.exists());
+        // queries passed as strings are not written to disk
+        assertFalse(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).contains("secret"));
+
+        xqueryPool.clear();
+        assertEquals(1, snapshot.restore(pool));
+        assertFalse(file.exists());
+
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            final CompiledXQuery compiled = xqueryPool.borrowCompiledXQuery(broker, new FileSource(queryFile, "UTF-8", true));
+            assertNotNull(compiled);
+            assertEquals("/db/apps/test", compiled.getContext().getModuleLoadPath());
+            assertSame(AccessContext.XMLRPC, compiled.getContext().getAccessContext());
+            assertNull(xqueryPool.borrowCompiledXQuery(broker, invalid));
+            assertNull(xqueryPool.borrowCompiledXQuery(broker, string));
+        }
+
+        // a snapshot is only restored once
+        assertEquals(0, snapshot.restore(pool));
+    }
+
+    private File createQuery(final String name, final String query) throws IOException {
+        final File file = temp.newFile(name);
+        Files.write(file.toPath(), query.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    @BeforeClass
+    public static void startDB() throws EXistException, DatabaseConfigurationException {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+    }
+
+    @AfterClass
+    public static void stopDB() {
+        BrokerPool.stopAll(false);
+        pool = null;
+    }
+}
@@ -0,0 +1,111 @@
+package org.exist.storage;
+
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
+import org.exist.source.Source;
+import org.exist.source.StringSource;
+import org.exist.util.Configuration;
+import org.exist.xquery.CompiledXQuery;
+import org.junit.Test;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.classextension.EasyMock.createMock;
+import static org.easymock.classextension.EasyMock.createNiceMock;
+import static org.easymock.classextension.EasyMock.replay;
+import static org.junit.Assert.*;
+
+public class XQueryPoolTest {
+
+    @Test
+    public void borrowAndReturn() throws PermissionDeniedException {
+        final XQueryPool pool = new XQueryPool(config(10, 2));
+        final DBBroker broker = broker();
+        final Source source = new StringSource("1");
+
+        assertNull(pool.borrowCompiledXQuery(broker, source));
+        assertEquals(1, pool.getMisses());
+
+        final CompiledXQuery first = query(true);
+        final CompiledXQuery second = query(true);
+        final CompiledXQuery third = query(true);
+        pool.returnCompiledXQuery(source, first);
+        // the same query is pooled only once
+        pool.returnCompiledXQuery(source, first);
+        pool.returnCompiledXQuery(source, second);
+        // exceeds the maximum stack size
+        pool.returnCompiledXQuery(source, third);
+        assertEquals(1, pool.size());
+        assertEquals(2, pool.getQueryCount());
+
+        assertSame(second, pool.borrowCompiledXQuery(broker, new StringSource("1")));
+        assertSame(first, pool.borrowCompiledXQuery(broker, source));
+        assertNull(pool.borrowCompiledXQuery(broker, source));
+        assertEquals(2, pool.getHits());
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void invalidQueryIsRemoved() throws PermissionDeniedException {
+        final XQueryPool pool = new XQueryPool(config(10, 2));
+        final Source source = new StringSource("1");
+        pool.returnCompiledXQuery(source, query(false));
+        assertNull(pool.borrowCompiledXQuery(broker(), source));
+        assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws PermissionDeniedException, InterruptedException {
+        final XQueryPool pool = new XQueryPool(config(2, 2));
+        final DBBroker broker = broker();
+        final Source first = new StringSource("1");
+        final Source second = new StringSource("2");
+        pool.returnCompiledXQuery(first, query(true));
+        Thread.sleep(5);
+        pool.returnCompiledXQuery(second, query(true));
+        Thread.sleep(5);
+        pool.returnCompiledXQuery(first, query(true));
+
+        pool.returnCompiledXQuery(new StringSource("3"), query(true));
+        assertEquals(2, pool.size());
+        assertEquals(1, pool.getEvictions());
+        assertNotNull(pool.borrowCompiledXQuery(broker, first));
+        assertNull(pool.borrowCompiledXQuery(broker, second));
+    }
+
+    @Test
+    public void clear() {
+        final XQueryPool pool = new XQueryPool(config(10, 2));
+        final Source source = new StringSource("1");
+        pool.returnCompiledXQuery(source, query(true));
+        pool.clear();
+        assertEquals(0, pool.size());
+
+        // queries compiled before the pool was cleared are not returned
+        pool.returnCompiledXQuery(source, query(true));
+        assertEquals(0, pool.size());
+    }
+
+    private static Configuration config(final int size, final int stackSize) {
+        final Configuration config = createMock(Configuration.class);
+        expect(config.getProperty(XQueryPool.PROPERTY_POOL_SIZE)).andReturn(size).anyTimes();
+        expect(config.getProperty(XQueryPool.PROPERTY_MAX_STACK_SIZE)).andReturn(stackSize).anyTimes();
+        expect(config.getProperty(XQueryPool.PROPERTY_TIMEOUT)).andReturn(null).anyTimes();
+        expect(config.getProperty(XQueryPool.PROPERTY_TIMEOUT_CHECK_INTERVAL)).andReturn(null).anyTimes();
+        replay(config);
+        return config;
+    }
+
+    private static DBBroker broker() {
+        final DBBroker broker = createMock(DBBroker.class);
+        expect(broker.getSubject()).andReturn(createNiceMock(Subject.class)).anyTimes();
+        replay(broker);
+        return broker;
+    }
+
+    private static CompiledXQuery query(final boolean valid) {
+        final CompiledXQuery query = createMock(CompiledXQuery.class);
+        expect(query.isValid()).andReturn(valid).anyTimes();
+        replay(query);
+        return query;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage.btree;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.NativeBroker;
+import org.exist.storage.sync.Sync;
+import org.exist.storage.txn.Txn;
+import org.exist.util.Configuration;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.xmldb.XmldbURI;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PageSnapshotTest {
+
+    private final static XmldbURI TEST_COLLECTION_URI = XmldbURI.ROOT_COLLECTION_URI.append("snapshot-test");
+
+    private static BrokerPool pool;
+
+    @Test
+    public void modifiedPagesArePreserved() throws Exception {
+        store(0, 20);
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            pool.sync(broker, Sync.MAJOR_SYNC);
+            final Paged dom = ((NativeBroker) broker).getStorage(NativeBroker.DOM_DBX_ID);
+            final byte[] before = Files.readAllBytes(dom.getFile().toPath());
+
+            final SnapshotSession session = pool.startSnapshotSession();
+            try {
+                store(20, 200);
+                pool.sync(broker, Sync.MAJOR_SYNC);
+
+                final byte[] after = Files.readAllBytes(dom.getFile().toPath());
+                assertFalse(Arrays.equals(before, after));
+                assertTrue(session.getPreservedBlocks() > 0);
+
+                final ByteArrayOutputStream os = new ByteArrayOutputStream();
+                dom.backupToStream(os);
+                assertArrayEquals(before, os.toByteArray());
+            } finally {
+                pool.endSnapshotSession(session);
+            }
+            assertNull(pool.getSnapshotSession());
+
+            // without a session, the current contents are copied
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            dom.backupToStream(os);
+            assertArrayEquals(Files.readAllBytes(dom.getFile().toPath()), os.toByteArray());
+        }
+    }
+
+    @Test(expected = EXistException.class)
+    public void onlyOneSession() throws Exception {
+        final SnapshotSession session = pool.startSnapshotSession();
+        try {
+            pool.startSnapshotSession();
+        } finally {
+            pool.endSnapshotSession(session);
+        }
+    }
+
+    private void store(final int from, final int to) throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            for (int i = from; i < to; i++) {
+                final String xml = "<test><n>" + i + "</n><text>some text to fill the page " + i + "</text></test>";
+                final IndexInfo info = collection.validateXMLResource(transaction, broker, XmldbURI.create("test" + i + ".xml"), xml);
+                collection.store(transaction, broker, info, xml, false);
+            }
+            pool.getTransactionManager().commit(transaction);
+        }
+    }
+
+    @After
+    public void removeCollection() throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getCollection(TEST_COLLECTION_URI);
+            if (collection != null) {
+                broker.removeCollection(transaction, collection);
+            }
+            pool.getTransactionManager().commit(transaction);
+        }
+    }
+
+    @BeforeClass
+    public static void startDB() throws DatabaseConfigurationException, EXistException {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+    }
+
+    @AfterClass
+    public static void stopDB() {
+        BrokerPool.stopAll(false);
+    }
+}
@@ -0,0 +1,129 @@
+package org.exist.storage.serializers;
+
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.DocumentMetadata;
+import org.exist.storage.UpdateListener;
+import org.exist.util.Configuration;
+import org.junit.Test;
+
+import javax.xml.transform.OutputKeys;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import static org.easymock.EasyMock.expect;
+import static org.easymock.classextension.EasyMock.createMock;
+import static org.easymock.classextension.EasyMock.replay;
+import static org.junit.Assert.*;
+
+public class SerializedDocumentCacheTest {
+
+    @Test
+    public void disabledByDefault() {
+        final SerializedDocumentCache cache = new SerializedDocumentCache(config(null));
+        assertFalse(cache.isEnabled());
+        assertNull(cache.put("test", document(1, 1000), new Properties(), new byte[10]));
+    }
+
+    @Test
+    public void keyedByLastModifiedAndProperties() {
+        final SerializedDocumentCache cache = new SerializedDocumentCache(config(1));
+        final Properties props = new Properties();
+        props.setProperty(OutputKeys.INDENT, "yes");
+
+        assertNotNull(cache.put("test", document(1, 1000), props, new byte[10]));
+        assertNotNull(cache.get("test", document(1, 1000), props));
+        assertNull(cache.get("other", document(1, 1000), props));
+        assertNull(cache.get("test", document(1, 2000), props));
+
+        final Properties noIndent = new Properties();
+        noIndent.setProperty(OutputKeys.INDENT, "no");
+        assertNull(cache.get("test", document(1, 1000), noIndent));
+
+        // defaults count as well
+        final Properties withDefaults = new Properties(props);
+        assertNotNull(cache.get("test", document(1, 1000), withDefaults));
+    }
+
+    @Test
+    public void etagChangesWithDocument() {
+        final Properties props = new Properties();
+        final String etag = SerializedDocumentCache.getETag(document(1, 1000), props);
+        assertEquals(etag, SerializedDocumentCache.getETag(document(1, 1000), props));
+        assertNotEquals(etag, SerializedDocumentCache.getETag(document(1, 2000), props));
+        assertNotEquals(etag, SerializedDocumentCache.getETag(document(2, 1000), props));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        final SerializedDocumentCache cache = new SerializedDocumentCache(config(1));
+        final Properties props = new Properties();
+        final int entrySize = 300 * 1024;
+
+        cache.put("test", document(1, 1000), props, new byte[entrySize]);
+        cache.put("test", document(2, 1000), props, new byte[entrySize]);
+        cache.put("test", document(3, 1000), props, new byte[entrySize]);
+        // touch the first document, so the second one is evicted
+        assertNotNull(cache.get("test", document(1, 1000), props));
+        cache.put("test", document(4, 1000), props, new byte[entrySize]);
+
+        assertEquals(3, cache.getEntryCount());
+        assertTrue(cache.getCurrentSize() <= 1024 * 1024);
+        assertNotNull(cache.get("test", document(1, 1000), props));
+        assertNull(cache.get("test", document(2, 1000), props));
+    }
+
+    @Test
+    public void invalidatedOnUpdate() {
+        final SerializedDocumentCache cache = new SerializedDocumentCache(config(1));
+        final Properties props = new Properties();
+        final Properties other = new Properties();
+        other.setProperty(OutputKeys.INDENT, "no");
+
+        cache.put("test", document(1, 1000), props, new byte[10]);
+        cache.put("test", document(1, 1000), other, new byte[10]);
+        cache.put("test", document(2, 1000), props, new byte[10]);
+
+        cache.documentUpdated(document(1, 1000), UpdateListener.UPDATE);
+
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(10, cache.getCurrentSize());
+        assertNull(cache.get("test", document(1, 1000), props));
+        assertNotNull(cache.get("test", document(2, 1000), props));
+    }
+
+    @Test
+    public void bufferingOutputStreamSpillsOverLimit() throws IOException {
+        final ByteArrayOutputStream target = new ByteArrayOutputStream();
+        final SerializedDocumentCache.BufferingOutputStream os = new SerializedDocumentCache.BufferingOutputStream(target, 4);
+
+        os.write(new byte[] { 1, 2, 3 }, 0, 3);
+        assertTrue(os.isBuffered());
+        assertEquals(0, target.size());
+
+        os.write(4);
+        os.write(5);
+        assertFalse(os.isBuffered());
+        assertNull(os.getData());
+        assertArrayEquals(new byte[] { 1, 2, 3, 4, 5 }, target.toByteArray());
+    }
+
+    private static Configuration config(final Integer cacheSize) {
+        final Configuration config = createMock(Configuration.class);
+        expect(config.getProperty(SerializedDocumentCache.PROPERTY_CACHE_SIZE)).andReturn(cacheSize).anyTimes();
+        expect(config.getProperty(SerializedDocumentCache.PROPERTY_MAX_ENTRY_SIZE)).andReturn(null).anyTimes();
+        replay(config);
+        return config;
+    }
+
+    private static DocumentImpl document(final int docId, final long lastModified) {
+        final DocumentMetadata metadata = new DocumentMetadata();
+        metadata.setLastModified(lastModified);
+
+        final DocumentImpl doc = createMock(DocumentImpl.class);
+        expect(doc.getDocId()).andReturn(docId).anyTimes();
+        expect(doc.getMetadata()).andReturn(metadata).anyTimes();
+        replay(doc);
+        return doc;
+    }
+}
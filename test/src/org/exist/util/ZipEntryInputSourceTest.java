@@ -0,0 +1,71 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ZipEntryInputSourceTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void streamsAreIndependent() throws IOException {
+        final File file = temp.newFile("test.zip");
+        try (final ZipOutputStream os = new ZipOutputStream(new FileOutputStream(file))) {
+            os.putNextEntry(new ZipEntry("test.xml"));
+            os.write("<test/>".getBytes(StandardCharsets.UTF_8));
+            os.closeEntry();
+        }
+
+        try (final ZipFile zipFile = new ZipFile(file)) {
+            final ZipEntryInputSource source = new ZipEntryInputSource(zipFile, zipFile.getEntry("test.xml"));
+            final InputStream first = source.getByteStream();
+            assertEquals('<', first.read());
+
+            // a second stream does not affect the first one
+            final InputStream second = source.getByteStream();
+            assertEquals('<', second.read());
+            assertEquals('t', first.read());
+            assertEquals('t', second.read());
+
+            source.close();
+            try {
+                first.read();
+                fail("Stream should be closed");
+            } catch (final IOException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.exist.xmlrpc;
+
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.ValueSequence;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class QueryResultCacheTest {
+
+    @Test
+    public void addAndRemove() throws XPathException {
+        final QueryResultCache cache = new QueryResultCache();
+        final QueryResult first = result(3);
+        final QueryResult second = result(2);
+        final int id1 = cache.add(first);
+        final int id2 = cache.add(second);
+        assertNotEquals(id1, id2);
+        assertSame(first, cache.getResult(id1));
+        assertNull(cache.getSerializedResult(id1));
+        assertEquals(5, cache.getItemCount());
+
+        cache.remove(id2, second.hashCode() + 1);
+        assertSame(second, cache.getResult(id2));
+
+        cache.remove(id2, second.hashCode());
+        assertNull(cache.get(id2));
+        assertNull(second.getResult());
+        assertEquals(3, cache.getItemCount());
+
+        cache.remove(id1);
+        assertEquals(0, cache.size());
+        assertNull(cache.get(-1));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws XPathException {
+        final QueryResultCache cache = new QueryResultCache(2, Long.MAX_VALUE, QueryResultCache.TIMEOUT);
+        final QueryResult first = result(1);
+        final QueryResult second = result(1);
+        final int id1 = cache.add(first);
+        final int id2 = cache.add(second);
+        first.timestamp = 2000;
+        second.timestamp = 1000;
+
+        final int id3 = cache.add(result(1));
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(id1));
+        assertNull(cache.get(id2));
+        assertNotNull(cache.get(id3));
+    }
+
+    @Test
+    public void boundedByItems() throws XPathException {
+        final QueryResultCache cache = new QueryResultCache(100, 10, QueryResultCache.TIMEOUT);
+        final QueryResult first = result(6);
+        final int id1 = cache.add(first);
+        first.timestamp = 1000;
+        final int id2 = cache.add(result(6));
+        assertNull(cache.get(id1));
+        assertNotNull(cache.get(id2));
+        assertEquals(6, cache.getItemCount());
+
+        // the most recently added result is kept even if it exceeds the limit
+        final int id3 = cache.add(result(20));
+        assertNotNull(cache.get(id3));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void removesTimedOutResults() throws XPathException {
+        final QueryResultCache cache = new QueryResultCache(100, 100, 1000);
+        final QueryResult first = result(1);
+        final int id1 = cache.add(first);
+        final int id2 = cache.add(result(1));
+        first.timestamp = System.currentTimeMillis() - 2000;
+
+        cache.checkTimestamps();
+        assertNull(cache.get(id1));
+        assertNotNull(cache.get(id2));
+        assertEquals(1, cache.getItemCount());
+    }
+
+    private static QueryResult result(final int items) throws XPathException {
+        final ValueSequence seq = new ValueSequence();
+        for (int i = 0; i < items; i++) {
+            seq.add(new IntegerValue(i));
+        }
+        return new QueryResult(seq, new Properties());
+    }
+}
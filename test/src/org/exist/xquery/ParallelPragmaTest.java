@@ -0,0 +1,205 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2015 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.xquery;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.util.Configuration;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Sequence;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ParallelPragmaTest {
+
+    private final static XmldbURI TEST_COLLECTION_URI = XmldbURI.ROOT_COLLECTION_URI.append("parallel-test");
+    private final static String ITEMS = "collection('" + TEST_COLLECTION_URI + "')//item";
+
+    private static BrokerPool pool;
+
+    @Test
+    public void sameResultAsSequential() throws Exception {
+        final String query =
+            "declare variable $factor external;\n" +
+            "declare variable $offset := 1000;\n" +
+            "let $items := " + ITEMS + "\n" +
+            "let $total := count($items)\n" +
+            "return\n" +
+            "    (# exist:parallel threads=4 #) {\n" +
+            "        for $item in $items\n" +
+            "        let $n := xs:integer($item/@n)\n" +
+            "        where $n mod 3 != 0\n" +
+            "        return <n>{$n * $factor + $offset + $total}</n>\n" +
+            "    }";
+
+        final String parallel = execute(query);
+        final String sequential = execute(query.replace("threads=4", "threads=1"));
+        assertEquals(sequential, parallel);
+        assertTrue(parallel.startsWith("1102 1104 1108 "));
+        // the workers took brokers of their own
+        assertTrue(pool.total() > 1);
+    }
+
+    @Test
+    public void errorsOfWorkersAreReported() throws Exception {
+        final String query =
+            "(# exist:parallel threads=4 #) {\n" +
+            "    for $item in " + ITEMS + "\n" +
+            "    return if ($item/@n = 90) then error(xs:QName('local:fail'), 'failed at 90') else 1\n" +
+            "}";
+        try {
+            execute(query);
+            fail("Expected the error raised by a worker");
+        } catch (final XPathException e) {
+            assertTrue(e.getMessage().contains("failed at 90"));
+        }
+    }
+
+    @Test
+    public void updatesAreEvaluatedSequentially() throws Exception {
+        final String query =
+            "(# exist:parallel threads=4 #) {\n" +
+            "    for $item in " + ITEMS + "\n" +
+            "    return update insert <done/> into $item\n" +
+            "}, count(" + ITEMS + "/done)";
+        assertEquals("100", execute(query));
+    }
+
+    @Test
+    public void inMemoryNodesInScope() throws Exception {
+        final String query =
+            "let $nodes := <a><b/><b/></a>\n" +
+            "return sum((# exist:parallel threads=4 #) {\n" +
+            "    for $item in " + ITEMS + "\n" +
+            "    return count($nodes/b)\n" +
+            "})";
+        assertEquals("200", execute(query));
+    }
+
+    @Test
+    public void noWaitingForBrokers() throws Exception {
+        // other queries hold all brokers but the one of this query
+        final int others = pool.getMax() - 1;
+        final CountDownLatch taken = new CountDownLatch(others);
+        final CountDownLatch done = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(others + 1);
+        try {
+            for (int i = 0; i < others; i++) {
+                executor.submit(() -> {
+                    try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+                        taken.countDown();
+                        done.await();
+                    }
+                    return null;
+                });
+            }
+            assertTrue(taken.await(10, TimeUnit.SECONDS));
+
+            try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+                final String query =
+                    "sum((# exist:parallel threads=4 #) {\n" +
+                    "    for $item in " + ITEMS + "\n" +
+                    "    return xs:integer($item/@n)\n" +
+                    "})";
+                assertEquals("5050", execute(query));
+                assertNull(executor.submit(() -> pool.tryGet(pool.getSecurityManager().getSystemSubject())).get());
+            }
+        } finally {
+            done.countDown();
+            executor.shutdown();
+        }
+    }
+
+    private String execute(final String query) throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject())) {
+            final XQuery xquery = pool.getXQueryService();
+            final XQueryContext context = new XQueryContext(pool, AccessContext.TEST);
+            context.declareVariable("factor", new IntegerValue(2));
+            final CompiledXQuery compiled = xquery.compile(broker, context, query);
+            final Sequence result = xquery.execute(broker, compiled, null);
+            final StringBuilder buf = new StringBuilder();
+            for (int i = 0; i < result.getItemCount(); i++) {
+                if (i > 0) {
+                    buf.append(' ');
+                }
+                buf.append(result.itemAt(i).getStringValue());
+            }
+            return buf.toString();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        final StringBuilder xml = new StringBuilder("<test>");
+        for (int i = 1; i <= 100; i++) {
+            xml.append("<item n='").append(i).append("'/>");
+        }
+        xml.append("</test>");
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getOrCreateCollection(transaction, TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, collection);
+            final IndexInfo info = collection.validateXMLResource(transaction, broker, XmldbURI.create("items.xml"), xml.toString());
+            collection.store(transaction, broker, info, xml.toString(), false);
+            pool.getTransactionManager().commit(transaction);
+        }
+    }
+
+    @After
+    public void removeCollection() throws Exception {
+        try (final DBBroker broker = pool.get(pool.getSecurityManager().getSystemSubject());
+             final Txn transaction = pool.getTransactionManager().beginTransaction()) {
+            final Collection collection = broker.getCollection(TEST_COLLECTION_URI);
+            if (collection != null) {
+                broker.removeCollection(transaction, collection);
+            }
+            pool.getTransactionManager().commit(transaction);
+        }
+    }
+
+    @BeforeClass
+    public static void startDB() throws DatabaseConfigurationException, EXistException {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+    }
+
+    @AfterClass
+    public static void stopDB() {
+        BrokerPool.stopAll(false);
+    }
+}